@@ -0,0 +1,449 @@
+package com.aerospike.recommendation.load;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.json.simple.JSONObject;
+
+/**
+ * Replays the customers of Customers.txt against the recommendation
+ * endpoints and records the latency of every request in HDR histograms.
+ * Requests that fail are recorded in a histogram of their own, with the
+ * time from their intended start to the failure.
+ *
+ * In the open loop, requests are started at a fixed rate, whether or
+ * not earlier requests have completed, and each latency is measured
+ * from the time the request should have started. A request that waits
+ * for a free thread is measured with its wait, so the histograms are
+ * free of coordinated omission.
+ *
+ * In the closed loop, each thread sends its next request when the
+ * last one completes. With a rate, each thread follows its own fixed
+ * schedule, at its share of the rate, and latencies are measured
+ * from the schedule the same way, so a slow response is also charged
+ * to the requests it held back.
+ * @author peter
+ *
+ */
+public class LoadGenerator {
+	private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toMicros(10);
+	private static final int PROGRESS_INTERVAL = 5000;
+
+	private final String[] endpoints;
+	private final String baseUrl;
+	private final String query;
+	private final CustomerChooser customers;
+	private final boolean openLoop;
+	private final int threads;
+	private final double rate;
+	private final long warmupNanos;
+	private final long durationNanos;
+	private final int timeout;
+	private final long seed;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong behind = new AtomicLong();
+	private long start;
+	private long measureFrom;
+	private long end;
+	private long finished;
+
+	LoadGenerator(String baseUrl, String[] endpoints, String query, CustomerChooser customers, boolean openLoop,
+			int threads, double rate, long warmupSeconds, long durationSeconds, int timeout, long seed) {
+		this.baseUrl = baseUrl;
+		this.endpoints = endpoints;
+		this.query = query;
+		this.customers = customers;
+		this.openLoop = openLoop;
+		this.threads = threads;
+		this.rate = rate;
+		this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+		this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+		this.timeout = timeout;
+		this.seed = seed;
+	}
+
+	/**
+	 * Runs the load and merges the results of the threads
+	 */
+	Stats[] run() throws InterruptedException {
+		// keep a connection open per thread
+		System.setProperty("http.maxConnections", String.valueOf(threads));
+		final Stats[][] threadStats = new Stats[threads][];
+		List<Thread> workers = new ArrayList<Thread>(threads);
+		start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		measureFrom = start + warmupNanos;
+		end = measureFrom + durationNanos;
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			threadStats[t] = newStats();
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random(seed + thread);
+					if (openLoop)
+						runOpen(random, threadStats[thread]);
+					else
+						runClosed(thread, random, threadStats[thread]);
+				}
+			}, "load-" + t);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+		long lastCount = 0;
+		long lastTime = System.nanoTime();
+		for (Thread worker : workers) {
+			while (worker.isAlive()) {
+				worker.join(PROGRESS_INTERVAL);
+				long now = System.nanoTime();
+				if (now - lastTime >= TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL)) {
+					long count = sent.get();
+					System.err.printf("%s %d requests, %.0f/s%n", now < measureFrom ? "warmup" : "measure",
+							count, (count - lastCount) * 1e9 / (now - lastTime));
+					lastCount = count;
+					lastTime = now;
+				}
+			}
+		}
+		finished = System.nanoTime();
+		Stats[] merged = newStats();
+		for (Stats[] stats : threadStats) {
+			for (int e = 0; e < endpoints.length; e++)
+				merged[e].add(stats[e]);
+		}
+		return merged;
+	}
+
+	/**
+	 * Takes the next request off a shared schedule at the fixed rate,
+	 * and measures it from the time it was scheduled
+	 */
+	private void runOpen(Random random, Stats[] stats) {
+		long interval = (long) (1e9 / rate);
+		while (true) {
+			long request = sent.getAndIncrement();
+			long intended = start + request * interval;
+			if (intended >= end)
+				return;
+			long lag = System.nanoTime() - intended;
+			if (lag < 0)
+				sleepUntil(intended);
+			else if (lag > TimeUnit.MILLISECONDS.toNanos(1))
+				behind.incrementAndGet();
+			int endpoint = (int) (request % endpoints.length);
+			send(endpoint, customers.next(random), intended, stats[endpoint]);
+		}
+	}
+
+	/**
+	 * Sends a request when the last one completes, paced at the thread's share of the rate, if there is one
+	 */
+	private void runClosed(int thread, Random random, Stats[] stats) {
+		long interval = (rate > 0) ? (long) (1e9 * threads / rate) : 0;
+		long intended = start + (interval * thread) / threads;
+		long request = thread;
+		while (intended < end) {
+			sleepUntil(intended);
+			sent.incrementAndGet();
+			int endpoint = (int) (request % endpoints.length);
+			send(endpoint, customers.next(random), (interval > 0) ? intended : System.nanoTime(), stats[endpoint]);
+			request += threads;
+			intended = (interval > 0) ? intended + interval : System.nanoTime();
+		}
+	}
+
+	/**
+	 * Sends a request and records its latency, if it was scheduled after the warmup
+	 * @param from the time the latency is measured from
+	 */
+	private void send(int endpoint, String customerID, long from, Stats stats) {
+		boolean measured = from >= measureFrom;
+		int status;
+		try {
+			URL url = new URL(baseUrl + "/" + endpoints[endpoint] + "/recommendation/" + customerID
+					+ (query == null ? "" : "?" + query));
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			connection.setConnectTimeout(timeout);
+			connection.setReadTimeout(timeout);
+			status = connection.getResponseCode();
+			// read the response to the end, so the connection is reused
+			InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+			if (in != null) {
+				byte[] buffer = new byte[8192];
+				while (in.read(buffer) >= 0);
+				in.close();
+			}
+		} catch (IOException e) {
+			// a timeout included, charged with the time it took to fail
+			if (measured)
+				stats.failureHistogram.recordValue(Math.min(elapsed(from), HIGHEST_LATENCY));
+			return;
+		}
+		long latency = elapsed(from);
+		if (!measured)
+			return;
+		stats.histogram.recordValue(Math.min(latency, HIGHEST_LATENCY));
+		Integer count = stats.statuses.get(status);
+		stats.statuses.put(status, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * @return the microseconds since a time
+	 */
+	private static long elapsed(long from) {
+		return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - from);
+	}
+
+	private static void sleepUntil(long time) {
+		long wait;
+		while ((wait = time - System.nanoTime()) > 0)
+			LockSupport.parkNanos(wait);
+	}
+
+	private Stats[] newStats() {
+		Stats[] stats = new Stats[endpoints.length];
+		for (int e = 0; e < endpoints.length; e++)
+			stats[e] = new Stats();
+		return stats;
+	}
+
+	/**
+	 * @return the settings and results of a run, latencies in milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	JSONObject report(Stats[] stats) {
+		JSONObject config = new JSONObject();
+		config.put("url", baseUrl);
+		config.put("query", query);
+		config.put("mode", openLoop ? "open" : "closed");
+		config.put("threads", threads);
+		config.put("rate", rate);
+		config.put("warmupSeconds", TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+		config.put("durationSeconds", TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+		config.put("customers", customers.size());
+		config.put("zipf", customers.exponent());
+		config.put("seed", seed);
+
+		JSONObject results = new JSONObject();
+		// the measured requests complete after the end of the schedule, when the service falls behind
+		double seconds = Math.max(durationNanos, finished - measureFrom) / 1e9;
+		long total = 0;
+		for (int e = 0; e < endpoints.length; e++) {
+			Stats endpoint = stats[e];
+			JSONObject result = new JSONObject();
+			long count = 0;
+			JSONObject statuses = new JSONObject();
+			for (Integer status : endpoint.statuses.keySet()) {
+				statuses.put(String.valueOf(status), endpoint.statuses.get(status));
+				count += endpoint.statuses.get(status);
+			}
+			total += count;
+			result.put("requests", count);
+			result.put("failures", endpoint.failureHistogram.getTotalCount());
+			result.put("statuses", statuses);
+			result.put("throughput", count / seconds);
+			result.put("latencyMs", latency(endpoint.histogram));
+			result.put("failureLatencyMs", latency(endpoint.failureHistogram));
+			results.put(endpoints[e], result);
+		}
+		JSONObject report = new JSONObject();
+		report.put("time", System.currentTimeMillis());
+		report.put("config", config);
+		report.put("requests", total);
+		report.put("throughput", total / seconds);
+		report.put("behindSchedule", behind.get());
+		report.put("endpoints", results);
+		return report;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject latency(Histogram histogram) {
+		JSONObject latency = new JSONObject();
+		if (histogram.getTotalCount() == 0)
+			return latency;
+		latency.put("min", histogram.getMinValue() / 1000.0);
+		latency.put("mean", histogram.getMean() / 1000.0);
+		latency.put("p50", histogram.getValueAtPercentile(50) / 1000.0);
+		latency.put("p90", histogram.getValueAtPercentile(90) / 1000.0);
+		latency.put("p99", histogram.getValueAtPercentile(99) / 1000.0);
+		latency.put("p999", histogram.getValueAtPercentile(99.9) / 1000.0);
+		latency.put("max", histogram.getMaxValue() / 1000.0);
+		return latency;
+	}
+
+	/**
+	 * The requests of one endpoint, kept per thread and merged at the end.
+	 * The requests that failed, with an IOException or a timeout, are
+	 * recorded apart from the ones that got a response, so a run of
+	 * timeouts shows as the time they took rather than as missing samples
+	 */
+	static class Stats {
+		final Histogram histogram = new Histogram(HIGHEST_LATENCY, 3);
+		final Histogram failureHistogram = new Histogram(HIGHEST_LATENCY, 3);
+		final TreeMap<Integer, Integer> statuses = new TreeMap<Integer, Integer>();
+
+		void add(Stats other) {
+			histogram.add(other.histogram);
+			failureHistogram.add(other.failureHistogram);
+			for (Integer status : other.statuses.keySet()) {
+				Integer count = statuses.get(status);
+				statuses.put(status, (count == null ? 0 : count) + other.statuses.get(status));
+			}
+		}
+	}
+
+	/**
+	 * Picks customers with a Zipf distribution over a random ranking
+	 * of the customers, so the popular customers are not the first
+	 * ones in the file. An exponent of 0 picks uniformly.
+	 */
+	static class CustomerChooser {
+		private final String[] customers;
+		private final double[] cumulative;
+		private final double exponent;
+
+		CustomerChooser(List<String> customerIDs, double exponent, long seed) {
+			List<String> ranked = new ArrayList<String>(customerIDs);
+			Collections.shuffle(ranked, new Random(seed));
+			this.customers = ranked.toArray(new String[ranked.size()]);
+			this.exponent = exponent;
+			this.cumulative = new double[customers.length];
+			double sum = 0;
+			for (int rank = 0; rank < customers.length; rank++) {
+				sum += 1 / Math.pow(rank + 1, exponent);
+				cumulative[rank] = sum;
+			}
+			for (int rank = 0; rank < customers.length; rank++)
+				cumulative[rank] /= sum;
+		}
+
+		String next(Random random) {
+			double p = random.nextDouble();
+			int low = 0;
+			int high = cumulative.length - 1;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (cumulative[mid] < p)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return customers[low];
+		}
+
+		int size() {
+			return customers.length;
+		}
+
+		double exponent() {
+			return exponent;
+		}
+	}
+
+	/**
+	 * Reads the customerID:NNN lines of a customer file
+	 */
+	static List<String> readCustomers(File file) throws IOException {
+		List<String> customerIDs = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				int colon = line.indexOf(':');
+				if (colon > 0 && line.substring(0, colon).equalsIgnoreCase("customerID"))
+					customerIDs.add(line.substring(colon + 1).trim());
+			}
+		} finally {
+			reader.close();
+		}
+		if (customerIDs.isEmpty())
+			throw new IOException("No customerID lines in " + file);
+		return customerIDs;
+	}
+
+	public static void main(String[] args) throws ParseException, IOException, InterruptedException {
+		Options options = new Options();
+		options.addOption("u", "url", true, "Service URL (default: http://localhost:8080)");
+		options.addOption("e", "endpoints", true, "Comma separated endpoints: aerospike, mongo, local, snapshot (default: aerospike)");
+		options.addOption("q", "query", true, "Query string added to each request, e.g. k=10&n=20");
+		options.addOption("c", "customers", true, "Customer file of customerID:NNN lines (default: Customers.txt)");
+		options.addOption("m", "mode", true, "open: requests start at a fixed rate, closed: each thread waits for its last response (default: closed)");
+		options.addOption("r", "rate", true, "Requests per second, required in the open loop, paces the threads in the closed loop");
+		options.addOption("t", "threads", true, "Concurrent requests (default: 8)");
+		options.addOption("z", "zipf", true, "Zipf exponent of the customer popularity, 0 is uniform (default: 0.99)");
+		options.addOption("w", "warmup", true, "Warmup seconds, not recorded (default: 10)");
+		options.addOption("d", "duration", true, "Measured seconds (default: 60)");
+		options.addOption("to", "timeout", true, "Request timeout in milliseconds (default: 10000)");
+		options.addOption("s", "seed", true, "Random seed (default: 1)");
+		options.addOption("o", "output", true, "JSON result file (default: standard output)");
+		options.addOption("h", "help", false, "Print usage.");
+
+		CommandLineParser parser = new PosixParser();
+		CommandLine cl = parser.parse(options, args, false);
+		if (cl.hasOption("h")) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(LoadGenerator.class.getName() + " [<options>]", options);
+			return;
+		}
+		boolean openLoop = cl.getOptionValue("m", "closed").equalsIgnoreCase("open");
+		if (openLoop && !cl.hasOption("r"))
+			throw new IllegalArgumentException("The open loop needs a rate, -r");
+		long seed = Long.parseLong(cl.getOptionValue("s", "1"));
+		CustomerChooser customers = new CustomerChooser(readCustomers(new File(cl.getOptionValue("c", "Customers.txt"))),
+				Double.parseDouble(cl.getOptionValue("z", "0.99")), seed);
+		String baseUrl = cl.getOptionValue("u", "http://localhost:8080");
+		if (baseUrl.endsWith("/"))
+			baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+
+		LoadGenerator generator = new LoadGenerator(baseUrl,
+				cl.getOptionValue("e", "aerospike").split(","),
+				cl.getOptionValue("q"),
+				customers,
+				openLoop,
+				Integer.parseInt(cl.getOptionValue("t", "8")),
+				Double.parseDouble(cl.getOptionValue("r", "0")),
+				Long.parseLong(cl.getOptionValue("w", "10")),
+				Long.parseLong(cl.getOptionValue("d", "60")),
+				Integer.parseInt(cl.getOptionValue("to", "10000")),
+				seed);
+		JSONObject report = generator.report(generator.run());
+
+		Writer out = cl.hasOption("o") ? new FileWriter(cl.getOptionValue("o")) : new StringWriter();
+		try {
+			report.writeJSONString(out);
+		} finally {
+			out.close();
+		}
+		if (!cl.hasOption("o")) {
+			PrintWriter stdout = new PrintWriter(System.out);
+			stdout.println(out.toString());
+			stdout.flush();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.aerospike.recommendation.rest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.aerospike.recommendation.index.RatingIndex;
+import com.aerospike.recommendation.index.RatingIndexLoader;
+
+/**
+ * An in-memory fake of the rating reads of the Aerospike endpoint.
+ *
+ * The lists hold the same maps as a Large List range returns, built
+ * from a RatingIndex loaded from the movie files or a rating snapshot.
+ * Each list is built once and kept, so the benchmarks measure the
+ * scoring code rather than the making of the maps.
+ * @author peter
+ *
+ */
+public class InMemoryRatings {
+	private static final Map<String, InMemoryRatings> loaded = new HashMap<String, InMemoryRatings>();
+
+	private final RatingIndex index;
+	private final Map<Long, List<Map<String, Object>>> customerLists = new ConcurrentHashMap<Long, List<Map<String, Object>>>();
+	private final Map<Integer, List<Map<String, Object>>> movieLists = new ConcurrentHashMap<Integer, List<Map<String, Object>>>();
+
+	private InMemoryRatings(RatingIndex index) {
+		this.index = index;
+	}
+
+	/**
+	 * Loads the ratings once per JVM
+	 * @param data a movie file directory, or a rating snapshot
+	 */
+	public static synchronized InMemoryRatings load(String data) throws Exception {
+		InMemoryRatings ratings = loaded.get(data);
+		if (ratings == null) {
+			ratings = new InMemoryRatings(RatingIndexLoader.load(new File(data), 0));
+			loaded.put(data, ratings);
+		}
+		return ratings;
+	}
+
+	public RatingIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the ordinal of the customer with the number of ratings closest to size
+	 */
+	public int customerWithHistory(int size) {
+		int best = 0;
+		int bestDistance = Integer.MAX_VALUE;
+		for (int customer = 0; customer < index.customerCount(); customer++) {
+			int distance = Math.abs(index.historyTo(customer) - index.historyFrom(customer) - size);
+			if (distance < bestDistance) {
+				best = customer;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * The latest ratings of a customer, as read from the watched list
+	 * @param customer the customer ordinal
+	 * @param limit the number of ratings
+	 */
+	public List<Map<String, Object>> watched(int customer, int limit) {
+		Long key = ((long) customer << 32) | limit;
+		List<Map<String, Object>> list = customerLists.get(key);
+		if (list == null) {
+			int to = index.historyTo(customer);
+			int from = Math.max(index.historyFrom(customer), to - limit);
+			list = new ArrayList<Map<String, Object>>(to - from);
+			for (int h = from; h < to; h++)
+				list.add(rating(h, index.customerId(customer), index.movieId(index.historyMovie(h)), index.historyRating(h)));
+			customerLists.put(key, list);
+		}
+		return list;
+	}
+
+	/**
+	 * The latest MOVIE_REVIEW_LIMIT ratings of a movie, as read from the watchedBy list
+	 * @param movie the movie ordinal
+	 */
+	public List<Map<String, Object>> watchedBy(int movie) {
+		List<Map<String, Object>> list = movieLists.get(movie);
+		if (list == null) {
+			int to = index.watchersTo(movie);
+			int from = Math.max(index.watchersFrom(movie), to - RESTController.MOVIE_REVIEW_LIMIT);
+			list = new ArrayList<Map<String, Object>>(to - from);
+			for (int w = from; w < to; w++)
+				list.add(rating(w, index.customerId(index.watcher(w)), index.movieId(movie), index.watcherRating(w)));
+			movieLists.put(movie, list);
+		}
+		return list;
+	}
+
+	private static Map<String, Object> rating(long key, int customerId, int movieId, int rating) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("key", key);
+		map.put(RESTController.CUSTOMER_ID, String.valueOf(customerId));
+		map.put(RESTController.MOVIE_ID, String.valueOf(movieId));
+		map.put(RESTController.RATING, (long) rating);
+		return map;
+	}
+}
@@ -0,0 +1,125 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+import com.aerospike.recommendation.index.RatingIndex;
+
+/**
+ * Benchmarks the neighbor search of the Aerospike endpoint, for a
+ * fixed sample of customers, with the reads answered by InMemoryRatings.
+ *
+ * recommend() runs the candidate collection and the scoring,
+ * scoreCandidates() only the scoring of the candidates collected in setup.
+ * The candidates' ratings are read into RatingBatches, as by the endpoint.
+ * @author peter
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NeighborScoringBenchmark {
+
+	@Param("../movies")
+	public String data;
+
+	/**
+	 * k, 0 finds the single most similar customer
+	 */
+	@Param({"0", "10"})
+	public int neighbors;
+
+	@Param("64")
+	public int customers;
+
+	private InMemoryRatings ratings;
+	private int[] sample;
+	private SparseVector[] customerVectors;
+	private List<List<RatingBatch>> candidateLists;
+	private int next = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		ratings = InMemoryRatings.load(data);
+		RatingIndex index = ratings.getIndex();
+		Random random = new Random(42);
+		sample = new int[customers];
+		customerVectors = new SparseVector[customers];
+		candidateLists = new ArrayList<List<RatingBatch>>(customers);
+		for (int i = 0; i < customers; i++) {
+			sample[i] = random.nextInt(index.customerCount());
+			List<Map<String, Object>> watched = ratings.watched(sample[i], RESTController.MOVIE_REVIEW_LIMIT);
+			customerVectors[i] = SparseVector.fromRatings(watched);
+			candidateLists.add(candidates(sample[i], watched));
+		}
+	}
+
+	@Benchmark
+	public int recommend() {
+		int i = next();
+		List<Map<String, Object>> watched = ratings.watched(sample[i], RESTController.MOVIE_REVIEW_LIMIT);
+		SparseVector thisCustomerMovieVector = SparseVector.fromRatings(watched);
+		return NeighborRanker.score(thisCustomerMovieVector, candidates(sample[i], watched), nearest());
+	}
+
+	@Benchmark
+	public int scoreCandidates() {
+		int i = next();
+		return NeighborRanker.score(customerVectors[i], candidateLists.get(i), nearest());
+	}
+
+	private int next() {
+		int i = next;
+		next = (next + 1) % customers;
+		return i;
+	}
+
+	private KNearestNeighbors nearest() {
+		return (neighbors > 0) ? new KNearestNeighbors(neighbors) : null;
+	}
+
+	/**
+	 * The latest ratings of each customer that watched one of the
+	 * customer's movies, collected the same way as the endpoint does
+	 */
+	private List<RatingBatch> candidates(int customer, List<Map<String, Object>> watched) {
+		RatingIndex index = ratings.getIndex();
+		String customerID = String.valueOf(index.customerId(customer));
+		Set<String> candidateIds = new LinkedHashSet<String>();
+		for (Map<String, Object> movie : watched) {
+			int movieOrdinal = index.movieIndex(Integer.parseInt((String) movie.get(RESTController.MOVIE_ID)));
+			for (Map<String, Object> watchedBy : ratings.watchedBy(movieOrdinal)) {
+				String similarCustomerId = (String) watchedBy.get(RESTController.CUSTOMER_ID);
+				if (!similarCustomerId.equals(customerID))
+					candidateIds.add(similarCustomerId);
+			}
+		}
+		List<RatingBatch> lists = new ArrayList<RatingBatch>(candidateIds.size());
+		for (String candidateId : candidateIds) {
+			int candidate = index.customerIndex(Integer.parseInt(candidateId));
+			lists.add(RatingBatch.fromMaps(ratings.watched(candidate, RESTController.MOVIE_REVIEW_LIMIT)));
+		}
+		return lists;
+	}
+}
@@ -0,0 +1,133 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+
+/**
+ * Benchmarks the similarity of two customers, from the ratings
+ * of two real customers with about thisSize and otherSize ratings.
+ * The data set has no customer with more than about 1,300 ratings,
+ * so larger sizes use the customer with the most ratings.
+ * @author peter
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimilarityBenchmark {
+
+	@Param("../movies")
+	public String data;
+
+	@Param("20")
+	public int thisSize;
+
+	@Param({"20", "2000"})
+	public int otherSize;
+
+	private RESTController controller;
+	private List<Map<String, Object>> thisRatings;
+	private List<Map<String, Object>> otherRatings;
+	private RatingBatch otherBatch;
+	private List<Long> thisInterleaved;
+	private List<Long> otherInterleaved;
+	private SparseVector thisVector;
+	private SparseVector otherVector;
+	private SparseVector reused;
+
+	@Setup
+	public void setup() throws Exception {
+		InMemoryRatings ratings = InMemoryRatings.load(data);
+		controller = new RESTController();
+		thisRatings = ratings.watched(ratings.customerWithHistory(thisSize), thisSize);
+		otherRatings = ratings.watched(ratings.customerWithHistory(otherSize), otherSize);
+		thisInterleaved = RESTController.makeVector(thisRatings);
+		otherInterleaved = RESTController.makeVector(otherRatings);
+		otherBatch = RatingBatch.fromMaps(otherRatings);
+		thisVector = SparseVector.fromRatings(thisRatings);
+		otherVector = SparseVector.fromRatings(otherRatings);
+		reused = new SparseVector();
+	}
+
+	@Benchmark
+	public double cosineSimilarity() {
+		return CosineSimilarity.cosineSimilarity(thisVector, otherVector);
+	}
+
+	@Benchmark
+	public double dotProduct() {
+		return CosineSimilarity.dotProduct(thisVector, otherVector);
+	}
+
+	@Benchmark
+	public double cosineSimilarityInterleaved() {
+		return CosineSimilarity.cosineSimilarity(thisInterleaved, otherInterleaved);
+	}
+
+	@Benchmark
+	public double dotProductInterleaved() {
+		return CosineSimilarity.dotProduct(thisInterleaved, otherInterleaved);
+	}
+
+	@Benchmark
+	public double magnitude() {
+		return CosineSimilarity.magnitude(otherInterleaved);
+	}
+
+	@Benchmark
+	public List<Long> makeVector() {
+		return RESTController.makeVector(otherRatings);
+	}
+
+	/**
+	 * Builds a candidate's vector in place, as the neighbor scoring loop does
+	 */
+	@Benchmark
+	public SparseVector setRatings() {
+		return reused.setRatings(otherRatings);
+	}
+
+	/**
+	 * Builds a candidate's vector in place from its ratings as read, in columns
+	 */
+	@Benchmark
+	public SparseVector setRatingBatch() {
+		return reused.setRatings(otherBatch);
+	}
+
+	/**
+	 * Reads a candidate's ratings from the maps the database client returns
+	 */
+	@Benchmark
+	public RatingBatch fromMaps() {
+		return RatingBatch.fromMaps(otherRatings);
+	}
+
+	@Benchmark
+	public double easySimilarity() {
+		return controller.easySimilarity(thisVector, otherVector);
+	}
+
+	@Benchmark
+	public double easySimilarityRatings() {
+		return controller.easySimilarity(thisInterleaved, otherRatings);
+	}
+}
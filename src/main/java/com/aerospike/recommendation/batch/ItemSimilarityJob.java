@@ -0,0 +1,167 @@
+package com.aerospike.recommendation.batch;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.recommendation.dataimport.model.Movie;
+import com.aerospike.recommendation.index.RatingIndex;
+import com.aerospike.recommendation.index.SimilarMovies;
+import com.aerospike.recommendation.rest.TopK;
+
+/**
+ * Computes the cosine similarity of every pair of movies that share
+ * a customer, from the ratings in a RatingIndex, and keeps the
+ * top N similar movies of each movie.
+ *
+ * For a movie, the dot products with all other movies are counted in
+ * one pass over the customers that watched it and their histories.
+ * Movies are handed out to the worker threads one at a time, and each
+ * worker has its own accumulator, so the workers share nothing but counters.
+ * @author peter
+ *
+ */
+public class ItemSimilarityJob {
+	private static Logger log = Logger.getLogger(ItemSimilarityJob.class);
+	private static final long PROGRESS_INTERVAL = 5000;
+
+	private final RatingIndex index;
+	private final int topN;
+	private final int threads;
+	private final double[] norms;
+
+	private final AtomicInteger nextMovie = new AtomicInteger();
+	private final AtomicInteger moviesDone = new AtomicInteger();
+	private final AtomicLong pairs = new AtomicLong();
+
+	private final AerospikeClient aerospikeClient;
+	private final String namespace;
+	private final WritePolicy updatePolicy;
+
+	/**
+	 * @param aerospikeClient the similar movies are written to the SIMILAR bin
+	 * of each MOVIE_TITLES record, where the service reads them
+	 */
+	public ItemSimilarityJob(RatingIndex index, int topN, int threads, AerospikeClient aerospikeClient,
+			String namespace) {
+		this.index = index;
+		this.topN = topN;
+		this.threads = threads;
+		this.aerospikeClient = aerospikeClient;
+		this.namespace = namespace;
+		this.updatePolicy = new WritePolicy(aerospikeClient.writePolicyDefault);
+		this.updatePolicy.recordExistsAction = RecordExistsAction.UPDATE_ONLY;
+		this.norms = new double[index.movieCount()];
+		for (int m = 0; m < norms.length; m++) {
+			double sum = 0;
+			for (int w = index.watchersFrom(m); w < index.watchersTo(m); w++) {
+				int rating = index.watcherRating(w);
+				sum += rating * rating;
+			}
+			norms[m] = Math.sqrt(sum);
+		}
+	}
+
+	/**
+	 * Runs the job on all the worker threads and waits for it to finish
+	 */
+	public void run() throws InterruptedException {
+		log.info("Computing the " + topN + " most similar movies of " + index.movieCount()
+				+ " movies on " + threads + " threads");
+		long start = System.currentTimeMillis();
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			});
+		}
+		workers.shutdown();
+		while (!workers.awaitTermination(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) {
+			logProgress(start);
+		}
+		logProgress(start);
+	}
+
+	private void logProgress(long start) {
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		int done = moviesDone.get();
+		log.info("Similarity: " + done + "/" + index.movieCount() + " movies, "
+				+ (done * 1000L / elapsed) + " movies/s, "
+				+ (pairs.get() * 1000L / elapsed) + " co-ratings/s");
+	}
+
+	private void work() {
+		double[] dotProducts = new double[index.movieCount()];
+		int[] touched = new int[index.movieCount()];
+		int[] stamps = new int[index.movieCount()];
+		TopK top = new TopK(topN);
+		int[] ids = new int[topN];
+		double[] scores = new double[topN];
+		float[] floatScores = new float[topN];
+		int movie;
+		while ((movie = nextMovie.getAndIncrement()) < index.movieCount()) {
+			try {
+				int count = similarTo(movie, dotProducts, touched, stamps, top, ids, scores);
+				for (int i = 0; i < count; i++)
+					floatScores[i] = (float) scores[i];
+				byte[] encoded = SimilarMovies.encode(ids, floatScores, count);
+				aerospikeClient.put(updatePolicy,
+						new Key(namespace, Movie.PRODUCT_SET, String.valueOf(index.movieId(movie))),
+						new Bin(SimilarMovies.SIMILAR, encoded));
+			} catch (AerospikeException e) {
+				log.error("Aerospike Error", e);
+			}
+			moviesDone.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Finds the most similar movies of one movie
+	 * @return the number of movie IDs and scores written, most similar first
+	 */
+	private int similarTo(int movie, double[] dotProducts, int[] touched, int[] stamps, TopK top, int[] ids, double[] scores) {
+		int touchedCount = 0;
+		long coRatings = 0;
+		for (int w = index.watchersFrom(movie); w < index.watchersTo(movie); w++) {
+			int customer = index.watcher(w);
+			double rating = index.watcherRating(w);
+			for (int h = index.historyFrom(customer); h < index.historyTo(customer); h++) {
+				int other = index.historyMovie(h);
+				if (other == movie)
+					continue;
+				if (stamps[other] != movie + 1) {
+					stamps[other] = movie + 1;
+					touched[touchedCount++] = other;
+				}
+				dotProducts[other] += rating * index.historyRating(h);
+			}
+			coRatings += index.historyTo(customer) - index.historyFrom(customer);
+		}
+		pairs.addAndGet(coRatings);
+
+		top.clear();
+		for (int t = 0; t < touchedCount; t++) {
+			int other = touched[t];
+			if (dotProducts[other] > 0)
+				top.offer(other, dotProducts[other] / (norms[movie] * norms[other]));
+			dotProducts[other] = 0;
+		}
+		int count = top.drainDescending(ids, scores);
+		for (int i = 0; i < count; i++)
+			ids[i] = index.movieId(ids[i]);
+		return count;
+	}
+}
@@ -0,0 +1,273 @@
+package com.aerospike.recommendation.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.recommendation.dataimport.model.Customer;
+import com.aerospike.recommendation.dataimport.model.Movie;
+import com.aerospike.recommendation.index.LatentFactors;
+import com.aerospike.recommendation.index.RatingIndex;
+
+/**
+ * Factorizes the rating matrix of a RatingIndex into customer and
+ * movie latent factors, with alternating least squares and weighted
+ * lambda regularization (ALS-WR): each half iteration holds one side's
+ * factors fixed and solves every row of the other side on its own.
+ *
+ * As the rows of a side are independent, a side is split into blocks
+ * of rows solved by fork/join tasks, each with its own scratch arrays,
+ * writing only its own rows of the flat factor array.
+ * @author peter
+ *
+ */
+public class MatrixFactorizationJob {
+	private static Logger log = Logger.getLogger(MatrixFactorizationJob.class);
+	private static final int BLOCK = 256;
+	private static final long SEED = 42;
+
+	private final RatingIndex index;
+	private final int rank;
+	private final float lambda;
+	private final int iterations;
+	private final ForkJoinPool pool;
+	private final float[] customerFactors;
+	private final float[] movieFactors;
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	private AerospikeClient aerospikeClient;
+	private String namespace;
+	private WritePolicy updatePolicy;
+
+	/**
+	 * @param rank the number of factors
+	 * @param lambda the regularization, multiplied by the number of ratings of a row
+	 * @param iterations the number of times both sides are solved
+	 * @param threads the parallelism of the fork/join pool
+	 */
+	public MatrixFactorizationJob(RatingIndex index, int rank, float lambda, int iterations, int threads) {
+		this.index = index;
+		this.rank = rank;
+		this.lambda = lambda;
+		this.iterations = iterations;
+		this.pool = new ForkJoinPool(threads);
+		this.customerFactors = new float[index.customerCount() * rank];
+		this.movieFactors = new float[index.movieCount() * rank];
+	}
+
+	/**
+	 * Also write the factors to the FACTORS bin of each MOVIE_TITLES and MOVIE_CUSTOMERS record
+	 */
+	public void writeTo(AerospikeClient aerospikeClient, String namespace) {
+		this.aerospikeClient = aerospikeClient;
+		this.namespace = namespace;
+		this.updatePolicy = new WritePolicy(aerospikeClient.writePolicyDefault);
+		this.updatePolicy.recordExistsAction = RecordExistsAction.UPDATE_ONLY;
+	}
+
+	/**
+	 * Trains the factors on the pool and waits for it to finish
+	 * @return the factors
+	 */
+	public LatentFactors run() {
+		log.info("Factorizing " + index.ratingCount() + " ratings of " + index.movieCount() + " movies and "
+				+ index.customerCount() + " customers: rank " + rank + ", lambda " + lambda + ", "
+				+ iterations + " iterations on " + pool.getParallelism() + " threads");
+		long start = System.currentTimeMillis();
+		initializeMovies();
+		for (int i = 1; i <= iterations; i++) {
+			long iterationStart = System.currentTimeMillis();
+			pool.invoke(new Solve(true, 0, index.customerCount()));
+			pool.invoke(new Solve(false, 0, index.movieCount()));
+			double squaredError = pool.invoke(new SquaredError(0, index.customerCount()));
+			log.info("Iteration " + i + ": training RMSE " + Math.sqrt(squaredError / Math.max(index.ratingCount(), 1))
+					+ ", " + (System.currentTimeMillis() - iterationStart) + " ms");
+		}
+		log.info("Factorized in " + (System.currentTimeMillis() - start) + " ms");
+		int[] movieIds = new int[index.movieCount()];
+		for (int m = 0; m < movieIds.length; m++)
+			movieIds[m] = index.movieId(m);
+		int[] customerIds = new int[index.customerCount()];
+		for (int c = 0; c < customerIds.length; c++)
+			customerIds[c] = index.customerId(c);
+		LatentFactors factors = new LatentFactors(rank, lambda, movieIds, movieFactors, customerIds, customerFactors);
+		if (aerospikeClient != null) {
+			pool.invoke(new Write(true, 0, index.customerCount()));
+			pool.invoke(new Write(false, 0, index.movieCount()));
+			log.info("Wrote the factors of " + written.get() + " records with " + errors.get() + " errors");
+		}
+		pool.shutdown();
+		return factors;
+	}
+
+	/**
+	 * Writes the result of run() to a file
+	 */
+	public static void write(LatentFactors factors, File file) throws IOException {
+		factors.write(file);
+		log.info("Wrote " + factors + " to " + file);
+	}
+
+	/**
+	 * The first factor of a movie starts as its average rating,
+	 * the others as small random numbers
+	 */
+	private void initializeMovies() {
+		Random random = new Random(SEED);
+		for (int m = 0; m < index.movieCount(); m++) {
+			int from = index.watchersFrom(m);
+			int to = index.watchersTo(m);
+			double sum = 0;
+			for (int w = from; w < to; w++)
+				sum += index.watcherRating(w);
+			int row = m * rank;
+			movieFactors[row] = (to > from) ? (float) (sum / (to - from)) : 0f;
+			for (int f = 1; f < rank; f++)
+				movieFactors[row + f] = random.nextFloat() * 0.1f;
+		}
+	}
+
+	private int rowFrom(boolean customers, int row) {
+		return customers ? index.historyFrom(row) : index.watchersFrom(row);
+	}
+
+	private int rowTo(boolean customers, int row) {
+		return customers ? index.historyTo(row) : index.watchersTo(row);
+	}
+
+	/**
+	 * Solves the rows of one side, with the other side fixed
+	 */
+	private class Solve extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final boolean customers;
+		private final int from;
+		private final int to;
+
+		Solve(boolean customers, int from, int to) {
+			this.customers = customers;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BLOCK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Solve(customers, from, middle), new Solve(customers, middle, to));
+				return;
+			}
+			int longest = 0;
+			for (int row = from; row < to; row++)
+				longest = Math.max(longest, rowTo(customers, row) - rowFrom(customers, row));
+			int[] others = new int[longest];
+			float[] ratings = new float[longest];
+			double[] a = new double[rank * rank];
+			double[] b = new double[rank];
+			float[] fixed = customers ? movieFactors : customerFactors;
+			float[] solved = customers ? customerFactors : movieFactors;
+			for (int row = from; row < to; row++) {
+				int count = 0;
+				for (int p = rowFrom(customers, row); p < rowTo(customers, row); p++) {
+					if (customers) {
+						others[count] = index.historyMovie(p);
+						ratings[count++] = index.historyRating(p);
+					} else {
+						others[count] = index.watcher(p);
+						ratings[count++] = index.watcherRating(p);
+					}
+				}
+				LatentFactors.solve(fixed, rank, lambda, others, ratings, count, a, b, solved, row * rank);
+			}
+		}
+	}
+
+	/**
+	 * Sums the squared training error of the customers' ratings
+	 */
+	private class SquaredError extends RecursiveTask<Double> {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+
+		SquaredError(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Double compute() {
+			if (to - from > BLOCK * 16) {
+				int middle = (from + to) >>> 1;
+				SquaredError left = new SquaredError(from, middle);
+				left.fork();
+				double right = new SquaredError(middle, to).compute();
+				return left.join() + right;
+			}
+			double sum = 0;
+			for (int c = from; c < to; c++) {
+				int row = c * rank;
+				for (int h = index.historyFrom(c); h < index.historyTo(c); h++) {
+					int m = index.historyMovie(h) * rank;
+					double predicted = 0;
+					for (int f = 0; f < rank; f++)
+						predicted += customerFactors[row + f] * movieFactors[m + f];
+					double error = index.historyRating(h) - predicted;
+					sum += error * error;
+				}
+			}
+			return sum;
+		}
+	}
+
+	/**
+	 * Writes the factors of the rows of one side to their records
+	 */
+	private class Write extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final boolean customers;
+		private final int from;
+		private final int to;
+
+		Write(boolean customers, int from, int to) {
+			this.customers = customers;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BLOCK * 4) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Write(customers, from, middle), new Write(customers, middle, to));
+				return;
+			}
+			for (int row = from; row < to; row++) {
+				try {
+					Key key = customers
+							? new Key(namespace, Customer.USERS_SET, String.valueOf(index.customerId(row)))
+							: new Key(namespace, Movie.PRODUCT_SET, String.valueOf(index.movieId(row)));
+					byte[] encoded = LatentFactors.encode(customers ? customerFactors : movieFactors, row * rank, rank);
+					aerospikeClient.put(updatePolicy, key, new Bin(LatentFactors.FACTORS, encoded));
+					written.incrementAndGet();
+				} catch (AerospikeException e) {
+					if (errors.incrementAndGet() == 1)
+						log.error("Aerospike Error", e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package com.aerospike.recommendation.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.ScanCallback;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.ScanPolicy;
+import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.recommendation.dataimport.model.Customer;
+import com.aerospike.recommendation.rest.BatchCandidateReader;
+import com.aerospike.recommendation.rest.NeighborRanker;
+import com.aerospike.recommendation.rest.PrecomputedRecommendations;
+
+/**
+ * Makes the recommendation of every customer in MOVIE_CUSTOMERS ahead
+ * of time, the same as the Aerospike endpoint would with the same k and n,
+ * and writes it to the RECOMMENDED bin of the customer record, so the
+ * endpoint can serve it with one read.
+ *
+ * The customer IDs are scanned and sorted, then cut into batches, each read
+ * by a BatchCandidateReader so movies and candidates shared by the customers
+ * of a batch are read once. The batches run on a pool of worker threads.
+ *
+ * The last customer of the longest run of batches finished without an error
+ * is written to a checkpoint file, so a job that is stopped starts again after
+ * it, and one with failed batches retries them and the batches after them.
+ * The file is deleted when every customer is done, and the next run starts over.
+ * @author peter
+ *
+ */
+public class RecommendationJob {
+	private static Logger log = Logger.getLogger(RecommendationJob.class);
+	/*
+	 * the least time between checkpoints, in milliseconds
+	 */
+	private static final long CHECKPOINT_INTERVAL = 1000;
+
+	private final AerospikeClient aerospikeClient;
+	private final String namespace;
+	private final int neighbors;
+	private final int maxMovies;
+	private final int batchSize;
+	private final int threads;
+	private final File checkpoint;
+	private final BatchCandidateReader reader;
+	private final WritePolicy updatePolicy;
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	private boolean[] done;
+	private String[] lastOfBatch;
+	private int finished;
+	private int checkpointed;
+	private int completed;
+	private long lastCheckpoint;
+
+	/**
+	 * @param neighbors k, the number of similar customers to rank movies from,
+	 * 0 for the unseen movies of the most similar customer
+	 * @param maxMovies n, the number of ranked movies kept
+	 * @param reviewLimit the number of latest ratings read from a list, as by the endpoint
+	 * @param batchSize the customers whose candidates are read together
+	 * @param threads the number of batches run at once
+	 * @param checkpoint the checkpoint file
+	 */
+	public RecommendationJob(AerospikeClient aerospikeClient, String namespace, int neighbors, int maxMovies,
+			int reviewLimit, int batchSize, int threads, File checkpoint) {
+		this.aerospikeClient = aerospikeClient;
+		this.namespace = namespace;
+		this.neighbors = neighbors;
+		this.maxMovies = maxMovies;
+		this.batchSize = batchSize;
+		this.threads = threads;
+		this.checkpoint = checkpoint;
+		this.reader = new BatchCandidateReader(aerospikeClient, namespace, reviewLimit);
+		this.updatePolicy = new WritePolicy(aerospikeClient.writePolicyDefault);
+		this.updatePolicy.recordExistsAction = RecordExistsAction.UPDATE_ONLY;
+	}
+
+	/**
+	 * Recommends for every customer after the checkpoint, and waits for it to finish
+	 */
+	public void run() throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		List<String> customerIDs = scanCustomers();
+		String after = readCheckpoint();
+		if (after != null){
+			int from = Collections.binarySearch(customerIDs, after);
+			from = (from < 0) ? -from - 1 : from + 1;
+			log.info("Starting after customer " + after + " from " + checkpoint + ", " + from + " customers done");
+			customerIDs = customerIDs.subList(from, customerIDs.size());
+		}
+		log.info("Recommending for " + customerIDs.size() + " customers: k " + neighbors + ", n " + maxMovies
+				+ ", " + batchSize + " customers per batch on " + threads + " threads");
+
+		int batches = (customerIDs.size() + batchSize - 1) / batchSize;
+		done = new boolean[batches];
+		lastOfBatch = new String[batches];
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		for (int batch = 0; batch < batches; batch++){
+			List<String> ids = customerIDs.subList(batch * batchSize, Math.min((batch + 1) * batchSize, customerIDs.size()));
+			lastOfBatch[batch] = ids.get(ids.size() - 1);
+			workers.execute(new Batch(batch, ids));
+		}
+		workers.shutdown();
+		while (!workers.awaitTermination(30, TimeUnit.SECONDS)){
+			log.info("Recommended " + written.get() + " customers, " + completed + " of " + batches + " batches done");
+		}
+		log.info("Recommended " + written.get() + " customers, skipped " + skipped.get() + " without movies, "
+				+ failed.get() + " failed, in " + (System.currentTimeMillis() - start) + " ms");
+		if (finished < batches){
+			checkpoint();
+			log.warn("Batches failed, the next run starts again from customer "
+					+ customerIDs.get(finished * batchSize));
+		} else if (checkpoint.exists() && !checkpoint.delete())
+			log.warn("Could not delete " + checkpoint);
+	}
+
+	/**
+	 * Reads the IDs of all the customers. The user key is not stored
+	 * with the record, so the customer ID is read from its bin
+	 * @return the customer IDs, sorted
+	 */
+	private List<String> scanCustomers() throws AerospikeException {
+		final List<String> customerIDs = Collections.synchronizedList(new ArrayList<String>());
+		ScanPolicy policy = new ScanPolicy();
+		aerospikeClient.scanAll(policy, namespace, Customer.USERS_SET, new ScanCallback() {
+			@Override
+			public void scanCallback(Key key, Record record) throws AerospikeException {
+				Object customerID = record.getValue(Customer.CUSTOMER_ID);
+				if (customerID != null)
+					customerIDs.add(customerID.toString());
+			}
+		}, Customer.CUSTOMER_ID);
+		List<String> sorted = new ArrayList<String>(customerIDs);
+		Collections.sort(sorted);
+		log.info("Scanned " + sorted.size() + " customers");
+		return sorted;
+	}
+
+	/**
+	 * Recommends for the customers of one batch
+	 */
+	private class Batch implements Runnable {
+		private final int batch;
+		private final List<String> customerIDs;
+
+		Batch(int batch, List<String> customerIDs) {
+			this.batch = batch;
+			this.customerIDs = customerIDs;
+		}
+
+		@Override
+		public void run() {
+			boolean succeeded = false;
+			try {
+				long computedAt = System.currentTimeMillis();
+				BatchCandidateReader.Candidates candidates = reader.read(customerIDs, null);
+				skipped.addAndGet(candidates.errors().size());
+				for (String customerID : candidates.found()){
+					NeighborRanker.Ranking ranking = NeighborRanker.rank(candidates.vector(customerID),
+							candidates.candidateIds(customerID), candidates.candidateWatchedLists(customerID),
+							neighbors, maxMovies, new HashSet<String>());
+					Bin recommended = Bin.asMap(PrecomputedRecommendations.RECOMMENDED,
+							PrecomputedRecommendations.encode(ranking, neighbors, maxMovies,
+									candidates.ratingsCount(customerID), computedAt));
+					aerospikeClient.put(updatePolicy, new Key(namespace, Customer.USERS_SET, customerID), recommended);
+					written.incrementAndGet();
+				}
+				succeeded = true;
+			} catch (Exception e) {
+				// the customers keep their previous recommendation, which the endpoint finds stale in time
+				failed.addAndGet(customerIDs.size());
+				log.error("Batch " + batch + " from customer " + customerIDs.get(0)
+						+ " to " + customerIDs.get(customerIDs.size() - 1) + " failed", e);
+			} finally {
+				finish(batch, succeeded);
+			}
+		}
+	}
+
+	/**
+	 * Marks a batch done, and checkpoints the last customer of the batches done in order.
+	 * A failed batch is not done, so the checkpoint stays before it
+	 * @param succeeded false if the batch failed
+	 */
+	private synchronized void finish(int batch, boolean succeeded) {
+		completed++;
+		if (!succeeded)
+			return;
+		done[batch] = true;
+		while (finished < done.length && done[finished])
+			finished++;
+		if (finished == done.length || System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL)
+			checkpoint();
+	}
+
+	/**
+	 * Checkpoints the last customer of the batches done in order, if there are more of them
+	 */
+	private synchronized void checkpoint() {
+		if (finished == checkpointed)
+			return;
+		lastCheckpoint = System.currentTimeMillis();
+		try {
+			writeCheckpoint(lastOfBatch[finished - 1]);
+			checkpointed = finished;
+		} catch (IOException e) {
+			log.error("Could not write " + checkpoint, e);
+		}
+	}
+
+	/**
+	 * @return the last customer done, or null if there is no checkpoint
+	 */
+	private String readCheckpoint() throws IOException {
+		if (!checkpoint.exists())
+			return null;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(checkpoint), "UTF-8"));
+		try {
+			String line = in.readLine();
+			return (line == null || line.trim().isEmpty()) ? null : line.trim();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the checkpoint to a new file and moves it in place,
+	 * so a job stopped while writing leaves the previous checkpoint
+	 */
+	private void writeCheckpoint(String customerID) throws IOException {
+		File next = new File(checkpoint.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(next), "UTF-8");
+		try {
+			out.write(customerID);
+			out.write('\n');
+		} finally {
+			out.close();
+		}
+		Files.move(next.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
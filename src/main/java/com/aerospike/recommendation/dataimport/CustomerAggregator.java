@@ -0,0 +1,262 @@
+package com.aerospike.recommendation.dataimport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+
+/**
+ * Groups the ratings of a batch of movie files by customer, so each
+ * customer can be written once per batch instead of once per rating.
+ *
+ * Ratings are held in memory as (movie, rating, epoch day) ints. When more
+ * than maxBuffered ratings are held, they are written to a spill file,
+ * sorted by customer ID, and the spill files are merged when the
+ * batch is flushed. A customer's ratings are kept in the order they
+ * were added.
+ * @author peter
+ *
+ */
+class CustomerAggregator {
+	private static Logger log = Logger.getLogger(CustomerAggregator.class);
+	private static final int FIELDS = 3;
+
+	/**
+	 * Receives the ratings of each customer when the aggregator is flushed
+	 */
+	interface Handler {
+		/**
+		 * @param customerId
+		 * @param ratings the customer's ratings, in the order they were added
+		 */
+		void customer(int customerId, RatingBatch ratings);
+	}
+
+	private final int maxBuffered;
+	private Map<Integer, IntList> customers = new HashMap<Integer, IntList>();
+	private int buffered = 0;
+	private final List<File> spills = new ArrayList<File>();
+
+	/**
+	 * @param maxBuffered the number of ratings held in memory before spilling to a file
+	 */
+	CustomerAggregator(int maxBuffered) {
+		this.maxBuffered = maxBuffered;
+	}
+
+	void add(RatingBatch ratings) throws IOException {
+		for (int i = 0; i < ratings.size(); i++) {
+			IntList list = customers.get(ratings.customerId(i));
+			if (list == null) {
+				list = new IntList();
+				customers.put(ratings.customerId(i), list);
+			}
+			list.add(ratings.movieId(i));
+			list.add(ratings.rating(i));
+			list.add(ratings.epochDay(i));
+		}
+		buffered += ratings.size();
+		if (buffered >= maxBuffered)
+			spill();
+	}
+
+	/**
+	 * Hands each customer's ratings to the handler, in customer ID order,
+	 * and empties the aggregator
+	 * @return the number of customers
+	 */
+	int flush(Handler handler) throws IOException {
+		List<Run> runs = new ArrayList<Run>(spills.size() + 1);
+		try {
+			for (File spill : spills)
+				runs.add(new SpillRun(runs.size(), spill));
+			runs.add(new MemoryRun(runs.size(), customers));
+			customers = new HashMap<Integer, IntList>();
+			buffered = 0;
+
+			PriorityQueue<Run> heads = new PriorityQueue<Run>();
+			for (Run run : runs) {
+				if (run.next())
+					heads.add(run);
+			}
+			int count = 0;
+			while (!heads.isEmpty()) {
+				/*
+				 * the runs are in the order they were written,
+				 * so a customer's ratings stay in the order they were added
+				 */
+				int customerId = heads.peek().customerId;
+				RatingBatch ratings = new RatingBatch();
+				while (!heads.isEmpty() && heads.peek().customerId == customerId) {
+					Run run = heads.poll();
+					run.decode(ratings);
+					if (run.next())
+						heads.add(run);
+				}
+				handler.customer(customerId, ratings);
+				count++;
+			}
+			return count;
+		} finally {
+			for (Run run : runs)
+				run.close();
+			for (File spill : spills) {
+				if (!spill.delete())
+					log.warn("Could not delete " + spill);
+			}
+			spills.clear();
+		}
+	}
+
+	private void spill() throws IOException {
+		File file = File.createTempFile("customers", ".spill");
+		file.deleteOnExit();
+		int[] ids = sortedIds(customers);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			for (int id : ids) {
+				IntList list = customers.get(id);
+				out.writeInt(id);
+				out.writeInt(list.size);
+				for (int i = 0; i < list.size; i++)
+					out.writeInt(list.values[i]);
+			}
+		} finally {
+			out.close();
+		}
+		log.info("Spilled " + buffered + " ratings of " + ids.length + " customers to " + file);
+		spills.add(file);
+		customers = new HashMap<Integer, IntList>();
+		buffered = 0;
+	}
+
+	private static int[] sortedIds(Map<Integer, IntList> customers) {
+		int[] ids = new int[customers.size()];
+		int i = 0;
+		for (Integer id : customers.keySet())
+			ids[i++] = id;
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	private static class IntList {
+		int[] values = new int[FIELDS * 4];
+		int size;
+
+		void add(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+	}
+
+	/**
+	 * Customers in ID order, from memory or a spill file
+	 */
+	private static abstract class Run implements Comparable<Run> {
+		private final int order;
+		int customerId;
+
+		/**
+		 * @param order the position of the run, earlier runs hold earlier ratings
+		 */
+		Run(int order) {
+			this.order = order;
+		}
+
+		/**
+		 * Moves to the next customer
+		 * @return false if there are no more customers
+		 */
+		abstract boolean next() throws IOException;
+
+		/**
+		 * Adds the current customer's ratings to a list
+		 */
+		abstract void decode(RatingBatch ratings) throws IOException;
+
+		void close() throws IOException {
+		}
+
+		@Override
+		public int compareTo(Run other) {
+			if (customerId != other.customerId)
+				return customerId < other.customerId ? -1 : 1;
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+	}
+
+	private static class MemoryRun extends Run {
+		private final Map<Integer, IntList> customers;
+		private final int[] ids;
+		private int index = -1;
+
+		MemoryRun(int order, Map<Integer, IntList> customers) {
+			super(order);
+			this.customers = customers;
+			this.ids = sortedIds(customers);
+		}
+
+		@Override
+		boolean next() {
+			if (++index == ids.length)
+				return false;
+			customerId = ids[index];
+			return true;
+		}
+
+		@Override
+		void decode(RatingBatch ratings) {
+			IntList list = customers.get(customerId);
+			for (int i = 0; i < list.size; i += FIELDS)
+				ratings.add(list.values[i], customerId, list.values[i + 1], list.values[i + 2]);
+		}
+	}
+
+	private static class SpillRun extends Run {
+		private final DataInputStream in;
+		private int size;
+
+		SpillRun(int order, File file) throws IOException {
+			super(order);
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+
+		@Override
+		boolean next() throws IOException {
+			try {
+				customerId = in.readInt();
+			} catch (EOFException e) {
+				return false;
+			}
+			size = in.readInt();
+			return true;
+		}
+
+		@Override
+		void decode(RatingBatch ratings) throws IOException {
+			for (int i = 0; i < size; i += FIELDS)
+				ratings.add(in.readInt(), customerId, in.readInt(), in.readInt());
+		}
+
+		@Override
+		void close() throws IOException {
+			in.close();
+		}
+	}
+}
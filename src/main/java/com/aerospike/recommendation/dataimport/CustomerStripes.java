@@ -0,0 +1,139 @@
+package com.aerospike.recommendation.dataimport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+
+/**
+ * Writes customer ratings on a fixed set of threads, striped by
+ * customer ID, so the ratings of a customer are always written by
+ * the same thread, one at a time, in the order they were submitted.
+ *
+ * Ratings are submitted from one thread.
+ * @author peter
+ *
+ */
+class CustomerStripes {
+	private static Logger log = Logger.getLogger(CustomerStripes.class);
+	private static final int QUEUE_SIZE = 16;
+	/**
+	 * No ratings, for a database that is not written
+	 */
+	static final RatingBatch NO_RATINGS = new RatingBatch(1);
+	private static final Batch END = new Batch(NO_RATINGS, NO_RATINGS);
+
+	/**
+	 * Writes ratings to the customers that made them
+	 */
+	interface Writer {
+		/**
+		 * @param aeroRatings ratings to add to the Aerospike customers
+		 * @param mongoRatings ratings to add to the MongoDB customers
+		 */
+		void write(RatingBatch aeroRatings, RatingBatch mongoRatings);
+	}
+
+	/**
+	 * Ratings written to customers together
+	 */
+	static class Batch {
+		final RatingBatch aeroRatings;
+		final RatingBatch mongoRatings;
+
+		Batch(RatingBatch aeroRatings, RatingBatch mongoRatings) {
+			this.aeroRatings = aeroRatings;
+			this.mongoRatings = mongoRatings;
+		}
+	}
+
+	private final Writer writer;
+	private final List<BlockingQueue<Batch>> queues;
+	private final List<Thread> threads;
+
+	CustomerStripes(int stripes, Writer writer) {
+		this.writer = writer;
+		this.queues = new ArrayList<BlockingQueue<Batch>>(stripes);
+		this.threads = new ArrayList<Thread>(stripes);
+		for (int s = 0; s < stripes; s++) {
+			final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(QUEUE_SIZE);
+			queues.add(queue);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drain(queue);
+				}
+			}, "customer-stripe-" + s);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Splits a batch by stripe and queues it, waiting while a stripe is behind
+	 */
+	void submit(Batch batch) throws InterruptedException {
+		int stripes = queues.size();
+		List<RatingBatch> aero = split(batch.aeroRatings, stripes);
+		List<RatingBatch> mongo = split(batch.mongoRatings, stripes);
+		for (int s = 0; s < stripes; s++) {
+			if (!aero.get(s).isEmpty() || !mongo.get(s).isEmpty())
+				queues.get(s).put(new Batch(aero.get(s), mongo.get(s)));
+		}
+	}
+
+	/**
+	 * Queues a batch holding the ratings of one customer, waiting while its stripe is behind
+	 */
+	void submit(int customerId, Batch batch) throws InterruptedException {
+		queues.get(stripe(customerId, queues.size())).put(batch);
+	}
+
+	/**
+	 * Waits for the queued ratings to be written and stops the threads
+	 */
+	void finish() throws InterruptedException {
+		for (BlockingQueue<Batch> queue : queues)
+			queue.put(END);
+		for (Thread thread : threads)
+			thread.join();
+	}
+
+	static int stripe(int customerId, int stripes) {
+		// spread consecutive IDs over the stripes
+		int h = customerId * 0x9e3779b9;
+		h ^= (h >>> 16);
+		return (h & Integer.MAX_VALUE) % stripes;
+	}
+
+	private static List<RatingBatch> split(RatingBatch ratings, int stripes) {
+		List<RatingBatch> split = new ArrayList<RatingBatch>(stripes);
+		int expected = ratings.size() / stripes + 1;
+		for (int s = 0; s < stripes; s++)
+			split.add(new RatingBatch(expected));
+		for (int i = 0; i < ratings.size(); i++)
+			split.get(stripe(ratings.customerId(i), stripes)).add(ratings, i);
+		return split;
+	}
+
+	private void drain(BlockingQueue<Batch> queue) {
+		try {
+			Batch batch;
+			while ((batch = queue.take()) != END) {
+				try {
+					writer.write(batch.aeroRatings, batch.mongoRatings);
+				} catch (RuntimeException e) {
+					// keep the stripe going
+					log.error("Customer write failed", e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.aerospike.recommendation.dataimport;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.recommendation.dataimport.model.Customer;
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+import com.aerospike.recommendation.dataimport.model.WatchedRated;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.WriteConcern;
+
+/**
+ * Adds ratings to the MongoDB customers with unordered bulk writes.
+ *
+ * Ratings are buffered per thread, grouped by customer, and each
+ * customer is one upsert in a bulk write, pushing its ratings onto
+ * the watched list and incrementing its ratings count. As a customer
+ * is in a bulk write at most once, and its ratings are always added
+ * from the same thread, its ratings are added in order. The maps
+ * pushed are made as the ratings are buffered.
+ * @author peter
+ *
+ */
+class MongoCustomerWriter {
+	private static Logger log = Logger.getLogger(MongoCustomerWriter.class);
+
+	private final DBCollection customerCollection;
+	private final int batchSize;
+	private final WriteConcern writeConcern;
+	private final List<Buffer> buffers = new CopyOnWriteArrayList<Buffer>();
+	private final ThreadLocal<Buffer> buffer = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			Buffer buffer = new Buffer();
+			buffers.add(buffer);
+			return buffer;
+		}
+	};
+
+	/**
+	 * @param batchSize the number of ratings in a bulk write
+	 */
+	MongoCustomerWriter(DBCollection customerCollection, int batchSize, WriteConcern writeConcern) {
+		this.customerCollection = customerCollection;
+		this.batchSize = batchSize;
+		this.writeConcern = writeConcern;
+	}
+
+	/**
+	 * Creates the index the upserts, and the MongoDB endpoints, find customers with
+	 */
+	void createIndexes() {
+		customerCollection.createIndex(new BasicDBObject(Customer.CUSTOMER_ID, 1));
+	}
+
+	/**
+	 * Buffers ratings, writing the calling thread's buffer when it is full
+	 */
+	void add(RatingBatch ratings) {
+		Buffer buffer = this.buffer.get();
+		for (int i = 0; i < ratings.size(); i++) {
+			buffer.add(String.valueOf(ratings.customerId(i)), ratings.toMap(i));
+			if (buffer.size >= batchSize)
+				write(buffer);
+		}
+	}
+
+	/**
+	 * Writes the buffers of all the threads, when none of them are adding ratings
+	 */
+	void flush() {
+		for (Buffer buffer : buffers)
+			write(buffer);
+	}
+
+	/**
+	 * Writes ratings in one bulk write, without buffering them
+	 */
+	void write(List<WatchedRated> ratings) {
+		Buffer buffer = new Buffer();
+		for (WatchedRated wr : ratings)
+			buffer.add(wr.getCustomerID(), wr.getAsMap());
+		write(buffer);
+	}
+
+	private void write(Buffer buffer) {
+		if (buffer.size == 0)
+			return;
+		BulkWriteOperation bulk = customerCollection.initializeUnorderedBulkOperation();
+		for (Map.Entry<String, List<Map<String, Object>>> entry : buffer.customers.entrySet()) {
+			BasicDBObject update = new BasicDBObject()
+				.append("$push", new BasicDBObject(Customer.WATCHED, new BasicDBObject("$each", entry.getValue())))
+				.append("$inc", new BasicDBObject(Customer.RATINGS_COUNT, entry.getValue().size()));
+			bulk.find(new BasicDBObject(Customer.CUSTOMER_ID, entry.getKey())).upsert().updateOne(update);
+		}
+		try {
+			bulk.execute(writeConcern);
+			log.debug("Wrote " + buffer.size + " ratings of " + buffer.customers.size() + " customers");
+		} finally {
+			buffer.customers.clear();
+			buffer.size = 0;
+		}
+	}
+
+	private static class Buffer {
+		final Map<String, List<Map<String, Object>>> customers = new LinkedHashMap<String, List<Map<String, Object>>>();
+		int size;
+
+		void add(String customerID, Map<String, Object> rating) {
+			List<Map<String, Object>> customerRatings = customers.get(customerID);
+			if (customerRatings == null) {
+				customerRatings = new ArrayList<Map<String, Object>>();
+				customers.put(customerID, customerRatings);
+			}
+			customerRatings.add(rating);
+			size++;
+		}
+	}
+}
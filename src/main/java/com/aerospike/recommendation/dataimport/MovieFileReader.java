@@ -0,0 +1,531 @@
+package com.aerospike.recommendation.dataimport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import com.aerospike.recommendation.dataimport.model.Movie;
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+import com.aerospike.recommendation.dataimport.model.WatchedRated;
+import com.aerospike.recommendation.snapshot.RatingSnapshot;
+
+/**
+ * Reads a movie file one token at a time, and hands the ratings
+ * in the watchedBy list to a Handler in batches as they are read,
+ * so a file is never held in memory as a whole. The ratings are
+ * parsed straight into a RatingBatch, without a map or a string
+ * for each of them.
+ *
+ * The other fields of the movie are read into a JSONObject, with
+ * the same value types as the json-simple parser, and handed over
+ * at the end of the file.
+ * @author peter
+ *
+ */
+public class MovieFileReader {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String[] KNOWN_KEYS = {
+		WatchedRated.CUSTOMER_ID, WatchedRated.MOVIE_ID, WatchedRated.RATING, WatchedRated.DATE,
+		Movie.WATCHED_BY, Movie.TITLE, Movie.MOVIE_ID, Movie.YEAR_OF_RELEASE};
+
+	/**
+	 * Receives the contents of a movie file
+	 */
+	public interface Handler {
+		/**
+		 * Receives the next batch of ratings, in file order
+		 * @param batch the handler may keep the batch
+		 * @param first the index of the first rating in the file
+		 */
+		void ratings(RatingBatch batch, int first);
+		/**
+		 * Receives the other fields of the movie, after the last batch of ratings
+		 */
+		void movie(JSONObject fields);
+	}
+
+	private final int batchSize;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private final byte[] bytes = buffer.array();
+	private final byte[][] knownKeyBytes;
+	private byte[] text = new byte[256];
+	private int textLength;
+	private FileChannel channel;
+	private int position;
+	private int limit;
+	private long offset;
+
+	/**
+	 * @param batchSize the number of ratings handed over at a time
+	 */
+	public MovieFileReader(int batchSize) {
+		this.batchSize = batchSize;
+		this.knownKeyBytes = new byte[KNOWN_KEYS.length][];
+		for (int i = 0; i < KNOWN_KEYS.length; i++)
+			knownKeyBytes[i] = KNOWN_KEYS[i].getBytes(UTF8);
+	}
+
+	/**
+	 * Reads a movie file. A reader reads one file at a time.
+	 * @return the number of ratings read
+	 */
+	public int read(File file, Handler handler) throws IOException, ParseException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			channel = in.getChannel();
+			position = 0;
+			limit = 0;
+			offset = 0;
+			return readMovie(handler);
+		} finally {
+			channel = null;
+			in.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private int readMovie(Handler handler) throws IOException, ParseException {
+		JSONObject fields = new JSONObject();
+		int count = 0;
+		expect('{');
+		if (skipWhitespace() == '}') {
+			position++;
+		} else {
+			while (true) {
+				String key = readKey();
+				expect(':');
+				if (key.equals(Movie.WATCHED_BY) && skipWhitespace() == '[') {
+					position++;
+					count += readRatings(handler, count);
+				} else {
+					fields.put(key, readValue());
+				}
+				int c = next();
+				if (c == '}')
+					break;
+				if (c != ',')
+					throw unexpected(c);
+			}
+		}
+		handler.movie(fields);
+		return count;
+	}
+
+	/**
+	 * Reads the ratings up to the end of the list
+	 * @param first the index of the first rating in the file
+	 */
+	private int readRatings(Handler handler, int first) throws IOException, ParseException {
+		int count = 0;
+		RatingBatch batch = new RatingBatch(batchSize);
+		if (skipWhitespace() == ']') {
+			position++;
+			return 0;
+		}
+		while (true) {
+			expect('{');
+			readRating(batch);
+			count++;
+			if (batch.size() == batchSize) {
+				// the same list keys as Movie.fromJSON() gives the ratings
+				handler.ratings(batch, first + count - batch.size());
+				batch = new RatingBatch(batchSize);
+			}
+			int c = next();
+			if (c == ']')
+				break;
+			if (c != ',')
+				throw unexpected(c);
+		}
+		if (!batch.isEmpty())
+			handler.ratings(batch, first + count - batch.size());
+		return count;
+	}
+
+	/**
+	 * Reads the members of a rating, after the opening brace, into a batch.
+	 * Members other than the movie, customer, rating and date are skipped
+	 */
+	private void readRating(RatingBatch batch) throws IOException, ParseException {
+		int movieId = -1;
+		int customerId = -1;
+		int rating = -1;
+		int epochDay = RatingBatch.NO_DATE;
+		if (skipWhitespace() == '}') {
+			position++;
+		} else {
+			while (true) {
+				String key = readKey();
+				expect(':');
+				if (key == WatchedRated.MOVIE_ID) {
+					movieId = readId();
+				} else if (key == WatchedRated.CUSTOMER_ID) {
+					customerId = readId();
+				} else if (key == WatchedRated.RATING) {
+					Object value = readValue();
+					if (!(value instanceof Long))
+						throw new ParseException((int) (offset + position), ParseException.ERROR_UNEXPECTED_TOKEN, value);
+					rating = ((Long) value).intValue();
+				} else if (key == WatchedRated.DATE) {
+					epochDay = readDate();
+				} else {
+					readValue();
+				}
+				int c = next();
+				if (c == '}')
+					break;
+				if (c != ',')
+					throw unexpected(c);
+			}
+		}
+		if (movieId < 0 || customerId < 0 || rating < 0)
+			throw new ParseException((int) (offset + position), ParseException.ERROR_UNEXPECTED_TOKEN, 
+					"rating without a movie, customer or rating");
+		batch.add(movieId, customerId, rating, epochDay);
+	}
+
+	/**
+	 * Reads an ID, a string of digits or a number, as an int
+	 */
+	private int readId() throws IOException, ParseException {
+		int c = next();
+		if (c == '"') {
+			readText();
+		} else if (c >= '0' && c <= '9') {
+			Object number = readNumber(c);
+			if (number instanceof Long && (Long) number <= Integer.MAX_VALUE)
+				return ((Long) number).intValue();
+			throw new ParseException((int) (offset + position), ParseException.ERROR_UNEXPECTED_TOKEN, number);
+		} else {
+			throw unexpected(c);
+		}
+		// an ID is written back as the same string, so no leading zeros
+		if (textLength == 0 || textLength > 10 || (textLength > 1 && text[0] == '0'))
+			throw new ParseException((int) (offset + position), ParseException.ERROR_UNEXPECTED_TOKEN, 
+					new String(text, 0, textLength, UTF8));
+		long value = 0;
+		for (int i = 0; i < textLength; i++) {
+			if (text[i] < '0' || text[i] > '9')
+				throw unexpected(text[i]);
+			value = value * 10 + (text[i] - '0');
+		}
+		if (value > Integer.MAX_VALUE)
+			throw new ParseException((int) (offset + position), ParseException.ERROR_UNEXPECTED_TOKEN, value);
+		return (int) value;
+	}
+
+	/**
+	 * Reads a yyyy-MM-dd date, or null
+	 * @return the number of days since 1970-01-01, NO_DATE for null
+	 */
+	private int readDate() throws IOException, ParseException {
+		int c = next();
+		if (c == 'n') {
+			expectWord("ull");
+			return RatingBatch.NO_DATE;
+		}
+		if (c != '"')
+			throw unexpected(c);
+		readText();
+		if (textLength != 10 || text[4] != '-' || text[7] != '-')
+			throw new ParseException((int) (offset + position), ParseException.ERROR_UNEXPECTED_TOKEN, 
+					new String(text, 0, textLength, UTF8));
+		return RatingSnapshot.epochDay(digits(0, 4), digits(5, 7), digits(8, 10));
+	}
+
+	private int digits(int from, int to) throws ParseException {
+		int value = 0;
+		for (int i = from; i < to; i++) {
+			if (text[i] < '0' || text[i] > '9')
+				throw unexpected(text[i]);
+			value = value * 10 + (text[i] - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Reads the members of an object, after the opening brace
+	 */
+	@SuppressWarnings("unchecked")
+	private void readMembers(Map<Object, Object> object) throws IOException, ParseException {
+		if (skipWhitespace() == '}') {
+			position++;
+			return;
+		}
+		while (true) {
+			String key = readKey();
+			expect(':');
+			object.put(key, readValue());
+			int c = next();
+			if (c == '}')
+				return;
+			if (c != ',')
+				throw unexpected(c);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object readValue() throws IOException, ParseException {
+		int c = next();
+		switch (c) {
+		case '"':
+			readText();
+			return new String(text, 0, textLength, UTF8);
+		case '{':
+			JSONObject object = new JSONObject();
+			readMembers(object);
+			return object;
+		case '[':
+			JSONArray array = new JSONArray();
+			if (skipWhitespace() == ']') {
+				position++;
+				return array;
+			}
+			while (true) {
+				array.add(readValue());
+				c = next();
+				if (c == ']')
+					return array;
+				if (c != ',')
+					throw unexpected(c);
+			}
+		case 't':
+			expectWord("rue");
+			return Boolean.TRUE;
+		case 'f':
+			expectWord("alse");
+			return Boolean.FALSE;
+		case 'n':
+			expectWord("ull");
+			return null;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9'))
+				return readNumber(c);
+			throw unexpected(c);
+		}
+	}
+
+	/**
+	 * Reads a number as a Long, or a Double if it has a fraction or exponent
+	 */
+	private Object readNumber(int first) throws IOException, ParseException {
+		textLength = 0;
+		appendText(first);
+		boolean integer = true;
+		while (position < limit || fill()) {
+			int c = bytes[position];
+			if ((c >= '0' && c <= '9') || c == '-' || c == '+') {
+				appendText(c);
+			} else if (c == '.' || c == 'e' || c == 'E') {
+				integer = false;
+				appendText(c);
+			} else {
+				break;
+			}
+			position++;
+		}
+		if (integer && textLength < 19) {
+			long value = 0;
+			int i = text[0] == '-' ? 1 : 0;
+			if (i == textLength)
+				throw unexpected(first);
+			for (; i < textLength; i++) {
+				if (text[i] < '0' || text[i] > '9')
+					throw unexpected(text[i]);
+				value = value * 10 + (text[i] - '0');
+			}
+			return text[0] == '-' ? -value : value;
+		}
+		String number = new String(text, 0, textLength, UTF8);
+		try {
+			return integer ? (Object) Long.valueOf(number) : (Object) Double.valueOf(number);
+		} catch (NumberFormatException e) {
+			throw new ParseException((int) (offset + position), ParseException.ERROR_UNEXPECTED_TOKEN, number);
+		}
+	}
+
+	/**
+	 * Reads an object key, returning the constant for the keys of a movie file
+	 */
+	private String readKey() throws IOException, ParseException {
+		expect('"');
+		readText();
+		for (int k = 0; k < knownKeyBytes.length; k++) {
+			byte[] known = knownKeyBytes[k];
+			if (known.length != textLength)
+				continue;
+			int i = 0;
+			while (i < textLength && known[i] == text[i])
+				i++;
+			if (i == textLength)
+				return KNOWN_KEYS[k];
+		}
+		return new String(text, 0, textLength, UTF8);
+	}
+
+	/**
+	 * Reads the UTF-8 bytes of a string, after the opening quote,
+	 * into text, replacing the escape sequences
+	 */
+	private void readText() throws IOException, ParseException {
+		textLength = 0;
+		while (true) {
+			if (position == limit && !fill())
+				throw unexpected(-1);
+			int c = bytes[position++];
+			if (c == '"')
+				return;
+			if (c != '\\') {
+				appendText(c);
+				continue;
+			}
+			c = next();
+			switch (c) {
+			case '"':
+			case '\\':
+			case '/':
+				appendText(c);
+				break;
+			case 'b':
+				appendText('\b');
+				break;
+			case 'f':
+				appendText('\f');
+				break;
+			case 'n':
+				appendText('\n');
+				break;
+			case 'r':
+				appendText('\r');
+				break;
+			case 't':
+				appendText('\t');
+				break;
+			case 'u':
+				int codePoint = readHex();
+				if (Character.isHighSurrogate((char) codePoint) && position + 1 < limit
+						&& bytes[position] == '\\' && bytes[position + 1] == 'u') {
+					position += 2;
+					int low = readHex();
+					if (Character.isLowSurrogate((char) low)) {
+						codePoint = Character.toCodePoint((char) codePoint, (char) low);
+					} else {
+						appendCodePoint(codePoint);
+						codePoint = low;
+					}
+				}
+				appendCodePoint(codePoint);
+				break;
+			default:
+				throw unexpected(c);
+			}
+		}
+	}
+
+	private int readHex() throws IOException, ParseException {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			int c = next();
+			int digit = Character.digit(c, 16);
+			if (c < 0 || digit < 0)
+				throw unexpected(c);
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	private void appendCodePoint(int codePoint) {
+		if (codePoint < 0x80) {
+			appendText(codePoint);
+		} else if (codePoint < 0x800) {
+			appendText(0xc0 | (codePoint >> 6));
+			appendText(0x80 | (codePoint & 0x3f));
+		} else if (codePoint < 0x10000) {
+			appendText(0xe0 | (codePoint >> 12));
+			appendText(0x80 | ((codePoint >> 6) & 0x3f));
+			appendText(0x80 | (codePoint & 0x3f));
+		} else {
+			appendText(0xf0 | (codePoint >> 18));
+			appendText(0x80 | ((codePoint >> 12) & 0x3f));
+			appendText(0x80 | ((codePoint >> 6) & 0x3f));
+			appendText(0x80 | (codePoint & 0x3f));
+		}
+	}
+
+	private void appendText(int b) {
+		if (textLength == text.length) {
+			byte[] larger = new byte[text.length * 2];
+			System.arraycopy(text, 0, larger, 0, textLength);
+			text = larger;
+		}
+		text[textLength++] = (byte) b;
+	}
+
+	private void expect(int expected) throws IOException, ParseException {
+		int c = next();
+		if (c != expected)
+			throw unexpected(c);
+	}
+
+	private void expectWord(String rest) throws IOException, ParseException {
+		for (int i = 0; i < rest.length(); i++) {
+			int c = position < limit || fill() ? bytes[position++] : -1;
+			if (c != rest.charAt(i))
+				throw unexpected(c);
+		}
+	}
+
+	/**
+	 * @return the next character that is not white space, without consuming it, or -1 at the end of the file
+	 */
+	private int skipWhitespace() throws IOException {
+		while (position < limit || fill()) {
+			int c = bytes[position] & 0xff;
+			if (c != ' ' && c != '\n' && c != '\r' && c != '\t')
+				return c;
+			position++;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the next character that is not white space, or -1 at the end of the file
+	 */
+	private int next() throws IOException {
+		int c = skipWhitespace();
+		if (c >= 0)
+			position++;
+		return c;
+	}
+
+	/**
+	 * Reads the next block of the file into the buffer
+	 * @return false at the end of the file
+	 */
+	private boolean fill() throws IOException {
+		offset += limit;
+		buffer.clear();
+		int read;
+		do {
+			read = channel.read(buffer);
+		} while (read == 0);
+		position = 0;
+		limit = Math.max(read, 0);
+		return read > 0;
+	}
+
+	private ParseException unexpected(int c) {
+		if (c < 0)
+			return new ParseException((int) (offset + position), ParseException.ERROR_UNEXPECTED_TOKEN, null);
+		return new ParseException((int) (offset + position - 1), ParseException.ERROR_UNEXPECTED_CHAR, (char) c);
+	}
+}
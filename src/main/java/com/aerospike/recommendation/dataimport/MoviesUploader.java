@@ -2,13 +2,21 @@ package com.aerospike.recommendation.dataimport;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 import com.aerospike.client.AerospikeClient;
@@ -23,24 +31,33 @@ import com.aerospike.client.policy.RecordExistsAction;
 import com.aerospike.client.policy.WritePolicy;
 import com.aerospike.recommendation.dataimport.model.Customer;
 import com.aerospike.recommendation.dataimport.model.Movie;
-import com.aerospike.recommendation.dataimport.model.WatchedRated;
-import com.mongodb.BasicDBList;
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+import com.aerospike.recommendation.dataimport.model.TimeIndex;
+import com.aerospike.recommendation.snapshot.RatingSnapshot;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
 
 public class MoviesUploader {
 	private static Logger log = Logger.getLogger(MoviesUploader.class);
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final int DEFAULT_MAX_BUFFERED = 5000000;
+	private static final int FILE_QUEUE_SIZE = 4;
+	private static final long PROGRESS_INTERVAL = 5000;
+	private static final CustomerStripes.Batch FILE_END = new CustomerStripes.Batch(
+			CustomerStripes.NO_RATINGS, CustomerStripes.NO_RATINGS);
 
 	private  AerospikeClient aerospikeClient;
 	private  String namespace;
 	private  String customerSet;
 	private  String movieSet;
 
-	private  int counter = 0;
-	private  int errors = 0;
+	private  AtomicInteger counter = new AtomicInteger();
+	private  AtomicInteger errors = new AtomicInteger();
+	private  AtomicLong ratingCount = new AtomicLong();
 	private  boolean aero = false;
 	private  boolean mongo = false;
 
@@ -50,11 +67,53 @@ public class MoviesUploader {
 	private  DBCollection customerCollection;
 	private  WritePolicy insertPolicy;
 	private  WritePolicy updatePolicy;
+	private  int batchSize = DEFAULT_BATCH_SIZE;
+	private  int workers = 1;
+	private  int mongoBatchSize = DEFAULT_BATCH_SIZE;
+	private  WriteConcern mongoWriteConcern = WriteConcern.JOURNALED;
+	private  MongoCustomerWriter mongoCustomers;
+	private  int aggregateFiles = -1;
+	private  int maxBuffered = DEFAULT_MAX_BUFFERED;
+	private  CustomerAggregator aggregator;
+	private  RatingSnapshot snapshot;
 
-	
+	/**
+	 * Sets the number of ratings read from a movie file and written at a time
+	 */
+	public void setBatchSize(int batchSize){
+		this.batchSize = batchSize;
+	}
+	/**
+	 * Sets the number of threads reading movie files, and the number
+	 * of threads writing customers. 1 loads the files one at a time.
+	 */
+	public void setWorkers(int workers){
+		this.workers = workers;
+	}
 
+	/**
+	 * Sets how MongoDB customers are written
+	 * @param batchSize the number of ratings in a bulk write
+	 * @param writeConcern the write concern of the bulk writes and movie writes
+	 */
+	public void setMongoWrites(int batchSize, WriteConcern writeConcern){
+		this.mongoBatchSize = batchSize;
+		this.mongoWriteConcern = writeConcern;
+	}
 
-	public void loadData(String host, int port, String namespace, String dbType, File ratingDir, int limit) throws IOException, AerospikeException, ParseException, org.json.simple.parser.ParseException{
+	/**
+	 * Groups the Aerospike customer ratings of a number of movie files,
+	 * and writes each customer once per group of files
+	 * @param files the number of files in a group, 0 groups all the files
+	 * @param maxBuffered the number of ratings held in memory before they are spilled to a file
+	 */
+	public void setAggregation(int files, int maxBuffered){
+		this.aggregateFiles = files;
+		this.maxBuffered = maxBuffered;
+	}
+
+
+	public void loadData(String host, int port, String namespace, String dbType, File ratingDir, int limit) throws IOException, AerospikeException, ParseException, org.json.simple.parser.ParseException, InterruptedException{
 
 		log.debug("Host: " + host);
 		log.debug("Port: " + port);
@@ -86,54 +145,118 @@ public class MoviesUploader {
 		}
 		if (mongo){
 			mongoClient = new MongoClient(host, port);
-			mongoClient.setWriteConcern(WriteConcern.JOURNALED);
+			mongoClient.setWriteConcern(mongoWriteConcern);
 			mongoDB = mongoClient.getDB(namespace);
 			customerCollection = mongoDB.getCollection(Customer.USERS_SET);
 			movieCollection = mongoDB.getCollection(Movie.PRODUCT_SET);
+			mongoCustomers = new MongoCustomerWriter(customerCollection, mongoBatchSize, mongoWriteConcern);
+			// create the indexes before loading, rather than building them over the loaded data
+			mongoCustomers.createIndexes();
+			movieCollection.createIndex(new BasicDBObject("movie." + Movie.MOVIE_ID, 1));
+			log.info("Writing MongoDB customers in bulk writes of " + mongoBatchSize + " ratings, write concern " + mongoWriteConcern);
 		}
 //		File completed = new File(ratingDir.getAbsolutePath() + "/completed");
 //		if (!completed.exists()){
 //			completed.mkdirs();
 //		}
-		File[] ratingFiles = ratingDir.listFiles(new FileFilter() {
+		File[] ratingFiles = null;
+		int movieCount;
+		if (RatingSnapshot.isSnapshot(ratingDir)){
+			// load the movies of a rating snapshot instead of the movie files
+			snapshot = RatingSnapshot.read(ratingDir);
+			movieCount = snapshot.movieCount();
+			log.info("Loading " + snapshot);
+		} else {
+			ratingFiles = ratingDir.listFiles(new FileFilter() {
 
-			@Override
-			public boolean accept(File file) {
-				return file.getName().startsWith("movie_000") && file.getName().endsWith(".json");
+				@Override
+				public boolean accept(File file) {
+					return file.getName().startsWith("movie_000") && file.getName().endsWith(".json");
+				}
+			});
+			movieCount = ratingFiles.length;
+		}
+		if (limit != 0 && limit < movieCount)
+			movieCount = limit;
+		if (aero && aggregateFiles >= 0){
+			aggregator = new CustomerAggregator(maxBuffered);
+			log.info("Aggregating customers over " + (aggregateFiles == 0 ? "all" : aggregateFiles) + " files");
+		}
+		long start = System.currentTimeMillis();
+		if (workers > 1){
+			processRatingFiles(ratingFiles, movieCount);
+		} else {
+			// process each rating file
+			MovieFileReader reader = new MovieFileReader(batchSize);
+			CustomerStripes.Writer customerWriter = (aggregator == null) ? directCustomerWriter : aggregatingCustomerWriter;
+			for (int movie = 0; movie < movieCount; movie++){
+				processMovie(reader, ratingFiles, movie, customerWriter);
+				counter.incrementAndGet();
+				if (aggregateFiles > 0 && counter.get() % aggregateFiles == 0)
+					writeAggregatedCustomers();
 			}
-		});
-		// process each rating file
-
-		for (File ratingFile : ratingFiles){
-			processRatingFile(ratingFile);
-			counter++;
-//			String moveCmd = "mv " + ratingFile.getAbsolutePath() + " "+completed.getAbsolutePath() + "/" + ratingFile.getName();
-//			Runtime.getRuntime().exec(moveCmd);
-			if (limit != 0 && counter == limit)
-				break;
 		}
-		log.info("Completed " + counter + " with " + errors + " errors");
+		if (aggregator != null)
+			writeAggregatedCustomers();
+		if (mongoCustomers != null)
+			mongoCustomers.flush();
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		log.info("Completed " + counter + " with " + errors + " errors: " 
+				+ (counter.get() * 1000L / elapsed) + " files/s, " 
+				+ (ratingCount.get() * 1000L / elapsed) + " ratings/s");
 	}
-	private  void processRatingFile(File file) throws IOException, AerospikeException, ParseException {
+	/**
+	 * Loads a movie from its file, or from the snapshot
+	 * @param ratingFiles the movie files, null when loading a snapshot
+	 * @param movie the position of the movie file, or the movie ordinal in the snapshot
+	 */
+	@SuppressWarnings("unchecked")
+	private void processMovie(MovieFileReader reader, File[] ratingFiles, int movie, CustomerStripes.Writer customerWriter) throws IOException, AerospikeException, ParseException {
+		if (snapshot == null){
+			processRatingFile(reader, ratingFiles[movie], customerWriter);
+			return;
+		}
+		MovieWriter writer = new MovieWriter(customerWriter);
+		try {
+			/*
+			 * hand the ratings over the same way as the movie file reader,
+			 * in the order of the snapshot, which is by customer
+			 */
+			RatingSnapshot.Row row = snapshot.watchers(movie, new RatingSnapshot.Row());
+			int movieId = snapshot.movieId(movie);
+			RatingBatch batch = new RatingBatch(batchSize);
+			for (int i = 0; i < row.size(); i++){
+				batch.add(movieId, snapshot.customerId(row.ordinal(i)), row.rating(i), row.epochDay(i));
+				if (batch.size() == batchSize){
+					writer.ratings(batch, i + 1 - batchSize);
+					batch = new RatingBatch(batchSize);
+				}
+			}
+			if (!batch.isEmpty())
+				writer.ratings(batch, row.size() - batch.size());
+			JSONObject fields = new JSONObject();
+			fields.put(Movie.MOVIE_ID, String.valueOf(movieId));
+			fields.put(Movie.TITLE, snapshot.title(movie));
+			fields.put(Movie.YEAR_OF_RELEASE, (long) snapshot.yearOfRelease(movie));
+			writer.movie(fields);
+			ratingCount.addAndGet(row.size());
+			log.info("Saved " + writer.movie.getTitle() + " watched by: " + writer.movie.getCountOfRatings());
+		} catch (AerospikeException e){
+			errors.incrementAndGet();
+			log.error("Aerospike Error", e);
+		}
+	}
+
+	private  void processRatingFile(MovieFileReader reader, File file, CustomerStripes.Writer customerWriter) throws IOException, AerospikeException, ParseException {
 		if (!checkFileExists(file)) return;
 		log.info("Starting " + file.getName());
 		
-		JSONParser parser = new JSONParser();
-
-		Object obj = parser.parse(new FileReader(file));
-		JSONObject jsonMovie = (JSONObject) obj;
-
-		Movie movie = new Movie(jsonMovie);
-		log.info("Processing " + movie.getTitle() + " watched by: " + movie.getWatchedBy().size());
-		movie.sortWatched();
+		MovieWriter writer = new MovieWriter(customerWriter);
 		try {
-			if (aero)
-				saveMovieToAerospike(namespace, movieSet, movie);
-			if (mongo)
-				saveMovieToMongo(jsonMovie, movie);
-			log.info("Saved " + movie.getTitle());
+			ratingCount.addAndGet(reader.read(file, writer));
+			log.info("Saved " + writer.movie.getTitle() + " watched by: " + writer.movie.getCountOfRatings());
 		} catch (AerospikeException e){
-			errors++;
+			errors.incrementAndGet();
 			log.error("Aerospike Error", e);
 		}
 		
@@ -141,103 +264,403 @@ public class MoviesUploader {
 
 	}
 
-	private  void saveMovieToAerospike(String nameSpace, String set, Movie movie) throws AerospikeException {
-		int errors = 0, size = 0;
-		Key key =  movie.getKey(nameSpace, set);
-		LargeList ratings = aerospikeClient.getLargeList(this.insertPolicy, key, Movie.WATCHED_BY+"List", null);
-		List<WatchedRated> ratingList = movie.getWatchedBy();
-		size = ratingList.size();
+	/**
+	 * Loads the movie files on several threads. 
+	 * 
+	 * Each thread reads a file at a time and writes the movie.
+	 * The ratings to add to customers are handed over to the 
+	 * customer stripes a file at a time, in file order, so each
+	 * customer's ratings are written in the same order as when the
+	 * files are loaded one at a time.
+	 */
+	private void processRatingFiles(final File[] ratingFiles, final int movieCount) throws IOException, InterruptedException {
+		final List<BlockingQueue<CustomerStripes.Batch>> fileQueues = new ArrayList<BlockingQueue<CustomerStripes.Batch>>(movieCount);
+		for (int i = 0; i < movieCount; i++){
+			fileQueues.add(new ArrayBlockingQueue<CustomerStripes.Batch>(FILE_QUEUE_SIZE));
+		}
+		final AtomicInteger nextFile = new AtomicInteger();
+		ExecutorService readers = Executors.newFixedThreadPool(workers);
+		for (int t = 0; t < workers; t++){
+			readers.execute(new Runnable() {
+				@Override
+				public void run() {
+					MovieFileReader reader = new MovieFileReader(batchSize);
+					int file;
+					while ((file = nextFile.getAndIncrement()) < movieCount){
+						final Object ratingFile = (ratingFiles == null) ? "movie " + snapshot.movieId(file) : ratingFiles[file];
+						final BlockingQueue<CustomerStripes.Batch> queue = fileQueues.get(file);
+						try {
+							processMovie(reader, ratingFiles, file, new CustomerStripes.Writer() {
+								@Override
+								public void write(RatingBatch aeroRatings, RatingBatch mongoRatings) {
+									try {
+										queue.put(new CustomerStripes.Batch(aeroRatings, mongoRatings));
+									} catch (InterruptedException e) {
+										Thread.currentThread().interrupt();
+										throw new IllegalStateException("Interrupted loading " + ratingFile, e);
+									}
+								}
+							});
+						} catch (Exception e) {
+							errors.incrementAndGet();
+							log.error("Failed to load " + ratingFile, e);
+						} finally {
+							try {
+								queue.put(FILE_END);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+						counter.incrementAndGet();
+					}
+				}
+			});
+		}
+		readers.shutdown();
+
+		/*
+		 * hand the customer ratings over, a file at a time
+		 */
+		CustomerStripes stripes = new CustomerStripes(workers, directCustomerWriter);
+		long start = System.currentTimeMillis();
+		long lastLog = start;
+		for (int file = 0; file < movieCount; file++){
+			BlockingQueue<CustomerStripes.Batch> queue = fileQueues.get(file);
+			CustomerStripes.Batch batch;
+			while ((batch = queue.take()) != FILE_END){
+				if (aggregator == null){
+					stripes.submit(batch);
+				} else {
+					aggregateCustomers(batch.aeroRatings);
+					stripes.submit(new CustomerStripes.Batch(CustomerStripes.NO_RATINGS, batch.mongoRatings));
+				}
+			}
+			fileQueues.set(file, null);
+			if (aggregateFiles > 0 && (file + 1) % aggregateFiles == 0)
+				writeAggregatedCustomers();
+			if (System.currentTimeMillis() - lastLog > PROGRESS_INTERVAL){
+				lastLog = System.currentTimeMillis();
+				long elapsed = lastLog - start;
+				log.info("Loaded " + counter + "/" + movieCount + " files, " 
+						+ (counter.get() * 1000L / elapsed) + " files/s, "
+						+ (ratingCount.get() * 1000L / elapsed) + " ratings/s");
+			}
+		}
+		stripes.finish();
+		readers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds the Aerospike customer ratings to the aggregator,
+	 * and the MongoDB ones to the customers on the calling thread
+	 */
+	private final CustomerStripes.Writer aggregatingCustomerWriter = new CustomerStripes.Writer() {
+		@Override
+		public void write(RatingBatch aeroRatings, RatingBatch mongoRatings) {
+			aggregateCustomers(aeroRatings);
+			directCustomerWriter.write(CustomerStripes.NO_RATINGS, mongoRatings);
+		}
+	};
+
+	private void aggregateCustomers(RatingBatch aeroRatings) {
 		try {
-			try {
-				for (WatchedRated wr : ratingList){
-					ratings.add(Value.get(wr));
-					addMovieAeroToCustomer(wr);
+			aggregator.add(aeroRatings);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not spill customer ratings", e);
+		}
+	}
+
+	/**
+	 * Writes each aggregated customer, on the worker threads
+	 */
+	private void writeAggregatedCustomers() throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		final CustomerStripes stripes = new CustomerStripes(workers, new CustomerStripes.Writer() {
+			@Override
+			public void write(RatingBatch aeroRatings, RatingBatch mongoRatings) {
+				try {
+					addMoviesAeroToCustomer(aeroRatings);
+				} catch (AerospikeException e) {
+					errors.incrementAndGet();
+					log.error(e.getMessage());
+					log.debug(e.getMessage(), e);
+				}
+			}
+		});
+		int customers;
+		try {
+			customers = aggregator.flush(new CustomerAggregator.Handler() {
+				@Override
+				public void customer(int customerId, RatingBatch ratings) {
+					try {
+						stripes.submit(customerId, new CustomerStripes.Batch(ratings, CustomerStripes.NO_RATINGS));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException("Interrupted writing customer " + customerId, e);
+					}
+				}
+			});
+		} finally {
+			stripes.finish();
+		}
+		log.info("Wrote " + customers + " customers in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Adds ratings to the customers on the calling thread
+	 */
+	private final CustomerStripes.Writer directCustomerWriter = new CustomerStripes.Writer() {
+		@Override
+		public void write(RatingBatch aeroRatings, RatingBatch mongoRatings) {
+			for (int i = 0; i < aeroRatings.size(); i++){
+				try {
+					addMovieAeroToCustomer(aeroRatings, i);
+				} catch (AerospikeException e) {
+					errors.incrementAndGet();
+					log.error(e.getMessage());
+					log.debug(e.getMessage(), e);
+				}
+			}
+			if (!mongoRatings.isEmpty()){
+				try {
+					mongoCustomers.add(mongoRatings);
+				} catch (MongoException e) {
+					errors.incrementAndGet();
+					log.error(e.getMessage());
+					log.debug(e.getMessage(), e);
 				}
-				aerospikeClient.put(this.updatePolicy, 
-						key, 
-						movie.asBins());
+			}
+		}
+	};
+
+	/**
+	 * Writes the ratings of a movie to Aerospike and MongoDB
+	 * a batch at a time, as they are read from the movie file.
+	 * The watchedBy list is keyed by date, so it is in date order
+	 * whatever order the file is in, and the time index of its
+	 * ratings is written with the movie
+	 */
+	private class MovieWriter implements MovieFileReader.Handler {
+		private final CustomerStripes.Writer customerWriter;
+		private final TimeIndex index = new TimeIndex();
+		private Movie movie;
+		private Key key;
+		private LargeList ratings;
+		private boolean aeroStopped = false;
+		private int aeroErrors = 0;
+		private Object mongoID;
+
+		MovieWriter(CustomerStripes.Writer customerWriter) {
+			this.customerWriter = customerWriter;
+		}
+
+		@Override
+		public void ratings(RatingBatch batch, int first) {
+			if (movie == null)
+				start(String.valueOf(batch.movieId(0)));
+			for (int i = 0; i < batch.size(); i++){
+				movie.addToTotals(batch.rating(i));
+			}
+			index.add(batch);
+			// the maps are made once, for both databases
+			List<Map<String, Object>> maps = batch.toMaps(first);
+			RatingBatch aeroRatings = CustomerStripes.NO_RATINGS;
+			RatingBatch mongoRatings = CustomerStripes.NO_RATINGS;
+			if (aero)
+				aeroRatings = saveRatingsToAerospike(batch, maps);
+			if (mongo)
+				mongoRatings = saveRatingsToMongo(batch, maps);
+			customerWriter.write(aeroRatings, mongoRatings);
+		}
+
+		@Override
+		public void movie(JSONObject fields) {
+			if (movie == null)
+				start((String) fields.get(Movie.MOVIE_ID));
+			movie.setTitle((String) fields.get(Movie.TITLE));
+			Number year = (Number) fields.get(Movie.YEAR_OF_RELEASE);
+			if (year != null)
+				movie.setYearOfRelease(year.intValue());
+			if (aero)
+				saveMovieToAerospike();
+			if (mongo)
+				saveMovieToMongo(fields);
+		}
+
+		private void start(String movieId) {
+			movie = new Movie(movieId);
+			if (aero){
+				key = movie.getKey(namespace, movieSet);
+				ratings = aerospikeClient.getLargeList(insertPolicy, key, Movie.WATCHED_BY+"List", null);
+			}
+			if (mongo){
+				/*
+				 * the movie document is inserted without ratings,
+				 * they are pushed onto it a batch at a time
+				 */
+				BasicDBObject jsonMovie = new BasicDBObject();
+				jsonMovie.put(Movie.MOVIE_ID, movieId);
+				BasicDBObject doc = new BasicDBObject();
+				doc.put("database", namespace);
+				doc.put("table", movieSet);
+				doc.put("movie", jsonMovie);
+				movieCollection.insert(doc);
+				mongoID = doc.get("_id");
+			}
+		}
+
+		/**
+		 * Adds the ratings to the movie's list in one call
+		 * @return the ratings added
+		 */
+		private RatingBatch saveRatingsToAerospike(RatingBatch batch, List<Map<String, Object>> maps) {
+			if (aeroStopped)
+				return CustomerStripes.NO_RATINGS;
+			try {
+				ratings.add(maps);
+				return batch;
 			} catch (AerospikeException e) {
-				if (e.getResultCode() != ResultCode.KEY_EXISTS_ERROR)
-					throw e;
+				stopAerospike(e);
+				return CustomerStripes.NO_RATINGS;
 			}
-		} catch (AerospikeException e) {
-			log.error(e.getMessage());
-			log.debug(e.getMessage(), e);
-			errors++;
 		}
-		log.debug("Aero Ratings " + size + " saved " + movie.getCountOfRatings() + " with " + errors + " errors");
+
+		private void saveMovieToAerospike() {
+			if (!aeroStopped){
+				try {
+					Bin[] bins = movie.asBins();
+					Bin[] indexed = Arrays.copyOf(bins, bins.length + 2);
+					indexed[bins.length] = new Bin(TimeIndex.DAYS, index.entries());
+					indexed[bins.length + 1] = new Bin(TimeIndex.POSITIONS, index.size());
+					aerospikeClient.put(updatePolicy, 
+							key, 
+							indexed);
+				} catch (AerospikeException e) {
+					stopAerospike(e);
+				}
+			}
+			log.debug("Aero Ratings " + movie.getCountOfRatings() + " saved with " + aeroErrors + " errors");
+		}
+
+		/**
+		 * Stops writing the movie to Aerospike, a movie 
+		 * that already exists was loaded before
+		 */
+		private void stopAerospike(AerospikeException e) {
+			aeroStopped = true;
+			if (e.getResultCode() != ResultCode.KEY_EXISTS_ERROR){
+				log.error(e.getMessage());
+				log.debug(e.getMessage(), e);
+				aeroErrors++;
+			}
+		}
+
+		/**
+		 * Pushes the ratings onto the movie document
+		 * @return the ratings added
+		 */
+		private RatingBatch saveRatingsToMongo(RatingBatch batch, List<Map<String, Object>> maps) {
+			BasicDBObject push = new BasicDBObject("movie." + Movie.WATCHED_BY, 
+					new BasicDBObject("$each", maps));
+			movieCollection.update(new BasicDBObject("_id", mongoID), new BasicDBObject("$push", push));
+			return batch;
+		}
+
+		private void saveMovieToMongo(JSONObject fields) {
+			BasicDBObject set = new BasicDBObject();
+			for (Object field : fields.keySet()){
+				set.put("movie." + field, fields.get(field));
+			}
+			if (!set.isEmpty())
+				movieCollection.update(new BasicDBObject("_id", mongoID), new BasicDBObject("$set", set));
+			log.debug("Mongo Ratings " + movie.getCountOfRatings() + " saved");
+		}
 	}
-	private  void saveMovieToMongo(JSONObject jsonMovie, Movie movie)  {
-		
-		BasicDBObject doc = new BasicDBObject();
-		doc.put("database", namespace);
-		doc.put("table", movieSet);
-		doc.put("movie", jsonMovie);
-		movieCollection.insert(doc);
 
-		List<WatchedRated> ratingList = movie.getWatchedBy();
-		
-		int count = 0, errors = 0;
-		for (WatchedRated wr : ratingList){
-				addMovieToMongoCustomer(wr);
-		}
-		log.debug("Mongo Ratings " + ratingList.size() + " saved " + count + " with " + errors + " errors");
-	}
-
-	private  void addMovieToMongoCustomer(WatchedRated wr) {
-		String customerID = wr.getCustomerID();
-		BasicDBObject whereQuery = new BasicDBObject();
-		BasicDBList jsonWatched;
-		whereQuery.put(Customer.CUSTOMER_ID, customerID);
-		BasicDBObject customer = (BasicDBObject) customerCollection.findOne(whereQuery);
-		if (customer == null){
-			customer = new BasicDBObject();
-			customer.append(Customer.CUSTOMER_ID, customerID);
-			customer.append(Customer.WATCHED, wr);
-			jsonWatched = new BasicDBList();
-			jsonWatched.add(wr);
-			customer.put(Customer.WATCHED, jsonWatched);
-			customerCollection.insert(WriteConcern.SAFE, customer);
+	/**
+	 * Adds all the ratings of one customer with one list add and one put
+	 * @param ratings the customer's ratings, the list keys are set here
+	 */
+	private  void addMoviesAeroToCustomer(RatingBatch ratings) throws AerospikeException{
+		String customerID = String.valueOf(ratings.customerId(0));
+		Customer customer = new Customer(customerID);
+		Key key = customer.getKey(namespace, customerSet);
+		Record record = aerospikeClient.get(null, key, Customer.RATINGS_COUNT, TimeIndex.DAYS, TimeIndex.POSITIONS);
+		if (record != null && record.getValue(Customer.RATINGS_COUNT) != null)
+			customer.setRatingsCount(record.getInt(Customer.RATINGS_COUNT));
+		TimeIndex index = TimeIndex.of(record, customer.getRatingsCount());
+		int positions = positions(record);
+
+		// keyed by date and the next positions, or by the customer's count, from the next one
+		List<Map<String, Object>> maps;
+		if (index == null){
+			maps = ratings.toPositionMaps(customer.getRatingsCount() + 1);
 		} else {
-			jsonWatched = (BasicDBList) customer.get(Customer.WATCHED);
-			jsonWatched.add(wr);
-			customer.put(Customer.WATCHED, jsonWatched);
-			customerCollection.update(customer, jsonWatched);
+			maps = ratings.toMaps(positions);
+			index.add(ratings);
 		}
-		
-		
-		
-
+		customer.setRatingsCount(customer.getRatingsCount() + ratings.size());
+		LargeList customerRatingList = aerospikeClient.getLargeList(this.updatePolicy, 
+				key, 
+				Customer.WATCHED, null);
+		customerRatingList.add(maps);
+		putCustomer(key, customer, index, positions + ratings.size());
+		log.trace("\tAdded " + ratings.size() + " movies to " + customerID);
 	}
-	private  void addMovieAeroToCustomer(WatchedRated wr) throws AerospikeException{
+	private  void addMovieAeroToCustomer(RatingBatch ratings, int i) throws AerospikeException{
 		Customer customer = null;
 		String customerID = null;
 
-		customerID = wr.getCustomerID();
+		customerID = String.valueOf(ratings.customerId(i));
 
 		Record record = aerospikeClient.get(null, new Key(namespace, customerSet, customerID));
 		if (record != null)
 			customer = new Customer(customerID, record);
 		else
 			customer = new Customer(customerID);
+		TimeIndex index = TimeIndex.of(record, customer.getRatingsCount());
 
 		// create rated list
 		LargeList customerRatingList = aerospikeClient.getLargeList(this.updatePolicy, 
 				customer.getKey(namespace, customerSet), 
 				Customer.WATCHED, null);
-		// Add rated movie to stack
+		// Add rated movie to stack, keyed by date and the next position, or by the customer's count
 		int count = customer.incrementCount();
-		wr.put("key", count);
-		customerRatingList.add(Value.get(wr));
-		aerospikeClient.put(this.updatePolicy, 
-				customer.getKey(namespace, customerSet), 
-				new Bin(Customer.CUSTOMER_ID, Value.get(customer.getCustomerId())),
-				new Bin(Customer.RATINGS_COUNT, Value.get(customer.getRatingsCount())));
-
-		log.trace("\tAdded movie " + wr.getMovie() + " to " + customerID);
+		int positions = positions(record);
+		Map<String, Object> customerRating = ratings.toMap(i);
+		if (index == null){
+			customerRating.put(RatingBatch.KEY, count);
+		} else {
+			customerRating.put(RatingBatch.KEY, TimeIndex.key(ratings.epochDay(i), positions));
+			index.add(ratings.epochDay(i));
+		}
+		customerRatingList.add(Value.get(customerRating));
+		putCustomer(customer.getKey(namespace, customerSet), customer, index, positions + 1);
+		log.trace("\tAdded movie " + ratings.movieId(i) + " to " + customerID);
 		customer = null;
 
 	}
+	/**
+	 * @param record a customer record, or null
+	 * @return the number of list positions handed out
+	 */
+	private static int positions(Record record){
+		return (record == null || record.getValue(TimeIndex.POSITIONS) == null) ? 0 : record.getInt(TimeIndex.POSITIONS);
+	}
+	/**
+	 * Writes a customer's ID, count, time index and positions
+	 * @param index the time index of the list, or null if it has none
+	 * @param positions the number of list positions handed out
+	 */
+	private void putCustomer(Key key, Customer customer, TimeIndex index, int positions) throws AerospikeException{
+		Bin customerId = new Bin(Customer.CUSTOMER_ID, Value.get(customer.getCustomerId()));
+		Bin ratingsCount = new Bin(Customer.RATINGS_COUNT, Value.get(customer.getRatingsCount()));
+		if (index == null)
+			aerospikeClient.put(this.updatePolicy, key, customerId, ratingsCount);
+		else
+			aerospikeClient.put(this.updatePolicy, key, customerId, ratingsCount, 
+					new Bin(TimeIndex.DAYS, index.entries()), new Bin(TimeIndex.POSITIONS, positions));
+	}
 	private boolean checkFileExists(File file){
 		if (!file.exists()) {
 			return false;
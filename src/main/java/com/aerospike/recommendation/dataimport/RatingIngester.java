@@ -0,0 +1,591 @@
+package com.aerospike.recommendation.dataimport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.recommendation.dataimport.model.Customer;
+import com.aerospike.recommendation.dataimport.model.Movie;
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+import com.aerospike.recommendation.dataimport.model.TimeIndex;
+import com.aerospike.recommendation.dataimport.model.WatchedRated;
+import com.aerospike.recommendation.snapshot.RatingSnapshot;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoException;
+import com.mongodb.WriteResult;
+
+/**
+ * Adds ratings to a running system, one or a few at a time, rather
+ * than by loading whole movie files.
+ *
+ * Ratings are queued, and committer threads write them in micro-batches:
+ * a committer takes what is queued, up to the batch size, waiting at most
+ * the batch delay for more, and writes each movie and each customer
+ * in the batch once, however many of its ratings are in the batch.
+ *
+ * In Aerospike, one operate() adds to a movie's ratings_count and ratings_sum,
+ * appends the day counts of its new ratings to its time index and adds to
+ * its positions, which reserves the list positions of the new ratings, then
+ * one list add adds them to the watchedBy list. Customers are written the
+ * same way. In MongoDB,
+ * one update pushes a movie's ratings and increments its totals, and the
+ * customers are upserted in one bulk write. So concurrent committers,
+ * and the loader, never hand out the same list key twice.
+ *
+ * The list keys are the dates and positions of the ratings, as TimeIndex
+ * describes, so a list stays in date order whatever order concurrent
+ * committers add their ratings in. A list of a database loaded before its
+ * entries were keyed by date goes on being keyed by its ratings count,
+ * with the 1 based customer keys the loader used.
+ *
+ * If a list add fails, a second operate takes the ratings back off the
+ * counts and totals of the list, though not off its positions, so no
+ * position handed out to a concurrent committer is handed out again.
+ *
+ * The movie and customer lists of each database are written independently.
+ * A rating is rejected only if nothing was written for it, such as a rating
+ * of a movie in neither database. A rating written to some of its lists is
+ * accepted, with the writes that failed, as submitting it again would add
+ * it twice to the others. Listeners are told of each rating written,
+ * before its submitter is.
+ * @author peter
+ *
+ */
+public class RatingIngester {
+	private static Logger log = Logger.getLogger(RatingIngester.class);
+	// the ratings count bin of a movie and of a customer
+	private static final String RATINGS_COUNT = Movie.RATINGS_COUNT;
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final long DEFAULT_BATCH_DELAY = 5;
+	private static final int MAX_QUEUED = 100000;
+
+	private final AerospikeClient aerospikeClient;
+	private final String namespace;
+	private final DBCollection movieCollection;
+	private final MongoCustomerWriter mongoCustomers;
+	private final WritePolicy movieUpdatePolicy;
+	private final WritePolicy customerPolicy;
+	private final int batchSize;
+	private final long batchDelayNanos;
+	private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>(MAX_QUEUED);
+	private final List<RatingListener> ratingListeners = new CopyOnWriteArrayList<RatingListener>();
+	private final ExecutorService committers;
+	private volatile boolean running = true;
+
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong committed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong incomplete = new AtomicLong();
+
+	/**
+	 * @param aerospikeClient the Aerospike client, or null if ratings are not written to Aerospike
+	 * @param namespace the Aerospike namespace
+	 * @param movieCollection the MongoDB movies, or null if ratings are not written to MongoDB
+	 * @param customerCollection the MongoDB customers
+	 * @param batchSize the most ratings a committer writes at a time
+	 * @param batchDelayMillis how long a committer waits for a batch to fill, 0 writes what is queued
+	 * @param threads the number of committers
+	 */
+	public RatingIngester(AerospikeClient aerospikeClient, String namespace,
+			DBCollection movieCollection, DBCollection customerCollection,
+			int batchSize, long batchDelayMillis, int threads) {
+		this.aerospikeClient = aerospikeClient;
+		this.namespace = namespace;
+		this.movieCollection = movieCollection;
+		this.mongoCustomers = (movieCollection == null) ? null
+				: new MongoCustomerWriter(customerCollection, batchSize, customerCollection.getWriteConcern());
+		this.batchSize = batchSize;
+		this.batchDelayNanos = TimeUnit.MILLISECONDS.toNanos(batchDelayMillis);
+		if (aerospikeClient != null){
+			// a rating can only be added to a movie that was loaded
+			movieUpdatePolicy = new WritePolicy(aerospikeClient.writePolicyDefault);
+			movieUpdatePolicy.recordExistsAction = RecordExistsAction.UPDATE_ONLY;
+			customerPolicy = new WritePolicy(aerospikeClient.writePolicyDefault);
+			customerPolicy.recordExistsAction = RecordExistsAction.UPDATE;
+		} else {
+			movieUpdatePolicy = null;
+			customerPolicy = null;
+		}
+		committers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger number = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "rating-committer-" + number.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (int i = 0; i < threads; i++){
+			committers.execute(new Runnable() {
+				@Override
+				public void run() {
+					commitLoop();
+				}
+			});
+		}
+		log.info("Rating ingestion: batches of " + batchSize + " ratings, waiting " + batchDelayMillis
+				+ " ms, " + threads + " committers");
+	}
+
+	/**
+	 * Registers a listener notified of every rating added
+	 */
+	public void addRatingListener(RatingListener listener){
+		ratingListeners.add(listener);
+	}
+
+	/**
+	 * Makes a rating to submit
+	 * @param date Format: 2004-07-04, null for today. It must not be in the future, 
+	 * nor before the first day a list key can hold
+	 * @throws IllegalArgumentException if a value is out of range
+	 */
+	public static WatchedRated rating(String customerID, String movieID, long rating, String date){
+		if (customerID == null || customerID.isEmpty())
+			throw new IllegalArgumentException("No " + WatchedRated.CUSTOMER_ID);
+		if (movieID == null || movieID.isEmpty())
+			throw new IllegalArgumentException("No " + WatchedRated.MOVIE_ID);
+		if (rating < 1 || rating > 5)
+			throw new IllegalArgumentException("Rating must be 1-5: " + rating);
+		int today = (int) (System.currentTimeMillis() / TimeUnit.DAYS.toMillis(1));
+		if (date == null)
+			date = RatingSnapshot.date(today);
+		int epochDay = RatingSnapshot.epochDay(date);
+		// the days a time index holds, less the one standing for no date
+		if (epochDay <= RatingBatch.NO_DATE || epochDay > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Date must be " + RatingSnapshot.date(RatingBatch.NO_DATE + 1)
+					+ " to " + RatingSnapshot.date(Short.MAX_VALUE) + ": " + date);
+		if (epochDay > today)
+			throw new IllegalArgumentException("Date must not be in the future: " + date);
+		WatchedRated wr = new WatchedRated();
+		wr.put(WatchedRated.MOVIE_ID, movieID);
+		wr.put(WatchedRated.CUSTOMER_ID, customerID);
+		wr.put(WatchedRated.RATING, rating);
+		wr.put(WatchedRated.DATE, date);
+		wr.put(WatchedRated.DAY, (long) epochDay);
+		return wr;
+	}
+
+	/**
+	 * Queues ratings to be written, waiting for room if the queue is full
+	 * @return the commit to wait on for the ratings to be written
+	 */
+	public Commit submit(List<WatchedRated> ratings) throws InterruptedException {
+		Commit commit = new Commit(ratings.size());
+		for (int i = 0; i < ratings.size(); i++){
+			if (!running){
+				commit.reject(i, "Shutting down");
+				continue;
+			}
+			queue.put(new Entry(ratings.get(i), commit, i));
+		}
+		return commit;
+	}
+
+	private void commitLoop() {
+		List<Entry> batch = new ArrayList<Entry>(batchSize);
+		while (running) {
+			try {
+				/*
+				 * take what is queued, then wait up to the
+				 * batch delay for the batch to fill
+				 */
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + batchDelayNanos;
+				while (batch.size() < batchSize) {
+					queue.drainTo(batch, batchSize - batch.size());
+					long wait = deadline - System.nanoTime();
+					if (batch.size() >= batchSize || wait <= 0)
+						break;
+					Entry next = queue.poll(wait, TimeUnit.NANOSECONDS);
+					if (next == null)
+						break;
+					batch.add(next);
+				}
+				commit(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				reject(batch, "Shutting down");
+				return;
+			} catch (RuntimeException e) {
+				log.error("Rating batch failed", e);
+				reject(batch, e.getMessage());
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch: in each database the movies first, so ratings of
+	 * unknown movies are left out before their customers are written
+	 */
+	private void commit(List<Entry> batch) {
+		batches.incrementAndGet();
+		List<Entry> aerospikeMovies = new ArrayList<Entry>(batch.size());
+		List<Entry> mongoMovies = new ArrayList<Entry>(batch.size());
+		for (List<Entry> movieRatings : group(batch, WatchedRated.MOVIE_ID).values()){
+			if (aerospikeClient != null){
+				try {
+					addToAerospikeMovie(movieRatings);
+					aerospikeMovies.addAll(movieRatings);
+				} catch (AerospikeException e) {
+					fail(movieRatings, "Aerospike: " + ((e.getResultCode() == ResultCode.KEY_NOT_FOUND_ERROR)
+							? "Movie not found: " + movieRatings.get(0).rating.getMovie() : e.getMessage()));
+				}
+			}
+			if (movieCollection != null){
+				try {
+					addToMongoMovie(movieRatings);
+					mongoMovies.addAll(movieRatings);
+				} catch (MongoException e) {
+					fail(movieRatings, "MongoDB: " + e.getMessage());
+				}
+			}
+		}
+		for (Entry entry : aerospikeMovies)
+			entry.written = true;
+		for (Entry entry : mongoMovies)
+			entry.written = true;
+		for (List<Entry> customerRatings : group(aerospikeMovies, WatchedRated.CUSTOMER_ID).values()){
+			try {
+				addToAerospikeCustomer(customerRatings);
+			} catch (AerospikeException e) {
+				fail(customerRatings, "Aerospike customer: " + e.getMessage());
+			}
+		}
+		if (!mongoMovies.isEmpty()){
+			try {
+				List<WatchedRated> ratings = new ArrayList<WatchedRated>(mongoMovies.size());
+				for (Entry entry : mongoMovies)
+					ratings.add(entry.copy());
+				mongoCustomers.write(ratings);
+			} catch (MongoException e) {
+				fail(mongoMovies, "MongoDB customer: " + e.getMessage());
+			}
+		}
+		/*
+		 * a rating in a movie list of either database is written,
+		 * the failures of its other lists are only reported
+		 */
+		List<Entry> written = new ArrayList<Entry>(batch.size());
+		for (Entry entry : batch){
+			if (entry.written)
+				written.add(entry);
+			else
+				reject(Collections.singletonList(entry), entry.failure);
+		}
+		for (Entry entry : written){
+			if (entry.failure != null)
+				incomplete.incrementAndGet();
+			for (RatingListener listener : ratingListeners){
+				try {
+					listener.ratingAdded(entry.rating);
+				} catch (RuntimeException e) {
+					log.error("Rating listener failed", e);
+				}
+			}
+			entry.accept();
+		}
+		committed.addAndGet(written.size());
+		log.debug("Committed " + written.size() + " of " + batch.size() + " ratings");
+	}
+
+	/**
+	 * Adds to the movie's totals, then adds the ratings to its list
+	 */
+	private void addToAerospikeMovie(List<Entry> ratings) throws AerospikeException {
+		long sum = 0;
+		List<WatchedRated> values = new ArrayList<WatchedRated>(ratings.size());
+		for (Entry entry : ratings){
+			sum += entry.rating.getRating();
+			values.add(entry.rating);
+		}
+		Key key = new Key(namespace, Movie.PRODUCT_SET, ratings.get(0).rating.getMovie());
+		// a movie list keyed by position starts at 0
+		addToAerospikeList(movieUpdatePolicy, key, Movie.WATCHED_BY+"List", values, 0,
+				Operation.add(new Bin(Movie.SUM_OF_RATINGS, sum)),
+				Operation.add(new Bin(Movie.SUM_OF_RATINGS, -sum)));
+	}
+
+	private void addToMongoMovie(List<Entry> ratings) throws MongoException {
+		long sum = 0;
+		List<WatchedRated> values = new ArrayList<WatchedRated>(ratings.size());
+		for (Entry entry : ratings){
+			sum += entry.rating.getRating();
+			values.add(entry.rating);
+		}
+		BasicDBObject update = new BasicDBObject()
+			.append("$push", new BasicDBObject("movie." + Movie.WATCHED_BY, new BasicDBObject("$each", values)))
+			.append("$inc", new BasicDBObject("movie." + Movie.RATINGS_COUNT, ratings.size())
+					.append("movie." + Movie.SUM_OF_RATINGS, sum));
+		WriteResult result = movieCollection.update(
+				new BasicDBObject("movie." + Movie.MOVIE_ID, ratings.get(0).rating.getMovie()), update);
+		if (result.getN() == 0)
+			throw new MongoException("Movie not found: " + ratings.get(0).rating.getMovie());
+	}
+
+	/**
+	 * Adds to the customer's count, then adds the ratings to its list
+	 */
+	private void addToAerospikeCustomer(List<Entry> ratings) throws AerospikeException {
+		String customerID = ratings.get(0).rating.getCustomerID();
+		Key key = new Key(namespace, Customer.USERS_SET, customerID);
+		List<WatchedRated> values = new ArrayList<WatchedRated>(ratings.size());
+		for (Entry entry : ratings)
+			values.add(entry.copy());
+		// a customer list keyed by position starts at 1, as the loader writes it
+		addToAerospikeList(customerPolicy, key, Customer.WATCHED, values, 1,
+				Operation.put(new Bin(Customer.CUSTOMER_ID, customerID)), null);
+	}
+
+	/**
+	 * Adds ratings to a movie or customer list. One operate adds them to the
+	 * ratings count and time index of the list, and to its other totals, and
+	 * reserves their positions, then one list add adds them. If the add fails,
+	 * the counts and totals are taken back, but not the positions.
+	 * @param first the list key of the first rating of a list keyed by position
+	 * @param total adds to the other totals of the list
+	 * @param undo takes the total back, or null if there is nothing to take back
+	 */
+	private void addToAerospikeList(WritePolicy policy, Key key, String binName, List<WatchedRated> values,
+			int first, Operation total, Operation undo) throws AerospikeException {
+		TimeIndex added = new TimeIndex();
+		TimeIndex removed = new TimeIndex();
+		for (WatchedRated rating : values){
+			added.add(rating.getEpochDay());
+			removed.remove(rating.getEpochDay());
+		}
+		Record record = aerospikeClient.operate(policy, key,
+				Operation.add(new Bin(RATINGS_COUNT, values.size())),
+				Operation.append(new Bin(TimeIndex.DAYS, added.entries())),
+				Operation.add(new Bin(TimeIndex.POSITIONS, values.size())),
+				total,
+				Operation.get(RATINGS_COUNT),
+				Operation.get(TimeIndex.DAYS),
+				Operation.get(TimeIndex.POSITIONS));
+		int count = record.getInt(RATINGS_COUNT);
+		if (TimeIndex.of(record, count) != null)
+			setKeys(values, record.getInt(TimeIndex.POSITIONS) - values.size(), true);
+		else
+			setKeys(values, count - values.size() + first, false);
+		try {
+			aerospikeClient.getLargeList(policy, key, binName, null).add(values);
+		} catch (AerospikeException e) {
+			try {
+				Operation take = Operation.add(new Bin(RATINGS_COUNT, -values.size()));
+				Operation takeDays = Operation.append(new Bin(TimeIndex.DAYS, removed.entries()));
+				if (undo == null)
+					aerospikeClient.operate(policy, key, take, takeDays);
+				else
+					aerospikeClient.operate(policy, key, take, takeDays, undo);
+			} catch (AerospikeException rollback) {
+				log.error("Could not take back the totals of " + values.size() + " ratings from " + key, rollback);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Keys the ratings added to a list from the first position reserved
+	 * @param byDate true if the list is keyed by date, false if it is from
+	 * a database loaded before its entries were, and is keyed by position
+	 */
+	private static void setKeys(List<WatchedRated> values, int first, boolean byDate) {
+		Collections.sort(values);
+		for (int i = 0; i < values.size(); i++){
+			WatchedRated rating = values.get(i);
+			rating.put(RatingBatch.KEY, byDate ? TimeIndex.key(rating.getEpochDay(), first + i) : first + i);
+		}
+	}
+
+	private static Map<String, List<Entry>> group(List<Entry> entries, String field) {
+		Map<String, List<Entry>> groups = new LinkedHashMap<String, List<Entry>>();
+		for (Entry entry : entries){
+			String id = (String) entry.rating.get(field);
+			List<Entry> group = groups.get(id);
+			if (group == null){
+				group = new ArrayList<Entry>();
+				groups.put(id, group);
+			}
+			group.add(entry);
+		}
+		return groups;
+	}
+
+	private static void fail(List<Entry> entries, String reason) {
+		for (Entry entry : entries)
+			entry.failure = (entry.failure == null) ? reason : entry.failure + "; " + reason;
+	}
+
+	private void reject(List<Entry> entries, String reason) {
+		for (Entry entry : entries){
+			if (!entry.settled)
+				rejected.incrementAndGet();
+			entry.reject(reason);
+		}
+	}
+
+	/**
+	 * Stops the committers, rejecting the ratings still queued
+	 */
+	public void shutdown() {
+		running = false;
+		committers.shutdownNow();
+		List<Entry> remaining = new ArrayList<Entry>();
+		queue.drainTo(remaining);
+		reject(remaining, "Shutting down");
+	}
+
+	/**
+	 * the ingestion counters
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject stats() {
+		JSONObject stats = new JSONObject();
+		long batchCount = batches.get();
+		stats.put("queued", queue.size());
+		stats.put("batches", batchCount);
+		stats.put("committed", committed.get());
+		stats.put("rejected", rejected.get());
+		stats.put("incomplete", incomplete.get());
+		stats.put("averageBatch", (batchCount == 0) ? 0.0 : (committed.get() + rejected.get()) / (double) batchCount);
+		return stats;
+	}
+
+	/**
+	 * A queued rating
+	 */
+	private static class Entry {
+		final WatchedRated rating;
+		final Commit commit;
+		final int position;
+		// only read and written by the committer of the entry's batch
+		boolean settled;
+		boolean written;
+		String failure;
+
+		Entry(WatchedRated rating, Commit commit, int position) {
+			this.rating = rating;
+			this.commit = commit;
+			this.position = position;
+		}
+
+		/**
+		 * the customer list entry, a copy as its key differs from the movie list's
+		 */
+		WatchedRated copy() {
+			return new WatchedRated(new HashMap<String, Object>(rating.getAsMap()));
+		}
+
+		void accept() {
+			if (!settled){
+				settled = true;
+				commit.accept(position, failure);
+			}
+		}
+
+		void reject(String reason) {
+			if (!settled){
+				settled = true;
+				commit.reject(position, reason);
+			}
+		}
+	}
+
+	/**
+	 * The outcome of the ratings of one submit()
+	 */
+	public static class Commit {
+		private final AtomicInteger pending;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final AtomicInteger accepted = new AtomicInteger();
+		private final Map<Integer, String> rejections = Collections.synchronizedMap(new LinkedHashMap<Integer, String>());
+		private final Map<Integer, String> failures = Collections.synchronizedMap(new LinkedHashMap<Integer, String>());
+
+		Commit(int size) {
+			pending = new AtomicInteger(size);
+			if (size == 0)
+				done.countDown();
+		}
+
+		/**
+		 * @param failure the writes of the rating that failed, or null if none did
+		 */
+		void accept(int position, String failure) {
+			if (failure != null)
+				failures.put(position, failure);
+			accepted.incrementAndGet();
+			settled();
+		}
+
+		void reject(int position, String reason) {
+			rejections.put(position, reason);
+			settled();
+		}
+
+		private void settled() {
+			if (pending.decrementAndGet() == 0)
+				done.countDown();
+		}
+
+		/**
+		 * Waits for all the ratings to be written or rejected
+		 * @return false if the wait timed out
+		 */
+		public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+			return done.await(timeout, unit);
+		}
+
+		public int getAccepted() {
+			return accepted.get();
+		}
+
+		/**
+		 * @return the reason each rejected rating was rejected, by its position in the submitted list
+		 */
+		public Map<Integer, String> getRejections() {
+			synchronized (rejections) {
+				return new LinkedHashMap<Integer, String>(rejections);
+			}
+		}
+
+		/**
+		 * @return the writes that failed of each accepted rating not written to all its lists,
+		 * by its position in the submitted list
+		 */
+		public Map<Integer, String> getFailures() {
+			synchronized (failures) {
+				return new LinkedHashMap<Integer, String>(failures);
+			}
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package com.aerospike.recommendation.dataimport;
+
+import com.aerospike.recommendation.dataimport.model.WatchedRated;
+
+/**
+ * Notified when a rating is added to a customer's watched list,
+ * so in-process caches and indexes can be kept up to date.
+ * @author peter
+ *
+ */
+public interface RatingListener {
+
+	public abstract void ratingAdded(WatchedRated rating);
+
+}
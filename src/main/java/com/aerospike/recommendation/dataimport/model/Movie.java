@@ -92,7 +92,21 @@ public class Movie implements IRecord {
 		if (this.watchedBy == null)
 			this.watchedBy = new ArrayList<WatchedRated>();
 		this.watchedBy.add(watchedRated);
-		this.sumOfRatings += watchedRated.getRating();
+		addToTotals(watchedRated);
+	}
+	/**
+	 * Adds a rating to the count and sum of ratings, without keeping it
+	 * @param watchedRated
+	 */
+	public void addToTotals(WatchedRated watchedRated){
+		addToTotals((int) watchedRated.getRating());
+	}
+	/**
+	 * Adds a rating to the count and sum of ratings
+	 * @param rating 1-5
+	 */
+	public void addToTotals(int rating){
+		this.sumOfRatings += rating;
 		this.countOfRatings++;
 	}
 
@@ -115,8 +129,8 @@ public class Movie implements IRecord {
 		return this.watchedBy;
 	}
 	/**
-	 * Sort the watched movies so that the latest review
-	 * is at the start of the list
+	 * Sort the watched movies by day, so that the latest review
+	 * is at the end of the list, as the loader writes it
 	 * @return
 	 */
 	public List<WatchedRated> sortWatched(){
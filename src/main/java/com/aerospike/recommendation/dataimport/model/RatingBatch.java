@@ -0,0 +1,229 @@
+package com.aerospike.recommendation.dataimport.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.aerospike.recommendation.snapshot.RatingSnapshot;
+
+/**
+ * A batch of ratings held in columns: the movie and customer IDs as ints,
+ * the rating as a byte and the date as a short count of days since 1970-01-01,
+ * 11 bytes a rating where a WatchedRated is a hash map of five boxed entries.
+ *
+ * Ratings are read, grouped and scored in this form, and only turned
+ * into the map stored in the watched and watchedBy lists, or read from
+ * one, where they are written to or read from the database.
+ * @author peter
+ *
+ */
+public final class RatingBatch {
+	/**
+	 * The list key of a rating in its watched or watchedBy list
+	 */
+	public static final String KEY = "key";
+	/**
+	 * The date of a rating stored without one
+	 */
+	public static final int NO_DATE = Short.MIN_VALUE;
+
+	private int size;
+	private int[] movieIds;
+	private int[] customerIds;
+	private byte[] ratings;
+	private short[] epochDays;
+
+	public RatingBatch() {
+		this(16);
+	}
+	public RatingBatch(int capacity) {
+		capacity = Math.max(capacity, 1);
+		this.movieIds = new int[capacity];
+		this.customerIds = new int[capacity];
+		this.ratings = new byte[capacity];
+		this.epochDays = new short[capacity];
+	}
+
+	/**
+	 * Adds a rating
+	 * @param rating 1-5, 0 means not rated
+	 * @param epochDay the number of days since 1970-01-01, or NO_DATE
+	 * @throws IllegalArgumentException if the rating or date does not fit
+	 */
+	public void add(int movieId, int customerId, int rating, int epochDay) {
+		if (rating < Byte.MIN_VALUE || rating > Byte.MAX_VALUE)
+			throw new IllegalArgumentException("Unexpected rating: " + rating);
+		if (epochDay < Short.MIN_VALUE || epochDay > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Unexpected date: " + epochDay);
+		if (size == movieIds.length) {
+			int capacity = size * 2;
+			movieIds = Arrays.copyOf(movieIds, capacity);
+			customerIds = Arrays.copyOf(customerIds, capacity);
+			ratings = Arrays.copyOf(ratings, capacity);
+			epochDays = Arrays.copyOf(epochDays, capacity);
+		}
+		movieIds[size] = movieId;
+		customerIds[size] = customerId;
+		ratings[size] = (byte) rating;
+		epochDays[size] = (short) epochDay;
+		size++;
+	}
+
+	/**
+	 * Adds a rating of another batch
+	 */
+	public void add(RatingBatch other, int i) {
+		add(other.movieIds[i], other.customerIds[i], other.ratings[i], other.epochDays[i]);
+	}
+
+	public int size() {
+		return size;
+	}
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	public void clear() {
+		size = 0;
+	}
+	public int movieId(int i) {
+		return movieIds[i];
+	}
+	public int customerId(int i) {
+		return customerIds[i];
+	}
+	public int rating(int i) {
+		return ratings[i];
+	}
+	/**
+	 * @return the number of days since 1970-01-01, or NO_DATE
+	 */
+	public int epochDay(int i) {
+		return epochDays[i];
+	}
+	/**
+	 * @return yyyy-MM-dd, or null if the rating has no date
+	 */
+	public String date(int i) {
+		return epochDays[i] == NO_DATE ? null : RatingSnapshot.date(epochDays[i]);
+	}
+
+	/**
+	 * Sorts the ratings by date, oldest first, keeping the order of ratings
+	 * of the same day. Ratings without a date come first
+	 */
+	public void sortByDay() {
+		boolean sorted = true;
+		for (int i = 1; i < size && sorted; i++)
+			sorted = epochDays[i - 1] <= epochDays[i];
+		if (sorted)
+			return;
+		// the position breaks ties, so the sort is stable
+		long[] order = new long[size];
+		for (int i = 0; i < size; i++)
+			order[i] = ((long) epochDays[i] << 32) | i;
+		Arrays.sort(order);
+		int[] sortedMovieIds = new int[movieIds.length];
+		int[] sortedCustomerIds = new int[customerIds.length];
+		byte[] sortedRatings = new byte[ratings.length];
+		short[] sortedDays = new short[epochDays.length];
+		for (int i = 0; i < size; i++) {
+			int from = (int) order[i];
+			sortedMovieIds[i] = movieIds[from];
+			sortedCustomerIds[i] = customerIds[from];
+			sortedRatings[i] = ratings[from];
+			sortedDays[i] = epochDays[from];
+		}
+		movieIds = sortedMovieIds;
+		customerIds = sortedCustomerIds;
+		ratings = sortedRatings;
+		epochDays = sortedDays;
+	}
+
+	/**
+	 * Makes the map a rating is stored as in the watched and watchedBy lists, without a list key
+	 */
+	public Map<String, Object> toMap(int i) {
+		Map<String, Object> map = new HashMap<String, Object>(8);
+		map.put(WatchedRated.MOVIE_ID, String.valueOf(movieIds[i]));
+		map.put(WatchedRated.CUSTOMER_ID, String.valueOf(customerIds[i]));
+		map.put(WatchedRated.RATING, (long) ratings[i]);
+		if (epochDays[i] != NO_DATE) {
+			map.put(WatchedRated.DATE, RatingSnapshot.date(epochDays[i]));
+			map.put(WatchedRated.DAY, (long) epochDays[i]);
+		}
+		return map;
+	}
+
+	/**
+	 * Makes the maps the ratings are stored as, keyed by their date and
+	 * consecutive positions, as by TimeIndex.key()
+	 * @param firstPosition the position of the first rating among the ratings added to its list
+	 */
+	public List<Map<String, Object>> toMaps(int firstPosition) {
+		List<Map<String, Object>> maps = new ArrayList<Map<String, Object>>(size);
+		for (int i = 0; i < size; i++) {
+			Map<String, Object> map = toMap(i);
+			map.put(KEY, TimeIndex.key(epochDays[i], firstPosition + i));
+			maps.add(map);
+		}
+		return maps;
+	}
+
+	/**
+	 * Makes the maps the ratings are stored as in a list without a time index,
+	 * from a database loaded before the entries were keyed by date,
+	 * keyed by their consecutive positions
+	 * @param firstPosition the position of the first rating among the ratings added to its list
+	 */
+	public List<Map<String, Object>> toPositionMaps(int firstPosition) {
+		List<Map<String, Object>> maps = new ArrayList<Map<String, Object>>(size);
+		for (int i = 0; i < size; i++) {
+			Map<String, Object> map = toMap(i);
+			map.put(KEY, firstPosition + i);
+			maps.add(map);
+		}
+		return maps;
+	}
+
+	/**
+	 * Reads the ratings of a watched or watchedBy list. Entries without a
+	 * movie or rating, or with an ID that is not an int, are left out, and
+	 * an entry with a date that is not yyyy-MM-dd is read with NO_DATE
+	 * @param list the entries as read from the database, or null
+	 * @return the ratings, in list order, or null if the list is null
+	 */
+	public static RatingBatch fromMaps(List<? extends Map<String, Object>> list) {
+		if (list == null)
+			return null;
+		RatingBatch batch = new RatingBatch(list.size());
+		for (Map<String, Object> entry : list) {
+			Object movieId = entry.get(WatchedRated.MOVIE_ID);
+			Object rating = entry.get(WatchedRated.RATING);
+			if (movieId == null || rating == null)
+				continue;
+			Object customerId = entry.get(WatchedRated.CUSTOMER_ID);
+			int day;
+			try {
+				day = WatchedRated.epochDay(entry);
+			} catch (IllegalArgumentException e) {
+				// still a rating, only of no known day
+				day = NO_DATE;
+			}
+			try {
+				batch.add(Integer.parseInt(movieId.toString()),
+						customerId == null ? -1 : Integer.parseInt(customerId.toString()),
+						((Number) rating).intValue(), day);
+			} catch (IllegalArgumentException e) {
+				// not a rating this batch can hold, NumberFormatException included
+			}
+		}
+		return batch;
+	}
+
+	@Override
+	public String toString() {
+		return "RatingBatch [" + size + " ratings]";
+	}
+}
@@ -0,0 +1,210 @@
+package com.aerospike.recommendation.dataimport.model;
+
+import java.util.Arrays;
+
+import com.aerospike.client.Record;
+
+/**
+ * The time index of a watched or watchedBy list, held in the record of the
+ * list. The list entries are keyed by date, key(epochDay, position): the day
+ * in the high 32 bits and the position of the rating among the ratings added
+ * to the list in the low. So a list is in date order whatever order its
+ * ratings are added in, and the ratings of a run of days are one range of keys.
+ *
+ * The DAYS bin counts the ratings of each day, so the range of keys of the
+ * latest ratings is found without reading the list. A rating without a date
+ * is counted on RatingBatch.NO_DATE, before every other day. The counts add
+ * up to the ratings count of the list: a list of a database loaded before
+ * its entries were keyed by date has no DAYS bin, or only the counts of the
+ * ratings added to it since, and is still keyed by position.
+ *
+ * An entry is 6 bytes, the day as a short and a count as an int. A writer
+ * that reads the bin writes it back with one entry a day, and one that does
+ * not appends the entries of its ratings with Operation.append, in the same
+ * operate as it adds to the ratings count, so a day may have several entries,
+ * whose counts are added up when the bin is read.
+ *
+ * The POSITIONS bin counts the positions handed out to the ratings of a
+ * date keyed list. Unlike the ratings count and the day counts, it is never
+ * taken back when a rating fails to be added, so no position is used twice.
+ * @author peter
+ *
+ */
+public final class TimeIndex {
+	public static final String DAYS = "day_counts";
+	public static final String POSITIONS = "positions";
+	/**
+	 * The lowest key returned when no rating is in a window
+	 */
+	public static final long NONE = Long.MAX_VALUE;
+	private static final int ENTRY_SIZE = 6;
+
+	private short[] days = new short[8];
+	private int[] counts = new int[8];
+	private int length;
+
+	/**
+	 * Starts an empty index, of the ratings added to a list
+	 */
+	public TimeIndex() {
+	}
+
+	/**
+	 * Reads the DAYS bin of a list's record
+	 * @param entries the bin value, or null if the list has no index yet
+	 */
+	public TimeIndex(byte[] entries) {
+		if (entries == null)
+			return;
+		for (int offset = 0; offset + ENTRY_SIZE <= entries.length; offset += ENTRY_SIZE) {
+			int day = (short) ((entries[offset] << 8) | (entries[offset + 1] & 0xff));
+			int count = (entries[offset + 2] << 24) | ((entries[offset + 3] & 0xff) << 16)
+					| ((entries[offset + 4] & 0xff) << 8) | (entries[offset + 5] & 0xff);
+			add(day, count);
+		}
+	}
+
+	/**
+	 * @param record the record of a list, or null
+	 * @param size the ratings count of the list
+	 * @return the index of the list, or null if its entries are not keyed by date,
+	 * as in a database loaded before they were
+	 */
+	public static TimeIndex of(Record record, int size) {
+		Object entries = (record == null) ? null : record.getValue(DAYS);
+		if (entries == null)
+			return (size == 0) ? new TimeIndex() : null;
+		TimeIndex index = new TimeIndex((byte[]) entries);
+		return (index.size() == size) ? index : null;
+	}
+
+	/**
+	 * @param epochDay the date of the rating, or RatingBatch.NO_DATE
+	 * @param position the position of the rating among the ratings added to its list
+	 * @return the list key of the rating
+	 */
+	public static long key(int epochDay, int position) {
+		return ((long) epochDay << 32) | (position & 0xffffffffL);
+	}
+
+	/**
+	 * @return the highest list key of a day
+	 */
+	public static long lastKey(int epochDay) {
+		return key(epochDay, -1);
+	}
+
+	/**
+	 * Counts a rating added to the list
+	 * @param epochDay the date of the rating, or RatingBatch.NO_DATE
+	 */
+	public void add(int epochDay) {
+		add(epochDay, 1);
+	}
+
+	/**
+	 * Takes back the count of a rating that could not be added to the list,
+	 * with an entry of -1 appended to the bin
+	 * @param epochDay the date of the rating, or RatingBatch.NO_DATE
+	 */
+	public void remove(int epochDay) {
+		add(epochDay, -1);
+	}
+
+	/**
+	 * Counts the ratings of a batch added to the list
+	 */
+	public void add(RatingBatch ratings) {
+		for (int i = 0; i < ratings.size(); i++)
+			add(ratings.epochDay(i), 1);
+	}
+
+	/**
+	 * Adds the counts of another index
+	 */
+	public void add(TimeIndex other) {
+		for (int i = 0; i < other.length; i++)
+			add(other.days[i], other.counts[i]);
+	}
+
+	private void add(int epochDay, int count) {
+		int i = Arrays.binarySearch(days, 0, length, (short) epochDay);
+		if (i >= 0) {
+			counts[i] += count;
+			return;
+		}
+		i = -i - 1;
+		if (length == days.length) {
+			days = Arrays.copyOf(days, length * 2);
+			counts = Arrays.copyOf(counts, length * 2);
+		}
+		System.arraycopy(days, i, days, i + 1, length - i);
+		System.arraycopy(counts, i, counts, i + 1, length - i);
+		days[i] = (short) epochDay;
+		counts[i] = count;
+		length++;
+	}
+
+	/**
+	 * @return true if no rating was counted
+	 */
+	public boolean isEmpty() {
+		return length == 0;
+	}
+
+	/**
+	 * @return the number of ratings counted
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < length; i++)
+			size += counts[i];
+		return size;
+	}
+
+	/**
+	 * @return the value of the DAYS bin, one entry a day, oldest first
+	 */
+	public byte[] entries() {
+		byte[] entries = new byte[length * ENTRY_SIZE];
+		for (int i = 0; i < length; i++) {
+			int offset = i * ENTRY_SIZE;
+			entries[offset] = (byte) (days[i] >> 8);
+			entries[offset + 1] = (byte) days[i];
+			entries[offset + 2] = (byte) (counts[i] >> 24);
+			entries[offset + 3] = (byte) (counts[i] >> 16);
+			entries[offset + 4] = (byte) (counts[i] >> 8);
+			entries[offset + 5] = (byte) counts[i];
+		}
+		return entries;
+	}
+
+	/**
+	 * Finds the lowest list key to read for the latest ratings of a run of days.
+	 * The key is the first of a day, so more than limit ratings may be read
+	 * @param fromDay the first day, RatingBatch.NO_DATE for the oldest
+	 * @param toDay the last day
+	 * @param limit the most ratings wanted
+	 * @return the list key, or NONE if no rating is in the days
+	 */
+	public long firstKey(int fromDay, int toDay, int limit) {
+		int found = 0;
+		long first = NONE;
+		for (int i = length - 1; i >= 0 && found < limit; i--) {
+			if (days[i] > toDay)
+				continue;
+			if (days[i] < fromDay)
+				break;
+			if (counts[i] == 0)
+				continue;
+			found += counts[i];
+			first = key(days[i], 0);
+		}
+		return first;
+	}
+
+	@Override
+	public String toString() {
+		return "TimeIndex [days=" + length + ", ratings=" + size() + "]";
+	}
+}
@@ -5,6 +5,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
+import com.aerospike.recommendation.snapshot.RatingSnapshot;
+
 public class WatchedRated implements Map, Comparable<WatchedRated>
 {
 	
@@ -12,6 +14,11 @@ public class WatchedRated implements Map, Comparable<WatchedRated>
 	 * 
 	 */
 	public static final String DATE = "date";
+	/**
+	 * The date as the number of days since 1970-01-01, stored next to
+	 * the date so a list can be ordered and read by day without parsing it
+	 */
+	public static final String DAY = "day";
 	public static final String RATING = "rating";
 	public static final String CUSTOMER_ID = "customer-id";
 	public static final String MOVIE_ID = "movie-id";
@@ -32,6 +39,8 @@ public class WatchedRated implements Map, Comparable<WatchedRated>
 		this.properties.put(CUSTOMER_ID, customerID);
 		this.properties.put(RATING, rating);
 		this.properties.put(DATE, date);
+		if (date != null)
+			this.properties.put(DAY, (long) RatingSnapshot.epochDay(date));
 	}
 	public String getMovie() {
 		return (String) this.properties.get(MOVIE_ID);
@@ -66,6 +75,26 @@ public class WatchedRated implements Map, Comparable<WatchedRated>
 	 */
 	public void setDate(String date) {
 		this.properties.put(DATE, date);
+		this.properties.put(DAY, (long) RatingSnapshot.epochDay(date));
+	}
+	/**
+	 * @return the number of days since 1970-01-01, or RatingBatch.NO_DATE
+	 */
+	public int getEpochDay() {
+		return epochDay(this.properties);
+	}
+	/**
+	 * The day of a rating as stored in a list, from its day
+	 * or, if it was stored before the day was, its date
+	 * @return the number of days since 1970-01-01, or RatingBatch.NO_DATE
+	 * @throws IllegalArgumentException if the date is not yyyy-MM-dd
+	 */
+	public static int epochDay(Map<String, Object> rating) {
+		Object day = rating.get(DAY);
+		if (day != null)
+			return ((Number) day).intValue();
+		Object date = rating.get(DATE);
+		return (date == null) ? RatingBatch.NO_DATE : RatingSnapshot.epochDay(date.toString());
 	}
 	
 	@Override
@@ -139,7 +168,9 @@ public class WatchedRated implements Map, Comparable<WatchedRated>
 	}
 	@Override
 	public int compareTo(WatchedRated other) {
-		return this.getDate().compareTo(other.getDate());
+		int day = this.getEpochDay();
+		int otherDay = other.getEpochDay();
+		return (day < otherDay) ? -1 : ((day == otherDay) ? 0 : 1);
 	}
 	
 }
@@ -0,0 +1,291 @@
+package com.aerospike.recommendation.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The latent factors of the movies and customers, made by
+ * the matrix factorization job. A predicted rating is the
+ * dot product of a customer's factors and a movie's.
+ *
+ * The factors of each side are one flat float array, row by row,
+ * in the order of the sorted ID dictionary, as in a RatingIndex.
+ * The same floats of one row are stored in the FACTORS bin of a
+ * MOVIE_TITLES or MOVIE_CUSTOMERS record.
+ * @author peter
+ *
+ */
+public class LatentFactors {
+	public static final String FACTORS = "factors";
+	private static final int MAGIC = 0x414c5331; // "ALS1"
+
+	private final int rank;
+	private final float lambda;
+	private final int[] movieIds;
+	private final float[] movieFactors;
+	private final int[] customerIds;
+	private final float[] customerFactors;
+
+	/**
+	 * @param rank the number of factors in a row
+	 * @param lambda the regularization the factors were solved with
+	 * @param movieIds sorted
+	 * @param movieFactors rank floats per movie
+	 * @param customerIds sorted
+	 * @param customerFactors rank floats per customer
+	 */
+	public LatentFactors(int rank, float lambda, int[] movieIds, float[] movieFactors,
+			int[] customerIds, float[] customerFactors) {
+		this.rank = rank;
+		this.lambda = lambda;
+		this.movieIds = movieIds;
+		this.movieFactors = movieFactors;
+		this.customerIds = customerIds;
+		this.customerFactors = customerFactors;
+	}
+
+	public int rank() {
+		return rank;
+	}
+	public float lambda() {
+		return lambda;
+	}
+	public int movieCount() {
+		return movieIds.length;
+	}
+	public int customerCount() {
+		return customerIds.length;
+	}
+	/**
+	 * @return the movie ordinal, or a negative value if the movie has no factors
+	 */
+	public int movieIndex(int movieId) {
+		return Arrays.binarySearch(movieIds, movieId);
+	}
+	/**
+	 * @return the customer ordinal, or a negative value if the customer has no factors
+	 */
+	public int customerIndex(int customerId) {
+		return Arrays.binarySearch(customerIds, customerId);
+	}
+	public int movieId(int movie) {
+		return movieIds[movie];
+	}
+	public int customerId(int customer) {
+		return customerIds[customer];
+	}
+	/**
+	 * @return the factors of all the movies, movie m at m * rank()
+	 */
+	public float[] movieFactors() {
+		return movieFactors;
+	}
+	/**
+	 * @return the factors of all the customers, customer c at c * rank()
+	 */
+	public float[] customerFactors() {
+		return customerFactors;
+	}
+
+	/**
+	 * @return the dot product of a row of factors with a movie's factors
+	 */
+	public float score(float[] factors, int offset, int movie) {
+		float sum = 0;
+		int m = movie * rank;
+		for (int f = 0; f < rank; f++)
+			sum += factors[offset + f] * movieFactors[m + f];
+		return sum;
+	}
+
+	/**
+	 * Solves the factors of a customer that are not in the
+	 * factors, or whose ratings changed, from their ratings
+	 * and the movie factors, as a training step would
+	 * @param movies the movie ordinals of the ratings
+	 * @param ratings the ratings
+	 * @param count the number of ratings
+	 * @return rank factors, all 0 if there are no ratings
+	 */
+	public float[] foldIn(int[] movies, float[] ratings, int count) {
+		float[] factors = new float[rank];
+		solve(movieFactors, rank, lambda, movies, ratings, count,
+				new double[rank * rank], new double[rank], factors, 0);
+		return factors;
+	}
+
+	/**
+	 * Solves one row of regularized least squares: the factors x minimizing
+	 * the squared error of the ratings plus lambda * count * |x|^2, with
+	 * the normal equations factorized by Cholesky decomposition
+	 * @param fixed the factors of the other side
+	 * @param others the ordinals of the rated rows of the other side
+	 * @param a scratch, rank * rank
+	 * @param b scratch, rank
+	 * @param to receives the factors at offset
+	 */
+	public static void solve(float[] fixed, int rank, float lambda, int[] others, float[] ratings, int count,
+			double[] a, double[] b, float[] to, int offset) {
+		if (count == 0) {
+			Arrays.fill(to, offset, offset + rank, 0f);
+			return;
+		}
+		/*
+		 * a = Y'Y + lambda * n * I, b = Y'r, over the rated rows of Y
+		 */
+		Arrays.fill(a, 0);
+		Arrays.fill(b, 0);
+		for (int i = 0; i < count; i++) {
+			int y = others[i] * rank;
+			double rating = ratings[i];
+			for (int r = 0; r < rank; r++) {
+				double yr = fixed[y + r];
+				b[r] += rating * yr;
+				int row = r * rank;
+				for (int c = 0; c <= r; c++)
+					a[row + c] += yr * fixed[y + c];
+			}
+		}
+		double regularization = lambda * count;
+		for (int r = 0; r < rank; r++)
+			a[r * rank + r] += regularization;
+		/*
+		 * a = LL', in place in the lower triangle, then
+		 * solve Lz = b and L'x = z, in place in b
+		 */
+		for (int j = 0; j < rank; j++) {
+			double d = a[j * rank + j];
+			for (int k = 0; k < j; k++)
+				d -= a[j * rank + k] * a[j * rank + k];
+			d = Math.sqrt(Math.max(d, 1e-12));
+			a[j * rank + j] = d;
+			for (int i = j + 1; i < rank; i++) {
+				double s = a[i * rank + j];
+				for (int k = 0; k < j; k++)
+					s -= a[i * rank + k] * a[j * rank + k];
+				a[i * rank + j] = s / d;
+			}
+		}
+		for (int i = 0; i < rank; i++) {
+			double s = b[i];
+			for (int k = 0; k < i; k++)
+				s -= a[i * rank + k] * b[k];
+			b[i] = s / a[i * rank + i];
+		}
+		for (int i = rank - 1; i >= 0; i--) {
+			double s = b[i];
+			for (int k = i + 1; k < rank; k++)
+				s -= a[k * rank + i] * b[k];
+			b[i] = s / a[i * rank + i];
+		}
+		for (int r = 0; r < rank; r++)
+			to[offset + r] = (float) b[r];
+	}
+
+	/**
+	 * Encodes one row of factors for a record bin
+	 */
+	public static byte[] encode(float[] factors, int offset, int rank) {
+		ByteBuffer buffer = ByteBuffer.allocate(rank * 4);
+		for (int f = 0; f < rank; f++)
+			buffer.putFloat(factors[offset + f]);
+		return buffer.array();
+	}
+
+	/**
+	 * Decodes a row of factors encoded by encode()
+	 */
+	public static float[] decode(byte[] encoded) {
+		float[] factors = new float[encoded.length / 4];
+		ByteBuffer.wrap(encoded).asFloatBuffer().get(factors);
+		return factors;
+	}
+
+	/**
+	 * Writes the factors to a file
+	 */
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(rank);
+			out.writeFloat(lambda);
+			writeSide(out, movieIds, movieFactors);
+			writeSide(out, customerIds, customerFactors);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a file written by write()
+	 */
+	public static LatentFactors read(File file) throws IOException {
+		return read(file, true);
+	}
+
+	/**
+	 * Reads the movie factors of a file written by write(), without the
+	 * customer factors, which are written after them and are the larger part
+	 * of the file. Enough to fold in and score a customer
+	 * @return the factors, with no customers
+	 */
+	public static LatentFactors readMovies(File file) throws IOException {
+		return read(file, false);
+	}
+
+	private static LatentFactors read(File file, boolean withCustomers) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a latent factors file: " + file);
+			int rank = in.readInt();
+			float lambda = in.readFloat();
+			int[] movieIds = new int[in.readInt()];
+			float[] movieFactors = readSide(in, movieIds, rank);
+			if (!withCustomers)
+				return new LatentFactors(rank, lambda, movieIds, movieFactors, new int[0], new float[0]);
+			int[] customerIds = new int[in.readInt()];
+			float[] customerFactors = readSide(in, customerIds, rank);
+			return new LatentFactors(rank, lambda, movieIds, movieFactors, customerIds, customerFactors);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeSide(DataOutputStream out, int[] ids, float[] factors) throws IOException {
+		out.writeInt(ids.length);
+		ByteBuffer buffer = ByteBuffer.allocate(ids.length * 4);
+		buffer.asIntBuffer().put(ids);
+		out.write(buffer.array());
+		buffer = ByteBuffer.allocate(factors.length * 4);
+		buffer.asFloatBuffer().put(factors);
+		out.write(buffer.array());
+	}
+
+	private static float[] readSide(DataInputStream in, int[] ids, int rank) throws IOException {
+		byte[] bytes = new byte[ids.length * 4];
+		in.readFully(bytes);
+		ByteBuffer.wrap(bytes).asIntBuffer().get(ids);
+		bytes = new byte[ids.length * rank * 4];
+		in.readFully(bytes);
+		float[] factors = new float[ids.length * rank];
+		ByteBuffer.wrap(bytes).asFloatBuffer().get(factors);
+		return factors;
+	}
+
+	@Override
+	public String toString() {
+		return "LatentFactors [rank=" + rank
+				+ ", movies=" + movieCount()
+				+ ", customers=" + customerCount() + "]";
+	}
+}
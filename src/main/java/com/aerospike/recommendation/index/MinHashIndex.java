@@ -0,0 +1,306 @@
+package com.aerospike.recommendation.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A locality sensitive hashing (LSH) index of the customers'
+ * latest movies, for finding customers that watched the same movies
+ * without reading who watched each movie.
+ *
+ * Each customer's set of latest movies is summarized by a MinHash
+ * signature: for each of bands * rows hash functions, the lowest hash of
+ * a movie in the set. Two signatures agree at a position with probability
+ * equal to the Jaccard similarity of the sets. The signature is cut into
+ * bands of rows, and customers whose band hashes the same are in the same
+ * bucket of that band, so similar customers share a bucket in some band.
+ *
+ * The buckets of a band are the customers sorted by band hash, so a
+ * lookup is a binary search and a bounded scan, and does not grow
+ * with the number of customers. The signatures are kept too, to
+ * estimate the similarity of the customers found.
+ *
+ * The index is immutable once built and safe to share between threads.
+ * @author peter
+ *
+ */
+public class MinHashIndex {
+	private static final int MAGIC = 0x4d484c31; // "MHL1"
+	private static final long SEED = 42;
+
+	private final int bands;
+	private final int rows;
+	private final int historyLimit;
+	private final int[] seeds;
+	private final int[] customerIds;
+	private final int[] signatures;
+	private final int[][] bucketHashes;
+	private final int[][] bucketCustomers;
+
+	/**
+	 * @param seeds one per hash function, bands * rows
+	 * @param customerIds sorted
+	 * @param signatures bands * rows per customer
+	 */
+	MinHashIndex(int bands, int rows, int historyLimit, int[] seeds, int[] customerIds, int[] signatures) {
+		this.bands = bands;
+		this.rows = rows;
+		this.historyLimit = historyLimit;
+		this.seeds = seeds;
+		this.customerIds = customerIds;
+		this.signatures = signatures;
+		this.bucketHashes = new int[bands][];
+		this.bucketCustomers = new int[bands][];
+		/*
+		 * sort the customers of each band by band hash,
+		 * the customer ordinal breaking ties
+		 */
+		long[] sorted = new long[customerIds.length];
+		for (int band = 0; band < bands; band++) {
+			for (int c = 0; c < customerIds.length; c++)
+				sorted[c] = ((long) bandHash(signatures, c * hashCount(), band) << 32) | c;
+			Arrays.sort(sorted);
+			int[] hashes = new int[customerIds.length];
+			int[] customers = new int[customerIds.length];
+			for (int i = 0; i < sorted.length; i++) {
+				hashes[i] = (int) (sorted[i] >> 32);
+				customers[i] = (int) sorted[i];
+			}
+			bucketHashes[band] = hashes;
+			bucketCustomers[band] = customers;
+		}
+	}
+
+	/**
+	 * Builds the index of the latest movies of each customer in a rating index
+	 * @param historyLimit the number of latest movies of a customer hashed
+	 */
+	public static MinHashIndex build(RatingIndex index, int bands, int rows, int historyLimit) {
+		int[] seeds = new int[bands * rows];
+		Random random = new Random(SEED);
+		for (int i = 0; i < seeds.length; i++)
+			seeds[i] = random.nextInt();
+		int customers = index.customerCount();
+		int[] customerIds = new int[customers];
+		int[] signatures = new int[customers * seeds.length];
+		int[] movieIds = new int[historyLimit];
+		int[] signature = new int[seeds.length];
+		for (int c = 0; c < customers; c++) {
+			customerIds[c] = index.customerId(c);
+			int to = index.historyTo(c);
+			int from = Math.max(index.historyFrom(c), to - historyLimit);
+			for (int h = from; h < to; h++)
+				movieIds[h - from] = index.movieId(index.historyMovie(h));
+			signature(seeds, movieIds, to - from, signature);
+			System.arraycopy(signature, 0, signatures, c * seeds.length, seeds.length);
+		}
+		return new MinHashIndex(bands, rows, historyLimit, seeds, customerIds, signatures);
+	}
+
+	public int bands() {
+		return bands;
+	}
+	public int rows() {
+		return rows;
+	}
+	/**
+	 * @return the number of latest movies of a customer that are hashed
+	 */
+	public int historyLimit() {
+		return historyLimit;
+	}
+	public int hashCount() {
+		return seeds.length;
+	}
+	public int customerCount() {
+		return customerIds.length;
+	}
+	public int customerId(int customer) {
+		return customerIds[customer];
+	}
+	/**
+	 * @return the customer ordinal, or a negative value if the customer is not in the index
+	 */
+	public int customerIndex(int customerId) {
+		return Arrays.binarySearch(customerIds, customerId);
+	}
+
+	/**
+	 * Computes the signature of a set of movies
+	 * @param movieIds the customer's latest movies
+	 * @param count the number of movies
+	 * @return a new signature
+	 */
+	public int[] signature(int[] movieIds, int count) {
+		int[] signature = new int[seeds.length];
+		signature(seeds, movieIds, count, signature);
+		return signature;
+	}
+
+	private static void signature(int[] seeds, int[] movieIds, int count, int[] signature) {
+		Arrays.fill(signature, Integer.MAX_VALUE);
+		for (int m = 0; m < count; m++) {
+			for (int i = 0; i < seeds.length; i++) {
+				int hash = hash(movieIds[m], seeds[i]);
+				if (hash < signature[i])
+					signature[i] = hash;
+			}
+		}
+	}
+
+	/**
+	 * Finds the customers that share a bucket with a signature in any band
+	 * @param maxBucket the most customers taken from the bucket of one band,
+	 * popular movie sets make buckets too large to read whole
+	 * @param to receives the distinct customer ordinals, room for bands() * maxBucket
+	 * @return the number of customers found
+	 */
+	public int candidates(int[] signature, int maxBucket, int[] to) {
+		int count = 0;
+		for (int band = 0; band < bands; band++) {
+			int hash = bandHash(signature, 0, band);
+			int[] hashes = bucketHashes[band];
+			int from = lowerBound(hashes, hash);
+			int end = lowerBound(hashes, hash + 1);
+			if (hash == Integer.MAX_VALUE)
+				end = hashes.length;
+			int size = end - from;
+			if (size > maxBucket) {
+				// read a window of the bucket, in a place that depends on the band hash
+				from += (int) ((hash & 0xffffffffL) % (size - maxBucket + 1));
+				end = from + maxBucket;
+			}
+			for (int i = from; i < end; i++)
+				to[count++] = bucketCustomers[band][i];
+		}
+		Arrays.sort(to, 0, count);
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (i == 0 || to[i] != to[i - 1])
+				to[distinct++] = to[i];
+		}
+		return distinct;
+	}
+
+	/**
+	 * @return the estimated Jaccard similarity of a signature and
+	 * a customer's latest movies, the fraction of signature positions that agree
+	 */
+	public float similarity(int[] signature, int customer) {
+		int offset = customer * seeds.length;
+		int same = 0;
+		for (int i = 0; i < seeds.length; i++) {
+			if (signatures[offset + i] == signature[i])
+				same++;
+		}
+		return same / (float) seeds.length;
+	}
+
+	private int bandHash(int[] signature, int offset, int band) {
+		int hash = band;
+		int start = offset + band * rows;
+		for (int r = 0; r < rows; r++)
+			hash = 31 * hash + signature[start + r];
+		return mix(hash);
+	}
+
+	private static int hash(int movieId, int seed) {
+		return mix(movieId * 0x9e3779b9 + seed);
+	}
+
+	/**
+	 * the murmur3 finalizer
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static int lowerBound(int[] sorted, int value) {
+		int low = 0;
+		int high = sorted.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (sorted[middle] < value)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Writes the signatures to a file, the buckets are sorted again when it is read
+	 */
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(bands);
+			out.writeInt(rows);
+			out.writeInt(historyLimit);
+			out.writeInt(customerIds.length);
+			writeInts(out, seeds);
+			writeInts(out, customerIds);
+			writeInts(out, signatures);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a file written by write()
+	 */
+	public static MinHashIndex read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a MinHash index file: " + file);
+			int bands = in.readInt();
+			int rows = in.readInt();
+			int historyLimit = in.readInt();
+			int customers = in.readInt();
+			int[] seeds = readInts(in, bands * rows);
+			int[] customerIds = readInts(in, customers);
+			int[] signatures = readInts(in, customers * bands * rows);
+			return new MinHashIndex(bands, rows, historyLimit, seeds, customerIds, signatures);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+		buffer.asIntBuffer().put(values);
+		out.write(buffer.array());
+	}
+
+	private static int[] readInts(DataInputStream in, int count) throws IOException {
+		byte[] bytes = new byte[count * 4];
+		in.readFully(bytes);
+		int[] values = new int[count];
+		ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		return "MinHashIndex [customers=" + customerCount()
+				+ ", bands=" + bands
+				+ ", rows=" + rows
+				+ ", history=" + historyLimit + "]";
+	}
+}
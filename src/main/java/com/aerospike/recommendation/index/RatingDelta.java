@@ -0,0 +1,194 @@
+package com.aerospike.recommendation.index;
+
+import java.util.Arrays;
+
+/**
+ * RatingDelta holds the ratings added to a RatingIndex since it was made,
+ * beside it rather than merged into it, so adding a few ratings does not
+ * copy the whole index. Like the index, it is two compressed sparse row
+ * tables: movie ordinal to the IDs of the customers that rated it, and
+ * customer ID to the movie ordinals they rated, each row in the order the
+ * ratings were added. The customers are looked up by ID, as a customer
+ * added since the index was made has no ordinal in it.
+ *
+ * A delta is immutable and safe to share between threads. Adding ratings
+ * makes a new delta, in time linear in its size, and a delta that has
+ * grown large is merged into a new index with mergeInto().
+ * @author peter
+ *
+ */
+public final class RatingDelta {
+	/*
+	 * the ratings in the order they were added, to merge them into the index
+	 */
+	private final int size;
+	private final int[] addedMovieIds;
+	private final int[] addedMovies;
+	private final int[] addedCustomerIds;
+	private final byte[] addedRatings;
+
+	private final int[] movieOffsets;
+	private final int[] movieCustomerIds;
+	private final byte[] movieRatings;
+
+	private final int[] customerIds;
+	private final int[] customerOffsets;
+	private final int[] customerMovies;
+	private final byte[] customerRatings;
+
+	/**
+	 * Makes an empty delta
+	 * @param movieCount the number of movies in the index
+	 */
+	public RatingDelta(int movieCount) {
+		this(0, new int[0], new int[0], new int[0], new byte[0], movieCount);
+	}
+
+	private RatingDelta(int size, int[] addedMovieIds, int[] addedMovies, int[] addedCustomerIds,
+			byte[] addedRatings, int movieCount) {
+		this.size = size;
+		this.addedMovieIds = addedMovieIds;
+		this.addedMovies = addedMovies;
+		this.addedCustomerIds = addedCustomerIds;
+		this.addedRatings = addedRatings;
+		/*
+		 * the distinct sorted customer IDs
+		 */
+		int[] ids = Arrays.copyOf(addedCustomerIds, size);
+		Arrays.sort(ids);
+		int distinct = 0;
+		for (int i = 0; i < size; i++) {
+			if (i == 0 || ids[i] != ids[i - 1])
+				ids[distinct++] = ids[i];
+		}
+		customerIds = Arrays.copyOf(ids, distinct);
+		int[] rowCustomer = new int[size];
+		for (int r = 0; r < size; r++)
+			rowCustomer[r] = Arrays.binarySearch(customerIds, addedCustomerIds[r]);
+		/*
+		 * count the ratings of each row, then fill the rows in the order the ratings were added
+		 */
+		movieOffsets = new int[movieCount + 1];
+		customerOffsets = new int[distinct + 1];
+		for (int r = 0; r < size; r++) {
+			movieOffsets[addedMovies[r] + 1]++;
+			customerOffsets[rowCustomer[r] + 1]++;
+		}
+		for (int m = 0; m < movieCount; m++)
+			movieOffsets[m + 1] += movieOffsets[m];
+		for (int c = 0; c < distinct; c++)
+			customerOffsets[c + 1] += customerOffsets[c];
+		movieCustomerIds = new int[size];
+		movieRatings = new byte[size];
+		customerMovies = new int[size];
+		customerRatings = new byte[size];
+		int[] movieCursor = Arrays.copyOf(movieOffsets, movieCount);
+		int[] customerCursor = Arrays.copyOf(customerOffsets, distinct);
+		for (int r = 0; r < size; r++) {
+			int position = movieCursor[addedMovies[r]]++;
+			movieCustomerIds[position] = addedCustomerIds[r];
+			movieRatings[position] = addedRatings[r];
+			position = customerCursor[rowCustomer[r]]++;
+			customerMovies[position] = addedMovies[r];
+			customerRatings[position] = addedRatings[r];
+		}
+	}
+
+	/**
+	 * Makes a new delta with ratings added after this one's. This delta is
+	 * unchanged, so it can go on being read while the new one is made.
+	 * Ratings of movies not in the index are skipped, as by RatingIndex.withRatings()
+	 * @param index the index this delta is beside
+	 * @param ratingMovieIds the movie ID of each rating
+	 * @param ratingCustomerIds the customer ID of each rating
+	 * @param ratingValues the value of each rating
+	 * @param count the number of ratings in the arrays
+	 * @return the new delta, made in time linear in its size
+	 */
+	public RatingDelta withRatings(RatingIndex index, int[] ratingMovieIds, int[] ratingCustomerIds,
+			byte[] ratingValues, int count) {
+		int[] movieIds = Arrays.copyOf(addedMovieIds, size + count);
+		int[] movies = Arrays.copyOf(addedMovies, size + count);
+		int[] ids = Arrays.copyOf(addedCustomerIds, size + count);
+		byte[] ratings = Arrays.copyOf(addedRatings, size + count);
+		int added = size;
+		for (int r = 0; r < count; r++) {
+			int movie = index.movieIndex(ratingMovieIds[r]);
+			if (movie < 0)
+				continue;
+			movieIds[added] = ratingMovieIds[r];
+			movies[added] = movie;
+			ids[added] = ratingCustomerIds[r];
+			ratings[added++] = ratingValues[r];
+		}
+		return new RatingDelta(added, movieIds, movies, ids, ratings, index.movieCount());
+	}
+
+	/**
+	 * @param index the index this delta is beside
+	 * @return a new index with the ratings of this delta appended, made in time linear in its size
+	 */
+	public RatingIndex mergeInto(RatingIndex index) {
+		return index.withRatings(addedMovieIds, addedCustomerIds, addedRatings, size);
+	}
+
+	/**
+	 * @return the number of ratings in the delta
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param customerId the customer ID
+	 * @return the customer's row, or a negative value if no rating of the customer was added
+	 */
+	public int customerIndex(int customerId) {
+		return Arrays.binarySearch(customerIds, customerId);
+	}
+
+	/*
+	 * movie -> customer IDs
+	 */
+	public int watchersFrom(int movie) {
+		return movieOffsets[movie];
+	}
+	public int watchersTo(int movie) {
+		return movieOffsets[movie + 1];
+	}
+	/**
+	 * @param position a position between watchersFrom() and watchersTo()
+	 * @return the customer ID at the position
+	 */
+	public int watcherId(int position) {
+		return movieCustomerIds[position];
+	}
+	public byte watcherRating(int position) {
+		return movieRatings[position];
+	}
+
+	/*
+	 * customer row -> movies
+	 */
+	public int historyFrom(int customer) {
+		return customerOffsets[customer];
+	}
+	public int historyTo(int customer) {
+		return customerOffsets[customer + 1];
+	}
+	/**
+	 * @param position a position between historyFrom() and historyTo()
+	 * @return the movie ordinal at the position
+	 */
+	public int historyMovie(int position) {
+		return customerMovies[position];
+	}
+	public byte historyRating(int position) {
+		return customerRatings[position];
+	}
+
+	@Override
+	public String toString() {
+		return "RatingDelta [customers=" + customerIds.length + ", ratings=" + size + "]";
+	}
+}
@@ -0,0 +1,386 @@
+package com.aerospike.recommendation.index;
+
+import java.util.Arrays;
+
+/**
+ * RatingIndex holds the whole rating data set in memory as
+ * two compressed sparse row (CSR) tables of primitive arrays:
+ * movie to the customers that watched it, and customer to the
+ * movies they watched. The rating is packed alongside each entry.
+ *
+ * Movies and customers are referred to by their position (ordinal)
+ * in the sorted ID dictionaries. Within a row, entries keep the order
+ * in which they were added, so the end of a row holds the latest ratings,
+ * the same as the Large Lists in Aerospike.
+ *
+ * The index is immutable once built and safe to share between threads.
+ * Ratings added later are merged into a copy with withRatings().
+ * @author peter
+ *
+ */
+public class RatingIndex {
+	private final int[] movieIds;
+	private final String[] titles;
+	private final int[] years;
+	private final int[] movieOffsets;
+	private final int[] movieCustomers;
+	private final byte[] movieRatings;
+
+	private final int[] customerIds;
+	private final int[] customerOffsets;
+	private final int[] customerMovies;
+	private final byte[] customerRatings;
+
+	RatingIndex(int[] movieIds, String[] titles, int[] years,
+			int[] movieOffsets, int[] movieCustomers, byte[] movieRatings,
+			int[] customerIds, int[] customerOffsets, int[] customerMovies, byte[] customerRatings) {
+		this.movieIds = movieIds;
+		this.titles = titles;
+		this.years = years;
+		this.movieOffsets = movieOffsets;
+		this.movieCustomers = movieCustomers;
+		this.movieRatings = movieRatings;
+		this.customerIds = customerIds;
+		this.customerOffsets = customerOffsets;
+		this.customerMovies = customerMovies;
+		this.customerRatings = customerRatings;
+	}
+
+	/**
+	 * @param movieId the movie ID
+	 * @return the movie ordinal, or a negative value if the movie is not in the index
+	 */
+	public int movieIndex(int movieId) {
+		return Arrays.binarySearch(movieIds, movieId);
+	}
+	/**
+	 * @param customerId the customer ID
+	 * @return the customer ordinal, or a negative value if the customer is not in the index
+	 */
+	public int customerIndex(int customerId) {
+		return Arrays.binarySearch(customerIds, customerId);
+	}
+	public int movieCount() {
+		return movieIds.length;
+	}
+	public int customerCount() {
+		return customerIds.length;
+	}
+	public int ratingCount() {
+		return movieCustomers.length;
+	}
+	public int movieId(int movie) {
+		return movieIds[movie];
+	}
+	public String title(int movie) {
+		return titles[movie];
+	}
+	public int yearOfRelease(int movie) {
+		return years[movie];
+	}
+	public int customerId(int customer) {
+		return customerIds[customer];
+	}
+
+	/*
+	 * movie -> customers
+	 */
+	public int watchersFrom(int movie) {
+		return movieOffsets[movie];
+	}
+	public int watchersTo(int movie) {
+		return movieOffsets[movie + 1];
+	}
+	/**
+	 * @param position a position between watchersFrom() and watchersTo()
+	 * @return the customer ordinal at the position
+	 */
+	public int watcher(int position) {
+		return movieCustomers[position];
+	}
+	public byte watcherRating(int position) {
+		return movieRatings[position];
+	}
+
+	/*
+	 * customer -> movies
+	 */
+	public int historyFrom(int customer) {
+		return customerOffsets[customer];
+	}
+	public int historyTo(int customer) {
+		return customerOffsets[customer + 1];
+	}
+	/**
+	 * @param position a position between historyFrom() and historyTo()
+	 * @return the movie ordinal at the position
+	 */
+	public int historyMovie(int position) {
+		return customerMovies[position];
+	}
+	public byte historyRating(int position) {
+		return customerRatings[position];
+	}
+
+	/**
+	 * Makes a new index with ratings appended to the ends of their rows,
+	 * where they would be had they been added last. This index is unchanged,
+	 * so it can go on being read while the new one is made.
+	 *
+	 * Customers not in the index are added to the dictionary. Ratings of
+	 * movies not in the index are skipped, as the movie has no title or year,
+	 * so the movie ordinals of the new index are the same as this one's.
+	 * @param ratingMovieIds the movie ID of each rating
+	 * @param ratingCustomerIds the customer ID of each rating
+	 * @param ratingValues the value of each rating
+	 * @param count the number of ratings in the arrays
+	 * @return the new index, made in time linear in its size
+	 */
+	public RatingIndex withRatings(int[] ratingMovieIds, int[] ratingCustomerIds, byte[] ratingValues, int count) {
+		/*
+		 * map the ratings to movie ordinals, and
+		 * collect the distinct sorted IDs of the new customers
+		 */
+		int[] rowMovie = new int[count];
+		int[] newIds = new int[count];
+		int added = 0;
+		int newCount = 0;
+		for (int r = 0; r < count; r++) {
+			rowMovie[r] = movieIndex(ratingMovieIds[r]);
+			if (rowMovie[r] < 0)
+				continue;
+			added++;
+			if (customerIndex(ratingCustomerIds[r]) < 0)
+				newIds[newCount++] = ratingCustomerIds[r];
+		}
+		Arrays.sort(newIds, 0, newCount);
+		int distinct = 0;
+		for (int i = 0; i < newCount; i++) {
+			if (i == 0 || newIds[i] != newIds[i - 1])
+				newIds[distinct++] = newIds[i];
+		}
+		/*
+		 * merge the new customers into the dictionary, and map
+		 * the old customer ordinals to their new positions
+		 */
+		int customers = customerIds.length + distinct;
+		int[] mergedIds = new int[customers];
+		int[] newOrdinal = new int[customerIds.length];
+		int[] oldOrdinal = new int[customers];
+		int o = 0;
+		int n = 0;
+		for (int c = 0; c < customers; c++) {
+			if (n == distinct || (o < customerIds.length && customerIds[o] < newIds[n])) {
+				newOrdinal[o] = c;
+				oldOrdinal[c] = o;
+				mergedIds[c] = customerIds[o++];
+			} else {
+				oldOrdinal[c] = -1;
+				mergedIds[c] = newIds[n++];
+			}
+		}
+		int[] rowCustomer = new int[count];
+		for (int r = 0; r < count; r++) {
+			if (rowMovie[r] >= 0)
+				rowCustomer[r] = Arrays.binarySearch(mergedIds, ratingCustomerIds[r]);
+		}
+		int ratings = ratingCount() + added;
+		/*
+		 * movie -> customers: copy each row with the customers
+		 * renumbered, then append its new ratings in order
+		 */
+		int movies = movieIds.length;
+		int[] newMovieOffsets = new int[movies + 1];
+		for (int m = 0; m < movies; m++)
+			newMovieOffsets[m + 1] = movieOffsets[m + 1] - movieOffsets[m];
+		for (int r = 0; r < count; r++) {
+			if (rowMovie[r] >= 0)
+				newMovieOffsets[rowMovie[r] + 1]++;
+		}
+		for (int m = 0; m < movies; m++)
+			newMovieOffsets[m + 1] += newMovieOffsets[m];
+		int[] newMovieCustomers = new int[ratings];
+		byte[] newMovieRatings = new byte[ratings];
+		int[] cursor = new int[movies];
+		for (int m = 0; m < movies; m++) {
+			int position = newMovieOffsets[m];
+			for (int p = movieOffsets[m]; p < movieOffsets[m + 1]; p++) {
+				newMovieCustomers[position] = newOrdinal[movieCustomers[p]];
+				newMovieRatings[position++] = movieRatings[p];
+			}
+			cursor[m] = position;
+		}
+		for (int r = 0; r < count; r++) {
+			if (rowMovie[r] < 0)
+				continue;
+			int position = cursor[rowMovie[r]]++;
+			newMovieCustomers[position] = rowCustomer[r];
+			newMovieRatings[position] = ratingValues[r];
+		}
+		/*
+		 * customer -> movies: the movie ordinals are unchanged,
+		 * so the old rows are copied as they are
+		 */
+		int[] newCustomerOffsets = new int[customers + 1];
+		for (int c = 0; c < customers; c++) {
+			int old = oldOrdinal[c];
+			if (old >= 0)
+				newCustomerOffsets[c + 1] = customerOffsets[old + 1] - customerOffsets[old];
+		}
+		for (int r = 0; r < count; r++) {
+			if (rowMovie[r] >= 0)
+				newCustomerOffsets[rowCustomer[r] + 1]++;
+		}
+		for (int c = 0; c < customers; c++)
+			newCustomerOffsets[c + 1] += newCustomerOffsets[c];
+		int[] newCustomerMovies = new int[ratings];
+		byte[] newCustomerRatings = new byte[ratings];
+		cursor = new int[customers];
+		for (int c = 0; c < customers; c++) {
+			int old = oldOrdinal[c];
+			int length = (old < 0) ? 0 : customerOffsets[old + 1] - customerOffsets[old];
+			if (length > 0) {
+				System.arraycopy(customerMovies, customerOffsets[old], newCustomerMovies, newCustomerOffsets[c], length);
+				System.arraycopy(customerRatings, customerOffsets[old], newCustomerRatings, newCustomerOffsets[c], length);
+			}
+			cursor[c] = newCustomerOffsets[c] + length;
+		}
+		for (int r = 0; r < count; r++) {
+			if (rowMovie[r] < 0)
+				continue;
+			int position = cursor[rowCustomer[r]]++;
+			newCustomerMovies[position] = rowMovie[r];
+			newCustomerRatings[position] = ratingValues[r];
+		}
+		return new RatingIndex(movieIds, titles, years,
+				newMovieOffsets, newMovieCustomers, newMovieRatings,
+				mergedIds, newCustomerOffsets, newCustomerMovies, newCustomerRatings);
+	}
+
+	@Override
+	public String toString() {
+		return "RatingIndex [movies=" + movieCount()
+				+ ", customers=" + customerCount()
+				+ ", ratings=" + ratingCount() + "]";
+	}
+
+	/**
+	 * Accumulates ratings, one movie at a time, and
+	 * lays them out as CSR tables in build()
+	 */
+	public static class Builder {
+		private int movies = 0;
+		private int[] movieIds = new int[1024];
+		private String[] titles = new String[1024];
+		private int[] years = new int[1024];
+
+		private int ratings = 0;
+		private int[] ratingMovie = new int[1 << 16];
+		private int[] ratingCustomer = new int[1 << 16];
+		private byte[] ratingValue = new byte[1 << 16];
+
+		/**
+		 * Adds a movie to the index
+		 * @return the handle used to add ratings for this movie
+		 */
+		public int addMovie(int movieId, String title, int yearOfRelease) {
+			if (movies == movieIds.length) {
+				int capacity = movies * 2;
+				movieIds = Arrays.copyOf(movieIds, capacity);
+				titles = Arrays.copyOf(titles, capacity);
+				years = Arrays.copyOf(years, capacity);
+			}
+			movieIds[movies] = movieId;
+			titles[movies] = title;
+			years[movies] = yearOfRelease;
+			return movies++;
+		}
+
+		/**
+		 * Adds a rating of a movie previously added with addMovie()
+		 */
+		public void addRating(int movie, int customerId, int rating) {
+			if (ratings == ratingMovie.length) {
+				int capacity = ratings * 2;
+				ratingMovie = Arrays.copyOf(ratingMovie, capacity);
+				ratingCustomer = Arrays.copyOf(ratingCustomer, capacity);
+				ratingValue = Arrays.copyOf(ratingValue, capacity);
+			}
+			ratingMovie[ratings] = movie;
+			ratingCustomer[ratings] = customerId;
+			ratingValue[ratings] = (byte) rating;
+			ratings++;
+		}
+
+		public RatingIndex build() {
+			/*
+			 * movie dictionary: sort the movie IDs and map
+			 * the handles from addMovie() to ordinals
+			 */
+			int[] sortedMovieIds = Arrays.copyOf(movieIds, movies);
+			Arrays.sort(sortedMovieIds);
+			int[] movieOrdinal = new int[movies];
+			String[] sortedTitles = new String[movies];
+			int[] sortedYears = new int[movies];
+			for (int m = 0; m < movies; m++) {
+				int ordinal = Arrays.binarySearch(sortedMovieIds, movieIds[m]);
+				movieOrdinal[m] = ordinal;
+				sortedTitles[ordinal] = titles[m];
+				sortedYears[ordinal] = years[m];
+			}
+			/*
+			 * customer dictionary: distinct sorted customer IDs
+			 */
+			int[] distinct = Arrays.copyOf(ratingCustomer, ratings);
+			Arrays.sort(distinct);
+			int customers = 0;
+			for (int i = 0; i < distinct.length; i++) {
+				if (i == 0 || distinct[i] != distinct[i - 1])
+					distinct[customers++] = distinct[i];
+			}
+			int[] sortedCustomerIds = Arrays.copyOf(distinct, customers);
+			distinct = null;
+
+			int[] rowMovie = new int[ratings];
+			int[] rowCustomer = new int[ratings];
+			for (int r = 0; r < ratings; r++) {
+				rowMovie[r] = movieOrdinal[ratingMovie[r]];
+				rowCustomer[r] = Arrays.binarySearch(sortedCustomerIds, ratingCustomer[r]);
+			}
+			/*
+			 * A stable counting sort on each side keeps the
+			 * order in which the ratings were added within a row
+			 */
+			int[] movieOffsets = offsets(rowMovie, ratings, movies);
+			int[] movieCustomers = new int[ratings];
+			byte[] movieRatings = new byte[ratings];
+			int[] cursor = Arrays.copyOf(movieOffsets, movies);
+			for (int r = 0; r < ratings; r++) {
+				int position = cursor[rowMovie[r]]++;
+				movieCustomers[position] = rowCustomer[r];
+				movieRatings[position] = ratingValue[r];
+			}
+			int[] customerOffsets = offsets(rowCustomer, ratings, customers);
+			int[] customerMovies = new int[ratings];
+			byte[] customerRatings = new byte[ratings];
+			cursor = Arrays.copyOf(customerOffsets, customers);
+			for (int r = 0; r < ratings; r++) {
+				int position = cursor[rowCustomer[r]]++;
+				customerMovies[position] = rowMovie[r];
+				customerRatings[position] = ratingValue[r];
+			}
+			return new RatingIndex(sortedMovieIds, sortedTitles, sortedYears,
+					movieOffsets, movieCustomers, movieRatings,
+					sortedCustomerIds, customerOffsets, customerMovies, customerRatings);
+		}
+
+		private static int[] offsets(int[] rows, int size, int rowCount) {
+			int[] offsets = new int[rowCount + 1];
+			for (int r = 0; r < size; r++)
+				offsets[rows[r] + 1]++;
+			for (int i = 0; i < rowCount; i++)
+				offsets[i + 1] += offsets[i];
+			return offsets;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.aerospike.recommendation.index;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.aerospike.recommendation.dataimport.model.Movie;
+import com.aerospike.recommendation.dataimport.model.WatchedRated;
+import com.aerospike.recommendation.snapshot.RatingSnapshot;
+
+/**
+ * Loads the movie rating files into a RatingIndex
+ * @author peter
+ *
+ */
+public class RatingIndexLoader {
+	private static Logger log = Logger.getLogger(RatingIndexLoader.class);
+
+	/**
+	 * Loads the movie_*.json files in a directory, or a rating snapshot
+	 * @param ratingDir the movie file directory, or a snapshot file
+	 * @param limit the number of movies to load, 0 means all the movies
+	 * @return the populated index
+	 */
+	public static RatingIndex load(File ratingDir, int limit) throws IOException, ParseException {
+		if (RatingSnapshot.isSnapshot(ratingDir))
+			return load(RatingSnapshot.read(ratingDir), limit);
+		long start = System.currentTimeMillis();
+		File[] ratingFiles = ratingDir.listFiles(new FileFilter() {
+
+			@Override
+			public boolean accept(File file) {
+				return file.getName().startsWith("movie_000") && file.getName().endsWith(".json");
+			}
+		});
+		if (ratingFiles == null)
+			throw new IOException("Not a movie directory: " + ratingDir);
+		Arrays.sort(ratingFiles);
+
+		RatingIndex.Builder builder = new RatingIndex.Builder();
+		JSONParser parser = new JSONParser();
+		int counter = 0;
+		for (File ratingFile : ratingFiles){
+			FileReader reader = new FileReader(ratingFile);
+			try {
+				Movie movie = new Movie((JSONObject) parser.parse(reader));
+				// same order as the uploader writes the Large Lists
+				movie.sortWatched();
+				int handle = builder.addMovie(Integer.parseInt(movie.getMovieId()),
+						movie.getTitle(), (int) movie.getYearOfRelease());
+				for (WatchedRated wr : movie.getWatchedBy()){
+					builder.addRating(handle, Integer.parseInt(wr.getCustomerID()), (int) wr.getRating());
+				}
+			} finally {
+				reader.close();
+			}
+			counter++;
+			if (limit != 0 && counter == limit)
+				break;
+		}
+		RatingIndex index = builder.build();
+		log.info("Loaded " + index + " from " + counter + " files in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return index;
+	}
+
+	/**
+	 * Loads a rating snapshot.
+	 *
+	 * The customer rows of the snapshot are already in the order of the index,
+	 * by movie. The movie rows are sorted by date, the same as the movie files
+	 * are when they are loaded, with ratings of the same day by customer.
+	 * @param snapshot
+	 * @param limit the number of movies to load, 0 means all the movies
+	 * @return the populated index
+	 */
+	public static RatingIndex load(RatingSnapshot snapshot, int limit) {
+		long start = System.currentTimeMillis();
+		int movies = snapshot.movieCount();
+		if (limit != 0 && limit < movies)
+			movies = limit;
+		int[] movieIds = new int[movies];
+		String[] titles = new String[movies];
+		int[] years = new int[movies];
+		for (int m = 0; m < movies; m++) {
+			movieIds[m] = snapshot.movieId(m);
+			titles[m] = snapshot.title(m);
+			years[m] = snapshot.yearOfRelease(m);
+		}
+		/*
+		 * customer rows are sorted by movie, so the ratings of
+		 * the loaded movies are the start of each row. Customers
+		 * with none of them are left out, and the others renumbered.
+		 */
+		RatingSnapshot.Row row = new RatingSnapshot.Row();
+		int[] customerOrdinal = new int[snapshot.customerCount()];
+		int[] customerIds = new int[snapshot.customerCount()];
+		int[] customerOffsets = new int[snapshot.customerCount() + 1];
+		int[] customerMovies = new int[(int) snapshot.ratingCount()];
+		byte[] customerRatings = new byte[customerMovies.length];
+		int customers = 0;
+		int ratings = 0;
+		for (int c = 0; c < snapshot.customerCount(); c++) {
+			snapshot.history(c, row);
+			int from = ratings;
+			for (int i = 0; i < row.size() && row.ordinal(i) < movies; i++) {
+				customerMovies[ratings] = row.ordinal(i);
+				customerRatings[ratings] = (byte) row.rating(i);
+				ratings++;
+			}
+			if (ratings == from) {
+				customerOrdinal[c] = -1;
+			} else {
+				customerOrdinal[c] = customers;
+				customerIds[customers] = snapshot.customerId(c);
+				customerOffsets[++customers] = ratings;
+			}
+		}
+		/*
+		 * movie rows: sort each one by date, then customer, as
+		 * (date, customer, rating) packed into a long
+		 */
+		int[] movieOffsets = new int[movies + 1];
+		int[] movieCustomers = new int[ratings];
+		byte[] movieRatings = new byte[ratings];
+		long[] packed = new long[16];
+		int position = 0;
+		for (int m = 0; m < movies; m++) {
+			snapshot.watchers(m, row);
+			if (row.size() > packed.length)
+				packed = new long[Math.max(row.size(), packed.length * 2)];
+			for (int i = 0; i < row.size(); i++) {
+				packed[i] = ((long) (row.epochDay(i) + 0x8000) << 40)
+						| ((long) customerOrdinal[row.ordinal(i)] << 8)
+						| row.rating(i);
+			}
+			Arrays.sort(packed, 0, row.size());
+			for (int i = 0; i < row.size(); i++) {
+				movieCustomers[position] = (int) ((packed[i] >>> 8) & 0xffffffffL);
+				movieRatings[position] = (byte) (packed[i] & 0xff);
+				position++;
+			}
+			movieOffsets[m + 1] = position;
+		}
+		RatingIndex index = new RatingIndex(movieIds, titles, years,
+				movieOffsets, movieCustomers, movieRatings,
+				Arrays.copyOf(customerIds, customers), Arrays.copyOf(customerOffsets, customers + 1),
+				Arrays.copyOf(customerMovies, ratings), Arrays.copyOf(customerRatings, ratings));
+		log.info("Loaded " + index + " from " + snapshot + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return index;
+	}
+
+}
@@ -0,0 +1,49 @@
+package com.aerospike.recommendation.index;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The compact form of a movie's most similar movies:
+ * (int movie ID, float similarity) pairs, most similar first.
+ *
+ * The bytes are stored in the SIMILAR bin of a MOVIE_TITLES record.
+ * @author peter
+ *
+ */
+public class SimilarMovies {
+	public static final String SIMILAR = "similar";
+	private static final int ENTRY_SIZE = 8;
+
+	/**
+	 * Encodes the first count entries of ids and scores
+	 */
+	public static byte[] encode(int[] ids, float[] scores, int count) {
+		ByteBuffer buffer = ByteBuffer.allocate(count * ENTRY_SIZE);
+		for (int i = 0; i < count; i++) {
+			buffer.putInt(ids[i]);
+			buffer.putFloat(scores[i]);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * @return the number of entries in encoded
+	 */
+	public static int size(byte[] encoded) {
+		return encoded.length / ENTRY_SIZE;
+	}
+	public static int id(byte[] encoded, int i) {
+		return getInt(encoded, i * ENTRY_SIZE);
+	}
+	public static float score(byte[] encoded, int i) {
+		return Float.intBitsToFloat(getInt(encoded, i * ENTRY_SIZE + 4));
+	}
+
+	private static int getInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xff) << 24)
+				| ((bytes[offset + 1] & 0xff) << 16)
+				| ((bytes[offset + 2] & 0xff) << 8)
+				| (bytes[offset + 3] & 0xff);
+	}
+
+}
@@ -0,0 +1,112 @@
+package com.aerospike.recommendation.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timers and counters of the recommendations of one backend.
+ * Recording only adds to striped counters, so it takes no locks
+ * and can stay on at any request rate.
+ * @author peter
+ *
+ */
+public class PipelineMetrics {
+	/**
+	 * the stages of a neighbor recommendation
+	 */
+	public enum Stage {
+		/** reading the customer's ratings */
+		HISTORY,
+		/** reading who else watched the customer's movies */
+		WATCHERS,
+		/** reading the ratings of the candidate customers */
+		CANDIDATES,
+		/** scoring the candidates and ranking their movies */
+		SCORING,
+		/** reading the titles of the recommended movies */
+		METADATA;
+
+		public String label() {
+			return name().toLowerCase();
+		}
+	}
+
+	/*
+	 * stage time bounds, in microseconds, from 100 us to 10 s
+	 */
+	static final long[] TIME_BOUNDS = { 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000,
+			500000, 1000000, 2500000, 5000000, 10000000 };
+	static final long[] SIZE_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+	private final String backend;
+	private final StripedHistogram[] stageTimes = new StripedHistogram[Stage.values().length];
+	private final StripedCounter roundTrips = new StripedCounter();
+	private final StripedCounter candidatesScored = new StripedCounter();
+	private final StripedCounter candidatesDeduplicated = new StripedCounter();
+	private final StripedHistogram historySizes = new StripedHistogram(SIZE_BOUNDS);
+
+	public PipelineMetrics(String backend) {
+		this.backend = backend;
+		for (int i = 0; i < stageTimes.length; i++)
+			stageTimes[i] = new StripedHistogram(TIME_BOUNDS);
+	}
+
+	public String getBackend() {
+		return backend;
+	}
+
+	/**
+	 * Records the time spent in a stage of one recommendation
+	 * @param nanos the time, from System.nanoTime()
+	 */
+	public void time(Stage stage, long nanos) {
+		stageTimes[stage.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * @param count the number of database requests made
+	 */
+	public void roundTrips(int count) {
+		roundTrips.add(count);
+	}
+
+	/**
+	 * @param count the number of candidate customers scored
+	 */
+	public void candidatesScored(int count) {
+		candidatesScored.add(count);
+	}
+
+	/**
+	 * @param count the number of candidates dropped because they were already collected from another movie
+	 */
+	public void candidatesDeduplicated(int count) {
+		candidatesDeduplicated.add(count);
+	}
+
+	/**
+	 * @param size the number of ratings of the customer a recommendation is made for
+	 */
+	public void historySize(int size) {
+		historySizes.record(size);
+	}
+
+	StripedHistogram stageTime(Stage stage) {
+		return stageTimes[stage.ordinal()];
+	}
+
+	StripedCounter roundTrips() {
+		return roundTrips;
+	}
+
+	StripedCounter candidatesScored() {
+		return candidatesScored;
+	}
+
+	StripedCounter candidatesDeduplicated() {
+		return candidatesDeduplicated;
+	}
+
+	StripedHistogram historySizes() {
+		return historySizes;
+	}
+}
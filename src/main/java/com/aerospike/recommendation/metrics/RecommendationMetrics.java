@@ -0,0 +1,103 @@
+package com.aerospike.recommendation.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pipeline metrics of each backend, written in the Prometheus
+ * text exposition format, version 0.0.4.
+ *
+ * Stage times are histograms in seconds, labelled by backend and stage.
+ * The samples of each metric family are written together, as the
+ * format requires, with one series per backend.
+ * @author peter
+ *
+ */
+public class RecommendationMetrics {
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final List<PipelineMetrics> pipelines = new ArrayList<PipelineMetrics>();
+
+	/**
+	 * @param backends the names of the backends, the value of the backend label
+	 */
+	public RecommendationMetrics(String... backends) {
+		for (String backend : backends)
+			pipelines.add(new PipelineMetrics(backend));
+	}
+
+	/**
+	 * @return the metrics of a backend
+	 * @throws IllegalArgumentException if the backend was not given to the constructor
+	 */
+	public PipelineMetrics pipeline(String backend) {
+		for (PipelineMetrics pipeline : pipelines) {
+			if (pipeline.getBackend().equals(backend))
+				return pipeline;
+		}
+		throw new IllegalArgumentException("No metrics for backend: " + backend);
+	}
+
+	public void write(Writer out) throws IOException {
+		header(out, "recommendation_stage_seconds", "histogram", "Time spent in each stage of a recommendation.");
+		for (PipelineMetrics pipeline : pipelines) {
+			for (PipelineMetrics.Stage stage : PipelineMetrics.Stage.values()) {
+				histogram(out, "recommendation_stage_seconds",
+						"backend=\"" + pipeline.getBackend() + "\",stage=\"" + stage.label() + "\"",
+						pipeline.stageTime(stage), 6);
+			}
+		}
+		header(out, "recommendation_round_trips_total", "counter", "Database requests made by recommendations.");
+		for (PipelineMetrics pipeline : pipelines)
+			counter(out, "recommendation_round_trips_total", pipeline, pipeline.roundTrips());
+		header(out, "recommendation_candidates_scored_total", "counter", "Candidate customers scored.");
+		for (PipelineMetrics pipeline : pipelines)
+			counter(out, "recommendation_candidates_scored_total", pipeline, pipeline.candidatesScored());
+		header(out, "recommendation_candidates_deduplicated_total", "counter",
+				"Candidate customers skipped because they were already collected from another movie.");
+		for (PipelineMetrics pipeline : pipelines)
+			counter(out, "recommendation_candidates_deduplicated_total", pipeline, pipeline.candidatesDeduplicated());
+		header(out, "recommendation_history_size", "histogram", "Number of ratings of the customers recommended for.");
+		for (PipelineMetrics pipeline : pipelines) {
+			histogram(out, "recommendation_history_size", "backend=\"" + pipeline.getBackend() + "\"",
+					pipeline.historySizes(), 0);
+		}
+		out.flush();
+	}
+
+	private static void header(Writer out, String name, String type, String help) throws IOException {
+		out.write("# HELP " + name + " " + help + "\n");
+		out.write("# TYPE " + name + " " + type + "\n");
+	}
+
+	private static void counter(Writer out, String name, PipelineMetrics pipeline, StripedCounter counter)
+			throws IOException {
+		out.write(name + "{backend=\"" + pipeline.getBackend() + "\"} " + counter.sum() + "\n");
+	}
+
+	/**
+	 * Writes the cumulative buckets, sum and count of a histogram
+	 * @param scale the number of decimal places to move the recorded values by, 6 for microseconds to seconds
+	 */
+	private static void histogram(Writer out, String name, String labels, StripedHistogram histogram, int scale)
+			throws IOException {
+		long cumulative = 0;
+		for (int bucket = 0; bucket < histogram.bucketCount(); bucket++) {
+			cumulative += histogram.count(bucket);
+			out.write(name + "_bucket{" + labels + ",le=\"" + scaled(histogram.bound(bucket), scale) + "\"} "
+					+ cumulative + "\n");
+		}
+		cumulative += histogram.count(histogram.bucketCount());
+		out.write(name + "_bucket{" + labels + ",le=\"+Inf\"} " + cumulative + "\n");
+		out.write(name + "_sum{" + labels + "} " + scaled(histogram.sum(), scale) + "\n");
+		out.write(name + "_count{" + labels + "} " + cumulative + "\n");
+	}
+
+	private static String scaled(long value, int scale) {
+		BigDecimal decimal = BigDecimal.valueOf(value).movePointLeft(scale);
+		return (value == 0) ? "0" : decimal.stripTrailingZeros().toPlainString();
+	}
+}
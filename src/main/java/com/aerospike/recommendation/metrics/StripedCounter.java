@@ -0,0 +1,28 @@
+package com.aerospike.recommendation.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that threads add to without contending, like LongAdder.
+ * The count is the sum of the rows, so it is exact when no add is in flight.
+ * @author peter
+ *
+ */
+public class StripedCounter {
+	private static final int WIDTH = Stripes.width(1);
+
+	private final AtomicLongArray cells = new AtomicLongArray(Stripes.CELLS * WIDTH);
+
+	public void increment() {
+		Stripes.add(cells, WIDTH, 0, 1);
+	}
+
+	public void add(long x) {
+		if (x != 0)
+			Stripes.add(cells, WIDTH, 0, x);
+	}
+
+	public long sum() {
+		return Stripes.sum(cells, WIDTH, 0);
+	}
+}
@@ -0,0 +1,57 @@
+package com.aerospike.recommendation.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with fixed bucket bounds, that threads record to without
+ * contending. Each row of the stripes holds a count per bucket and the
+ * sum of the values, so recording a value is two adds to the thread's row.
+ * @author peter
+ *
+ */
+public class StripedHistogram {
+	private final long[] bounds;
+	private final int width;
+	private final AtomicLongArray cells;
+
+	/**
+	 * @param bounds the inclusive upper bound of each bucket, ascending.
+	 * Larger values are counted in an overflow bucket
+	 */
+	public StripedHistogram(long... bounds) {
+		this.bounds = bounds.clone();
+		this.width = Stripes.width(bounds.length + 2);
+		this.cells = new AtomicLongArray(Stripes.CELLS * width);
+	}
+
+	public void record(long value) {
+		int bucket = 0;
+		while (bucket < bounds.length && value > bounds[bucket])
+			bucket++;
+		Stripes.add(cells, width, bucket, 1);
+		Stripes.add(cells, width, bounds.length + 1, value);
+	}
+
+	/**
+	 * @return the number of bounds, not counting the overflow bucket
+	 */
+	public int bucketCount() {
+		return bounds.length;
+	}
+
+	public long bound(int bucket) {
+		return bounds[bucket];
+	}
+
+	/**
+	 * @param bucket a bucket, bucketCount() for the overflow bucket
+	 * @return the number of values recorded in the bucket
+	 */
+	public long count(int bucket) {
+		return Stripes.sum(cells, width, bucket);
+	}
+
+	public long sum() {
+		return Stripes.sum(cells, width, bounds.length + 1);
+	}
+}
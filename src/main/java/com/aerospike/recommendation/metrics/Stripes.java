@@ -0,0 +1,84 @@
+package com.aerospike.recommendation.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The cells of the striped counters, in the manner of LongAdder.
+ *
+ * A counter is an AtomicLongArray of CELLS rows, and each thread adds
+ * to the row it is probed to. When a compare and set fails, another
+ * thread is adding to the same row, and the thread moves to another
+ * row, so threads that update the same counters often spread out
+ * over the rows instead of contending on one cache line.
+ * @author peter
+ *
+ */
+final class Stripes {
+	/*
+	 * longs in a cache line
+	 */
+	private static final int LINE = 8;
+	/**
+	 * the number of rows, a power of two of at least twice the processors, at most 64
+	 */
+	static final int CELLS = cells();
+
+	private static final ThreadLocal<int[]> probe = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			// spread consecutive thread IDs over the rows
+			int hash = (int) (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L >>> 32);
+			return new int[] { hash == 0 ? 1 : hash };
+		}
+	};
+
+	private Stripes() {
+	}
+
+	private static int cells() {
+		int cells = 1;
+		while (cells < 2 * Runtime.getRuntime().availableProcessors() && cells < 64)
+			cells <<= 1;
+		return cells;
+	}
+
+	/**
+	 * @param used the number of longs a row holds
+	 * @return the width of a row, with at least a cache line of padding after the used longs,
+	 * so two rows never share a cache line
+	 */
+	static int width(int used) {
+		return (used + 2 * LINE - 1) / LINE * LINE;
+	}
+
+	/**
+	 * Adds to a long in the thread's row
+	 * @param cells the rows
+	 * @param width the width of a row
+	 * @param offset the long in the row
+	 */
+	static void add(AtomicLongArray cells, int width, int offset, long x) {
+		int[] hash = probe.get();
+		int i = (hash[0] & (CELLS - 1)) * width + offset;
+		long value = cells.get(i);
+		if (!cells.compareAndSet(i, value, value + x)) {
+			// contended, move this thread to another row for the next add
+			int h = hash[0];
+			h ^= h << 13;
+			h ^= h >>> 17;
+			h ^= h << 5;
+			hash[0] = h;
+			cells.getAndAdd(i, x);
+		}
+	}
+
+	/**
+	 * @return the sum of a long over the rows
+	 */
+	static long sum(AtomicLongArray cells, int width, int offset) {
+		long sum = 0;
+		for (int cell = 0; cell < CELLS; cell++)
+			sum += cells.get(cell * width + offset);
+		return sum;
+	}
+}
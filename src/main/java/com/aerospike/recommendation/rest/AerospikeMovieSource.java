@@ -0,0 +1,71 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.ScanCallback;
+import com.aerospike.client.policy.ScanPolicy;
+import com.aerospike.recommendation.dataimport.model.Movie;
+
+/**
+ * Reads the title and year of movies from the MOVIE_TITLES set
+ * @author peter
+ *
+ */
+public class AerospikeMovieSource implements MovieMetadataCache.Source<Record> {
+	private final AerospikeClient aerospikeClient;
+	private final String namespace;
+
+	public AerospikeMovieSource(AerospikeClient aerospikeClient, String namespace) {
+		this.aerospikeClient = aerospikeClient;
+		this.namespace = namespace;
+	}
+
+	@Override
+	public Map<Integer, Record> read(int[] movieIDs) {
+		Key[] keys = new Key[movieIDs.length];
+		for (int index = 0; index < movieIDs.length; index++){
+			keys[index] = new Key(namespace, Movie.PRODUCT_SET, String.valueOf(movieIDs[index]));
+		}
+		Record[] records = aerospikeClient.get(null, keys, Movie.TITLE, Movie.YEAR_OF_RELEASE);
+		Map<Integer, Record> movies = new HashMap<Integer, Record>(movieIDs.length * 2);
+		for (int index = 0; index < movieIDs.length; index++){
+			if (records[index] != null)
+				movies.put(movieIDs[index], records[index]);
+		}
+		return movies;
+	}
+
+	@Override
+	public void readAll(final Map<Integer, Record> movies) {
+		/*
+		 * the user key is not stored with the record,
+		 * so the movie ID is read from its bin
+		 */
+		ScanPolicy policy = new ScanPolicy();
+		aerospikeClient.scanAll(policy, namespace, Movie.PRODUCT_SET, new ScanCallback() {
+			@Override
+			public void scanCallback(Key key, Record record) throws AerospikeException {
+				Object movieID = record.getValue(Movie.MOVIE_ID);
+				if (movieID == null)
+					return;
+				Map<String, Object> bins = new HashMap<String, Object>();
+				bins.put(Movie.TITLE, record.getValue(Movie.TITLE));
+				bins.put(Movie.YEAR_OF_RELEASE, record.getValue(Movie.YEAR_OF_RELEASE));
+				movies.put(Integer.parseInt(movieID.toString()), new Record(bins, record.generation, record.expiration));
+			}
+		}, Movie.MOVIE_ID, Movie.TITLE, Movie.YEAR_OF_RELEASE);
+	}
+
+	@Override
+	public Record create(String movieID, String title, long yearOfRelease) {
+		Map<String, Object> bins = new HashMap<String, Object>();
+		bins.put(Movie.TITLE, title);
+		bins.put(Movie.YEAR_OF_RELEASE, yearOfRelease);
+		return new Record(bins, 0, 0);
+	}
+}
@@ -0,0 +1,396 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.async.AsyncClient;
+import com.aerospike.client.listener.RecordArrayListener;
+import com.aerospike.client.listener.RecordListener;
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+import com.aerospike.recommendation.metrics.PipelineMetrics;
+import com.aerospike.recommendation.metrics.PipelineMetrics.Stage;
+
+/**
+ * Reads the candidate customers of a neighbor recommendation from
+ * Aerospike without holding the request thread.
+ *
+ * Record and batch reads go through the async client, and complete on
+ * its selector threads. Large List ranges are UDF calls, which the async
+ * client cannot make, so they are read by a bounded pool of reader threads:
+ * the watcher lists of all the customer's movies at once, and the ratings
+ * of each candidate as soon as the watcher list it is first found in
+ * arrives, rather than after all the lists are read.
+ *
+ * The candidates are handed to the listener in the order the blocking
+ * endpoint collects them, so both make the same recommendation.
+ * @author peter
+ *
+ */
+public class AsyncCandidateReader {
+	private static Logger log = Logger.getLogger(AsyncCandidateReader.class);
+
+	private final AsyncClient aerospikeClient;
+	private final ExecutorService readers;
+	private final RecencyWindow window;
+
+	/**
+	 * Receives the candidates of a recommendation, or the failure, on a reader thread
+	 */
+	public interface CandidateListener {
+		/**
+		 * @param thisCustomerVector the latest ratings of the customer
+		 * @param candidateIds the candidate customers, in the order they were first found
+		 * @param candidateWatchedLists the latest ratings of each candidate, null where a candidate was not found
+		 */
+		void onCandidates(SparseVector thisCustomerVector, String[] candidateIds,
+				List<RatingBatch> candidateWatchedLists);
+
+		void onFailure(Throwable e);
+	}
+
+	/**
+	 * @param aerospikeClient
+	 * @param threads the number of threads reading Large Lists
+	 * @param reviewLimit the number of latest ratings read from each list
+	 */
+	public AsyncCandidateReader(AsyncClient aerospikeClient, int threads, int reviewLimit) {
+		this.aerospikeClient = aerospikeClient;
+		this.window = RecencyWindow.latest(reviewLimit);
+		this.readers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "aerospike-list-reader-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		log.info("Async candidate reader: " + threads + " list reader threads");
+	}
+
+	/**
+	 * Starts reading the candidates of a customer, and returns
+	 * @param customerID
+	 * @param metrics receives the history, watchers and candidates stage times and counters
+	 * @param listener
+	 */
+	public void read(String customerID, PipelineMetrics metrics, CandidateListener listener) {
+		new Request(customerID, metrics, listener).start();
+	}
+
+	public void shutdown() {
+		readers.shutdown();
+	}
+
+	/**
+	 * Reads the last reviewLimit entries of a Large List
+	 * @param record the record holding the list, read with the window's bins, or null
+	 */
+	private RatingBatch latestRatings(Key key, String binName, Record record, int size) {
+		return window.read(aerospikeClient.getLargeList(null, key, binName, null), record, size);
+	}
+
+	/**
+	 * A candidate, and where it was first found: the position of the movie
+	 * in the customer's list in the high 32 bits, and its position in
+	 * the movie's watcher list in the low
+	 */
+	private static class Candidate {
+		final String customerID;
+		final AtomicLong rank;
+		volatile RatingBatch watched;
+
+		Candidate(String customerID, long rank) {
+			this.customerID = customerID;
+			this.rank = new AtomicLong(rank);
+		}
+
+		void found(long at) {
+			long current;
+			while (at < (current = rank.get()) && !rank.compareAndSet(current, at));
+		}
+	}
+
+	private static final Comparator<Candidate> BY_RANK = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			long x = a.rank.get();
+			long y = b.rank.get();
+			return (x < y) ? -1 : ((x == y) ? 0 : 1);
+		}
+	};
+
+	/**
+	 * The state of one recommendation's reads
+	 */
+	private class Request {
+		final String customerID;
+		final PipelineMetrics metrics;
+		final CandidateListener listener;
+		final ConcurrentMap<String, Candidate> candidates = new ConcurrentHashMap<String, Candidate>();
+		/*
+		 * the watcher lists and candidates still being read
+		 */
+		final AtomicInteger pending = new AtomicInteger();
+		final AtomicInteger watchersPending = new AtomicInteger();
+		final AtomicInteger roundTrips = new AtomicInteger();
+		final AtomicInteger deduplicated = new AtomicInteger();
+		final AtomicBoolean done = new AtomicBoolean();
+		volatile SparseVector thisCustomerVector;
+		volatile long stageStart;
+
+		Request(String customerID, PipelineMetrics metrics, CandidateListener listener) {
+			this.customerID = customerID;
+			this.metrics = metrics;
+			this.listener = listener;
+		}
+
+		void start() {
+			stageStart = System.nanoTime();
+			try {
+				aerospikeClient.get(null, new RecordListener() {
+					@Override
+					public void onSuccess(Key key, final Record record) {
+						roundTrips.incrementAndGet();
+						execute(new Step() {
+							@Override
+							void step() {
+								history(record);
+							}
+						});
+					}
+
+					@Override
+					public void onFailure(AerospikeException e) {
+						fail(e);
+					}
+				}, new Key(RESTController.NAME_SPACE, RESTController.USERS_SET, customerID), window.bins());
+			} catch (AerospikeException e) {
+				fail(e);
+			}
+		}
+
+		/**
+		 * Reads the customer's latest ratings, then the sizes of the watcher lists of the movies
+		 */
+		void history(Record thisUser) {
+			if (thisUser == null) {
+				log.debug("Could not find user: " + customerID);
+				throw new CustomerNotFound(customerID);
+			}
+			int size = thisUser.getInt(RESTController.RATINGS_COUNT);
+			metrics.historySize(size);
+			if (size == 0) {
+				log.debug("No movies found for customer: " + customerID);
+				throw new NoMoviesFound(customerID);
+			}
+			Key customerKey = new Key(RESTController.NAME_SPACE, RESTController.USERS_SET, customerID);
+			RatingBatch customerWatchedList = latestRatings(customerKey, RESTController.CUSTOMER_WATCHED, thisUser, size);
+			roundTrips.incrementAndGet();
+			thisCustomerVector = SparseVector.fromRatings(customerWatchedList);
+			stageStart = endStage(Stage.HISTORY, stageStart);
+
+			Key[] movieKeys = new Key[customerWatchedList.size()];
+			for (int index = 0; index < movieKeys.length; index++) {
+				movieKeys[index] = new Key(RESTController.NAME_SPACE, RESTController.PRODUCT_SET,
+						String.valueOf(customerWatchedList.movieId(index)));
+			}
+			aerospikeClient.get(null, new RecordArrayListener() {
+				@Override
+				public void onSuccess(Key[] keys, Record[] records) {
+					roundTrips.incrementAndGet();
+					watchers(keys, records);
+				}
+
+				@Override
+				public void onFailure(AerospikeException e) {
+					fail(e);
+				}
+			}, movieKeys, window.bins());
+		}
+
+		/**
+		 * Reads the watcher lists of all the movies at once
+		 */
+		void watchers(Key[] movieKeys, Record[] movieRecords) {
+			pending.set(movieKeys.length);
+			watchersPending.set(movieKeys.length);
+			if (movieKeys.length == 0) {
+				pending.set(1);
+				complete();
+				return;
+			}
+			for (int index = 0; index < movieKeys.length; index++) {
+				final int movie = index;
+				final Key movieKey = movieKeys[index];
+				final Record movieRecord = movieRecords[index];
+				execute(new Step() {
+					@Override
+					void step() {
+						watchedBy(movie, movieKey, movieRecord);
+					}
+				});
+			}
+		}
+
+		/**
+		 * Reads the latest watchers of a movie, and starts reading each candidate not already found
+		 */
+		void watchedBy(int movie, Key movieKey, Record movieRecord) {
+			int watchedSize;
+			if (movieRecord != null && movieRecord.getValue(RESTController.RATINGS_COUNT) != null) {
+				watchedSize = movieRecord.getInt(RESTController.RATINGS_COUNT);
+			} else {
+				watchedSize = aerospikeClient.getLargeList(null, movieKey, RESTController.WATCHED_BY + "List", null).size();
+				roundTrips.incrementAndGet();
+			}
+			RatingBatch whoWatchedList = latestRatings(movieKey, RESTController.WATCHED_BY + "List", movieRecord, watchedSize);
+			roundTrips.incrementAndGet();
+			if (whoWatchedList != null) {
+				for (int index = 0; index < whoWatchedList.size(); index++) {
+					String similarCustomerId = String.valueOf(whoWatchedList.customerId(index));
+					if (similarCustomerId.equals(customerID))
+						continue;
+					long rank = ((long) movie << 32) | index;
+					Candidate candidate = new Candidate(similarCustomerId, rank);
+					Candidate found = candidates.putIfAbsent(similarCustomerId, candidate);
+					if (found == null) {
+						pending.incrementAndGet();
+						candidate(candidate);
+					} else {
+						found.found(rank);
+						deduplicated.incrementAndGet();
+					}
+				}
+			}
+			if (watchersPending.decrementAndGet() == 0)
+				stageStart = endStage(Stage.WATCHERS, stageStart);
+			complete();
+		}
+
+		/**
+		 * Reads the size of a candidate's list, then its latest ratings
+		 */
+		void candidate(final Candidate candidate) {
+			aerospikeClient.get(null, new RecordListener() {
+				@Override
+				public void onSuccess(final Key key, final Record record) {
+					roundTrips.incrementAndGet();
+					if (record == null) {
+						complete();
+						return;
+					}
+					execute(new Step() {
+						@Override
+						void step() {
+							candidate.watched = latestRatings(key, RESTController.CUSTOMER_WATCHED, record,
+									record.getInt(RESTController.RATINGS_COUNT));
+							roundTrips.incrementAndGet();
+							complete();
+						}
+					});
+				}
+
+				@Override
+				public void onFailure(AerospikeException e) {
+					fail(e);
+				}
+			}, new Key(RESTController.NAME_SPACE, RESTController.USERS_SET, candidate.customerID), window.bins());
+		}
+
+		/**
+		 * Counts down a read, and hands over the candidates when it was the last one
+		 */
+		void complete() {
+			if (pending.decrementAndGet() == 0) {
+				// leave the selector thread, the listener may block
+				execute(new Step() {
+					@Override
+					void step() {
+						finish();
+					}
+				});
+			}
+		}
+
+		void finish() {
+			if (!done.compareAndSet(false, true))
+				return;
+			endStage(Stage.CANDIDATES, stageStart);
+			List<Candidate> found = new ArrayList<Candidate>(candidates.values());
+			Collections.sort(found, BY_RANK);
+			String[] candidateIds = new String[found.size()];
+			List<RatingBatch> candidateWatchedLists = new ArrayList<RatingBatch>(found.size());
+			int scored = 0;
+			for (int index = 0; index < candidateIds.length; index++) {
+				Candidate candidate = found.get(index);
+				candidateIds[index] = candidate.customerID;
+				candidateWatchedLists.add(candidate.watched);
+				if (candidate.watched != null)
+					scored++;
+			}
+			metrics.candidatesDeduplicated(deduplicated.get());
+			metrics.candidatesScored(scored);
+			metrics.roundTrips(roundTrips.get());
+			log.debug("Candidates: " + candidateIds.length + " unique, round trips: " + roundTrips.get());
+			try {
+				listener.onCandidates(thisCustomerVector, candidateIds, candidateWatchedLists);
+			} catch (RuntimeException e) {
+				listener.onFailure(e);
+			}
+		}
+
+		void fail(Throwable e) {
+			if (!done.compareAndSet(false, true))
+				return;
+			metrics.roundTrips(roundTrips.get());
+			listener.onFailure(e);
+		}
+
+		long endStage(Stage stage, long stageStart) {
+			long now = System.nanoTime();
+			metrics.time(stage, now - stageStart);
+			return now;
+		}
+
+		void execute(Step step) {
+			try {
+				readers.execute(step);
+			} catch (RuntimeException e) {
+				fail(e);
+			}
+		}
+
+		/**
+		 * A read on a reader thread, that fails the request if it throws
+		 */
+		abstract class Step implements Runnable {
+			@Override
+			public final void run() {
+				try {
+					step();
+				} catch (Throwable e) {
+					fail(e);
+				}
+			}
+
+			abstract void step();
+		}
+	}
+}
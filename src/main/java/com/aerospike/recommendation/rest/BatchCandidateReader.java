@@ -0,0 +1,272 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+import com.aerospike.recommendation.metrics.PipelineMetrics;
+import com.aerospike.recommendation.metrics.PipelineMetrics.Stage;
+
+/**
+ * Reads the candidate customers of the neighbor recommendations
+ * of many customers from Aerospike at once.
+ *
+ * Each phase of a single customer recommendation is done for all the
+ * customers together: the customers in one batch, the watchers of each
+ * distinct movie they watched, then each distinct candidate in one batch.
+ * A movie or a candidate needed by several customers is read once, and
+ * a candidate that is one of the customers is not read again.
+ *
+ * The candidates of each customer are in the order the single
+ * customer endpoint collects them, so both make the same recommendation.
+ * @author peter
+ *
+ */
+public class BatchCandidateReader {
+	private static Logger log = Logger.getLogger(BatchCandidateReader.class);
+
+	private final AerospikeClient aerospikeClient;
+	private final String namespace;
+	private final RecencyWindow latest;
+
+	/**
+	 * The customers read, and the candidates of each customer found
+	 */
+	public static class Candidates {
+		private final Map<String, RatingBatch> latest = new HashMap<String, RatingBatch>();
+		private final Map<String, Integer> ratingsCounts = new HashMap<String, Integer>();
+		private final Map<String, String[]> candidatesOf = new HashMap<String, String[]>();
+		private final List<String> found = new ArrayList<String>();
+		private final Map<String, String> errors = new LinkedHashMap<String, String>();
+		private int roundTrips;
+
+		/**
+		 * @return the customers found with movies, in the order given
+		 */
+		public List<String> found() {
+			return found;
+		}
+		/**
+		 * @return the error of each customer not found, or without movies
+		 */
+		public Map<String, String> errors() {
+			return errors;
+		}
+		/**
+		 * @return the latest ratings of a customer found
+		 */
+		public SparseVector vector(String customerID) {
+			return SparseVector.fromRatings(latest.get(customerID));
+		}
+		/**
+		 * @return the size of a customer's watched list when it was read
+		 */
+		public int ratingsCount(String customerID) {
+			return ratingsCounts.get(customerID);
+		}
+		/**
+		 * @return the candidates of a customer found, in the order they were first found
+		 */
+		public String[] candidateIds(String customerID) {
+			return candidatesOf.get(customerID);
+		}
+		/**
+		 * @return the latest ratings of each candidate of a customer, null where a candidate was not found
+		 */
+		public List<RatingBatch> candidateWatchedLists(String customerID) {
+			String[] candidateIds = candidatesOf.get(customerID);
+			List<RatingBatch> candidateWatchedLists = new ArrayList<RatingBatch>(candidateIds.length);
+			for (String candidateId : candidateIds)
+				candidateWatchedLists.add(latest.get(candidateId));
+			return candidateWatchedLists;
+		}
+		/**
+		 * @return the number of database round trips
+		 */
+		public int roundTrips() {
+			return roundTrips;
+		}
+	}
+
+	/**
+	 * @param reviewLimit the number of latest ratings read from a list
+	 */
+	public BatchCandidateReader(AerospikeClient aerospikeClient, String namespace, int reviewLimit) {
+		this.aerospikeClient = aerospikeClient;
+		this.namespace = namespace;
+		this.latest = RecencyWindow.latest(reviewLimit);
+	}
+
+	/**
+	 * Reads the candidates of customers from the last reviewLimit entries of each list
+	 * @param customerIDs distinct customers
+	 * @param metrics records the time of each stage, or null
+	 * @return the candidates of each customer found
+	 */
+	public Candidates read(List<String> customerIDs, PipelineMetrics metrics) throws AerospikeException {
+		return read(customerIDs, latest, metrics);
+	}
+
+	/**
+	 * Reads the candidates of customers
+	 * @param customerIDs distinct customers
+	 * @param window the ratings read from each list
+	 * @param metrics records the time of each stage, or null
+	 * @return the candidates of each customer found
+	 */
+	public Candidates read(List<String> customerIDs, RecencyWindow window, PipelineMetrics metrics) throws AerospikeException {
+		Candidates batch = new Candidates();
+		long stageStart = System.nanoTime();
+
+		/*
+		 * get the latest movies watched and rated by each customer.
+		 * The lists read are kept for Phase 2, where a customer
+		 * may be another customer's candidate
+		 */
+		readLatestRatings(customerIDs, window, batch);
+		for (String customerID : customerIDs){
+			RatingBatch customerWatchedList = batch.latest.get(customerID);
+			if (customerWatchedList == null){
+				batch.errors.put(customerID, new CustomerNotFound(customerID).getMessage());
+			} else if (customerWatchedList.isEmpty()){
+				batch.errors.put(customerID, new NoMoviesFound(customerID).getMessage());
+			} else {
+				if (metrics != null)
+					metrics.historySize(customerWatchedList.size());
+				batch.found.add(customerID);
+			}
+		}
+		stageStart = endStage(metrics, Stage.HISTORY, stageStart);
+
+		/*
+		 * Phase 1: read the latest watchers of each distinct movie the
+		 * customers watched, then collect each customer's candidates
+		 */
+		Set<Integer> movieIDs = new LinkedHashSet<Integer>();
+		for (String customerID : batch.found){
+			RatingBatch watched = batch.latest.get(customerID);
+			for (int index = 0; index < watched.size(); index++)
+				movieIDs.add(watched.movieId(index));
+		}
+		Integer[] movieIdArray = movieIDs.toArray(new Integer[movieIDs.size()]);
+		Key[] movieKeys = new Key[movieIdArray.length];
+		for (int index = 0; index < movieKeys.length; index++){
+			movieKeys[index] = new Key(namespace, RESTController.PRODUCT_SET, String.valueOf(movieIdArray[index]));
+		}
+		Map<Integer, RatingBatch> watchers = new HashMap<Integer, RatingBatch>();
+		if (movieKeys.length > 0){
+			Record[] movieRecords = aerospikeClient.get(null, movieKeys, window.bins());
+			batch.roundTrips++;
+			for (int index = 0; index < movieKeys.length; index++){
+				Key movieKey = movieKeys[index];
+				Record movieRecord = movieRecords[index];
+				int watchedSize;
+				if (movieRecord != null && movieRecord.getValue(RESTController.RATINGS_COUNT) != null){
+					watchedSize = movieRecord.getInt(RESTController.RATINGS_COUNT);
+				} else {
+					watchedSize = aerospikeClient.getLargeList(null, movieKey, RESTController.WATCHED_BY+"List", null).size();
+					batch.roundTrips++;
+				}
+				watchers.put(movieIdArray[index], latestRatings(movieKey, RESTController.WATCHED_BY+"List", movieRecord, watchedSize, window));
+				batch.roundTrips++;
+			}
+		}
+		Set<String> allCandidateIds = new LinkedHashSet<String>();
+		int deduplicated = 0;
+		for (String customerID : batch.found){
+			Set<String> candidateIds = new LinkedHashSet<String>();
+			RatingBatch watched = batch.latest.get(customerID);
+			for (int movie = 0; movie < watched.size(); movie++){
+				RatingBatch whoWatchedList = watchers.get(watched.movieId(movie));
+				if (whoWatchedList == null)
+					continue;
+				for (int index = 0; index < whoWatchedList.size(); index++){
+					String similarCustomerId = String.valueOf(whoWatchedList.customerId(index));
+					if (!similarCustomerId.equals(customerID) && !candidateIds.add(similarCustomerId)) {
+						deduplicated++;
+					}
+				}
+			}
+			batch.candidatesOf.put(customerID, candidateIds.toArray(new String[candidateIds.size()]));
+			allCandidateIds.addAll(candidateIds);
+		}
+		if (metrics != null)
+			metrics.candidatesDeduplicated(deduplicated);
+		stageStart = endStage(metrics, Stage.WATCHERS, stageStart);
+
+		/*
+		 * Phase 2: read the latest movies of each distinct candidate
+		 * that is not one of the customers, whose are already read
+		 */
+		List<String> unread = new ArrayList<String>();
+		for (String candidateId : allCandidateIds){
+			if (!batch.latest.containsKey(candidateId))
+				unread.add(candidateId);
+		}
+		readLatestRatings(unread, window, batch);
+		if (metrics != null)
+			metrics.roundTrips(batch.roundTrips);
+		endStage(metrics, Stage.CANDIDATES, stageStart);
+		log.debug("Candidates: " + allCandidateIds.size() + " unique, " + unread.size() + " read");
+		return batch;
+	}
+
+	/**
+	 * Reads customers in one batch, then the latest movies each of them watched
+	 * @param customerIDs the customers to read
+	 * @param window the ratings read from each list
+	 * @param batch receives the latest ratings of each customer found, empty if they have none
+	 */
+	private void readLatestRatings(List<String> customerIDs, RecencyWindow window, Candidates batch) throws AerospikeException {
+		if (customerIDs.isEmpty())
+			return;
+		Key[] customerKeys = new Key[customerIDs.size()];
+		for (int index = 0; index < customerKeys.length; index++){
+			customerKeys[index] = new Key(namespace, RESTController.USERS_SET, customerIDs.get(index));
+		}
+		Record[] customers = aerospikeClient.get(null, customerKeys, window.bins());
+		batch.roundTrips++;
+		for (int index = 0; index < customerKeys.length; index++){
+			if (customers[index] == null)
+				continue;
+			int size = customers[index].getInt(RESTController.RATINGS_COUNT);
+			RatingBatch watchedList = null;
+			if (size > 0){
+				watchedList = latestRatings(customerKeys[index], RESTController.CUSTOMER_WATCHED, customers[index], size, window);
+				batch.roundTrips++;
+			}
+			if (watchedList == null)
+				watchedList = new RatingBatch(0);
+			batch.latest.put(customerIDs.get(index), watchedList);
+			batch.ratingsCounts.put(customerIDs.get(index), size);
+		}
+	}
+
+	/**
+	 * Reads the latest entries of a Large List in a window
+	 * @param record the record holding the list, read with the window's bins, or null
+	 * @param size the number of entries in the list
+	 * @return the ratings, or null if the list could not be read
+	 */
+	private RatingBatch latestRatings(Key key, String binName, Record record, int size, RecencyWindow window){
+		return window.read(aerospikeClient.getLargeList(null, key, binName, null), record, size);
+	}
+
+	private static long endStage(PipelineMetrics metrics, Stage stage, long stageStart){
+		long now = System.nanoTime();
+		if (metrics != null)
+			metrics.time(stage, now - stageStart);
+		return now;
+	}
+}
@@ -5,51 +5,74 @@ import java.util.List;
 public class CosineSimilarity {
 
 	/**
-	 * Cosing similarity
+	 * Cosine similarity of two sparse vectors.
+	 * Does not allocate.
+	 * @param vec1
+	 * @param vec2
+	 * @return 0 if either vector is empty
+	 */
+	public static double cosineSimilarity(SparseVector vec1, SparseVector vec2) {
+		if (vec1.norm == 0 || vec2.norm == 0)
+			return 0;
+		return dotProduct(vec1, vec2) / (vec1.norm * vec2.norm);
+	}
+	/**
+	 * Dot product of two sparse vectors, a merge join
+	 * over the sorted IDs
+	 * @param vec1
+	 * @param vec2
+	 * @return
+	 */
+	public static double dotProduct(SparseVector vec1, SparseVector vec2) {
+		int[] ids1 = vec1.ids;
+		int[] ids2 = vec2.ids;
+		float[] values1 = vec1.values;
+		float[] values2 = vec2.values;
+		int size1 = vec1.size;
+		int size2 = vec2.size;
+		double sum = 0;
+		int i = 0, j = 0;
+		while (i < size1 && j < size2) {
+			int id1 = ids1[i];
+			int id2 = ids2[j];
+			if (id1 == id2) {
+				sum += values1[i++] * values2[j++];
+			} else if (id1 < id2) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Cosine similarity of two vectors of movie ID and rating pairs.
+	 * Adapter for the sparse vector kernel.
 	 * @param vec1
 	 * @param vec2
 	 * @return
 	 */
-	public static double cosineSimilarity(List<Long> vec1, List<Long> vec2) { 
-		double dp = dotProduct(vec1, vec2); 
-		double magnitudeA = magnitude(vec1); 
-		double magnitudeB = magnitude(vec2); 
-		return dp / magnitudeA * magnitudeB; 
-	} 
+	public static double cosineSimilarity(List<Long> vec1, List<Long> vec2) {
+		return cosineSimilarity(SparseVector.fromInterleaved(vec1), SparseVector.fromInterleaved(vec2));
+	}
 	/**
-	 * Magnitude
+	 * Magnitude of the ratings in a vector of movie ID and rating pairs
 	 * @param vec
 	 * @return
 	 */
-	public static double magnitude(List<Long> vec) { 
-		double sum_mag = 0; 
-		for(Long value : vec) { 
-			sum_mag += value * value; 
-		} 
-		return Math.sqrt(sum_mag); 
-	} 
+	public static double magnitude(List<Long> vec) {
+		return SparseVector.fromInterleaved(vec).norm();
+	}
 	/**
-	 * Dot product
+	 * Dot product of the ratings of the movies two vectors of
+	 * movie ID and rating pairs have in common. The vectors are not modified.
 	 * @param vec1
 	 * @param vec2
 	 * @return
 	 */
-	public static double dotProduct(List<Long> vec1, List<Long> vec2) { 
-		double sum = 0; 
-		if (vec1.size() > vec2.size()) {
-			int diff = vec1.size() - vec2.size();
-			for (int i = 0; i < diff; i++)
-					vec2.add(0L);
-			
-		} else if (vec1.size() < vec2.size()) {
-			int diff = vec2.size() - vec1.size();
-			for (int i = 0; i < diff; i++)
-					vec1.add(0L);
-		}
-		for(int i = 0; i<vec1.size(); i++) { 
-			sum += vec1.get(i) * vec2.get(i); 
-		} 
-		return sum; 
-	} 
+	public static double dotProduct(List<Long> vec1, List<Long> vec2) {
+		return dotProduct(SparseVector.fromInterleaved(vec1), SparseVector.fromInterleaved(vec2));
+	}
 
 }
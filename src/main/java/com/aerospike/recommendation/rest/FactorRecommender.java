@@ -0,0 +1,87 @@
+package com.aerospike.recommendation.rest;
+
+import java.io.File;
+
+import com.aerospike.recommendation.index.LatentFactors;
+
+/**
+ * FactorRecommender ranks movies by their predicted rating, the dot
+ * product of the customer's latent factors with each movie's.
+ *
+ * The customer's factors are folded in from the ratings they are given,
+ * with the movie factors held fixed, so a customer's latest ratings count
+ * without retraining, and customers added since training are served too.
+ * Only the movie factors are read, all of them held on the heap,
+ * so a request needs the customer's ratings and nothing else.
+ * @author peter
+ *
+ */
+public class FactorRecommender {
+	private final File file;
+	private final LatentFactors factors;
+
+	/**
+	 * @param file the factors file, null if there is none
+	 * @param factors the factors read from the file, null if there are none
+	 */
+	public FactorRecommender(File file, LatentFactors factors) {
+		this.file = file;
+		this.factors = factors;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public LatentFactors getFactors() {
+		return factors;
+	}
+
+	public boolean isReady() {
+		return factors != null;
+	}
+
+	/**
+	 * Ranks the movies a customer has not rated
+	 * @param movieIds the movies the customer rated
+	 * @param ratings the customer's ratings of them
+	 * @param count the number of ratings
+	 * @param maxMovies n, the number of movies to return
+	 * @param toMovieIds receives the IDs of the top movies, highest predicted rating first
+	 * @param toScores receives the predicted ratings
+	 * @return the number of movies returned
+	 */
+	public int recommend(int[] movieIds, float[] ratings, int count, int maxMovies, int[] toMovieIds, double[] toScores) {
+		/*
+		 * map the rated movies to ordinals, dropping
+		 * movies that were not trained
+		 */
+		boolean[] rated = new boolean[factors.movieCount()];
+		int[] movies = new int[count];
+		float[] known = new float[count];
+		int knownCount = 0;
+		for (int i = 0; i < count; i++) {
+			int movie = factors.movieIndex(movieIds[i]);
+			if (movie < 0)
+				continue;
+			rated[movie] = true;
+			movies[knownCount] = movie;
+			known[knownCount++] = ratings[i];
+		}
+		if (knownCount == 0)
+			return 0;
+		float[] customer = factors.foldIn(movies, known, knownCount);
+		/*
+		 * score every unseen movie, keeping only the top n
+		 */
+		TopK top = new TopK(maxMovies);
+		for (int movie = 0; movie < rated.length; movie++) {
+			if (!rated[movie])
+				top.offer(movie, factors.score(customer, 0, movie));
+		}
+		int found = top.drainDescending(toMovieIds, toScores);
+		for (int i = 0; i < found; i++)
+			toMovieIds[i] = factors.movieId(toMovieIds[i]);
+		return found;
+	}
+}
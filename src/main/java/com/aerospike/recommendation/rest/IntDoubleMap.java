@@ -0,0 +1,102 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map from int to double
+ * used to accumulate scores without boxing.
+ * Iterate over the slots 0 to capacity() - 1 with
+ * isUsed(), key() and value().
+ * @author peter
+ *
+ */
+public class IntDoubleMap {
+	private static final int EMPTY = Integer.MIN_VALUE;
+	private int[] keys;
+	private double[] values;
+	private int size;
+	private int mask;
+
+	public IntDoubleMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * Adds delta to the value of key, starting from 0
+	 * @param key any int except Integer.MIN_VALUE
+	 */
+	public void add(int key, double delta) {
+		int slot = slot(key);
+		if (keys[slot] == EMPTY) {
+			keys[slot] = key;
+			values[slot] = delta;
+			if (++size * 2 > keys.length)
+				grow();
+		} else {
+			values[slot] += delta;
+		}
+	}
+
+	/**
+	 * @return the value of key, or 0 if it is not in the map
+	 */
+	public double get(int key) {
+		int slot = slot(key);
+		return keys[slot] == EMPTY ? 0 : values[slot];
+	}
+	public boolean containsKey(int key) {
+		return keys[slot(key)] != EMPTY;
+	}
+	public int size() {
+		return size;
+	}
+	public int capacity() {
+		return keys.length;
+	}
+	public boolean isUsed(int slot) {
+		return keys[slot] != EMPTY;
+	}
+	public int key(int slot) {
+		return keys[slot];
+	}
+	public double value(int slot) {
+		return values[slot];
+	}
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	private int slot(int key) {
+		int slot = mix(key) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new double[capacity];
+		mask = capacity - 1;
+		Arrays.fill(keys, EMPTY);
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		double[] oldValues = values;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
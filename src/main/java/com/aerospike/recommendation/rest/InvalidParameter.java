@@ -0,0 +1,20 @@
+package com.aerospike.recommendation.rest;
+
+/**
+ * A request parameter out of range, answered with status 400
+ */
+public class InvalidParameter extends IllegalArgumentException {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 4119734658238571237L;
+
+	public InvalidParameter(String message) {
+		super(message);
+	}
+
+	public InvalidParameter(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
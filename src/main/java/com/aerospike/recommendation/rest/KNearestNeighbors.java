@@ -0,0 +1,72 @@
+package com.aerospike.recommendation.rest;
+
+/**
+ * Collects the k most similar customers, then ranks the movies
+ * they watched by the similarity weighted average of their ratings.
+ *
+ * Usage: offer() each scored candidate, then for each neighbor(i)
+ * accumulate() the movies it watched that the customer has not seen,
+ * then recommend() the top n.
+ * @author peter
+ *
+ */
+public class KNearestNeighbors {
+	private final TopK neighbors;
+	private final IntDoubleMap movieScores;
+
+	public KNearestNeighbors(int k) {
+		this.neighbors = new TopK(k);
+		this.movieScores = new IntDoubleMap(k * RESTController.MOVIE_REVIEW_LIMIT);
+	}
+
+	/**
+	 * Offers a scored candidate customer
+	 * @param candidate the caller's handle for the candidate
+	 * @param similarity
+	 */
+	public void offer(int candidate, double similarity) {
+		if (similarity > 0)
+			neighbors.offer(candidate, similarity);
+	}
+	public int size() {
+		return neighbors.size();
+	}
+	/**
+	 * @param i 0 to size() - 1
+	 * @return the handle of a nearest neighbor
+	 */
+	public int neighbor(int i) {
+		return neighbors.item(i);
+	}
+	public double similarity(int i) {
+		return neighbors.score(i);
+	}
+
+	/**
+	 * Adds a neighbor's rating of a movie
+	 */
+	public void accumulate(int movieID, double similarity, float rating) {
+		movieScores.add(movieID, similarity * rating);
+	}
+
+	/**
+	 * Writes the top movies, highest score first
+	 * @param movies receives the movie IDs
+	 * @param scores receives the movie scores
+	 * @return the number of movies written, at most movies.length
+	 */
+	public int recommend(int[] movies, double[] scores) {
+		double similaritySum = 0;
+		for (int i = 0; i < neighbors.size(); i++)
+			similaritySum += neighbors.score(i);
+		TopK top = new TopK(movies.length);
+		for (int slot = 0; slot < movieScores.capacity(); slot++) {
+			if (movieScores.isUsed(slot))
+				top.offer(movieScores.key(slot), movieScores.value(slot));
+		}
+		int count = top.drainDescending(movies, scores);
+		for (int i = 0; i < count; i++)
+			scores[i] /= similaritySum;
+		return count;
+	}
+}
@@ -0,0 +1,303 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.recommendation.dataimport.RatingListener;
+import com.aerospike.recommendation.dataimport.model.WatchedRated;
+import com.aerospike.recommendation.index.RatingDelta;
+import com.aerospike.recommendation.index.RatingIndex;
+
+/**
+ * LocalRecommender runs the same cosine similarity neighbor
+ * search as the Aerospike and MongoDB endpoints, but against
+ * an in-process RatingIndex, so no network calls are made.
+ *
+ * Ratings added while the service runs are queued, and a background
+ * thread adds them to a RatingDelta held beside the index, in time
+ * linear in the size of the delta rather than of the index. A customer's
+ * latest ratings, and a movie's latest watchers, are the end of their row
+ * in the index followed by their row in the delta. Once the delta holds
+ * MERGE_RATINGS ratings, it is merged into a new index, which replaces
+ * the current one. Recommendations in progress keep reading the index
+ * and delta they started with.
+ * @author peter
+ *
+ */
+public class LocalRecommender implements RatingListener {
+	private static Logger log = Logger.getLogger(LocalRecommender.class);
+	/**
+	 * The ratings the delta holds before it is merged into the index
+	 */
+	public static final int MERGE_RATINGS = 100000;
+
+	private volatile Ratings ratings;
+	private final int reviewLimit;
+	private final Queue<WatchedRated> pending = new ConcurrentLinkedQueue<WatchedRated>();
+	private final AtomicBoolean merging = new AtomicBoolean();
+	private final ExecutorService merger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "local-index-merger");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private final Runnable merge = new Runnable() {
+		@Override
+		public void run() {
+			mergePending();
+		}
+	};
+
+	public LocalRecommender(RatingIndex index, int reviewLimit) {
+		this.ratings = new Ratings(index, new RatingDelta(index.movieCount()));
+		this.reviewLimit = reviewLimit;
+	}
+
+	/**
+	 * Queues a rating to be merged into the index. Ratings of movies
+	 * not in the index are dropped, as are ratings with IDs that are not numbers.
+	 */
+	@Override
+	public void ratingAdded(WatchedRated rating) {
+		if (ratings.index.movieCount() == 0)
+			return;
+		pending.add(rating);
+		if (merging.compareAndSet(false, true))
+			merger.execute(merge);
+	}
+
+	/**
+	 * Merges the queued ratings until none are left
+	 */
+	private void mergePending() {
+		do {
+			try {
+				merge();
+			} catch (RuntimeException e) {
+				log.error("Could not merge ratings into the local index", e);
+			} finally {
+				merging.set(false);
+			}
+		} while (!pending.isEmpty() && merging.compareAndSet(false, true));
+	}
+
+	private void merge() {
+		int size = pending.size();
+		int[] movieIds = new int[size];
+		int[] customerIds = new int[size];
+		byte[] values = new byte[size];
+		int count = 0;
+		WatchedRated rating;
+		while (count < size && (rating = pending.poll()) != null) {
+			try {
+				movieIds[count] = Integer.parseInt(rating.getMovie());
+				customerIds[count] = Integer.parseInt(rating.getCustomerID());
+				values[count] = (byte) rating.getRating();
+				count++;
+			} catch (NumberFormatException e) {
+				log.debug("Not merged into the local index: " + rating);
+			}
+		}
+		if (count == 0)
+			return;
+		long start = System.currentTimeMillis();
+		Ratings current = ratings;
+		RatingDelta delta = current.delta.withRatings(current.index, movieIds, customerIds, values, count);
+		log.debug("Added " + (delta.size() - current.delta.size()) + " of " + count 
+				+ " ratings to the local index delta in " + (System.currentTimeMillis() - start) + " ms");
+		if (delta.size() < MERGE_RATINGS){
+			ratings = new Ratings(current.index, delta);
+			return;
+		}
+		start = System.currentTimeMillis();
+		RatingIndex index = delta.mergeInto(current.index);
+		ratings = new Ratings(index, new RatingDelta(index.movieCount()));
+		log.debug("Merged " + delta.size() + " ratings into the local index in " 
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	public void shutdown() {
+		merger.shutdown();
+	}
+
+	/**
+	 * @return the current index, without the ratings of its delta,
+	 * movie ordinals are the same in every index a merge makes
+	 */
+	public RatingIndex getIndex() {
+		return ratings.index;
+	}
+
+	/**
+	 * get a recommendation for a specific customer
+	 * @param customerID a unique ID for a customer
+	 * @return the ordinals of the recommended movies in the index
+	 */
+	public int[] recommend(int customerID) {
+		// merges replace the index and delta, so read the same ones throughout
+		Ratings ratings = this.ratings;
+		RatingIndex index = ratings.index;
+		RatingDelta delta = ratings.delta;
+		int customer = index.customerIndex(customerID);
+		int added = delta.customerIndex(customerID);
+		if (customer < 0 && added < 0){
+			log.debug("Could not find user: " + customerID );
+			throw new CustomerNotFound(String.valueOf(customerID));
+		}
+		/*
+		 * get the latest movies watched and rated by the customer
+		 */
+		int[] history = new int[reviewLimit];
+		byte[] historyRatings = new byte[reviewLimit];
+		int historySize = latest(index, delta, customer, added, history, historyRatings);
+		if (historySize == 0){
+			// customer Hasen't Watched anything
+			log.debug("No movies found for customer: " + customerID );
+			throw new NoMoviesFound(String.valueOf(customerID));
+		}
+
+		/*
+		 * build a vector of the movies watched, by movie ordinal
+		 */
+		SparseVector thisCustomerVector = vector(history, historyRatings, historySize, new SparseVector(reviewLimit));
+		SparseVector similarCustomerVector = new SparseVector(reviewLimit);
+		int[] movies = new int[reviewLimit];
+		byte[] movieRatings = new byte[reviewLimit];
+		int[] watchers = new int[reviewLimit];
+		int[] watcherIds = new int[reviewLimit];
+
+		int bestMatchedCustomer = 0;
+		double bestScore = 0;
+		/*
+		 * for each movie this customer watched, iterate
+		 * through the other customers that also watched
+		 * the movie
+		 */
+		for (int h = 0; h < historySize; h++){
+			int movie = history[h];
+			/*
+			 * Some movies are watched by >100k customers, only look at the last n customers, or the
+			 * number of customers, whichever is smaller: the end of the movie's row in the index,
+			 * then its row in the delta
+			 */
+			int addedTo = delta.watchersTo(movie);
+			int addedFrom = Math.max(delta.watchersFrom(movie), addedTo - reviewLimit);
+			int watchersTo = index.watchersTo(movie);
+			int watchersFrom = Math.max(index.watchersFrom(movie), watchersTo - (reviewLimit - (addedTo - addedFrom)));
+			int watcherCount = 0;
+			for (int w = watchersFrom; w < watchersTo; w++){
+				watchers[watcherCount] = index.watcher(w);
+				watcherIds[watcherCount++] = index.customerId(index.watcher(w));
+			}
+			for (int w = addedFrom; w < addedTo; w++){
+				watchers[watcherCount] = index.customerIndex(delta.watcherId(w));
+				watcherIds[watcherCount++] = delta.watcherId(w);
+			}
+			for (int w = 0; w < watcherCount; w++){
+				if (watcherIds[w] != customerID){
+					// find user with the highest similarity
+					int size = latest(index, delta, watchers[w], delta.customerIndex(watcherIds[w]), movies, movieRatings);
+					vector(movies, movieRatings, size, similarCustomerVector);
+					double score = CosineSimilarity.cosineSimilarity(thisCustomerVector, similarCustomerVector);
+					if (score > bestScore){
+						bestScore = score;
+						bestMatchedCustomer = watcherIds[w];
+					}
+				}
+			}
+		}
+		if (bestScore == 0){
+			log.debug("No similar customer found for: " + customerID);
+			return new int[0];
+		}
+		log.debug("Best customer: " + bestMatchedCustomer);
+		log.debug("Best score: " + bestScore);
+
+		// return the best matched user's latest movies, that this customer hasn't seen, as the recommendation
+		int bestSize = latest(index, delta, index.customerIndex(bestMatchedCustomer), 
+				delta.customerIndex(bestMatchedCustomer), movies, movieRatings);
+		int[] recommended = new int[bestSize];
+		int count = 0;
+		for (int b = 0; b < bestSize; b++){
+			if (!hasWatched(index, delta, customer, added, movies[b]))
+				recommended[count++] = movies[b];
+		}
+		return Arrays.copyOf(recommended, count);
+	}
+
+	private static boolean hasWatched(RatingIndex index, RatingDelta delta, int customer, int added, int movie){
+		if (customer >= 0){
+			for (int h = index.historyFrom(customer); h < index.historyTo(customer); h++){
+				if (index.historyMovie(h) == movie)
+					return true;
+			}
+		}
+		if (added >= 0){
+			for (int h = delta.historyFrom(added); h < delta.historyTo(added); h++){
+				if (delta.historyMovie(h) == movie)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the customer's latest ratings, oldest first: the end of
+	 * its row in the index, then its row in the delta
+	 * @param customer the customer's ordinal in the index, or a negative value if it is not in it
+	 * @param added the customer's row in the delta, or a negative value if it has none
+	 * @param movies the movie ordinals read, at least reviewLimit long
+	 * @param values the ratings read, at least reviewLimit long
+	 * @return the number of ratings read, at most reviewLimit
+	 */
+	private int latest(RatingIndex index, RatingDelta delta, int customer, int added, int[] movies, byte[] values){
+		int addedTo = (added < 0) ? 0 : delta.historyTo(added);
+		int addedFrom = (added < 0) ? 0 : Math.max(delta.historyFrom(added), addedTo - reviewLimit);
+		int count = 0;
+		if (customer >= 0){
+			int to = index.historyTo(customer);
+			for (int h = Math.max(index.historyFrom(customer), to - (reviewLimit - (addedTo - addedFrom))); h < to; h++){
+				movies[count] = index.historyMovie(h);
+				values[count++] = index.historyRating(h);
+			}
+		}
+		for (int h = addedFrom; h < addedTo; h++){
+			movies[count] = delta.historyMovie(h);
+			values[count++] = delta.historyRating(h);
+		}
+		return count;
+	}
+
+	/**
+	 * Fills a vector with ratings, by movie ordinal
+	 */
+	private static SparseVector vector(int[] movies, byte[] values, int size, SparseVector vector){
+		vector.clear();
+		for (int i = 0; i < size; i++){
+			vector.add(movies[i], values[i]);
+		}
+		return vector.seal();
+	}
+
+	/**
+	 * An index and the ratings added beside it, replaced together
+	 */
+	private static final class Ratings {
+		final RatingIndex index;
+		final RatingDelta delta;
+
+		Ratings(RatingIndex index, RatingDelta delta) {
+			this.index = index;
+			this.delta = delta;
+		}
+	}
+}
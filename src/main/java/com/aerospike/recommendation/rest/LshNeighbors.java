@@ -0,0 +1,79 @@
+package com.aerospike.recommendation.rest;
+
+import java.io.File;
+
+import com.aerospike.recommendation.index.MinHashIndex;
+
+/**
+ * LshNeighbors shortlists the customers most likely to be similar
+ * to a customer, from the buckets of a MinHash index, ranked by the
+ * similarity estimated from their signatures. Only the shortlist
+ * is read from the database and scored by cosine similarity.
+ *
+ * The index is read once, at startup, and is not updated by the loader
+ * or by posted ratings, so it holds the customers of the last -lsh run.
+ * @author peter
+ *
+ */
+public class LshNeighbors {
+	private final File file;
+	private final MinHashIndex index;
+	private final int shortlist;
+	private final int maxBucket;
+
+	/**
+	 * @param file the index file, null if there is none
+	 * @param index the index read from the file, null if there is none
+	 * @param shortlist the number of customers shortlisted
+	 * @param maxBucket the most customers read from one bucket
+	 */
+	public LshNeighbors(File file, MinHashIndex index, int shortlist, int maxBucket) {
+		this.file = file;
+		this.index = index;
+		this.shortlist = shortlist;
+		this.maxBucket = maxBucket;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public MinHashIndex getIndex() {
+		return index;
+	}
+
+	public boolean isReady() {
+		return index != null;
+	}
+
+	/**
+	 * @return the number of latest movies of a customer to look up with
+	 */
+	public int historyLimit() {
+		return index.historyLimit();
+	}
+
+	/**
+	 * Shortlists the customers whose latest movies are most like a customer's
+	 * @param movieIds the customer's latest movies
+	 * @param count the number of movies
+	 * @param customerId the customer, left out of the shortlist
+	 * @return the IDs of the shortlisted customers, most similar first
+	 */
+	public int[] shortlist(int[] movieIds, int count, int customerId) {
+		int[] signature = index.signature(movieIds, count);
+		int[] candidates = new int[index.bands() * maxBucket];
+		int found = index.candidates(signature, maxBucket, candidates);
+		int self = index.customerIndex(customerId);
+		TopK top = new TopK(shortlist);
+		for (int i = 0; i < found; i++) {
+			if (candidates[i] != self)
+				top.offer(candidates[i], index.similarity(signature, candidates[i]));
+		}
+		int[] customers = new int[top.size()];
+		int size = top.drainDescending(customers, new double[customers.length]);
+		for (int i = 0; i < size; i++)
+			customers[i] = index.customerId(customers[i]);
+		return customers;
+	}
+}
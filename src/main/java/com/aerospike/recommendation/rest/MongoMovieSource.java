@@ -0,0 +1,74 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.aerospike.recommendation.dataimport.model.Movie;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Reads movies from the MOVIE_TITLES collection,
+ * without the list of customers that watched them.
+ * The loader writes each movie as the nested movie object
+ * of its document, with the movie ID as a string
+ * @author peter
+ *
+ */
+public class MongoMovieSource implements MovieMetadataCache.Source<DBObject> {
+	private final DBCollection movieCollection;
+	private final BasicDBObject fields = new BasicDBObject(RESTController.MONGO_MOVIE + "." + Movie.WATCHED_BY, 0);
+
+	public MongoMovieSource(DBCollection movieCollection) {
+		this.movieCollection = movieCollection;
+	}
+
+	@Override
+	public Map<Integer, DBObject> read(int[] movieIDs) {
+		List<String> ids = new ArrayList<String>(movieIDs.length);
+		for (int movieID : movieIDs){
+			ids.add(String.valueOf(movieID));
+		}
+		BasicDBObject inQuery = new BasicDBObject();
+		inQuery.put(RESTController.MONGO_MOVIE_ID, new BasicDBObject("$in", ids));
+		Map<Integer, DBObject> movies = new HashMap<Integer, DBObject>(movieIDs.length * 2);
+		read(movieCollection.find(inQuery, fields), movies);
+		return movies;
+	}
+
+	@Override
+	public void readAll(Map<Integer, DBObject> movies) {
+		read(movieCollection.find(new BasicDBObject(), fields), movies);
+	}
+
+	private void read(DBCursor cursor, Map<Integer, DBObject> movies) {
+		try {
+			while(cursor.hasNext()) {
+				DBObject movie = (DBObject) cursor.next().get(RESTController.MONGO_MOVIE);
+				Object movieID = (movie == null) ? null : movie.get(Movie.MOVIE_ID);
+				if (movieID == null)
+					continue;
+				try {
+					movies.put(Integer.parseInt(movieID.toString()), movie);
+				} catch (NumberFormatException e) {
+					// not a movie a rating can refer to
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	public DBObject create(String movieID, String title, long yearOfRelease) {
+		BasicDBObject movie = new BasicDBObject();
+		movie.put(Movie.MOVIE_ID, movieID);
+		movie.put(Movie.TITLE, title);
+		movie.put(Movie.YEAR_OF_RELEASE, yearOfRelease);
+		return movie;
+	}
+}
@@ -0,0 +1,224 @@
+package com.aerospike.recommendation.rest;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.aerospike.recommendation.dataimport.model.Movie;
+
+/**
+ * An in-process near cache of movie titles and years, which
+ * almost never change, so a recommendation can be assembled
+ * without another round trip to the database.
+ *
+ * The cache can be preloaded from the store or from a movie directory.
+ * A lookup reads only the movies that are not cached, in one batch,
+ * and a background thread re-reads the cached movies periodically.
+ * @author peter
+ *
+ * @param <V> the movie as the backend returns it
+ */
+public class MovieMetadataCache<V> {
+	private static Logger log = Logger.getLogger(MovieMetadataCache.class);
+	private static final int REFRESH_BATCH = 1000;
+
+	/**
+	 * Reads movies from a backend
+	 * @param <V>
+	 */
+	public interface Source<V> {
+		/**
+		 * Reads a batch of movies
+		 * @param movieIDs
+		 * @return the movies by movie ID, missing movies are left out
+		 */
+		Map<Integer, V> read(int[] movieIDs);
+		/**
+		 * Reads every movie in the store
+		 * @param movies receives the movies by movie ID
+		 */
+		void readAll(Map<Integer, V> movies);
+		/**
+		 * Makes a movie from the fields of a movie file
+		 */
+		V create(String movieID, String title, long yearOfRelease);
+	}
+
+	private final String name;
+	private final Source<V> source;
+	private final Map<Integer, V> movies = new ConcurrentHashMap<Integer, V>();
+	private ScheduledExecutorService refresher;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong refreshes = new AtomicLong();
+
+	public MovieMetadataCache(String name, Source<V> source) {
+		this.name = name;
+		this.source = source;
+	}
+
+	/**
+	 * Gets the first count movies, reading the ones that are not cached in one batch
+	 * @param movieIDs
+	 * @param count
+	 * @return the movies in the order of movieIDs, null where a movie does not exist
+	 */
+	public List<V> get(int[] movieIDs, int count) {
+		List<V> result = new ArrayList<V>(count);
+		int[] missing = null;
+		int missingCount = 0;
+		for (int index = 0; index < count; index++) {
+			V movie = movies.get(movieIDs[index]);
+			if (movie == null) {
+				if (missing == null)
+					missing = new int[count - index];
+				missing[missingCount++] = movieIDs[index];
+			}
+			result.add(movie);
+		}
+		hits.addAndGet(count - missingCount);
+		if (missingCount == 0)
+			return result;
+
+		misses.addAndGet(missingCount);
+		Map<Integer, V> found = source.read(Arrays.copyOf(missing, missingCount));
+		movies.putAll(found);
+		for (int index = 0; index < count; index++) {
+			if (result.get(index) == null)
+				result.set(index, found.get(movieIDs[index]));
+		}
+		return result;
+	}
+
+	/**
+	 * Loads every movie from the store
+	 */
+	public void preload() {
+		long start = System.currentTimeMillis();
+		source.readAll(movies);
+		log.info(name + " movie cache: preloaded " + movies.size() + " movies from the store in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Loads the title and year of every movie in a movie directory
+	 * @param movieDir
+	 */
+	public void preload(File movieDir) throws IOException, ParseException {
+		long start = System.currentTimeMillis();
+		File[] files = movieDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().startsWith("movie_") && file.getName().endsWith(".json");
+			}
+		});
+		if (files == null)
+			throw new IOException("Not a directory: " + movieDir);
+		JSONParser parser = new JSONParser();
+		for (File file : files) {
+			Reader reader = new FileReader(file);
+			try {
+				JSONObject json = (JSONObject) parser.parse(reader);
+				String movieID = (String) json.get(Movie.MOVIE_ID);
+				Number year = (Number) json.get(Movie.YEAR_OF_RELEASE);
+				movies.put(Integer.parseInt(movieID), source.create(movieID,
+						(String) json.get(Movie.TITLE), year == null ? 0 : year.longValue()));
+			} finally {
+				reader.close();
+			}
+		}
+		log.info(name + " movie cache: preloaded " + movies.size() + " movies from " + movieDir + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Starts re-reading the cached movies in the background
+	 * @param periodSeconds the time between refreshes
+	 */
+	public synchronized void startRefresh(long periodSeconds) {
+		if (refresher != null)
+			return;
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-movie-cache-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (RuntimeException e) {
+					log.error(name + " movie cache refresh failed", e);
+				}
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Re-reads the cached movies in batches, and drops the ones that no longer exist
+	 */
+	public void refresh() {
+		Integer[] cached = movies.keySet().toArray(new Integer[0]);
+		for (int from = 0; from < cached.length; from += REFRESH_BATCH) {
+			int[] batch = new int[Math.min(REFRESH_BATCH, cached.length - from)];
+			for (int i = 0; i < batch.length; i++)
+				batch[i] = cached[from + i];
+			Map<Integer, V> found = source.read(batch);
+			for (int movieID : batch) {
+				V movie = found.get(movieID);
+				if (movie == null)
+					movies.remove(movieID);
+				else
+					movies.put(movieID, movie);
+			}
+		}
+		refreshes.incrementAndGet();
+		log.debug(name + " movie cache: refreshed " + cached.length + " movies");
+	}
+
+	public synchronized void close() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+			refresher = null;
+		}
+	}
+
+	public int size() {
+		return movies.size();
+	}
+
+	/**
+	 * @return the cache counters
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject stats() {
+		JSONObject stats = new JSONObject();
+		stats.put("size", size());
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("refreshes", refreshes.get());
+		return stats;
+	}
+}
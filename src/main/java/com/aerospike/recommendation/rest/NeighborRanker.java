@@ -0,0 +1,168 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+
+/**
+ * Picks the movies to recommend from a customer's candidate neighbors:
+ * scores each candidate's latest ratings against the customer's, then
+ * takes the unseen movies of the most similar candidate, or ranks the
+ * unseen movies of the k most similar.
+ *
+ * The endpoints and the recommendation job both rank with it,
+ * so a precomputed recommendation is the one the endpoint would make.
+ * @author peter
+ *
+ */
+public class NeighborRanker {
+	private static Logger log = Logger.getLogger(NeighborRanker.class);
+
+	/**
+	 * The movies picked for a customer, in the order they are recommended
+	 */
+	public static class Ranking {
+		private final int[] movieIDs;
+		private final double[] movieScores;
+		private final int movieCount;
+
+		Ranking(int[] movieIDs, double[] movieScores, int movieCount) {
+			this.movieIDs = movieIDs;
+			this.movieScores = movieScores;
+			this.movieCount = movieCount;
+		}
+		public int[] movieIDs() {
+			return movieIDs;
+		}
+		/**
+		 * @return the score of each movie, or null if they are the best match's unseen movies
+		 */
+		public double[] movieScores() {
+			return movieScores;
+		}
+		public int movieCount() {
+			return movieCount;
+		}
+	}
+
+	/**
+	 * Scores the candidates and picks the movies to recommend
+	 * @param thisCustomerMovieVector
+	 * @param candidateIdArray the candidate customers
+	 * @param candidateWatchedLists the latest ratings of each candidate, null where a candidate was not found
+	 * @param neighbors k, the number of similar customers to rank movies from,
+	 * 0 returns the unseen movies of the most similar customer
+	 * @param maxMovies n, the number of movies to return
+	 * @param neighborIDs receives the IDs of the customers the recommendation is made from
+	 * @return the movies, with their scores if k > 0
+	 */
+	public static Ranking rank(SparseVector thisCustomerMovieVector, String[] candidateIdArray,
+			List<RatingBatch> candidateWatchedLists, int neighbors, int maxMovies,
+			Set<String> neighborIDs){
+		/*
+		 * find user with the highest similarity,
+		 * or the k most similar users
+		 */
+		KNearestNeighbors nearest = (neighbors > 0) ? new KNearestNeighbors(neighbors) : null;
+		int best = score(thisCustomerMovieVector, candidateWatchedLists, nearest);
+		String bestMatchedCustomer = (best < 0) ? null : candidateIdArray[best];
+		RatingBatch bestMatchedList = (best < 0) ? null : candidateWatchedLists.get(best);
+		log.debug("Best customer: " + bestMatchedCustomer);
+
+		int[] movieIDs;
+		double[] movieScores = null;
+		int movieCount = 0;
+		if (nearest != null){
+			// rank the movies the k nearest customers watched
+			for (int i = 0; i < nearest.size(); i++){
+				accumulate(nearest, nearest.similarity(i), thisCustomerMovieVector,
+						candidateWatchedLists.get(nearest.neighbor(i)));
+				neighborIDs.add(candidateIdArray[nearest.neighbor(i)]);
+			}
+			movieIDs = new int[maxMovies];
+			movieScores = new double[maxMovies];
+			movieCount = nearest.recommend(movieIDs, movieScores);
+		} else if (bestMatchedList == null){
+			// no candidate has a movie in common with this customer
+			movieIDs = new int[0];
+		} else {
+			// return the best matched user's first n unseen purchases as the recommendation
+			neighborIDs.add(bestMatchedCustomer);
+			movieIDs = new int[Math.min(maxMovies, bestMatchedList.size())];
+			for (int index = 0; index < bestMatchedList.size() && movieCount < maxMovies; index++){
+				int movieID = bestMatchedList.movieId(index);
+				if (!thisCustomerMovieVector.contains(movieID)){
+					movieIDs[movieCount++] = movieID;
+				}
+			}
+		}
+		return new Ranking(movieIDs, movieScores, movieCount);
+	}
+
+	/**
+	 * Scores the latest ratings of each candidate customer against this customer
+	 * @param thisCustomerMovieVector
+	 * @param candidateWatchedLists the latest ratings of each candidate, null where a candidate was not found
+	 * @param nearest receives the score of each candidate, by position, or null
+	 * @return the position of the most similar candidate, or -1 if none is similar
+	 */
+	static int score(SparseVector thisCustomerMovieVector, List<RatingBatch> candidateWatchedLists,
+			KNearestNeighbors nearest){
+		int bestMatched = -1;
+		double bestScore = 0;
+		SparseVector similarCustomerVector = new SparseVector();
+		for (int index = 0; index < candidateWatchedLists.size(); index++){
+			RatingBatch similarCustomerWatchedList = candidateWatchedLists.get(index);
+			if (similarCustomerWatchedList == null)
+				continue;
+			similarCustomerVector.setRatings(similarCustomerWatchedList);
+			double score = similarity(thisCustomerMovieVector, similarCustomerVector);
+			if (nearest != null)
+				nearest.offer(index, score);
+			if (score > bestScore){
+				bestScore = score;
+				bestMatched = index;
+			}
+		}
+		log.debug("Best score: " + bestScore);
+		return bestMatched;
+	}
+
+	/**
+	 * Adds a neighbor's ratings of the movies this customer has not seen
+	 * @param nearest
+	 * @param similarity the neighbor's similarity to this customer
+	 * @param thisCustomerVector
+	 * @param neighborWatched the neighbor's ratings
+	 */
+	static void accumulate(KNearestNeighbors nearest, double similarity,
+			SparseVector thisCustomerVector, RatingBatch neighborWatched){
+		for (int i = 0; i < neighborWatched.size(); i++){
+			int movieID = neighborWatched.movieId(i);
+			if (!thisCustomerVector.contains(movieID))
+				nearest.accumulate(movieID, similarity, neighborWatched.rating(i));
+		}
+	}
+
+	/**
+	 * This is a very rudimentary algorithm using Cosine similarity
+	 * @param thisCustomerVector
+	 * @param similarCustomerVector
+	 * @return
+	 */
+	public static double similarity(SparseVector thisCustomerVector, SparseVector similarCustomerVector){
+		/*
+		 * this is the place where you can create clever
+		 * similarity score.
+		 *
+		 * This algorithm returns the cosine of the ratings of the movies
+		 * these customers have in common.
+		 *
+		 * You could use any similarity algorithm you wish
+		 */
+		return CosineSimilarity.cosineSimilarity(thisCustomerVector, similarCustomerVector);
+	}
+}
@@ -0,0 +1,130 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+import com.aerospike.client.Record;
+
+/**
+ * The recommendations made ahead of time by the recommendation job,
+ * held in the RECOMMENDED map bin of each MOVIE_CUSTOMERS record:
+ * the movie IDs, their scores, the k and n they were made with,
+ * the size of the customer's watched list, and when they were made.
+ *
+ * When serving is enabled, the endpoint reads the bin with the customer's
+ * ratings count, and uses it if it was made with the same k and at least
+ * the same n, is no older than the max age, and the customer has not rated
+ * a movie since. Otherwise the recommendation is made live.
+ * @author peter
+ *
+ */
+public class PrecomputedRecommendations {
+	public static final String RECOMMENDED = "recommended";
+	static final String MOVIES = "movies";
+	static final String SCORES = "scores";
+	static final String NEIGHBORS = "k";
+	static final String MAX_MOVIES = "n";
+	static final String RATINGS_COUNT = "ratings";
+	static final String COMPUTED_AT = "at";
+
+	private final long maxAgeMillis;
+	private final AtomicLong served = new AtomicLong();
+	private final AtomicLong missing = new AtomicLong();
+	private final AtomicLong stale = new AtomicLong();
+
+	/**
+	 * @param maxAgeMillis the age after which a recommendation is made live, 0 to always make it live
+	 */
+	public PrecomputedRecommendations(long maxAgeMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	public boolean isEnabled() {
+		return maxAgeMillis > 0;
+	}
+
+	/**
+	 * Encodes a recommendation for the RECOMMENDED bin
+	 * @param ranking the movies recommended
+	 * @param neighbors the k it was made with
+	 * @param maxMovies the n it was made with
+	 * @param ratingsCount the size of the customer's watched list it was made from
+	 * @param computedAt when it was made, in milliseconds
+	 */
+	public static Map<String, Object> encode(NeighborRanker.Ranking ranking, int neighbors, int maxMovies,
+			int ratingsCount, long computedAt) {
+		List<Long> movies = new ArrayList<Long>(ranking.movieCount());
+		for (int i = 0; i < ranking.movieCount(); i++)
+			movies.add((long) ranking.movieIDs()[i]);
+		Map<String, Object> recommended = new HashMap<String, Object>();
+		recommended.put(MOVIES, movies);
+		if (ranking.movieScores() != null){
+			List<Double> scores = new ArrayList<Double>(ranking.movieCount());
+			for (int i = 0; i < ranking.movieCount(); i++)
+				scores.add(ranking.movieScores()[i]);
+			recommended.put(SCORES, scores);
+		}
+		recommended.put(NEIGHBORS, (long) neighbors);
+		recommended.put(MAX_MOVIES, (long) maxMovies);
+		recommended.put(RATINGS_COUNT, (long) ratingsCount);
+		recommended.put(COMPUTED_AT, computedAt);
+		return recommended;
+	}
+
+	/**
+	 * Decodes the recommendation in a customer record read with the RECOMMENDED and ratings count bins
+	 * @param record the customer record, or null
+	 * @param neighbors k
+	 * @param maxMovies n
+	 * @return the recommendation, or null if there is none usable for k and n
+	 */
+	@SuppressWarnings("unchecked")
+	public NeighborRanker.Ranking get(Record record, int neighbors, int maxMovies) {
+		Map<Object, Object> recommended = (record == null) ? null : (Map<Object, Object>) record.getValue(RECOMMENDED);
+		if (recommended == null
+				|| ((Number) recommended.get(NEIGHBORS)).intValue() != neighbors
+				|| ((Number) recommended.get(MAX_MOVIES)).intValue() < maxMovies){
+			missing.incrementAndGet();
+			return null;
+		}
+		long age = System.currentTimeMillis() - ((Number) recommended.get(COMPUTED_AT)).longValue();
+		Object ratingsCount = record.getValue(RESTController.RATINGS_COUNT);
+		if (age > maxAgeMillis || ratingsCount == null
+				|| ((Number) recommended.get(RATINGS_COUNT)).longValue() != ((Number) ratingsCount).longValue()){
+			stale.incrementAndGet();
+			return null;
+		}
+		List<Number> movies = (List<Number>) recommended.get(MOVIES);
+		List<Number> scores = (List<Number>) recommended.get(SCORES);
+		// the first n of a recommendation made with a larger n
+		int movieCount = Math.min(maxMovies, movies.size());
+		int[] movieIDs = new int[movieCount];
+		double[] movieScores = (scores == null) ? null : new double[movieCount];
+		for (int i = 0; i < movieCount; i++){
+			movieIDs[i] = movies.get(i).intValue();
+			if (movieScores != null)
+				movieScores[i] = scores.get(i).doubleValue();
+		}
+		served.incrementAndGet();
+		return new NeighborRanker.Ranking(movieIDs, movieScores, movieCount);
+	}
+
+	/**
+	 * @return the number of requests served from a precomputed recommendation,
+	 * and made live because there was none or it was stale
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject stats() {
+		JSONObject stats = new JSONObject();
+		stats.put("maxAgeSeconds", maxAgeMillis / 1000);
+		stats.put("served", served.get());
+		stats.put("missing", missing.get());
+		stats.put("stale", stale.get());
+		return stats;
+	}
+}
@@ -1,36 +1,73 @@
 package com.aerospike.recommendation.rest;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
 import com.aerospike.client.Key;
 import com.aerospike.client.Record;
-import com.aerospike.client.Value;
-import com.aerospike.client.large.LargeList;
 import com.aerospike.client.large.LargeStack;
 import com.aerospike.client.policy.Policy;
+import com.aerospike.recommendation.dataimport.RatingIngester;
+import com.aerospike.recommendation.dataimport.model.Customer;
+import com.aerospike.recommendation.dataimport.model.Movie;
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+import com.aerospike.recommendation.dataimport.model.WatchedRated;
+import com.aerospike.recommendation.index.RatingIndex;
+import com.aerospike.recommendation.index.SimilarMovies;
+import com.aerospike.recommendation.metrics.PipelineMetrics;
+import com.aerospike.recommendation.metrics.PipelineMetrics.Stage;
+import com.aerospike.recommendation.metrics.RecommendationMetrics;
+import com.aerospike.recommendation.snapshot.RatingSnapshot;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 
 @Controller
 public class RESTController {
-	private static final int MOVIE_REVIEW_LIMIT = 20;
+	static final int MOVIE_REVIEW_LIMIT = 20;
+	/*
+	 * the most values in one $in query of a batch recommendation
+	 */
+	static final int IN_LIMIT = 1000;
+	/*
+	 * the largest k and n of a recommendation request
+	 */
+	static final int MAX_NEIGHBORS = 1000;
+	static final int MAX_MOVIES = 1000;
 	public static final String NAME_SPACE = "test";
 	public static final String PRODUCT_SET = "MOVIE_TITLES";
 	public static final String USERS_SET = "MOVIE_CUSTOMERS";
@@ -43,6 +80,21 @@ public class RESTController {
 	public static final String TITLE = "title";
 	public static final String YEAR_OF_RELEASE = "yearOfRelease";
 	public static final String CUSTOMER_WATCHED = "watched";
+	public static final String RATINGS_COUNT = "ratings_count";
+	/*
+	 * the fields of the MongoDB documents as the loader writes them: a customer
+	 * is found by its customerID, and a movie is the nested movie object of its document
+	 */
+	static final String MONGO_CUSTOMER_ID = Customer.CUSTOMER_ID;
+	static final String MONGO_MOVIE = "movie";
+	static final String MONGO_MOVIE_ID = MONGO_MOVIE + "." + Movie.MOVIE_ID;
+	public static final String SCORE = "score";
+	public static final String AEROSPIKE = "aerospike";
+	public static final String AEROSPIKE_ASYNC = "aerospike-async";
+	public static final String AEROSPIKE_LSH = "aerospike-lsh";
+	public static final String AEROSPIKE_BATCH = "aerospike-batch";
+	public static final String MONGO = "mongo";
+	public static final String MONGO_BATCH = "mongo-batch";
 	private static Logger log = Logger.getLogger(RESTController.class); 
 	@Autowired
 	AerospikeClient aerospikeClient;
@@ -55,114 +107,559 @@ public class RESTController {
 	private DBCollection movieCollection;
 	@Autowired
 	private DBCollection customerCollection;
+	@Autowired
+	private LocalRecommender localRecommender;
+	@Autowired
+	private SnapshotRecommender snapshotRecommender;
+	@Autowired
+	private RecommendationCache recommendationCache;
+	@Autowired
+	private MovieMetadataCache<Record> aerospikeMovieCache;
+	@Autowired
+	private MovieMetadataCache<DBObject> mongoMovieCache;
+	@Autowired
+	private RecommendationMetrics recommendationMetrics;
+	@Autowired
+	private AsyncCandidateReader asyncCandidateReader;
+	@Autowired
+	private SingleFlight<Object> recommendationFlights;
+	@Autowired
+	private RatingIngester ratingIngester;
+	@Autowired
+	private FactorRecommender factorRecommender;
+	@Autowired
+	private LshNeighbors lshNeighbors;
+	@Autowired
+	private BatchCandidateReader batchCandidateReader;
+	@Autowired
+	private PrecomputedRecommendations precomputedRecommendations;
 
 	static final String nameSpace;
+	/*
+	 * how long an async request waits for its recommendation, in milliseconds
+	 */
+	static final long asyncTimeout;
+	/*
+	 * how long a rating request waits for its ratings to be written, in milliseconds
+	 */
+	static final long ingestTimeout;
+	/*
+	 * the most customers in one batch recommendation request
+	 */
+	static final int batchLimit;
 	static {
 		Properties as = System.getProperties();
 		nameSpace = (String) as.get("namespace");
+		asyncTimeout = Long.parseLong(as.getProperty("asyncTimeout", "10000"));
+		ingestTimeout = Long.parseLong(as.getProperty("ingestTimeout", "10000"));
+		batchLimit = Integer.parseInt(as.getProperty("batchLimit", "1000"));
 	}
 	/**
 	 * get a recommendation for a specific customer from Aerospike
 	 * @param user a unique ID for a customer
+	 * @param neighbors k, the number of similar customers to rank movies from, 
+	 * 0 returns the unseen movies of the most similar customer
+	 * @param maxMovies n, the number of ranked movies to return
+	 * @param recent the number of most recent ratings read from each list
+	 * @param days only read the ratings of the days up to asOf, 0 for all of them
+	 * @param asOf yyyy-MM-dd, the last day of the ratings read, today if not given
 	 * @return
 	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
 	@RequestMapping(value="/aerospike/recommendation/{customer}", method=RequestMethod.GET)
-	public @ResponseBody JSONArray getAerospikeRecommendationFor(@PathVariable("customer") String customerID) throws Exception {
+	public @ResponseBody JSONArray getAerospikeRecommendationFor(@PathVariable("customer") final String customerID,
+			@RequestParam(value="k", defaultValue="0") final int neighbors,
+			@RequestParam(value="n", defaultValue="10") final int maxMovies,
+			@RequestParam(value="recent", defaultValue="20") final int recent,
+			@RequestParam(value="days", defaultValue="0") final int days,
+			@RequestParam(value="asOf", required=false) final String asOf) throws Exception {
+		checkRanking(neighbors, maxMovies);
+		final RecencyWindow window = RecencyWindow.of(recent, days, asOf);
+		final String cacheKey = RecommendationCache.key(window.cacheBackend(AEROSPIKE), customerID, neighbors, maxMovies);
+		JSONArray recommendations = (JSONArray) recommendationCache.get(cacheKey);
+		if (recommendations == null && window.isLatest() && precomputedRecommendations.isEnabled()){
+			// one read, if the recommendation job made this recommendation recently enough
+			recommendations = findPrecomputedRecommendation(customerID, neighbors, maxMovies);
+		}
+		if (recommendations == null){
+			// concurrent requests for the same recommendation share one computation
+			recommendations = (JSONArray) recommendationFlights.execute(cacheKey, new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					long stamp = recommendationCache.stamp();
+					Set<String> neighborIDs = new HashSet<String>();
+					JSONArray found = findAerospikeRecommendation(customerID, neighbors, maxMovies, window, neighborIDs);
+					recommendationCache.put(cacheKey, stamp, customerID, neighborIDs, found);
+					return found;
+				}
+			});
+		}
+		return recommendations;
+	}
+
+	/**
+	 * get a recommendation for a specific customer from Aerospike, without holding
+	 * a servlet thread while the ratings are read. The response is completed
+	 * by the async candidate reader's threads, and is the same as the
+	 * blocking endpoint's, with which it shares the recommendation cache
+	 * @param user a unique ID for a customer
+	 * @param neighbors k, the number of similar customers to rank movies from, 
+	 * 0 returns the unseen movies of the most similar customer
+	 * @param maxMovies n, the number of ranked movies to return
+	 * @return
+	 */
+	@RequestMapping(value="/aerospike/async/recommendation/{customer}", method=RequestMethod.GET)
+	public @ResponseBody DeferredResult<JSONArray> getAsyncAerospikeRecommendationFor(@PathVariable("customer") final String customerID,
+			@RequestParam(value="k", defaultValue="0") final int neighbors,
+			@RequestParam(value="n", defaultValue="10") final int maxMovies) {
+		checkRanking(neighbors, maxMovies);
+		final DeferredResult<JSONArray> result = new DeferredResult<JSONArray>(asyncTimeout);
+		final String cacheKey = RecommendationCache.key(AEROSPIKE, customerID, neighbors, maxMovies);
+		JSONArray cached = (JSONArray) recommendationCache.get(cacheKey);
+		if (cached != null){
+			result.setResult(cached);
+			return result;
+		}
+		/*
+		 * join the computation of the same recommendation, blocking or async, 
+		 * if one is in flight. Waiting followers time out with the DeferredResult
+		 */
+		final SingleFlight<Object>.Flight flight = recommendationFlights.join(cacheKey, new SingleFlight.Listener<Object>() {
+			@Override
+			public void onResult(Object recommendations) {
+				result.setResult((JSONArray) recommendations);
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				result.setErrorResult(e);
+			}
+		});
+		if (flight == null)
+			return result;
 		log.debug("Finding recomendations for " + customerID);
-		Policy policy = new Policy();
+		final long stamp = recommendationCache.stamp();
+		final PipelineMetrics metrics = recommendationMetrics.pipeline(AEROSPIKE_ASYNC);
+		asyncCandidateReader.read(customerID, metrics, new AsyncCandidateReader.CandidateListener() {
+			@Override
+			public void onCandidates(SparseVector thisCustomerVector, String[] candidateIds, 
+					List<RatingBatch> candidateWatchedLists) {
+				Set<String> neighborIDs = new HashSet<String>();
+				JSONArray recommendations = recommendFromCandidates(thisCustomerVector, candidateIds, 
+						candidateWatchedLists, neighbors, maxMovies, neighborIDs, metrics, System.nanoTime());
+				recommendationCache.put(cacheKey, stamp, customerID, neighborIDs, recommendations);
+				flight.complete(recommendations);
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				flight.fail(e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * get a recommendation for a specific customer from Aerospike, with the
+	 * candidate customers shortlisted by the MinHash index, instead of 
+	 * read from the latest watchers of each movie the customer watched
+	 * @param user a unique ID for a customer
+	 * @param neighbors k, the number of similar customers to rank movies from, 
+	 * 0 returns the unseen movies of the most similar customer
+	 * @param maxMovies n, the number of ranked movies to return
+	 * @param recent the number of most recent ratings read from each list
+	 * @param days only read the ratings of the days up to asOf, 0 for all of them
+	 * @param asOf yyyy-MM-dd, the last day of the ratings read, today if not given
+	 * @return
+	 * @throws Exception
+	 */
+	@RequestMapping(value="/aerospike/lsh/recommendation/{customer}", method=RequestMethod.GET)
+	public @ResponseBody JSONArray getAerospikeLshRecommendationFor(@PathVariable("customer") final String customerID,
+			@RequestParam(value="k", defaultValue="0") final int neighbors,
+			@RequestParam(value="n", defaultValue="10") final int maxMovies,
+			@RequestParam(value="recent", defaultValue="20") final int recent,
+			@RequestParam(value="days", defaultValue="0") final int days,
+			@RequestParam(value="asOf", required=false) final String asOf) throws Exception {
+		checkRanking(neighbors, maxMovies);
+		final RecencyWindow window = RecencyWindow.of(recent, days, asOf);
+		final String cacheKey = RecommendationCache.key(window.cacheBackend(AEROSPIKE_LSH), customerID, neighbors, maxMovies);
+		JSONArray recommendations = (JSONArray) recommendationCache.get(cacheKey);
+		if (recommendations == null){
+			// concurrent requests for the same recommendation share one computation
+			recommendations = (JSONArray) recommendationFlights.execute(cacheKey, new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					long stamp = recommendationCache.stamp();
+					Set<String> neighborIDs = new HashSet<String>();
+					JSONArray found = findAerospikeLshRecommendation(customerID, neighbors, maxMovies, window, neighborIDs);
+					recommendationCache.put(cacheKey, stamp, customerID, neighborIDs, found);
+					return found;
+				}
+			});
+		}
+		return recommendations;
+	}
+
+	/**
+	 * find a recommendation for a specific customer in Aerospike, from the
+	 * customers shortlisted by the MinHash index. The shortlisting takes the 
+	 * place of the watchers stage, and makes no reads
+	 * @param neighborIDs receives the IDs of the customers the recommendation is made from
+	 */
+	private JSONArray findAerospikeLshRecommendation(String customerID, int neighbors, int maxMovies, 
+			RecencyWindow window, Set<String> neighborIDs) throws Exception {
+		log.debug("Finding LSH recomendations for " + customerID);
+		if (!lshNeighbors.isReady())
+			throw new IllegalStateException("No MinHash index, start the service with -lh <index file>");
+		PipelineMetrics metrics = recommendationMetrics.pipeline(AEROSPIKE_LSH);
+		int roundTrips = 0;
+		long stageStart = System.nanoTime();
 
 		/*
 		 * get the latest movies watched and rated by the customer
 		 */
-		LargeList customerWatched = aerospikeClient.getLargeList(null, 
-				new Key(NAME_SPACE, USERS_SET, customerID), 
-				CUSTOMER_WATCHED, null);
-		int size = customerWatched.size();
-		if (customerWatched == null || size==0){
+		Key customerKey = new Key(NAME_SPACE, USERS_SET, customerID);
+		Record thisUser = aerospikeClient.get(null, customerKey, window.bins());
+		roundTrips++;
+		if (thisUser == null){
+			log.debug("Could not find user: " + customerID );
+			metrics.roundTrips(roundTrips);
+			throw new CustomerNotFound(customerID);
+		}
+		int size = thisUser.getInt(RATINGS_COUNT);
+		metrics.historySize(size);
+		if (size==0){
+			log.debug("No movies found for customer: " + customerID );
+			metrics.roundTrips(roundTrips);
+			throw new NoMoviesFound(customerID);
+		}
+		RatingBatch customerWatchedList = latestRatings(customerKey, CUSTOMER_WATCHED, thisUser, size, window);
+		roundTrips++;
+		metrics.roundTrips(roundTrips);
+		if (customerWatchedList == null || customerWatchedList.isEmpty()){
+			log.debug("No movies found for customer: " + customerID + " in " + window);
+			throw new NoMoviesFound(customerID);
+		}
+		stageStart = endStage(metrics, Stage.HISTORY, stageStart);
+		SparseVector thisCustomerMovieVector = SparseVector.fromRatings(customerWatchedList);
+
+		/*
+		 * Phase 1: shortlist the customers that share a bucket with 
+		 * the customer's latest movies, the same movies the index hashed
+		 */
+		int count = Math.min(customerWatchedList.size(), lshNeighbors.historyLimit());
+		int[] movieIDs = new int[count];
+		int first = customerWatchedList.size() - count;
+		for (int index = 0; index < count; index++){
+			movieIDs[index] = customerWatchedList.movieId(first + index);
+		}
+		int customer;
+		try {
+			customer = Integer.parseInt(customerID);
+		} catch (NumberFormatException e){
+			customer = -1;
+		}
+		int[] shortlist = lshNeighbors.shortlist(movieIDs, count, customer);
+		String[] candidateIdArray = new String[shortlist.length];
+		for (int index = 0; index < shortlist.length; index++){
+			candidateIdArray[index] = String.valueOf(shortlist[index]);
+		}
+		stageStart = endStage(metrics, Stage.WATCHERS, stageStart);
+
+		/*
+		 * Phase 2: read only the shortlisted customers' latest movies
+		 */
+		List<RatingBatch> candidateWatchedLists = readCandidates(candidateIdArray, window, metrics);
+		stageStart = endStage(metrics, Stage.CANDIDATES, stageStart);
+		log.debug("Shortlisted " + candidateIdArray.length + " candidates");
+
+		return recommendFromCandidates(thisCustomerMovieVector, candidateIdArray, candidateWatchedLists, 
+				neighbors, maxMovies, neighborIDs, metrics, stageStart);
+	}
+
+	/**
+	 * read the recommendation the recommendation job made for a customer
+	 * @return the recommendation, or null if there is none for k and n, or it is stale
+	 */
+	private JSONArray findPrecomputedRecommendation(String customerID, int neighbors, int maxMovies) throws AerospikeException {
+		Record customer = aerospikeClient.get(null, new Key(NAME_SPACE, USERS_SET, customerID), 
+				PrecomputedRecommendations.RECOMMENDED, RATINGS_COUNT);
+		NeighborRanker.Ranking ranking = precomputedRecommendations.get(customer, neighbors, maxMovies);
+		if (ranking == null)
+			return null;
+		return getAerospikeMovies(ranking.movieIDs(), ranking.movieScores(), ranking.movieCount());
+	}
+
+	/**
+	 * find a recommendation for a specific customer in Aerospike
+	 * @param window the ratings read from each list
+	 * @param neighborIDs receives the IDs of the customers the recommendation is made from
+	 */
+	@SuppressWarnings("unchecked")
+	private JSONArray findAerospikeRecommendation(String customerID, int neighbors, int maxMovies, 
+			RecencyWindow window, Set<String> neighborIDs) throws Exception {
+		log.debug("Finding recomendations for " + customerID);
+		Policy policy = new Policy();
+		PipelineMetrics metrics = recommendationMetrics.pipeline(AEROSPIKE);
+		int roundTrips = 0;
+		long stageStart = System.nanoTime();
+
+		/*
+		 * get the latest movies watched and rated by the customer.
+		 * The ratings count bin holds the size of the watched list,
+		 * so the range can be read without asking the list for its size,
+		 * and the time index read with it gives the first key of the range
+		 */
+		Key customerKey = new Key(NAME_SPACE, USERS_SET, customerID);
+		Record thisUser = aerospikeClient.get(policy, customerKey, window.bins());
+		roundTrips++;
+		if (thisUser == null){
+			log.debug("Could not find user: " + customerID );
+			metrics.roundTrips(roundTrips);
+			throw new CustomerNotFound(customerID);
+		}
+		int size = thisUser.getInt(RATINGS_COUNT);
+		metrics.historySize(size);
+		if (size==0){
 			// customer Hasen't Watched anything
 			log.debug("No movies found for customer: " + customerID );
+			metrics.roundTrips(roundTrips);
+			throw new NoMoviesFound(customerID);
+		}
+		RatingBatch customerWatchedList = latestRatings(customerKey, CUSTOMER_WATCHED, thisUser, size, window);
+		roundTrips++;
+		if (customerWatchedList == null || customerWatchedList.isEmpty()){
+			log.debug("No movies found for customer: " + customerID + " in " + window);
+			metrics.roundTrips(roundTrips);
 			throw new NoMoviesFound(customerID);
 		}
-		Value low = Value.get(Math.max(size - MOVIE_REVIEW_LIMIT, 0));
-		Value high = Value.get(size);
-		List<Map<String, Object>> customerWatchedList = (List<Map<String, Object>>) 
-				customerWatched.range(low, high);
+		stageStart = endStage(metrics, Stage.HISTORY, stageStart);
 		/*
 		 * build a vector list of movies watched
 		 */
-		List<Long> thisCustomerMovieVector = makeVector(customerWatchedList);
-
+		SparseVector thisCustomerMovieVector = SparseVector.fromRatings(customerWatchedList);
 
-		Record bestMatchedCustomer = null;
-		List<Map<String, Object>> bestMatchedList = null;
-		double bestScore = 0;
 		/*
-		 * for each movie this customer watched, iterate
-		 * through the other customers that also watched
-		 * the movie 
+		 * Phase 1: for each movie this customer watched, collect
+		 * the other customers that also watched the movie. 
+		 * The movie records are read in one batch for their list sizes,
+		 * and each customer is only kept once
 		 */
-		for (Map<String, Object> wr : customerWatchedList){
-			Key movieKey = new Key(NAME_SPACE, PRODUCT_SET, (String) wr.get(MOVIE_ID) );
-			LargeList whoWatched = aerospikeClient.getLargeList(null, 
-					movieKey, 
-					WATCHED_BY+"List", null);
+		Key[] movieKeys = new Key[customerWatchedList.size()];
+		for (int index = 0; index < movieKeys.length; index++){
+			movieKeys[index] = new Key(NAME_SPACE, PRODUCT_SET, String.valueOf(customerWatchedList.movieId(index)));
+		}
+		Record[] movieRecords = aerospikeClient.get(null, movieKeys, window.bins());
+		roundTrips++;
+		Set<String> candidateIds = new LinkedHashSet<String>();
+		int candidatesSeen = 0;
+		int deduplicated = 0;
+		for (int index = 0; index < movieKeys.length; index++){
+			Key movieKey = movieKeys[index];
+			Record movieRecord = movieRecords[index];
+			int watchedSize;
+			if (movieRecord != null && movieRecord.getValue(RATINGS_COUNT) != null){
+				watchedSize = movieRecord.getInt(RATINGS_COUNT);
+			} else {
+				watchedSize = aerospikeClient.getLargeList(null, movieKey, WATCHED_BY+"List", null).size();
+				roundTrips++;
+			}
 			/* 
 			 * Some movies are watched by >100k customers, only look at the last n movies, or the 
 			 * number of customers, whichever is smaller
 			 */
-			Value watchedHigh = Value.get(whoWatched.size());
-			Value watchedLow = Value.get(Math.max(watchedHigh.toInteger() - MOVIE_REVIEW_LIMIT, 0));
-			List<Map<String, Object>> whoWatchedList = (List<Map<String, Object>>)whoWatched.range(watchedLow, watchedHigh);
+			RatingBatch whoWatchedList = latestRatings(movieKey, WATCHED_BY+"List", movieRecord, watchedSize, window);
+			roundTrips++;
 
 			if (!(whoWatchedList == null)){
-				for (Map<String, Object> watchedBy : whoWatchedList){
-					String similarCustomerId = (String) watchedBy.get(CUSTOMER_ID);
-					if (!similarCustomerId.equals(customerID)) {
-						// find user with the highest similarity
-
-						Record similarCustomer = aerospikeClient.get(policy, new Key(NAME_SPACE, USERS_SET, similarCustomerId));
-						LargeList similarCustomerWatched = aerospikeClient.getLargeList(null, 
-								new Key(NAME_SPACE, USERS_SET, similarCustomerId), 
-								CUSTOMER_WATCHED, null);
-						Value similarHigh = Value.get(similarCustomerWatched.size());
-						Value similarLow = Value.get(Math.max(similarHigh.toInteger() - MOVIE_REVIEW_LIMIT, 0));
-
-						List<Map<String, Object>> similarCustomerWatchedList = 
-									(List<Map<String, Object>>) similarCustomerWatched.range(similarLow, similarHigh);
-						
-						double score = easySimilarity(thisCustomerMovieVector, similarCustomerWatchedList);
-						if (score > bestScore){
-							bestScore = score;
-							bestMatchedCustomer = similarCustomer;
-							bestMatchedList = similarCustomerWatchedList;
-						}
+				for (int watcher = 0; watcher < whoWatchedList.size(); watcher++){
+					String similarCustomerId = String.valueOf(whoWatchedList.customerId(watcher));
+					candidatesSeen++;
+					if (!similarCustomerId.equals(customerID) && !candidateIds.add(similarCustomerId)) {
+						deduplicated++;
 					}
 				}
 			}
-			whoWatched = null;
-		}
-		log.debug("Best customer: " + bestMatchedCustomer);
-		log.debug("Best score: " + bestScore);
-		// return the best matched user's purchases as the recommendation
-		List<Integer> bestMatchedPurchases = new ArrayList<Integer>();
-		for (Map<String, Object> watched : bestMatchedList){
-			Integer movieID = Integer.parseInt((String) watched.get(MOVIE_ID));
-			if ((!thisCustomerMovieVector.contains(movieID))&&(movieID != null)){
-				bestMatchedPurchases.add(movieID);
+		}
+		metrics.candidatesDeduplicated(deduplicated);
+		stageStart = endStage(metrics, Stage.WATCHERS, stageStart);
+
+		/*
+		 * Phase 2: read the candidate customers' latest movies
+		 */
+		metrics.roundTrips(roundTrips);
+		String[] candidateIdArray = candidateIds.toArray(new String[candidateIds.size()]);
+		List<RatingBatch> candidateWatchedLists = readCandidates(candidateIdArray, window, metrics);
+		stageStart = endStage(metrics, Stage.CANDIDATES, stageStart);
+		log.debug("Candidates: " + candidatesSeen + " seen, " + candidateIdArray.length + " unique");
+
+		return recommendFromCandidates(thisCustomerMovieVector, candidateIdArray, candidateWatchedLists, 
+				neighbors, maxMovies, neighborIDs, metrics, stageStart);
+	}
+
+	/**
+	 * Phase 2 of an Aerospike recommendation: reads the candidate 
+	 * customers in one batch, then the latest movies each of them watched
+	 * @param candidateIdArray the candidate customers
+	 * @param window the ratings read from each list
+	 * @return the latest ratings of each candidate, null where a candidate was not found
+	 */
+	private List<RatingBatch> readCandidates(String[] candidateIdArray, RecencyWindow window, PipelineMetrics metrics) 
+			throws AerospikeException {
+		int roundTrips = 0;
+		Key[] candidateKeys = new Key[candidateIdArray.length];
+		for (int index = 0; index < candidateKeys.length; index++){
+			candidateKeys[index] = new Key(NAME_SPACE, USERS_SET, candidateIdArray[index]);
+		}
+		Record[] candidates = aerospikeClient.get(null, candidateKeys, window.bins());
+		roundTrips++;
+		List<RatingBatch> candidateWatchedLists = new ArrayList<RatingBatch>(candidateKeys.length);
+		int scored = 0;
+		for (int index = 0; index < candidateKeys.length; index++){
+			RatingBatch similarCustomerWatchedList = null;
+			if (candidates[index] != null){
+				similarCustomerWatchedList = latestRatings(candidateKeys[index], CUSTOMER_WATCHED, 
+						candidates[index], candidates[index].getInt(RATINGS_COUNT), window);
+				roundTrips++;
+				scored++;
 			}
+			candidateWatchedLists.add(similarCustomerWatchedList);
 		}
+		metrics.candidatesScored(scored);
+		metrics.roundTrips(roundTrips);
+		log.debug("Candidate round trips: " + roundTrips);
+		return candidateWatchedLists;
+	}
 
-		// get the movies
-		Key[] recomendedMovieKeys = new Key[bestMatchedPurchases.size()];
-		int index = 0;
-		for (int recomendedMovieID : bestMatchedPurchases){
-			recomendedMovieKeys[index] = new Key(NAME_SPACE, PRODUCT_SET, String.valueOf(recomendedMovieID));
-			log.debug("Added Movie key: " + recomendedMovieKeys[index]);
-			index++;
+	/**
+	 * Phase 3 of an Aerospike recommendation: scores the candidates, 
+	 * picks the movies and reads their titles
+	 * @param thisCustomerMovieVector
+	 * @param candidateIdArray the candidate customers
+	 * @param candidateWatchedLists the latest ratings of each candidate, null where a candidate was not found
+	 * @param neighborIDs receives the IDs of the customers the recommendation is made from
+	 * @param stageStart the time the scoring stage started
+	 * @return
+	 */
+	private JSONArray recommendFromCandidates(SparseVector thisCustomerMovieVector, String[] candidateIdArray, 
+			List<RatingBatch> candidateWatchedLists, int neighbors, int maxMovies, 
+			Set<String> neighborIDs, PipelineMetrics metrics, long stageStart){
+		NeighborRanker.Ranking ranked = NeighborRanker.rank(thisCustomerMovieVector, candidateIdArray, candidateWatchedLists, 
+				neighbors, maxMovies, neighborIDs);
+		stageStart = endStage(metrics, Stage.SCORING, stageStart);
+
+		JSONArray recommendations = getAerospikeMovies(ranked.movieIDs(), ranked.movieScores(), ranked.movieCount());
+		endStage(metrics, Stage.METADATA, stageStart);
+		return recommendations;
+	}
+
+	/**
+	 * get the recommendations of many customers from Aerospike in one pass, 
+	 * for jobs that would otherwise ask for them one at a time. 
+	 * The watchers of a movie, and the latest ratings of a customer, are read once 
+	 * however many of the customers need them, and the recommendations are the 
+	 * same as the single customer endpoint's, with which they share the cache
+	 * @param body a JSON array of customer IDs
+	 * @param neighbors k, the number of similar customers to rank movies from, 
+	 * 0 returns the unseen movies of the most similar customer
+	 * @param maxMovies n, the number of ranked movies to return
+	 * @param recent the number of most recent ratings read from each list
+	 * @param days only read the ratings of the days up to asOf, 0 for all of them
+	 * @param asOf yyyy-MM-dd, the last day of the ratings read, today if not given
+	 * @return the recommendations of each customer, the error of each customer 
+	 * that has none, and the number of database round trips
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	@RequestMapping(value="/aerospike/recommendation/batch", method=RequestMethod.POST)
+	public ResponseEntity<JSONObject> getAerospikeRecommendationsFor(@RequestBody String body,
+			@RequestParam(value="k", defaultValue="0") int neighbors,
+			@RequestParam(value="n", defaultValue="10") int maxMovies,
+			@RequestParam(value="recent", defaultValue="20") int recent,
+			@RequestParam(value="days", defaultValue="0") int days,
+			@RequestParam(value="asOf", required=false) String asOf) throws Exception {
+		JSONObject response = new JSONObject();
+		List<String> customerIDs;
+		RecencyWindow window;
+		try {
+			checkRanking(neighbors, maxMovies);
+			customerIDs = parseCustomerIDs(body);
+			window = RecencyWindow.of(recent, days, asOf);
+		} catch (IllegalArgumentException e) {
+			response.put("error", e.getMessage());
+			return new ResponseEntity<JSONObject>(response, HttpStatus.BAD_REQUEST);
+		}
+		long stamp = recommendationCache.stamp();
+		JSONObject recommendations = new JSONObject();
+		JSONObject errors = new JSONObject();
+		List<String> toFind = new ArrayList<String>();
+		for (String customerID : customerIDs){
+			Object cached = recommendationCache.get(RecommendationCache.key(window.cacheBackend(AEROSPIKE), customerID, neighbors, maxMovies));
+			if (cached != null)
+				recommendations.put(customerID, cached);
+			else
+				toFind.add(customerID);
 		}
-		Record[] recommendedMovies = aerospikeClient.get(null, recomendedMovieKeys, TITLE, YEAR_OF_RELEASE);
+		int roundTrips = 0;
+		if (!toFind.isEmpty())
+			roundTrips = findAerospikeRecommendations(toFind, neighbors, maxMovies, window, stamp, recommendations, errors);
+		response.put("recommendations", recommendations);
+		response.put("errors", errors);
+		response.put("roundTrips", roundTrips);
+		return new ResponseEntity<JSONObject>(response, HttpStatus.OK);
+	}
+
+	/**
+	 * find the recommendations of many customers in Aerospike, 
+	 * with the candidates of all the customers read at once
+	 * @param customerIDs distinct customers, none of them in the cache
+	 * @param window the ratings read from each list
+	 * @param stamp the cache stamp taken before the ratings were read
+	 * @param recommendations receives the recommendations of each customer, which are cached
+	 * @param errors receives the error of each customer without a recommendation
+	 * @return the number of database round trips
+	 */
+	@SuppressWarnings("unchecked")
+	private int findAerospikeRecommendations(List<String> customerIDs, int neighbors, int maxMovies, 
+			RecencyWindow window, long stamp, JSONObject recommendations, JSONObject errors) throws Exception {
+		log.debug("Finding recomendations for " + customerIDs.size() + " customers");
+		PipelineMetrics metrics = recommendationMetrics.pipeline(AEROSPIKE_BATCH);
+		BatchCandidateReader.Candidates batch = batchCandidateReader.read(customerIDs, window, metrics);
+		errors.putAll(batch.errors());
+
+		/*
+		 * Phase 3: score each customer's candidates
+		 */
+		for (String customerID : batch.found()){
+			String[] candidateIdArray = batch.candidateIds(customerID);
+			List<RatingBatch> candidateWatchedLists = batch.candidateWatchedLists(customerID);
+			int scored = 0;
+			for (RatingBatch similarCustomerWatchedList : candidateWatchedLists){
+				if (similarCustomerWatchedList != null)
+					scored++;
+			}
+			metrics.candidatesScored(scored);
+			Set<String> neighborIDs = new HashSet<String>();
+			JSONArray recommendation = recommendFromCandidates(batch.vector(customerID), candidateIdArray, 
+					candidateWatchedLists, neighbors, maxMovies, neighborIDs, metrics, System.nanoTime());
+			recommendationCache.put(RecommendationCache.key(window.cacheBackend(AEROSPIKE), customerID, neighbors, maxMovies), 
+					stamp, customerID, neighborIDs, recommendation);
+			recommendations.put(customerID, recommendation);
+		}
+		return batch.roundTrips();
+	}
+
+	/**
+	 * Reads the title and year of the recommended movies
+	 * @param movieIDs
+	 * @param movieScores the score of each movie, or null
+	 * @param movieCount the number of movies
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private JSONArray getAerospikeMovies(int[] movieIDs, double[] movieScores, int movieCount){
+		// get the movies, from the near cache where possible
+		List<Record> recommendedMovies = aerospikeMovieCache.get(movieIDs, movieCount);
 
 		// This is a diagnostic step
 		if (log.isDebugEnabled()){
@@ -174,56 +671,215 @@ public class RESTController {
 
 		// Turn the Aerospike records into a JSONArray
 		JSONArray recommendations = new JSONArray();
-		for (Record rec: recommendedMovies){
-			if (rec != null)
-				recommendations.add(new JSONRecord(rec));
+		for (int index = 0; index < movieCount; index++){
+			Record rec = recommendedMovies.get(index);
+			if (rec != null){
+				JSONRecord json = new JSONRecord(rec);
+				if (movieScores != null)
+					json.put(SCORE, movieScores[index]);
+				recommendations.add(json);
+			}
 		}
 		log.debug("Found these recomendations: " + recommendations);
 		return recommendations;
 	}
 	
 	
+	/**
+	 * get a recommendation for a specific customer from the similar movies,
+	 * precomputed by the item similarity job, of the movies they watched
+	 * @param user a unique ID for a customer
+	 * @param maxMovies n, the number of ranked movies to return
+	 * @return
+	 * @throws Exception
+	 */
+	@RequestMapping(value="/aerospike/similar/recommendation/{customer}", method=RequestMethod.GET)
+	public @ResponseBody JSONArray getAerospikeSimilarMoviesFor(@PathVariable("customer") String customerID,
+			@RequestParam(value="n", defaultValue="10") int maxMovies) throws Exception {
+		checkMaxMovies(maxMovies);
+		log.debug("Finding similar movies for " + customerID);
+		Key customerKey = new Key(NAME_SPACE, USERS_SET, customerID);
+		Record thisUser = aerospikeClient.get(null, customerKey, RecencyWindow.LATEST.bins());
+		if (thisUser == null){
+			log.debug("Could not find user: " + customerID );
+			throw new CustomerNotFound(customerID);
+		}
+		int size = thisUser.getInt(RATINGS_COUNT);
+		if (size==0){
+			log.debug("No movies found for customer: " + customerID );
+			throw new NoMoviesFound(customerID);
+		}
+		RatingBatch customerWatchedList = latestRatings(customerKey, CUSTOMER_WATCHED, thisUser, size, RecencyWindow.LATEST);
+		SparseVector thisCustomerMovieVector = SparseVector.fromRatings(customerWatchedList);
+
+		/*
+		 * merge the similar movies of each movie watched, 
+		 * weighted by the customer's rating of the movie
+		 */
+		Key[] movieKeys = new Key[thisCustomerMovieVector.size()];
+		for (int index = 0; index < movieKeys.length; index++){
+			movieKeys[index] = new Key(NAME_SPACE, PRODUCT_SET, String.valueOf(thisCustomerMovieVector.id(index)));
+		}
+		Record[] movieRecords = aerospikeClient.get(null, movieKeys, SimilarMovies.SIMILAR);
+		IntDoubleMap movieScores = new IntDoubleMap(movieKeys.length * MOVIE_REVIEW_LIMIT);
+		for (int index = 0; index < movieKeys.length; index++){
+			if (movieRecords[index] == null)
+				continue;
+			byte[] similar = (byte[]) movieRecords[index].getValue(SimilarMovies.SIMILAR);
+			if (similar == null)
+				continue;
+			float rating = thisCustomerMovieVector.value(index);
+			for (int i = 0; i < SimilarMovies.size(similar); i++){
+				int movieID = SimilarMovies.id(similar, i);
+				if (!thisCustomerMovieVector.contains(movieID))
+					movieScores.add(movieID, rating * SimilarMovies.score(similar, i));
+			}
+		}
+		TopK top = new TopK(maxMovies);
+		for (int slot = 0; slot < movieScores.capacity(); slot++){
+			if (movieScores.isUsed(slot))
+				top.offer(movieScores.key(slot), movieScores.value(slot));
+		}
+		int[] movieIDs = new int[maxMovies];
+		double[] scores = new double[maxMovies];
+		int movieCount = top.drainDescending(movieIDs, scores);
+		return getAerospikeMovies(movieIDs, scores, movieCount);
+	}
+
+	/**
+	 * get a recommendation for a specific customer from the latent factors
+	 * of the matrix factorization job: the unseen movies with the highest
+	 * predicted rating. The customer's ratings are the only database read,
+	 * there is no search for similar customers
+	 * @param user a unique ID for a customer
+	 * @param maxMovies n, the number of ranked movies to return
+	 * @return
+	 * @throws Exception
+	 */
+	@RequestMapping(value="/aerospike/factors/recommendation/{customer}", method=RequestMethod.GET)
+	public @ResponseBody JSONArray getAerospikeFactorRecommendationFor(@PathVariable("customer") String customerID,
+			@RequestParam(value="n", defaultValue="10") int maxMovies) throws Exception {
+		checkMaxMovies(maxMovies);
+		log.debug("Finding factor recomendations for " + customerID);
+		if (!factorRecommender.isReady())
+			throw new IllegalStateException("No latent factors, start the service with -fm <factors file>");
+		Key customerKey = new Key(NAME_SPACE, USERS_SET, customerID);
+		Record thisUser = aerospikeClient.get(null, customerKey, RATINGS_COUNT);
+		if (thisUser == null){
+			log.debug("Could not find user: " + customerID );
+			throw new CustomerNotFound(customerID);
+		}
+		/*
+		 * all the customer's ratings, to fold in their factors
+		 * and to leave out the movies they have seen
+		 */
+		@SuppressWarnings("unchecked")
+		RatingBatch history = RatingBatch.fromMaps((List<Map<String, Object>>) aerospikeClient
+				.getLargeList(null, customerKey, CUSTOMER_WATCHED, null).scan());
+		if (history == null || history.isEmpty()){
+			log.debug("No movies found for customer: " + customerID );
+			throw new NoMoviesFound(customerID);
+		}
+		int[] movieIDs = new int[history.size()];
+		float[] ratings = new float[history.size()];
+		int count = 0;
+		for (int index = 0; index < history.size(); index++){
+			movieIDs[count] = history.movieId(index);
+			ratings[count++] = history.rating(index);
+		}
+		int[] recommended = new int[maxMovies];
+		double[] scores = new double[maxMovies];
+		int movieCount = factorRecommender.recommend(movieIDs, ratings, count, maxMovies, recommended, scores);
+		return getAerospikeMovies(recommended, scores, movieCount);
+	}
+
 	/**
 	 * get a recommendation for a specific customer from MongoDB
 	 * @param user a unique ID for a customer
+	 * @param neighbors k, the number of similar customers to rank movies from, 
+	 * 0 returns the unseen movies of the most similar customer
+	 * @param maxMovies n, the number of ranked movies to return
 	 * @return
 	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
 	@RequestMapping(value="/mongo/recommendation/{customer}", method=RequestMethod.GET)
-	public @ResponseBody BasicDBList getMongoRecommendationFor(@PathVariable("customer") String customerID) throws Exception {
+	public @ResponseBody BasicDBList getMongoRecommendationFor(@PathVariable("customer") final String customerID,
+			@RequestParam(value="k", defaultValue="0") final int neighbors,
+			@RequestParam(value="n", defaultValue="10") final int maxMovies) throws Exception {
+		checkRanking(neighbors, maxMovies);
+		final String cacheKey = RecommendationCache.key(MONGO, customerID, neighbors, maxMovies);
+		BasicDBList recommendations = (BasicDBList) recommendationCache.get(cacheKey);
+		if (recommendations == null){
+			// concurrent requests for the same recommendation share one computation
+			recommendations = (BasicDBList) recommendationFlights.execute(cacheKey, new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					long stamp = recommendationCache.stamp();
+					Set<String> neighborIDs = new HashSet<String>();
+					BasicDBList found = findMongoRecommendation(customerID, neighbors, maxMovies, neighborIDs);
+					recommendationCache.put(cacheKey, stamp, customerID, neighborIDs, found);
+					return found;
+				}
+			});
+		}
+		return recommendations;
+	}
+
+	/**
+	 * find a recommendation for a specific customer in MongoDB
+	 * @param neighborIDs receives the IDs of the customers the recommendation is made from
+	 */
+	@SuppressWarnings("unchecked")
+	private BasicDBList findMongoRecommendation(String customerID, int neighbors, int maxMovies, 
+			Set<String> neighborIDs) throws Exception {
 		log.debug("Finding recomendations for " + customerID);
+		PipelineMetrics metrics = recommendationMetrics.pipeline(MONGO);
+		int roundTrips = 0;
+		long stageStart = System.nanoTime();
 
 		/* 
 		 * Get the customer's purchase history as a list of ratings
 		 */
 		BasicDBObject thisUser = null;
 		BasicDBObject whereQuery = new BasicDBObject();
-		whereQuery.put(CUSTOMER_ID, customerID);
+		whereQuery.put(MONGO_CUSTOMER_ID, customerID);
 		thisUser = (BasicDBObject) customerCollection.findOne(whereQuery);
+		roundTrips++;
 		if (thisUser == null){
 			log.debug("Could not find user: " + customerID );
+			metrics.roundTrips(roundTrips);
 			throw new CustomerNotFound(customerID);
 		}
 
 		/*
 		 * get the movies watched and rated
 		 */
-		List<Map<String, Object>> customerWatched = (List<Map<String, Object>>) thisUser.get(CUSTOMER_WATCHED);
-		if (customerWatched == null || customerWatched.size()==0){
+		RatingBatch customerWatched = RatingBatch.fromMaps((List<Map<String, Object>>) thisUser.get(CUSTOMER_WATCHED));
+		metrics.historySize(customerWatched == null ? 0 : customerWatched.size());
+		if (customerWatched == null || customerWatched.isEmpty()){
 			// customer Hasen't Watched anything
 			log.debug("No movies found for customer: " + customerID );
+			metrics.roundTrips(roundTrips);
 			throw new NoMoviesFound(customerID);
 		}
 
 		/*
 		 * build a vector list of movies watched
 		 */
-		List<Long> thisCustomerMovieVector = makeVector(customerWatched);
+		SparseVector thisCustomerMovieVector = SparseVector.fromRatings(customerWatched);
+		stageStart = endStage(metrics, Stage.HISTORY, stageStart);
 
-
-		BasicDBObject bestMatchedCustomer = null;
-		double bestScore = 0;
+		List<RatingBatch> candidateWatchedLists = new ArrayList<RatingBatch>();
+		List<String> candidateIds = new ArrayList<String>();
+		Set<String> scoredIds = new HashSet<String>();
+		int deduplicated = 0;
+		int scored = 0;
+		/*
+		 * the movie and customer reads are interleaved, so the time 
+		 * of each stage is added up as the customers are read
+		 */
+		long watchersNanos = 0;
+		long candidatesNanos = 0;
 		/*
 		 * for each movie this customer watched, iterate
 		 * through the other customers that also watched
@@ -233,12 +889,16 @@ public class RESTController {
 		BasicDBObject movieQuery = new BasicDBObject();
 		BasicDBList jsonWatched;
 		
-		for (Map<String, Object> wr : customerWatched) {
-			movieQuery.put(MOVIE_ID, wr.get(MOVIE_ID));
+		for (int movie = 0; movie < customerWatched.size(); movie++) {
+			long movieStart = System.nanoTime();
+			movieQuery.put(MONGO_MOVIE_ID, String.valueOf(customerWatched.movieId(movie)));
 			movieRecord = (BasicDBObject) movieCollection.findOne(movieQuery);
-			
+			roundTrips++;
+			watchersNanos += System.nanoTime() - movieStart;
+			if (movieRecord == null)
+				continue;
 
-			List<Map<String, Object>> whoWatched = (List<Map<String, Object>>) movieRecord.get(WATCHED_BY);
+			List<Map<String, Object>> whoWatched = (List<Map<String, Object>>) ((DBObject) movieRecord.get(MONGO_MOVIE)).get(WATCHED_BY);
 
 			if (!(whoWatched == null)){
 				int end = Math.min(MOVIE_REVIEW_LIMIT, whoWatched.size()); 
@@ -249,40 +909,279 @@ public class RESTController {
 				for (int index = 0; index < end; index++){
 					Map<String, Object> watchedBy = whoWatched.get(index);
 					String similarCustomerId = (String) watchedBy.get(CUSTOMER_ID);
-					if (!similarCustomerId.equals(customerID)) {
-						// find user with the highest similarity
-						BasicDBObject similarCustomerQuery = new BasicDBObject();
-						whereQuery.put(CUSTOMER_ID, similarCustomerId);
-						BasicDBObject similarCustomer = (BasicDBObject) customerCollection.findOne(similarCustomerQuery);
-
-						List<Map<String, Object>> similarCustomerWatched = (List<Map<String, Object>>) similarCustomer.get(CUSTOMER_WATCHED);
-						double score = easySimilarity(thisCustomerMovieVector, similarCustomerWatched);
-						if (score > bestScore){
-							bestScore = score;
-							bestMatchedCustomer = similarCustomer;
-						}
+					if (similarCustomerId.equals(customerID))
+						continue;
+					if (!scoredIds.add(similarCustomerId)){
+						deduplicated++;
+						continue;
 					}
+					// find user with the highest similarity
+					long fetchStart = System.nanoTime();
+					BasicDBObject similarCustomerQuery = new BasicDBObject();
+					similarCustomerQuery.put(MONGO_CUSTOMER_ID, similarCustomerId);
+					BasicDBObject similarCustomer = (BasicDBObject) customerCollection.findOne(similarCustomerQuery);
+					roundTrips++;
+					candidatesNanos += System.nanoTime() - fetchStart;
+					if (similarCustomer == null)
+						continue;
+					scored++;
+
+					RatingBatch similarCustomerWatched = RatingBatch.fromMaps((List<Map<String, Object>>) similarCustomer.get(CUSTOMER_WATCHED));
+					if (similarCustomerWatched == null)
+						similarCustomerWatched = new RatingBatch(0);
+					candidateWatchedLists.add(similarCustomerWatched);
+					candidateIds.add(similarCustomerId);
 				}
 			}
 		}
-		log.debug("Best customer: " + bestMatchedCustomer);
-		log.debug("Best score: " + bestScore);
-		// return the best matched user's purchases as the recommendation
-		List<Integer> bestMatchedPurchases = new ArrayList<Integer>();
-		for (Map<String, Object> watched : (List<Map<String, Object>>)bestMatchedCustomer.get(CUSTOMER_WATCHED)){
-			Integer movieID = Integer.parseInt((String) watched.get(MOVIE_ID));
-			if ((!thisCustomerMovieVector.contains(movieID))&&(movieID != null)){
-				bestMatchedPurchases.add(movieID);
+		metrics.candidatesDeduplicated(deduplicated);
+		metrics.candidatesScored(scored);
+		metrics.time(Stage.WATCHERS, watchersNanos);
+		metrics.time(Stage.CANDIDATES, candidatesNanos);
+		metrics.roundTrips(roundTrips);
+
+		long rankStart = System.nanoTime();
+		NeighborRanker.Ranking ranked = NeighborRanker.rank(thisCustomerMovieVector, 
+				candidateIds.toArray(new String[candidateIds.size()]), candidateWatchedLists, 
+				neighbors, maxMovies, neighborIDs);
+		long metadataStart = endStage(metrics, Stage.SCORING, rankStart);
+
+		BasicDBList recommendations = getMongoMovies(ranked.movieIDs(), ranked.movieScores(), ranked.movieCount());
+		endStage(metrics, Stage.METADATA, metadataStart);
+		return recommendations;
+	}
+
+	/**
+	 * get the recommendations of many customers from MongoDB in one pass, 
+	 * as POST /aerospike/recommendation/batch does from Aerospike
+	 * @param body a JSON array of customer IDs
+	 * @param neighbors k, the number of similar customers to rank movies from, 
+	 * 0 returns the unseen movies of the most similar customer
+	 * @param maxMovies n, the number of ranked movies to return
+	 * @return the recommendations of each customer, the error of each customer 
+	 * that has none, and the number of database round trips
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	@RequestMapping(value="/mongo/recommendation/batch", method=RequestMethod.POST)
+	public ResponseEntity<JSONObject> getMongoRecommendationsFor(@RequestBody String body,
+			@RequestParam(value="k", defaultValue="0") int neighbors,
+			@RequestParam(value="n", defaultValue="10") int maxMovies) throws Exception {
+		JSONObject response = new JSONObject();
+		List<String> customerIDs;
+		try {
+			checkRanking(neighbors, maxMovies);
+			customerIDs = parseCustomerIDs(body);
+		} catch (IllegalArgumentException e) {
+			response.put("error", e.getMessage());
+			return new ResponseEntity<JSONObject>(response, HttpStatus.BAD_REQUEST);
+		}
+		long stamp = recommendationCache.stamp();
+		JSONObject recommendations = new JSONObject();
+		JSONObject errors = new JSONObject();
+		List<String> toFind = new ArrayList<String>();
+		for (String customerID : customerIDs){
+			Object cached = recommendationCache.get(RecommendationCache.key(MONGO, customerID, neighbors, maxMovies));
+			if (cached != null)
+				recommendations.put(customerID, cached);
+			else
+				toFind.add(customerID);
+		}
+		int roundTrips = 0;
+		if (!toFind.isEmpty())
+			roundTrips = findMongoRecommendations(toFind, neighbors, maxMovies, stamp, recommendations, errors);
+		response.put("recommendations", recommendations);
+		response.put("errors", errors);
+		response.put("roundTrips", roundTrips);
+		return new ResponseEntity<JSONObject>(response, HttpStatus.OK);
+	}
+
+	/**
+	 * find the recommendations of many customers in MongoDB. The customers, 
+	 * their movies and the candidates are each read with $in queries, 
+	 * and a movie or a candidate shared by several customers is read once
+	 * @param customerIDs distinct customers, none of them in the cache
+	 * @param stamp the cache stamp taken before the ratings were read
+	 * @param recommendations receives the recommendations of each customer, which are cached
+	 * @param errors receives the error of each customer without a recommendation
+	 * @return the number of database round trips
+	 */
+	@SuppressWarnings("unchecked")
+	private int findMongoRecommendations(List<String> customerIDs, int neighbors, int maxMovies, long stamp,
+			JSONObject recommendations, JSONObject errors) throws Exception {
+		log.debug("Finding recomendations for " + customerIDs.size() + " customers");
+		PipelineMetrics metrics = recommendationMetrics.pipeline(MONGO_BATCH);
+		int roundTrips = 0;
+		long stageStart = System.nanoTime();
+
+		/* 
+		 * Get each customer's purchase history as a list of ratings. 
+		 * The histories read are kept for Phase 2, where a customer 
+		 * may be another customer's candidate
+		 */
+		Map<String, RatingBatch> watchedLists = new HashMap<String, RatingBatch>();
+		roundTrips += findWatched(customerIDs, watchedLists);
+		List<String> found = new ArrayList<String>(customerIDs.size());
+		for (String customerID : customerIDs){
+			RatingBatch customerWatched = watchedLists.get(customerID);
+			if (customerWatched == null){
+				errors.put(customerID, new CustomerNotFound(customerID).getMessage());
+			} else if (customerWatched.isEmpty()){
+				errors.put(customerID, new NoMoviesFound(customerID).getMessage());
+			} else {
+				metrics.historySize(customerWatched.size());
+				found.add(customerID);
+			}
+		}
+		stageStart = endStage(metrics, Stage.HISTORY, stageStart);
+
+		/*
+		 * Phase 1: read the first MOVIE_REVIEW_LIMIT watchers of each distinct 
+		 * movie the customers watched, then collect each customer's candidates
+		 */
+		Set<Object> movieIDs = new LinkedHashSet<Object>();
+		for (String customerID : found){
+			RatingBatch customerWatched = watchedLists.get(customerID);
+			for (int movie = 0; movie < customerWatched.size(); movie++)
+				movieIDs.add(String.valueOf(customerWatched.movieId(movie)));
+		}
+		Map<Object, List<Map<String, Object>>> watchers = new HashMap<Object, List<Map<String, Object>>>();
+		BasicDBObject movieFields = new BasicDBObject(MONGO_MOVIE_ID, 1)
+				.append(MONGO_MOVIE + "." + WATCHED_BY, new BasicDBObject("$slice", MOVIE_REVIEW_LIMIT));
+		for (List<Object> chunk : chunks(new ArrayList<Object>(movieIDs))){
+			DBCursor movieRecords = movieCollection.find(new BasicDBObject(MONGO_MOVIE_ID, new BasicDBObject("$in", chunk)), movieFields);
+			roundTrips++;
+			try {
+				for (DBObject movieRecord : movieRecords){
+					DBObject movie = (DBObject) movieRecord.get(MONGO_MOVIE);
+					watchers.put(movie.get(Movie.MOVIE_ID), (List<Map<String, Object>>) movie.get(WATCHED_BY));
+				}
+			} finally {
+				movieRecords.close();
 			}
 		}
+		Map<String, String[]> candidatesOf = new HashMap<String, String[]>();
+		Set<String> allCandidateIds = new LinkedHashSet<String>();
+		int deduplicated = 0;
+		for (String customerID : found){
+			Set<String> candidateIds = new LinkedHashSet<String>();
+			RatingBatch customerWatched = watchedLists.get(customerID);
+			for (int movie = 0; movie < customerWatched.size(); movie++){
+				List<Map<String, Object>> whoWatched = watchers.get(String.valueOf(customerWatched.movieId(movie)));
+				if (whoWatched == null)
+					continue;
+				for (Map<String, Object> watchedBy : whoWatched){
+					String similarCustomerId = (String) watchedBy.get(CUSTOMER_ID);
+					if (!similarCustomerId.equals(customerID) && !candidateIds.add(similarCustomerId)) {
+						deduplicated++;
+					}
+				}
+			}
+			candidatesOf.put(customerID, candidateIds.toArray(new String[candidateIds.size()]));
+			allCandidateIds.addAll(candidateIds);
+		}
+		metrics.candidatesDeduplicated(deduplicated);
+		stageStart = endStage(metrics, Stage.WATCHERS, stageStart);
 
-		// get the movies
+		/*
+		 * Phase 2: read the history of each distinct candidate 
+		 * that is not one of the customers, whose are already read
+		 */
+		List<String> unread = new ArrayList<String>();
+		for (String candidateId : allCandidateIds){
+			if (!watchedLists.containsKey(candidateId))
+				unread.add(candidateId);
+		}
+		roundTrips += findWatched(unread, watchedLists);
+		metrics.roundTrips(roundTrips);
+		stageStart = endStage(metrics, Stage.CANDIDATES, stageStart);
+		log.debug("Candidates: " + allCandidateIds.size() + " unique, " + unread.size() + " read");
+
+		/*
+		 * Phase 3: score each customer's candidates
+		 */
+		for (String customerID : found){
+			long scoreStart = System.nanoTime();
+			String[] candidateIdArray = candidatesOf.get(customerID);
+			List<RatingBatch> candidateWatchedLists = new ArrayList<RatingBatch>(candidateIdArray.length);
+			int scored = 0;
+			for (String candidateId : candidateIdArray){
+				RatingBatch similarCustomerWatched = watchedLists.get(candidateId);
+				if (similarCustomerWatched != null)
+					scored++;
+				candidateWatchedLists.add(similarCustomerWatched);
+			}
+			metrics.candidatesScored(scored);
+			Set<String> neighborIDs = new HashSet<String>();
+			NeighborRanker.Ranking ranked = NeighborRanker.rank(SparseVector.fromRatings(watchedLists.get(customerID)), candidateIdArray, 
+					candidateWatchedLists, neighbors, maxMovies, neighborIDs);
+			long metadataStart = endStage(metrics, Stage.SCORING, scoreStart);
+			BasicDBList recommendation = getMongoMovies(ranked.movieIDs(), ranked.movieScores(), ranked.movieCount());
+			endStage(metrics, Stage.METADATA, metadataStart);
+			recommendationCache.put(RecommendationCache.key(MONGO, customerID, neighbors, maxMovies), 
+					stamp, customerID, neighborIDs, recommendation);
+			recommendations.put(customerID, recommendation);
+		}
+		return roundTrips;
+	}
+
+	/**
+	 * Reads the histories of customers with $in queries
+	 * @param customerIDs the customers to read
+	 * @param watchedLists receives the history of each customer found, empty if they have none
+	 * @return the number of database round trips
+	 */
+	@SuppressWarnings("unchecked")
+	private int findWatched(List<String> customerIDs, Map<String, RatingBatch> watchedLists){
+		int roundTrips = 0;
+		BasicDBObject customerFields = new BasicDBObject(MONGO_CUSTOMER_ID, 1).append(CUSTOMER_WATCHED, 1);
+		for (List<String> chunk : chunks(customerIDs)){
+			DBCursor customers = customerCollection.find(new BasicDBObject(MONGO_CUSTOMER_ID, new BasicDBObject("$in", chunk)), customerFields);
+			roundTrips++;
+			try {
+				for (DBObject customer : customers){
+					RatingBatch watched = RatingBatch.fromMaps((List<Map<String, Object>>) customer.get(CUSTOMER_WATCHED));
+					if (watched == null)
+						watched = new RatingBatch(0);
+					watchedLists.put(String.valueOf(customer.get(MONGO_CUSTOMER_ID)), watched);
+				}
+			} finally {
+				customers.close();
+			}
+		}
+		return roundTrips;
+	}
+
+	/**
+	 * Splits the values of an $in query into chunks of at most IN_LIMIT
+	 */
+	private static <T> List<List<T>> chunks(List<T> values){
+		List<List<T>> chunks = new ArrayList<List<T>>();
+		for (int from = 0; from < values.size(); from += IN_LIMIT)
+			chunks.add(values.subList(from, Math.min(from + IN_LIMIT, values.size())));
+		return chunks;
+	}
+
+	/**
+	 * Reads the recommended movies, in the order given
+	 * @param movieIDs
+	 * @param movieScores the score of each movie, or null
+	 * @param movieCount the number of movies
+	 * @return
+	 */
+	private BasicDBList getMongoMovies(int[] movieIDs, double[] movieScores, int movieCount){
+		// get the movies, from the near cache where possible
+		List<DBObject> found = mongoMovieCache.get(movieIDs, movieCount);
 		BasicDBList recommendedMovies = new BasicDBList();
-		BasicDBObject inQuery = new BasicDBObject();
-		inQuery.put(MOVIE_ID, new BasicDBObject("$in", bestMatchedPurchases));
-		DBCursor cursor = movieCollection.find(inQuery);
-		while(cursor.hasNext()) {
-			recommendedMovies.add(cursor.next());
+		for (int index = 0; index < movieCount; index++){
+			DBObject cached = found.get(index);
+			if (cached != null){
+				// copy the cached movie before adding the score
+				BasicDBObject movie = new BasicDBObject(cached.toMap());
+				if (movieScores != null)
+					movie.put(SCORE, movieScores[index]);
+				recommendedMovies.add(movie);
+			}
 		}
 
 		// This is a diagnostic step
@@ -296,17 +1195,330 @@ public class RESTController {
 		return recommendedMovies;
 	}
 	/**
-	 * Produces a Integer vector from the movie IDs
+	 * the recommendation and movie cache counters, the request coalescing counters,
+	 * and the counters of the recommendations served precomputed
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	@RequestMapping(value="/cache/stats", method=RequestMethod.GET)
+	public @ResponseBody JSONObject getCacheStats() {
+		JSONObject stats = recommendationCache.stats();
+		stats.put("coalescing", recommendationFlights.stats());
+		stats.put("precomputed", precomputedRecommendations.stats());
+		stats.put("aerospikeMovies", aerospikeMovieCache.stats());
+		stats.put("mongoMovies", mongoMovieCache.stats());
+		return stats;
+	}
+
+	/**
+	 * the per-stage timers and counters of the Aerospike and MongoDB recommendations,
+	 * in the Prometheus text format
+	 * @return
+	 * @throws IOException
+	 */
+	@RequestMapping(value="/metrics", method=RequestMethod.GET, produces=RecommendationMetrics.CONTENT_TYPE)
+	public @ResponseBody String getMetrics() throws IOException {
+		StringWriter out = new StringWriter();
+		recommendationMetrics.write(out);
+		return out.toString();
+	}
+
+	/**
+	 * get a recommendation for a specific customer from the in-memory rating index
+	 * @param user a unique ID for a customer
+	 * @return
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	@RequestMapping(value="/local/recommendation/{customer}", method=RequestMethod.GET)
+	public @ResponseBody JSONArray getLocalRecommendationFor(@PathVariable("customer") String customerID) throws Exception {
+		log.debug("Finding recomendations for " + customerID);
+		int customer;
+		try {
+			customer = Integer.parseInt(customerID);
+		} catch (NumberFormatException e){
+			throw new CustomerNotFound(customerID, e);
+		}
+		int[] recommendedMovies = localRecommender.recommend(customer);
+
+		// Turn the movies into a JSONArray
+		RatingIndex index = localRecommender.getIndex();
+		JSONArray recommendations = new JSONArray();
+		for (int movie : recommendedMovies){
+			JSONObject rec = new JSONObject();
+			rec.put(MOVIE_ID, String.valueOf(index.movieId(movie)));
+			rec.put(TITLE, index.title(movie));
+			rec.put(YEAR_OF_RELEASE, index.yearOfRelease(movie));
+			recommendations.add(rec);
+		}
+		log.debug("Found these recomendations: " + recommendations);
+		return recommendations;
+	}
+	/**
+	 * get a recommendation for a specific customer from the memory mapped rating snapshot
+	 * @param user a unique ID for a customer
+	 * @return
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	@RequestMapping(value="/snapshot/recommendation/{customer}", method=RequestMethod.GET)
+	public @ResponseBody JSONArray getSnapshotRecommendationFor(@PathVariable("customer") String customerID) throws Exception {
+		log.debug("Finding recomendations for " + customerID);
+		int customer;
+		try {
+			customer = Integer.parseInt(customerID);
+		} catch (NumberFormatException e){
+			throw new CustomerNotFound(customerID, e);
+		}
+		int[] recommendedMovies = snapshotRecommender.recommend(customer);
+
+		// Turn the movies into a JSONArray
+		RatingSnapshot snapshot = snapshotRecommender.getSnapshot();
+		JSONArray recommendations = new JSONArray();
+		for (int movie : recommendedMovies){
+			JSONObject rec = new JSONObject();
+			rec.put(MOVIE_ID, String.valueOf(snapshot.movieId(movie)));
+			rec.put(TITLE, snapshot.title(movie));
+			rec.put(YEAR_OF_RELEASE, snapshot.yearOfRelease(movie));
+			recommendations.add(rec);
+		}
+		log.debug("Found these recomendations: " + recommendations);
+		return recommendations;
+	}
+
+	/**
+	 * readiness of the memory mapped rating snapshot
+	 * @return the version and size of the snapshot, with status 503 if no snapshot is mapped
+	 */
+	@SuppressWarnings("unchecked")
+	@RequestMapping(value="/snapshot/ready", method=RequestMethod.GET)
+	public ResponseEntity<JSONObject> getSnapshotReady() {
+		JSONObject ready = new JSONObject();
+		ready.put("ready", snapshotRecommender.isReady());
+		if (!snapshotRecommender.isReady())
+			return new ResponseEntity<JSONObject>(ready, HttpStatus.SERVICE_UNAVAILABLE);
+		RatingSnapshot snapshot = snapshotRecommender.getSnapshot();
+		ready.put("file", snapshotRecommender.getFile().getPath());
+		ready.put("version", snapshot.version());
+		ready.put("bytes", snapshot.size());
+		ready.put("created", snapshot.created());
+		ready.put("movies", snapshot.movieCount());
+		ready.put("customers", snapshot.customerCount());
+		ready.put("ratings", snapshot.ratingCount());
+		return new ResponseEntity<JSONObject>(ready, HttpStatus.OK);
+	}
+
+	/**
+	 * add a rating to the movie's and the customer's watched lists. The rating
+	 * is written with the other ratings submitted at about the same time, and
+	 * is in the recommendations made once the response is returned
+	 * @param body {"customer-id": "1488844", "movie-id": "1", "rating": 3, "date": "2005-09-06"},
+	 * the date defaults to today
+	 * @return status 201 if the rating was added, with the writes that failed if it was
+	 * not added to all its lists, 400 if it is not valid, 422 if it could not be added,
+	 * such as for a movie that is not loaded
+	 * @throws InterruptedException
+	 */
+	@SuppressWarnings("unchecked")
+	@RequestMapping(value="/ratings", method=RequestMethod.POST)
+	public ResponseEntity<JSONObject> addRating(@RequestBody String body) throws InterruptedException {
+		JSONObject response = new JSONObject();
+		WatchedRated rating;
+		try {
+			rating = parseRating(body);
+		} catch (IllegalArgumentException e) {
+			response.put("error", e.getMessage());
+			return new ResponseEntity<JSONObject>(response, HttpStatus.BAD_REQUEST);
+		}
+		RatingIngester.Commit commit = ratingIngester.submit(Collections.singletonList(rating));
+		if (!commit.await(ingestTimeout, TimeUnit.MILLISECONDS)){
+			response.put("error", "Timed out after " + ingestTimeout + " ms, the rating may still be added");
+			return new ResponseEntity<JSONObject>(response, HttpStatus.SERVICE_UNAVAILABLE);
+		}
+		if (commit.getAccepted() == 0){
+			response.put("error", commit.getRejections().get(0));
+			return new ResponseEntity<JSONObject>(response, HttpStatus.UNPROCESSABLE_ENTITY);
+		}
+		response.put("accepted", 1);
+		if (!commit.getFailures().isEmpty())
+			response.put("incomplete", commit.getFailures().get(0));
+		return new ResponseEntity<JSONObject>(response, HttpStatus.CREATED);
+	}
+
+	/**
+	 * add ratings, one JSON rating per line as in POST /ratings. The valid lines are
+	 * added even if others are not, and the lines that were not added are listed
+	 * @return the number of ratings added and rejected, the error of each line rejected,
+	 * and the writes that failed of each line added but not to all its lists
+	 * @throws InterruptedException
+	 */
+	@SuppressWarnings("unchecked")
+	@RequestMapping(value="/ratings/batch", method=RequestMethod.POST)
+	public ResponseEntity<JSONObject> addRatings(@RequestBody String body) throws InterruptedException {
+		List<WatchedRated> ratings = new ArrayList<WatchedRated>();
+		List<Integer> lineNumbers = new ArrayList<Integer>();
+		JSONArray errors = new JSONArray();
+		String[] lines = body.split("\r?\n");
+		for (int line = 0; line < lines.length; line++){
+			if (lines[line].trim().isEmpty())
+				continue;
+			try {
+				ratings.add(parseRating(lines[line]));
+				lineNumbers.add(line + 1);
+			} catch (IllegalArgumentException e) {
+				errors.add(lineError(line + 1, e.getMessage()));
+			}
+		}
+		JSONObject response = new JSONObject();
+		RatingIngester.Commit commit = ratingIngester.submit(ratings);
+		if (!commit.await(ingestTimeout, TimeUnit.MILLISECONDS)){
+			response.put("error", "Timed out after " + ingestTimeout + " ms, the ratings may still be added");
+			return new ResponseEntity<JSONObject>(response, HttpStatus.SERVICE_UNAVAILABLE);
+		}
+		for (Map.Entry<Integer, String> rejection : commit.getRejections().entrySet())
+			errors.add(lineError(lineNumbers.get(rejection.getKey()), rejection.getValue()));
+		JSONArray incomplete = new JSONArray();
+		for (Map.Entry<Integer, String> failure : commit.getFailures().entrySet())
+			incomplete.add(lineError(lineNumbers.get(failure.getKey()), failure.getValue()));
+		response.put("accepted", commit.getAccepted());
+		response.put("rejected", errors.size());
+		response.put("errors", errors);
+		response.put("incomplete", incomplete);
+		return new ResponseEntity<JSONObject>(response, HttpStatus.OK);
+	}
+
+	/**
+	 * the rating ingestion counters
+	 * @return
+	 */
+	@RequestMapping(value="/ratings/stats", method=RequestMethod.GET)
+	public @ResponseBody JSONObject getRatingStats() {
+		return ratingIngester.stats();
+	}
+
+	/**
+	 * Reads a rating posted as JSON
+	 * @throws IllegalArgumentException if it is not JSON, or not a valid rating
+	 */
+	private static WatchedRated parseRating(String json) {
+		Object parsed;
+		try {
+			parsed = new JSONParser().parse(json);
+		} catch (org.json.simple.parser.ParseException e) {
+			throw new IllegalArgumentException("Not JSON: " + e);
+		}
+		if (!(parsed instanceof JSONObject))
+			throw new IllegalArgumentException("Not a JSON object: " + json);
+		JSONObject rating = (JSONObject) parsed;
+		Object customerID = rating.get(CUSTOMER_ID);
+		Object movieID = rating.get(MOVIE_ID);
+		Object value = rating.get(RATING);
+		Object date = rating.get(DATE);
+		if (!(value instanceof Long))
+			throw new IllegalArgumentException("The " + RATING + " must be a whole number 1-5");
+		return RatingIngester.rating((customerID == null) ? null : customerID.toString(),
+				(movieID == null) ? null : movieID.toString(),
+				(Long) value,
+				(date == null) ? null : date.toString());
+	}
+
+	/**
+	 * Checks the k and n of a recommendation request
+	 * @throws InvalidParameter if k is not 0-MAX_NEIGHBORS, or n is not 1-MAX_MOVIES
+	 */
+	static void checkRanking(int neighbors, int maxMovies) {
+		if (neighbors < 0 || neighbors > MAX_NEIGHBORS)
+			throw new InvalidParameter("k must be 0-" + MAX_NEIGHBORS + ": " + neighbors);
+		checkMaxMovies(maxMovies);
+	}
+
+	/**
+	 * Checks the n of a recommendation request
+	 * @throws InvalidParameter if n is not 1-MAX_MOVIES
+	 */
+	static void checkMaxMovies(int maxMovies) {
+		if (maxMovies < 1 || maxMovies > MAX_MOVIES)
+			throw new InvalidParameter("n must be 1-" + MAX_MOVIES + ": " + maxMovies);
+	}
+
+	/**
+	 * Answers a request with a parameter out of range with status 400
+	 */
+	@SuppressWarnings("unchecked")
+	@ExceptionHandler(InvalidParameter.class)
+	public ResponseEntity<JSONObject> invalidParameter(InvalidParameter e) {
+		JSONObject response = new JSONObject();
+		response.put("error", e.getMessage());
+		return new ResponseEntity<JSONObject>(response, HttpStatus.BAD_REQUEST);
+	}
+
+	/**
+	 * Reads the customers of a batch recommendation request
+	 * @param json a JSON array of customer IDs, as strings or numbers
+	 * @return the distinct customer IDs, in the order given
+	 * @throws IllegalArgumentException if it is not a JSON array, or has too many customers
+	 */
+	private static List<String> parseCustomerIDs(String json) {
+		Object parsed;
+		try {
+			parsed = new JSONParser().parse(json);
+		} catch (org.json.simple.parser.ParseException e) {
+			throw new IllegalArgumentException("Not JSON: " + e);
+		}
+		if (!(parsed instanceof JSONArray))
+			throw new IllegalArgumentException("Not a JSON array of customer IDs: " + json);
+		Set<String> customerIDs = new LinkedHashSet<String>();
+		for (Object customerID : (JSONArray) parsed){
+			if (customerID == null)
+				throw new IllegalArgumentException("A customer ID is null");
+			customerIDs.add(customerID.toString());
+		}
+		if (customerIDs.size() > batchLimit)
+			throw new IllegalArgumentException(customerIDs.size() + " customers, the most in one request is " + batchLimit);
+		return new ArrayList<String>(customerIDs);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject lineError(int line, String error) {
+		JSONObject lineError = new JSONObject();
+		lineError.put("line", line);
+		lineError.put("error", error);
+		return lineError;
+	}
+
+	/**
+	 * Records the time of a stage
+	 * @param stageStart the time the stage started
+	 * @return the time the stage ended, the start of the next stage
+	 */
+	private static long endStage(PipelineMetrics metrics, Stage stage, long stageStart){
+		long now = System.nanoTime();
+		metrics.time(stage, now - stageStart);
+		return now;
+	}
+
+	/**
+	 * Reads the latest entries of a Large List in a window, with one range read
+	 * @param key the record holding the list
+	 * @param binName the list bin
+	 * @param record the record, read with the window's bins, or null
+	 * @param size the number of entries in the list
+	 * @param window the entries to read
+	 * @return the ratings, empty without a read if none are in the window
+	 */
+	private RatingBatch latestRatings(Key key, String binName, Record record, int size, RecencyWindow window){
+		return window.read(aerospikeClient.getLargeList(null, key, binName, null), record, size);
+	}
+	/**
+	 * Produces a vector of movie ID and rating pairs
 	 * @param ratingList
 	 * @return
 	 */
-	private List<Long> makeVector(List<Map<String, Object>> ratingList){
+	static List<Long> makeVector(List<Map<String, Object>> ratingList){
 		List<Long> movieVector = new ArrayList<Long>();
 		for (Map<String, Object> one : ratingList){
 			String movieString = (String)one.get(MOVIE_ID);
-			if (movieString == null)
-				movieVector.add(0L);
-			else {
+			if (movieString != null) {
 				// Ad the movie ID and rating to the vector
 				movieVector.add(Long.parseLong(movieString)); // Movie ID
 				movieVector.add((Long)one.get(RATING)); // Customer Rating
@@ -315,24 +1527,23 @@ public class RESTController {
 		return movieVector;
 	}
 	/**
-	 * This is a very rudimentary algorithm using Cosine similarity
-	 * @param customerWatched
+	 * The similarity of two customers, as scored by the NeighborRanker
+	 * @param thisCustomerVector
+	 * @param similarCustomerVector
+	 * @return
+	 */
+	public double easySimilarity(SparseVector thisCustomerVector, SparseVector similarCustomerVector){
+		return NeighborRanker.similarity(thisCustomerVector, similarCustomerVector);
+	}
+	/**
+	 * Similarity of a vector made by makeVector() and a list of ratings
+	 * @param thisCustomerVector
 	 * @param similarCustomerWatched
 	 * @return
 	 */
 	public double easySimilarity(List<Long> thisCustomerVector, List<Map<String, Object>> similarCustomerWatched){
-		double incommon = 0;
-		/*
-		 * this is the place where you can create clever
-		 * similarity score.
-		 * 
-		 * This algorithm simple returns how many movies these customers have in common.
-		 * 
-		 * You could use any similarity algorithm you wish
-		 */
-		List<Long> similarCustomerVector = makeVector(similarCustomerWatched);
-
-		return CosineSimilarity.cosineSimilarity(thisCustomerVector, similarCustomerVector);
+		return easySimilarity(SparseVector.fromInterleaved(thisCustomerVector), 
+				SparseVector.fromRatings(similarCustomerWatched));
 	}
 
 }
@@ -0,0 +1,191 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.client.Record;
+import com.aerospike.client.Value;
+import com.aerospike.client.large.LargeList;
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+import com.aerospike.recommendation.dataimport.model.TimeIndex;
+import com.aerospike.recommendation.snapshot.RatingSnapshot;
+
+/**
+ * The ratings of each watched and watchedBy list a neighbor recommendation
+ * is made from: the most recent, up to a limit, and of those only the ones
+ * dated in a window of days, if the request asks for one.
+ *
+ * The list entries are keyed by date, so either is one range of list keys.
+ * The first day of the range is found in the time index of the list, read
+ * with its ratings count, and the latest ratings of the range are kept.
+ *
+ * A list of a database loaded before its entries were keyed by date has no
+ * time index of all its ratings, and its keys are their positions: its latest
+ * ratings are the last ones added, and a window of days is chosen from all
+ * of the list.
+ * @author peter
+ *
+ */
+public final class RecencyWindow {
+	/**
+	 * the most ratings a request may read from one list
+	 */
+	public static final int MAX_LIMIT = 1000;
+	/**
+	 * The latest MOVIE_REVIEW_LIMIT ratings of each list, whatever their date
+	 */
+	public static final RecencyWindow LATEST = latest(RESTController.MOVIE_REVIEW_LIMIT);
+	private static final String[] BINS = {RESTController.RATINGS_COUNT, TimeIndex.DAYS};
+
+	private final int limit;
+	private final int fromDay;
+	private final int toDay;
+
+	/**
+	 * @param fromDay the first day of the window, RatingBatch.NO_DATE for none
+	 * @param toDay the last day of the window, RatingBatch.NO_DATE for none
+	 */
+	private RecencyWindow(int limit, int fromDay, int toDay) {
+		this.limit = limit;
+		this.fromDay = fromDay;
+		this.toDay = toDay;
+	}
+
+	/**
+	 * @param limit the number of latest ratings read from a list
+	 * @return the latest ratings of each list, whatever their date
+	 */
+	public static RecencyWindow latest(int limit) {
+		return new RecencyWindow(limit, RatingBatch.NO_DATE, RatingBatch.NO_DATE);
+	}
+
+	/**
+	 * Reads the window of a request
+	 * @param limit the most recent ratings read from a list, 1 to MAX_LIMIT
+	 * @param days the number of days up to asOf, 0 for all of them
+	 * @param asOf yyyy-MM-dd, the last day of the window, null for today
+	 * @throws InvalidParameter if a value is out of range
+	 */
+	public static RecencyWindow of(int limit, int days, String asOf) {
+		if (limit < 1 || limit > MAX_LIMIT)
+			throw new InvalidParameter("recent must be 1-" + MAX_LIMIT + ": " + limit);
+		if (days < 0)
+			throw new InvalidParameter("days must not be negative: " + days);
+		if (days == 0 && asOf == null)
+			return (limit == LATEST.limit) ? LATEST : latest(limit);
+		int toDay;
+		if (asOf == null)
+			toDay = (int) (System.currentTimeMillis() / TimeUnit.DAYS.toMillis(1));
+		else {
+			try {
+				toDay = RatingSnapshot.epochDay(asOf);
+			} catch (IllegalArgumentException e) {
+				throw new InvalidParameter("asOf must be yyyy-MM-dd: " + asOf, e);
+			}
+		}
+		if (toDay > Short.MAX_VALUE)
+			throw new InvalidParameter("asOf must be before " + RatingSnapshot.date(Short.MAX_VALUE) + ": " + asOf);
+		return new RecencyWindow(limit, (days == 0) ? RatingBatch.NO_DATE : Math.max(toDay - days + 1, Short.MIN_VALUE + 1), toDay);
+	}
+
+	/**
+	 * @return true if only the ratings of some days are read
+	 */
+	public boolean isTimed() {
+		return toDay != RatingBatch.NO_DATE;
+	}
+
+	/**
+	 * @return true if this is the window of a request without one,
+	 * which the recommendation job and cached recommendations are made with
+	 */
+	public boolean isLatest() {
+		return !isTimed() && limit == LATEST.limit;
+	}
+
+	/**
+	 * @return the bins to read from the record of a list
+	 */
+	public String[] bins() {
+		return BINS;
+	}
+
+	/**
+	 * @return the backend of the cache key of a recommendation made from this window
+	 */
+	public String cacheBackend(String backend) {
+		if (isLatest())
+			return backend;
+		return backend + "/" + limit + (isTimed() ? "/" + fromDay + "-" + toDay : "");
+	}
+
+	/**
+	 * Reads the ratings of a list in the window, with one range read
+	 * @param list the list
+	 * @param record the record of the list, read with bins(), or null
+	 * @param size the number of ratings in the list
+	 * @return the ratings, oldest first, empty without a read if none are in the window
+	 */
+	@SuppressWarnings("unchecked")
+	public RatingBatch read(LargeList list, Record record, int size) {
+		if (size <= 0)
+			return new RatingBatch(0);
+		TimeIndex index = TimeIndex.of(record, size);
+		if (index == null) {
+			// keyed by position, from before the entries were keyed by date
+			if (isTimed())
+				return select(RatingBatch.fromMaps((List<Map<String, Object>>) list.scan()));
+			return RatingBatch.fromMaps((List<Map<String, Object>>) list.range(
+					Value.get(Math.max(size - limit, 0)), Value.get(size)));
+		}
+		/*
+		 * a window of days leaves out the ratings without a date
+		 */
+		int from = isTimed() ? Math.max(fromDay, RatingBatch.NO_DATE + 1) : RatingBatch.NO_DATE;
+		int to = isTimed() ? toDay : Short.MAX_VALUE;
+		long low = index.firstKey(from, to, limit);
+		if (low == TimeIndex.NONE)
+			return new RatingBatch(0);
+		return latest(RatingBatch.fromMaps((List<Map<String, Object>>) list.range(
+				Value.get(low), Value.get(TimeIndex.lastKey(to)))));
+	}
+
+	/**
+	 * Chooses the window from all the ratings of a list keyed by position.
+	 * A rating without a date is the oldest, and in no window of days
+	 * @return the latest ratings of the window, oldest first
+	 */
+	RatingBatch select(RatingBatch ratings) {
+		RatingBatch window = new RatingBatch(ratings.size());
+		for (int i = 0; i < ratings.size(); i++) {
+			int day = ratings.epochDay(i);
+			if (isTimed() && (day == RatingBatch.NO_DATE || day > toDay
+					|| (fromDay != RatingBatch.NO_DATE && day < fromDay)))
+				continue;
+			window.add(ratings, i);
+		}
+		window.sortByDay();
+		return latest(window);
+	}
+
+	/**
+	 * @param ratings ratings oldest first
+	 * @return the last limit of them
+	 */
+	private RatingBatch latest(RatingBatch ratings) {
+		if (ratings.size() <= limit)
+			return ratings;
+		RatingBatch latest = new RatingBatch(limit);
+		for (int i = ratings.size() - limit; i < ratings.size(); i++)
+			latest.add(ratings, i);
+		return latest;
+	}
+
+	@Override
+	public String toString() {
+		return "RecencyWindow [limit=" + limit
+				+ (isTimed() ? ", from=" + (fromDay == RatingBatch.NO_DATE ? "start" : RatingSnapshot.date(fromDay))
+						+ ", to=" + RatingSnapshot.date(toDay) : "") + "]";
+	}
+}
@@ -0,0 +1,312 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import com.aerospike.recommendation.dataimport.RatingListener;
+import com.aerospike.recommendation.dataimport.model.WatchedRated;
+
+/**
+ * A bounded, concurrent cache of recommendation results.
+ *
+ * Entries are keyed by backend, customer and request parameters,
+ * expire after a time to live, and are evicted least recently used
+ * first. The cache is split into segments, each with its own lock,
+ * so lookups for different customers rarely contend.
+ *
+ * An entry is invalidated when a rating is added for its customer,
+ * or for one of the neighbors its recommendations were made from.
+ * Only ratings added in this process are seen; ratings loaded by another
+ * process are picked up when the entry expires.
+ * @author peter
+ *
+ */
+public class RecommendationCache implements RatingListener {
+	private static Logger log = Logger.getLogger(RecommendationCache.class);
+	private static final int SEGMENTS = 16;
+	private static final int STAMP_STRIPES = 1024;
+
+	private final Segment[] segments;
+	private final long ttlMillis;
+	private final boolean enabled;
+	/*
+	 * customer ID -> keys of the entries that depend on the customer's ratings
+	 */
+	private final ConcurrentMap<String, Set<String>> dependents = new ConcurrentHashMap<String, Set<String>>();
+	private final AtomicLong invalidationSequence = new AtomicLong();
+	/*
+	 * the sequence number of the latest invalidation, by customer ID hash
+	 */
+	private final AtomicLongArray invalidationStamps = new AtomicLongArray(STAMP_STRIPES);
+	/*
+	 * guard the dependents of the customers of a stripe, so a key is never
+	 * added to a set that an invalidation or unlink has just removed
+	 */
+	private final Object[] dependentLocks = new Object[STAMP_STRIPES];
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param maxSize the maximum number of entries, 0 disables the cache
+	 * @param ttlMillis the time to live of an entry
+	 */
+	public RecommendationCache(int maxSize, long ttlMillis) {
+		this.enabled = maxSize > 0;
+		this.ttlMillis = ttlMillis;
+		this.segments = new Segment[SEGMENTS];
+		int segmentSize = Math.max(maxSize / SEGMENTS, 1);
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(segmentSize);
+		for (int i = 0; i < STAMP_STRIPES; i++)
+			dependentLocks[i] = new Object();
+		log.info("Recommendation cache: " + (enabled ? maxSize + " entries, ttl " + ttlMillis + " ms" : "disabled"));
+	}
+
+	/**
+	 * @return the cache key of a request
+	 */
+	public static String key(String backend, String customerID, int neighbors, int maxMovies) {
+		return backend + ":" + customerID + ":" + neighbors + ":" + maxMovies;
+	}
+
+	/**
+	 * @return the cached result, or null if there is none or it has expired
+	 */
+	public Object get(String key) {
+		if (!enabled)
+			return null;
+		Segment segment = segmentFor(key);
+		CachedResult entry;
+		synchronized (segment) {
+			entry = segment.get(key);
+			if (entry != null && entry.expires < System.currentTimeMillis()) {
+				segment.remove(key);
+				unlink(entry);
+				expirations.incrementAndGet();
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * @return a stamp to pass to put(), taken before the result is computed
+	 */
+	public long stamp() {
+		return invalidationSequence.get();
+	}
+
+	/**
+	 * Caches a result, unless a rating was added for the customer or
+	 * its neighbors since the stamp was taken, as the result may already be out of date.
+	 *
+	 * The stamps are checked again once the entry is linked to its customers:
+	 * a rating added before that raised its stamp first, and one added after
+	 * finds the entry among the customer's dependents
+	 * @param customerID the customer the result is for
+	 * @param neighborIDs the customers whose ratings the result was made from
+	 */
+	public void put(String key, long stamp, String customerID, Collection<String> neighborIDs, Object value) {
+		if (!enabled || invalidatedSince(stamp, customerID, neighborIDs))
+			return;
+		CachedResult entry = new CachedResult(key, value, System.currentTimeMillis() + ttlMillis, customerID, neighborIDs);
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			CachedResult old = segment.put(key, entry);
+			if (old != null)
+				unlink(old);
+			link(entry);
+			if (invalidatedSince(stamp, customerID, neighborIDs)) {
+				segment.remove(key);
+				unlink(entry);
+			}
+		}
+	}
+
+	@Override
+	public void ratingAdded(WatchedRated rating) {
+		if (!enabled)
+			return;
+		String customerID = rating.getCustomerID();
+		int stripe = stripe(customerID);
+		raiseStamp(stripe, invalidationSequence.incrementAndGet());
+		Set<String> keys;
+		synchronized (dependentLocks[stripe]) {
+			keys = dependents.remove(customerID);
+		}
+		if (keys == null)
+			return;
+		for (String key : keys) {
+			Segment segment = segmentFor(key);
+			synchronized (segment) {
+				CachedResult entry = segment.remove(key);
+				if (entry != null) {
+					unlink(entry);
+					invalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+		dependents.clear();
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the cache counters
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject stats() {
+		JSONObject stats = new JSONObject();
+		stats.put("enabled", enabled);
+		stats.put("size", size());
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("evictions", evictions.get());
+		stats.put("expirations", expirations.get());
+		stats.put("invalidations", invalidations.get());
+		return stats;
+	}
+
+	private boolean invalidatedSince(long stamp, String customerID) {
+		return invalidationStamps.get(stripe(customerID)) > stamp;
+	}
+
+	private boolean invalidatedSince(long stamp, String customerID, Collection<String> neighborIDs) {
+		if (invalidatedSince(stamp, customerID))
+			return true;
+		for (String neighborID : neighborIDs){
+			if (invalidatedSince(stamp, neighborID))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Raises the stamp of a stripe to an invalidation's sequence number,
+	 * never lowering it below a later invalidation's that set it first
+	 */
+	private void raiseStamp(int stripe, long sequence) {
+		for (;;) {
+			long current = invalidationStamps.get(stripe);
+			if (current >= sequence || invalidationStamps.compareAndSet(stripe, current, sequence))
+				return;
+		}
+	}
+
+	private static int stripe(String customerID) {
+		int h = customerID.hashCode();
+		return (h ^ (h >>> 16)) & (STAMP_STRIPES - 1);
+	}
+
+	private Segment segmentFor(String key) {
+		int h = key.hashCode();
+		return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	private void link(CachedResult entry) {
+		addDependent(entry.customerID, entry.key);
+		for (String neighborID : entry.neighborIDs)
+			addDependent(neighborID, entry.key);
+	}
+
+	private void unlink(CachedResult entry) {
+		removeDependent(entry.customerID, entry.key);
+		for (String neighborID : entry.neighborIDs)
+			removeDependent(neighborID, entry.key);
+	}
+
+	private void addDependent(String customerID, String key) {
+		synchronized (dependentLocks[stripe(customerID)]) {
+			Set<String> keys = dependents.get(customerID);
+			if (keys == null) {
+				keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				dependents.put(customerID, keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	private void removeDependent(String customerID, String key) {
+		synchronized (dependentLocks[stripe(customerID)]) {
+			Set<String> keys = dependents.get(customerID);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty())
+					dependents.remove(customerID);
+			}
+		}
+	}
+
+	private static class CachedResult {
+		final String key;
+		final Object value;
+		final long expires;
+		final String customerID;
+		final Collection<String> neighborIDs;
+
+		CachedResult(String key, Object value, long expires, String customerID, Collection<String> neighborIDs) {
+			this.key = key;
+			this.value = value;
+			this.expires = expires;
+			this.customerID = customerID;
+			this.neighborIDs = neighborIDs;
+		}
+	}
+
+	/**
+	 * A least recently used map, guarded by its own monitor
+	 */
+	@SuppressWarnings("serial")
+	private class Segment extends LinkedHashMap<String, CachedResult> {
+		private final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+			if (size() <= capacity)
+				return false;
+			unlink(eldest.getValue());
+			evictions.incrementAndGet();
+			return true;
+		}
+	}
+}
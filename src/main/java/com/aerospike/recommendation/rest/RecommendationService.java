@@ -5,11 +5,23 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.Properties;
 
 import javax.servlet.MultipartConfigElement;
 
+import com.aerospike.recommendation.batch.ItemSimilarityJob;
+import com.aerospike.recommendation.batch.MatrixFactorizationJob;
+import com.aerospike.recommendation.batch.RecommendationJob;
 import com.aerospike.recommendation.dataimport.MoviesUploader;
+import com.aerospike.recommendation.dataimport.RatingIngester;
+import com.aerospike.recommendation.index.LatentFactors;
+import com.aerospike.recommendation.index.MinHashIndex;
+import com.aerospike.recommendation.index.RatingIndex;
+import com.aerospike.recommendation.index.RatingIndexLoader;
+import com.aerospike.recommendation.metrics.RecommendationMetrics;
+import com.aerospike.recommendation.snapshot.RatingSnapshot;
+import com.aerospike.recommendation.snapshot.RatingSnapshotWriter;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -26,22 +38,50 @@ import org.springframework.context.annotation.Configuration;
 
 import com.aerospike.client.AerospikeClient;
 import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Record;
+import com.aerospike.client.async.AsyncClient;
+import com.aerospike.client.async.AsyncClientPolicy;
+import com.aerospike.client.async.MaxCommandAction;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.WriteConcern;
 
 @Configuration
 @EnableAutoConfiguration
 @ComponentScan
 public class RecommendationService {
 	private static Logger log = Logger.getLogger(RecommendationService.class);
+	/*
+	 * the write concerns the loader accepts for -mw
+	 */
+	private static final String[] WRITE_CONCERNS = {"unacknowledged", "acknowledged", "fsynced", "journaled", "replica_acknowledged", "majority"};
 	
 	@Bean
-	public AerospikeClient asClient() throws AerospikeException {
+	public AsyncClient asClient() throws AerospikeException {
 		Properties as = System.getProperties();
-		AerospikeClient aerospikeClient = new AerospikeClient(as.getProperty("seedHost"), Integer.parseInt(as.getProperty("port")));
+		/*
+		 * the async client is also a blocking client, so one 
+		 * cluster connection serves both kinds of endpoint
+		 */
+		AsyncClientPolicy policy = new AsyncClientPolicy();
+		policy.asyncMaxCommands = Integer.parseInt(as.getProperty("asyncMaxCommands", "500"));
+		policy.asyncMaxCommandAction = MaxCommandAction.BLOCK;
+		AsyncClient aerospikeClient = new AsyncClient(policy, as.getProperty("seedHost"), Integer.parseInt(as.getProperty("port")));
 		return aerospikeClient;
 	}
+
+	@Bean(destroyMethod="shutdown")
+	public AsyncCandidateReader asyncCandidateReader() throws AerospikeException {
+		Properties as = System.getProperties();
+		int threads = Integer.parseInt(as.getProperty("asyncReaders", "64"));
+		return new AsyncCandidateReader(asClient(), threads, RESTController.MOVIE_REVIEW_LIMIT);
+	}
+	@Bean
+	public BatchCandidateReader batchCandidateReader() throws AerospikeException {
+		return new BatchCandidateReader(asClient(), RESTController.NAME_SPACE, RESTController.MOVIE_REVIEW_LIMIT);
+	}
 	@Bean
 	public MongoClient mongoClient() throws UnknownHostException {
 		Properties as = System.getProperties();
@@ -68,12 +108,147 @@ public class RecommendationService {
 		return customerCollection;
 	}
 	
+	@Bean(destroyMethod="shutdown")
+	public LocalRecommender localRecommender() throws IOException, org.json.simple.parser.ParseException {
+		Properties as = System.getProperties();
+		String localData = as.getProperty("localData");
+		RatingIndex index;
+		if (localData == null){
+			index = new RatingIndex.Builder().build();
+		} else {
+			int limit = Integer.parseInt(as.getProperty("localLimit", "0"));
+			index = RatingIndexLoader.load(new File(localData), limit);
+		}
+		return new LocalRecommender(index, RESTController.MOVIE_REVIEW_LIMIT);
+	}
+	
+	@Bean
+	public SnapshotRecommender snapshotRecommender() throws IOException {
+		Properties as = System.getProperties();
+		String snapshotFile = as.getProperty("snapshot");
+		if (snapshotFile == null)
+			return new SnapshotRecommender(null, null, RESTController.MOVIE_REVIEW_LIMIT);
+		long start = System.currentTimeMillis();
+		File file = new File(snapshotFile);
+		RatingSnapshot snapshot = RatingSnapshot.map(file);
+		log.info("Mapped " + snapshot + " from " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+		return new SnapshotRecommender(file, snapshot, RESTController.MOVIE_REVIEW_LIMIT);
+	}
+	
+	@Bean
+	public FactorRecommender factorRecommender() throws IOException {
+		Properties as = System.getProperties();
+		String factorsFile = as.getProperty("factors");
+		if (factorsFile == null)
+			return new FactorRecommender(null, null);
+		File file = new File(factorsFile);
+		// the customers' factors are folded in from their ratings, so only the movies' are needed
+		LatentFactors factors = LatentFactors.readMovies(file);
+		log.info("Read " + factors + " from " + file);
+		return new FactorRecommender(file, factors);
+	}
+	
+	@Bean
+	public LshNeighbors lshNeighbors() throws IOException {
+		Properties as = System.getProperties();
+		String indexFile = as.getProperty("lshIndex");
+		int shortlist = Integer.parseInt(as.getProperty("lshShortlist", "50"));
+		int maxBucket = Integer.parseInt(as.getProperty("lshMaxBucket", "100"));
+		if (indexFile == null)
+			return new LshNeighbors(null, null, shortlist, maxBucket);
+		long start = System.currentTimeMillis();
+		File file = new File(indexFile);
+		MinHashIndex index = MinHashIndex.read(file);
+		log.info("Read " + index + " from " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+		return new LshNeighbors(file, index, shortlist, maxBucket);
+	}
+	
+	@Bean
+	public PrecomputedRecommendations precomputedRecommendations() {
+		Properties as = System.getProperties();
+		long maxAge = Long.parseLong(as.getProperty("precomputedMaxAge", "0"));
+		return new PrecomputedRecommendations(maxAge * 1000);
+	}
+	
+	@Bean
+	public RecommendationCache recommendationCache() {
+		Properties as = System.getProperties();
+		int size = Integer.parseInt(as.getProperty("cacheSize", "10000"));
+		long ttl = Long.parseLong(as.getProperty("cacheTtl", "300"));
+		return new RecommendationCache(size, ttl * 1000);
+	}
+	
+	@Bean
+	public SingleFlight<Object> recommendationFlights() {
+		Properties as = System.getProperties();
+		return new SingleFlight<Object>(Long.parseLong(as.getProperty("coalesceTimeout", "10000")));
+	}
+	
+	@Bean(destroyMethod="shutdown")
+	public RatingIngester ratingIngester() throws AerospikeException, IOException, org.json.simple.parser.ParseException {
+		Properties as = System.getProperties();
+		String dataBase = as.getProperty("dataBase", "");
+		boolean aero = dataBase.equalsIgnoreCase("aero") || dataBase.equalsIgnoreCase("both");
+		boolean mongo = dataBase.equalsIgnoreCase("mongo") || dataBase.equalsIgnoreCase("both");
+		RatingIngester ingester = new RatingIngester(aero ? asClient() : null, RESTController.NAME_SPACE,
+				mongo ? movieCollection() : null, mongo ? customerCollection() : null,
+				Integer.parseInt(as.getProperty("ingestBatch", String.valueOf(RatingIngester.DEFAULT_BATCH_SIZE))),
+				Long.parseLong(as.getProperty("ingestDelay", String.valueOf(RatingIngester.DEFAULT_BATCH_DELAY))),
+				Integer.parseInt(as.getProperty("ingestThreads", "4")));
+		// added ratings invalidate cached recommendations, and are merged into the local index
+		ingester.addRatingListener(recommendationCache());
+		ingester.addRatingListener(localRecommender());
+		return ingester;
+	}
+	
+	@Bean
+	public RecommendationMetrics recommendationMetrics() {
+		return new RecommendationMetrics(RESTController.AEROSPIKE, RESTController.AEROSPIKE_ASYNC, 
+				RESTController.AEROSPIKE_LSH, RESTController.AEROSPIKE_BATCH,
+				RESTController.MONGO, RESTController.MONGO_BATCH);
+	}
+	
+	@Bean
+	public MovieMetadataCache<Record> aerospikeMovieCache() throws IOException, org.json.simple.parser.ParseException {
+		MovieMetadataCache<Record> cache = new MovieMetadataCache<Record>(RESTController.AEROSPIKE, 
+				new AerospikeMovieSource(asClient(), RESTController.NAME_SPACE));
+		startMovieCache(cache, "aero");
+		return cache;
+	}
+	
+	@Bean
+	public MovieMetadataCache<DBObject> mongoMovieCache() throws IOException, org.json.simple.parser.ParseException {
+		MovieMetadataCache<DBObject> cache = new MovieMetadataCache<DBObject>(RESTController.MONGO, 
+				new MongoMovieSource(movieCollection()));
+		startMovieCache(cache, "mongo");
+		return cache;
+	}
+	
+	/**
+	 * Preloads a movie cache, if its database is in use, and starts refreshing it
+	 */
+	private void startMovieCache(MovieMetadataCache<?> cache, String dbType) throws IOException, org.json.simple.parser.ParseException {
+		Properties as = System.getProperties();
+		String dataBase = as.getProperty("dataBase", "");
+		if (!dataBase.equalsIgnoreCase(dbType) && !dataBase.equalsIgnoreCase("both"))
+			return;
+		String preload = as.getProperty("movieCache");
+		if ("store".equalsIgnoreCase(preload)){
+			cache.preload();
+		} else if (preload != null){
+			cache.preload(new File(preload));
+		}
+		long refresh = Long.parseLong(as.getProperty("movieCacheRefresh", "600"));
+		if (refresh > 0)
+			cache.startRefresh(refresh);
+	}
+	
 	@Bean
 	public MultipartConfigElement multipartConfigElement() {
 		return new MultipartConfigElement("");
 	}
 	
-	public static void main(String[] args) throws ParseException, IOException, AerospikeException, org.json.simple.parser.ParseException {
+	public static void main(String[] args) throws ParseException, IOException, AerospikeException, org.json.simple.parser.ParseException, InterruptedException {
 
 		Options options = new Options();
 		options.addOption("h", "host", true, "Server hostname (default: localhost)");
@@ -81,7 +256,46 @@ public class RecommendationService {
 		options.addOption("n", "namespace", true, "Aerospike namespace (default: test)");
 		options.addOption("db", "database", true, "Database: aero, mongo, both");
 		options.addOption("l", "limit", true, "Limit the number of movies uploaded");
-		options.addOption("m", "movies", true, "Movie file directory");
+		options.addOption("m", "movies", true, "Movie file directory, or a rating snapshot");
+		options.addOption("b", "batch", true, "Ratings read and written at a time by the loader (default: 1000)");
+		options.addOption("ag", "aggregate", true, "Write each Aerospike customer once per this many movie files, 0 once per load");
+		options.addOption("sp", "spill", true, "Customer ratings held in memory before spilling to a file (default: 5000000)");
+		options.addOption("mb", "mongoBatch", true, "Customer ratings in a MongoDB bulk write (default: 1000)");
+		options.addOption("mw", "mongoWriteConcern", true, "MongoDB write concern of the loader, unacknowledged, acknowledged, fsynced, journaled, replica_acknowledged, majority (default: journaled)");
+		options.addOption("ld", "local", true, "Movie file directory, or a rating snapshot, loaded into the in-memory engine");
+		options.addOption("ss", "snapshot", true, "Convert the movie directory into a rating snapshot file");
+		options.addOption("ms", "mapsnapshot", true, "Rating snapshot file memory mapped by the service");
+		options.addOption("is", "itemsimilarity", false, "Compute the similar movies of each movie from the movie directory");
+		options.addOption("sn", "similar", true, "Number of similar movies kept per movie (default: 20)");
+		options.addOption("als", "factorize", false, "Train the latent factors of the movies and customers from the movie directory");
+		options.addOption("fr", "rank", true, "Number of latent factors (default: 20)");
+		options.addOption("fi", "iterations", true, "Alternating least squares iterations (default: 10)");
+		options.addOption("fl", "lambda", true, "Regularization of the latent factors (default: 0.05)");
+		options.addOption("fm", "factors", true, "Latent factors file served by the service");
+		options.addOption("lsh", "minhash", false, "Build the MinHash index of the customers' latest movies from the movie directory");
+		options.addOption("lb", "bands", true, "MinHash index bands (default: 20)");
+		options.addOption("lr", "rows", true, "MinHash index rows per band (default: 2)");
+		options.addOption("lh", "lshindex", true, "MinHash index file used by the service to shortlist similar customers");
+		options.addOption("ls", "shortlist", true, "Similar customers shortlisted by the MinHash index (default: 50)");
+		options.addOption("lm", "maxbucket", true, "Most customers taken from one bucket of the MinHash index (default: 100)");
+		options.addOption("pc", "precompute", false, "Make the recommendation of every Aerospike customer and write it to the customer record");
+		options.addOption("pk", "precomputeneighbors", true, "k of the precomputed recommendations (default: 0)");
+		options.addOption("pn", "precomputemovies", true, "n of the precomputed recommendations (default: 10)");
+		options.addOption("pb", "precomputebatch", true, "Customers whose candidates are read together by the recommendation job (default: 100)");
+		options.addOption("cp", "checkpoint", true, "Checkpoint file of the recommendation job (default: recommendations.checkpoint)");
+		options.addOption("pa", "precomputedage", true, "Seconds a precomputed recommendation is served for, 0 makes every recommendation live (default: 0)");
+		options.addOption("t", "threads", true, "Number of worker threads (default: number of processors, the loader loads one file at a time)");
+		options.addOption("o", "output", true, "Output file");
+		options.addOption("cs", "cachesize", true, "Recommendation cache entries, 0 disables the cache (default: 10000)");
+		options.addOption("ct", "cachettl", true, "Recommendation cache time to live in seconds (default: 300)");
+		options.addOption("mc", "moviecache", true, "Preload the movie cache from: store, or a movie file directory");
+		options.addOption("mr", "moviecacherefresh", true, "Movie cache refresh period in seconds, 0 disables refresh (default: 600)");
+		options.addOption("cw", "coalescewait", true, "Milliseconds a request waits for the same recommendation computed by a concurrent request (default: 10000)");
+		options.addOption("ar", "asyncreaders", true, "Threads reading Large Lists for the async Aerospike endpoint (default: 64)");
+		options.addOption("ac", "asynccommands", true, "Async Aerospike commands in flight, further commands wait (default: 500)");
+		options.addOption("ib", "ingestbatch", true, "Most ratings written at a time by POST /ratings (default: 500)");
+		options.addOption("id", "ingestdelay", true, "Milliseconds POST /ratings waits for more ratings to write with a rating (default: 5)");
+		options.addOption("it", "ingestthreads", true, "Threads writing the ratings of POST /ratings (default: 4)");
 		options.addOption("u", "usage", false, "Print usage.");
 		
 		// parse the command line args
@@ -102,7 +316,91 @@ public class RecommendationService {
 		log.info("Namespace: " + namespace);
 		log.info("Database: " + dbType);	
 		
-		if (cl.hasOption("m")){
+		if (cl.hasOption("is")){
+			// run the item similarity job
+			int limit = Integer.parseInt(cl.getOptionValue("l", "0"));
+			int topN = Integer.parseInt(cl.getOptionValue("sn", "20"));
+			int threads = Integer.parseInt(cl.getOptionValue("t", 
+					String.valueOf(Runtime.getRuntime().availableProcessors())));
+			File ratingDir = new File(cl.getOptionValue("m","movies"));
+			log.info("Data directory: " + ratingDir);
+
+			if (!dbType.equalsIgnoreCase("aero") && !dbType.equalsIgnoreCase("both"))
+				throw new ParseException("The similar movies are written to Aerospike, use -db aero or both");
+			AerospikeClient aerospikeClient = new AerospikeClient(host, port);
+			try {
+				new ItemSimilarityJob(RatingIndexLoader.load(ratingDir, limit), topN, threads,
+						aerospikeClient, namespace).run();
+			} finally {
+				aerospikeClient.close();
+			}
+
+		} else if (cl.hasOption("als")){
+			// train the latent factors
+			int limit = Integer.parseInt(cl.getOptionValue("l", "0"));
+			int threads = Integer.parseInt(cl.getOptionValue("t", 
+					String.valueOf(Runtime.getRuntime().availableProcessors())));
+			File ratingDir = new File(cl.getOptionValue("m","movies"));
+			log.info("Data directory: " + ratingDir);
+
+			MatrixFactorizationJob job = new MatrixFactorizationJob(RatingIndexLoader.load(ratingDir, limit),
+					Integer.parseInt(cl.getOptionValue("fr", "20")),
+					Float.parseFloat(cl.getOptionValue("fl", "0.05")),
+					Integer.parseInt(cl.getOptionValue("fi", "10")), threads);
+			AerospikeClient aerospikeClient = null;
+			if (dbType.equalsIgnoreCase("aero") || dbType.equalsIgnoreCase("both")){
+				aerospikeClient = new AerospikeClient(host, port);
+				job.writeTo(aerospikeClient, namespace);
+			}
+			LatentFactors factors;
+			try {
+				factors = job.run();
+			} finally {
+				if (aerospikeClient != null)
+					aerospikeClient.close();
+			}
+			if (cl.hasOption("o"))
+				MatrixFactorizationJob.write(factors, new File(cl.getOptionValue("o")));
+
+		} else if (cl.hasOption("lsh")){
+			// build the MinHash index
+			int limit = Integer.parseInt(cl.getOptionValue("l", "0"));
+			File ratingDir = new File(cl.getOptionValue("m","movies"));
+			log.info("Data directory: " + ratingDir);
+			RatingIndex ratings = RatingIndexLoader.load(ratingDir, limit);
+			long start = System.currentTimeMillis();
+			MinHashIndex index = MinHashIndex.build(ratings,
+					Integer.parseInt(cl.getOptionValue("lb", "20")),
+					Integer.parseInt(cl.getOptionValue("lr", "2")),
+					RESTController.MOVIE_REVIEW_LIMIT);
+			log.info("Built " + index + " in " + (System.currentTimeMillis() - start) + " ms");
+			File output = new File(cl.getOptionValue("o", "customers.lsh"));
+			index.write(output);
+			log.info("Wrote " + index + " to " + output);
+
+		} else if (cl.hasOption("pc")){
+			// precompute the recommendations
+			int threads = Integer.parseInt(cl.getOptionValue("t", 
+					String.valueOf(Runtime.getRuntime().availableProcessors())));
+			AerospikeClient aerospikeClient = new AerospikeClient(host, port);
+			try {
+				new RecommendationJob(aerospikeClient, namespace,
+						Integer.parseInt(cl.getOptionValue("pk", "0")),
+						Integer.parseInt(cl.getOptionValue("pn", "10")), RESTController.MOVIE_REVIEW_LIMIT,
+						Integer.parseInt(cl.getOptionValue("pb", "100")), threads,
+						new File(cl.getOptionValue("cp", "recommendations.checkpoint"))).run();
+			} finally {
+				aerospikeClient.close();
+			}
+
+		} else if (cl.hasOption("ss")){
+			// convert the movie files into a rating snapshot
+			int limit = Integer.parseInt(cl.getOptionValue("l", "0"));
+			File ratingDir = new File(cl.getOptionValue("m","movies"));
+			log.info("Data directory: " + ratingDir);
+			RatingSnapshotWriter.write(ratingDir, limit, new File(cl.getOptionValue("ss")));
+
+		} else if (cl.hasOption("m")){
 			// run as the data loader
 			int limit = 0;
 			if (cl.hasOption("l")){
@@ -113,6 +411,14 @@ public class RecommendationService {
 			log.info("Data directory: " + ratingDir);
 
 			MoviesUploader ml = new MoviesUploader();
+			ml.setBatchSize(Integer.parseInt(cl.getOptionValue("b", String.valueOf(MoviesUploader.DEFAULT_BATCH_SIZE))));
+			ml.setWorkers(Integer.parseInt(cl.getOptionValue("t", "1")));
+			ml.setMongoWrites(Integer.parseInt(cl.getOptionValue("mb", String.valueOf(MoviesUploader.DEFAULT_BATCH_SIZE))), 
+					writeConcern(cl.getOptionValue("mw", "journaled")));
+			if (cl.hasOption("ag")){
+				ml.setAggregation(Integer.parseInt(cl.getOptionValue("ag")), 
+						Integer.parseInt(cl.getOptionValue("sp", String.valueOf(MoviesUploader.DEFAULT_MAX_BUFFERED))));
+			}
 			ml.loadData(host, port, namespace, dbType, ratingDir, limit);
 
 		} else {
@@ -126,11 +432,53 @@ public class RecommendationService {
 			as.put("namespace", namespace);
 			
 			as.put("dataBase", dbType);
+			
+			as.put("cacheSize", cl.getOptionValue("cs", "10000"));
+			as.put("cacheTtl", cl.getOptionValue("ct", "300"));
+			if (cl.hasOption("mc")){
+				as.put("movieCache", cl.getOptionValue("mc"));
+			}
+			as.put("movieCacheRefresh", cl.getOptionValue("mr", "600"));
+			as.put("coalesceTimeout", cl.getOptionValue("cw", "10000"));
+			as.put("asyncReaders", cl.getOptionValue("ar", "64"));
+			as.put("asyncMaxCommands", cl.getOptionValue("ac", "500"));
+			as.put("ingestBatch", cl.getOptionValue("ib", String.valueOf(RatingIngester.DEFAULT_BATCH_SIZE)));
+			as.put("ingestDelay", cl.getOptionValue("id", String.valueOf(RatingIngester.DEFAULT_BATCH_DELAY)));
+			as.put("ingestThreads", cl.getOptionValue("it", "4"));
+			if (cl.hasOption("ms")){
+				as.put("snapshot", cl.getOptionValue("ms"));
+			}
+			if (cl.hasOption("lh")){
+				as.put("lshIndex", cl.getOptionValue("lh"));
+			}
+			as.put("lshShortlist", cl.getOptionValue("ls", "50"));
+			as.put("lshMaxBucket", cl.getOptionValue("lm", "100"));
+			as.put("precomputedMaxAge", cl.getOptionValue("pa", "0"));
+			if (cl.hasOption("fm")){
+				as.put("factors", cl.getOptionValue("fm"));
+			}
+			if (cl.hasOption("ld")){
+				as.put("localData", cl.getOptionValue("ld"));
+				as.put("localLimit", cl.getOptionValue("l", "0"));
+			}
 
 			// start app
 			SpringApplication.run(RecommendationService.class, args);
 		}
 	}
+	/**
+	 * @param name the -mw value, one of WRITE_CONCERNS in any case
+	 * @throws ParseException if the write concern is not one of them
+	 */
+	private static WriteConcern writeConcern(String name) throws ParseException {
+		for (String writeConcern : WRITE_CONCERNS){
+			if (writeConcern.equalsIgnoreCase(name))
+				return WriteConcern.valueOf(writeConcern.toUpperCase());
+		}
+		throw new ParseException("Unknown MongoDB write concern: " + name
+				+ ", use one of " + Arrays.toString(WRITE_CONCERNS));
+	}
+
 	private static void logUsage(Options options) {
 		HelpFormatter formatter = new HelpFormatter();
 		StringWriter sw = new StringWriter();
@@ -0,0 +1,213 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+
+/**
+ * Coalesces concurrent computations of the same key into one flight.
+ *
+ * The first caller of a key leads the flight and computes the result;
+ * callers that arrive while it is in flight wait for the leader's result,
+ * or its exception, instead of computing their own. A key is in flight only
+ * until its result is delivered, so this holds no results, and works the
+ * same whether or not the results are also cached.
+ *
+ * Blocking callers use execute(). Callers that complete asynchronously
+ * use join(), and complete the flight they lead themselves.
+ * @author peter
+ *
+ * @param <V> the result
+ */
+public class SingleFlight<V> {
+	private static Logger log = Logger.getLogger(SingleFlight.class);
+
+	private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+	private final long timeoutMillis;
+
+	private final AtomicLong leaders = new AtomicLong();
+	private final AtomicLong followers = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	/**
+	 * Receives the result of a flight
+	 */
+	public interface Listener<V> {
+		void onResult(V result);
+
+		void onFailure(Throwable e);
+	}
+
+	/**
+	 * @param timeoutMillis how long a blocking follower waits for the leader's result
+	 */
+	public SingleFlight(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+		log.info("Request coalescing: followers wait " + timeoutMillis + " ms");
+	}
+
+	/**
+	 * Computes the result of a key, or waits for the computation already in flight
+	 * @param key
+	 * @param computation run in the calling thread, when it leads the flight
+	 * @return the result
+	 * @throws TimeoutException if the caller followed a flight that did not land in time
+	 * @throws Exception the exception of the computation, whichever caller ran it
+	 */
+	public V execute(String key, Callable<V> computation) throws Exception {
+		Flight flight = new Flight(key);
+		Flight inFlight = flights.putIfAbsent(key, flight);
+		if (inFlight == null) {
+			leaders.incrementAndGet();
+			V result;
+			try {
+				result = computation.call();
+			} catch (Exception e) {
+				flight.fail(e);
+				throw e;
+			} catch (Error e) {
+				flight.fail(e);
+				throw e;
+			}
+			flight.complete(result);
+			return result;
+		}
+		followers.incrementAndGet();
+		Waiter<V> waiter = new Waiter<V>();
+		inFlight.listen(waiter);
+		if (!waiter.landed.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+			timeouts.incrementAndGet();
+			throw new TimeoutException("Timed out after " + timeoutMillis + " ms waiting for " + key);
+		}
+		if (waiter.error instanceof Exception)
+			throw (Exception) waiter.error;
+		if (waiter.error instanceof Error)
+			throw (Error) waiter.error;
+		return waiter.result;
+	}
+
+	/**
+	 * Follows the flight of a key, or starts one
+	 * @param key
+	 * @param listener receives the result, when the caller follows a flight,
+	 * otherwise it is given to the flight the caller leads
+	 * @return the flight the caller must complete or fail, or null if it follows another caller's
+	 */
+	public Flight join(String key, Listener<V> listener) {
+		Flight flight = new Flight(key);
+		flight.listen(listener);
+		Flight inFlight = flights.putIfAbsent(key, flight);
+		if (inFlight == null) {
+			leaders.incrementAndGet();
+			return flight;
+		}
+		followers.incrementAndGet();
+		inFlight.listen(listener);
+		return null;
+	}
+
+	/**
+	 * the coalescing counters
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject stats() {
+		JSONObject stats = new JSONObject();
+		stats.put("inFlight", flights.size());
+		stats.put("leaders", leaders.get());
+		stats.put("followers", followers.get());
+		stats.put("timeouts", timeouts.get());
+		return stats;
+	}
+
+	/**
+	 * A computation in flight, and the listeners waiting for it
+	 */
+	public class Flight {
+		private final String key;
+		private List<Listener<V>> listeners = new ArrayList<Listener<V>>(2);
+		private boolean landed;
+		private V result;
+		private Throwable error;
+
+		Flight(String key) {
+			this.key = key;
+		}
+
+		public void complete(V result) {
+			land(result, null);
+		}
+
+		public void fail(Throwable error) {
+			land(null, error);
+		}
+
+		private void land(V result, Throwable error) {
+			// later callers start a new flight
+			flights.remove(key, this);
+			List<Listener<V>> waiting;
+			synchronized (this) {
+				if (landed)
+					return;
+				landed = true;
+				this.result = result;
+				this.error = error;
+				waiting = listeners;
+				listeners = null;
+			}
+			for (Listener<V> listener : waiting)
+				deliver(listener, result, error);
+		}
+
+		private void listen(Listener<V> listener) {
+			synchronized (this) {
+				if (!landed) {
+					listeners.add(listener);
+					return;
+				}
+			}
+			deliver(listener, result, error);
+		}
+
+		private void deliver(Listener<V> listener, V result, Throwable error) {
+			try {
+				if (error == null)
+					listener.onResult(result);
+				else
+					listener.onFailure(error);
+			} catch (RuntimeException e) {
+				log.error("Listener of " + key + " failed", e);
+			}
+		}
+	}
+
+	/**
+	 * A blocking follower
+	 */
+	private static class Waiter<V> implements Listener<V> {
+		final CountDownLatch landed = new CountDownLatch(1);
+		volatile V result;
+		volatile Throwable error;
+
+		@Override
+		public void onResult(V result) {
+			this.result = result;
+			landed.countDown();
+		}
+
+		@Override
+		public void onFailure(Throwable e) {
+			this.error = e;
+			landed.countDown();
+		}
+	}
+}
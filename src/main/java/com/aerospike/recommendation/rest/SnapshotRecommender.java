@@ -0,0 +1,216 @@
+package com.aerospike.recommendation.rest;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+import com.aerospike.recommendation.snapshot.RatingSnapshot;
+
+/**
+ * SnapshotRecommender runs the same neighbor search as the
+ * LocalRecommender, reading the rows of a memory mapped rating
+ * snapshot as it goes, instead of an index built on the heap.
+ *
+ * Each lookup decodes one row of the snapshot into buffers that
+ * are reused by the thread, so the heap does not grow with the
+ * size of the data set.
+ * @author peter
+ *
+ */
+public class SnapshotRecommender {
+	private static Logger log = Logger.getLogger(SnapshotRecommender.class);
+
+	private final File file;
+	private final RatingSnapshot snapshot;
+	private final int reviewLimit;
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch(reviewLimit);
+		}
+	};
+
+	/**
+	 * @param file the snapshot file, null if there is none
+	 * @param snapshot the snapshot mapped from the file, null if there is none
+	 * @param reviewLimit
+	 */
+	public SnapshotRecommender(File file, RatingSnapshot snapshot, int reviewLimit) {
+		this.file = file;
+		this.snapshot = snapshot;
+		this.reviewLimit = reviewLimit;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public RatingSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	public boolean isReady() {
+		return snapshot != null;
+	}
+
+	/**
+	 * get a recommendation for a specific customer
+	 * @param customerID a unique ID for a customer
+	 * @return the ordinals of the recommended movies in the snapshot
+	 */
+	public int[] recommend(int customerID) {
+		int customer = snapshot == null ? -1 : snapshot.customerIndex(customerID);
+		if (customer < 0){
+			log.debug("Could not find user: " + customerID );
+			throw new CustomerNotFound(String.valueOf(customerID));
+		}
+		Scratch scratch = this.scratch.get();
+		/*
+		 * get the latest movies watched and rated by the customer,
+		 * the end of the customer row, as in the rating index
+		 */
+		RatingSnapshot.Row history = snapshot.history(customer, scratch.history);
+		int historyFrom = Math.max(0, history.size() - reviewLimit);
+		if (history.size() == 0){
+			// customer Hasen't Watched anything
+			log.debug("No movies found for customer: " + customerID );
+			throw new NoMoviesFound(String.valueOf(customerID));
+		}
+		SparseVector thisCustomerVector = latestRatings(history, scratch.thisCustomer);
+
+		int bestMatchedCustomer = -1;
+		double bestScore = 0;
+		/*
+		 * for each movie this customer watched, iterate
+		 * through the other customers that also watched
+		 * the movie
+		 */
+		for (int h = historyFrom; h < history.size(); h++){
+			/*
+			 * Some movies are watched by >100k customers, only look at the last n customers, or the
+			 * number of customers, whichever is smaller
+			 */
+			RatingSnapshot.Row watchers = snapshot.watchers(history.ordinal(h), scratch.watchers);
+			int count = latestWatchers(watchers, scratch.latest);
+			for (int w = 0; w < count; w++){
+				int similarCustomer = (int) scratch.latest[w];
+				if (similarCustomer != customer){
+					// find user with the highest similarity
+					latestRatings(snapshot.history(similarCustomer, scratch.other), scratch.similarCustomer);
+					double score = CosineSimilarity.cosineSimilarity(thisCustomerVector, scratch.similarCustomer);
+					if (score > bestScore){
+						bestScore = score;
+						bestMatchedCustomer = similarCustomer;
+					}
+				}
+			}
+		}
+		if (bestMatchedCustomer < 0){
+			log.debug("No similar customer found for: " + customerID);
+			return new int[0];
+		}
+		log.debug("Best customer: " + snapshot.customerId(bestMatchedCustomer));
+		log.debug("Best score: " + bestScore);
+
+		// return the best matched user's latest movies, that this customer hasn't seen, as the recommendation
+		RatingSnapshot.Row best = snapshot.history(bestMatchedCustomer, scratch.other);
+		int bestFrom = Math.max(0, best.size() - reviewLimit);
+		int[] recommended = new int[best.size() - bestFrom];
+		int count = 0;
+		for (int b = bestFrom; b < best.size(); b++){
+			int movie = best.ordinal(b);
+			if (!hasWatched(history, movie))
+				recommended[count++] = movie;
+		}
+		return Arrays.copyOf(recommended, count);
+	}
+
+	/**
+	 * @param history a customer row, sorted by movie
+	 */
+	private static boolean hasWatched(RatingSnapshot.Row history, int movie){
+		int low = 0;
+		int high = history.size() - 1;
+		while (low <= high){
+			int mid = (low + high) >>> 1;
+			int value = history.ordinal(mid);
+			if (value < movie)
+				low = mid + 1;
+			else if (value > movie)
+				high = mid - 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Fills a vector with the ratings of the customer's latest movies
+	 */
+	private SparseVector latestRatings(RatingSnapshot.Row history, SparseVector vector){
+		vector.clear();
+		for (int h = Math.max(0, history.size() - reviewLimit); h < history.size(); h++){
+			vector.add(history.ordinal(h), history.rating(h));
+		}
+		return vector.seal();
+	}
+
+	/**
+	 * Picks the latest watchers of a movie, by date, with a min heap
+	 * of (date, customer) packed into longs
+	 * @param latest receives the watchers, the customer ordinal in the low 32 bits
+	 * @return the number of watchers picked
+	 */
+	private int latestWatchers(RatingSnapshot.Row watchers, long[] latest){
+		int size = 0;
+		for (int w = 0; w < watchers.size(); w++){
+			long watcher = ((long) watchers.epochDay(w) << 32) | watchers.ordinal(w);
+			if (size < reviewLimit){
+				// sift up
+				int i = size++;
+				while (i > 0 && latest[(i - 1) >> 1] > watcher){
+					latest[i] = latest[(i - 1) >> 1];
+					i = (i - 1) >> 1;
+				}
+				latest[i] = watcher;
+			} else if (watcher > latest[0]){
+				// replace the earliest, and sift down
+				int i = 0;
+				while (true){
+					int child = 2 * i + 1;
+					if (child >= size)
+						break;
+					if (child + 1 < size && latest[child + 1] < latest[child])
+						child++;
+					if (latest[child] >= watcher)
+						break;
+					latest[i] = latest[child];
+					i = child;
+				}
+				latest[i] = watcher;
+			}
+		}
+		for (int i = 0; i < size; i++)
+			latest[i] &= 0xffffffffL;
+		return size;
+	}
+
+	/**
+	 * The rows and vectors reused by a thread
+	 */
+	private static class Scratch {
+		final RatingSnapshot.Row history = new RatingSnapshot.Row();
+		final RatingSnapshot.Row watchers = new RatingSnapshot.Row();
+		final RatingSnapshot.Row other = new RatingSnapshot.Row();
+		final SparseVector thisCustomer;
+		final SparseVector similarCustomer;
+		final long[] latest;
+
+		Scratch(int reviewLimit) {
+			thisCustomer = new SparseVector(reviewLimit);
+			similarCustomer = new SparseVector(reviewLimit);
+			latest = new long[reviewLimit];
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.aerospike.recommendation.rest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+
+/**
+ * A sparse rating vector: movie IDs in ascending order
+ * with the rating of each movie, and the precomputed norm.
+ *
+ * Entries are added with add() in any order, then seal() sorts
+ * them and computes the norm. A vector can be cleared and reused,
+ * so comparing many candidates does not allocate once the
+ * vector has grown to the largest history.
+ * @author peter
+ *
+ */
+public final class SparseVector {
+	int[] ids;
+	float[] values;
+	int size;
+	double norm;
+
+	public SparseVector() {
+		this(RESTController.MOVIE_REVIEW_LIMIT);
+	}
+	public SparseVector(int capacity) {
+		this.ids = new int[Math.max(capacity, 1)];
+		this.values = new float[this.ids.length];
+	}
+
+	/**
+	 * Builds a vector from a list of ratings, as stored
+	 * in the watched and watchedBy lists
+	 * @param ratingList
+	 * @return
+	 */
+	public static SparseVector fromRatings(List<Map<String, Object>> ratingList) {
+		SparseVector vector = new SparseVector(ratingList.size());
+		return vector.setRatings(ratingList);
+	}
+
+	/**
+	 * Builds a vector from a batch of ratings
+	 * @param ratings
+	 * @return
+	 */
+	public static SparseVector fromRatings(RatingBatch ratings) {
+		SparseVector vector = new SparseVector(ratings.size());
+		return vector.setRatings(ratings);
+	}
+
+	/**
+	 * Builds a vector from a list of movie ID and
+	 * rating pairs, as made by RESTController.makeVector()
+	 * @param interleaved
+	 * @return
+	 */
+	public static SparseVector fromInterleaved(List<Long> interleaved) {
+		SparseVector vector = new SparseVector(interleaved.size() / 2);
+		for (int i = 0; i + 1 < interleaved.size(); i += 2) {
+			vector.add(interleaved.get(i).intValue(), interleaved.get(i + 1).floatValue());
+		}
+		return vector.seal();
+	}
+
+	/**
+	 * Replaces the contents of this vector with a list of ratings
+	 * @param ratingList
+	 * @return this vector
+	 */
+	public SparseVector setRatings(List<Map<String, Object>> ratingList) {
+		clear();
+		for (Map<String, Object> one : ratingList) {
+			String movieString = (String) one.get(RESTController.MOVIE_ID);
+			Object rating = one.get(RESTController.RATING);
+			if (movieString != null && rating != null)
+				add(Integer.parseInt(movieString), ((Number) rating).floatValue());
+		}
+		return seal();
+	}
+
+	/**
+	 * Replaces the contents of this vector with a batch of ratings
+	 * @param ratings
+	 * @return this vector
+	 */
+	public SparseVector setRatings(RatingBatch ratings) {
+		clear();
+		for (int i = 0; i < ratings.size(); i++)
+			add(ratings.movieId(i), ratings.rating(i));
+		return seal();
+	}
+
+	public SparseVector clear() {
+		size = 0;
+		norm = 0;
+		return this;
+	}
+
+	public SparseVector add(int id, float value) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		ids[size] = id;
+		values[size] = value;
+		size++;
+		return this;
+	}
+
+	/**
+	 * Sorts the entries by ID and computes the norm. If an ID
+	 * was added more than once, the last value added is kept.
+	 * @return this vector
+	 */
+	public SparseVector seal() {
+		// insertion sort, histories are short and often nearly sorted
+		for (int i = 1; i < size; i++) {
+			int id = ids[i];
+			float value = values[i];
+			int j = i - 1;
+			while (j >= 0 && ids[j] > id) {
+				ids[j + 1] = ids[j];
+				values[j + 1] = values[j];
+				j--;
+			}
+			ids[j + 1] = id;
+			values[j + 1] = value;
+		}
+		int unique = 0;
+		double sum = 0;
+		for (int i = 0; i < size; i++) {
+			if (unique > 0 && ids[unique - 1] == ids[i]) {
+				sum -= values[unique - 1] * values[unique - 1];
+				unique--;
+			}
+			ids[unique] = ids[i];
+			values[unique] = values[i];
+			sum += values[unique] * values[unique];
+			unique++;
+		}
+		size = unique;
+		norm = Math.sqrt(sum);
+		return this;
+	}
+
+	public boolean contains(int id) {
+		return Arrays.binarySearch(ids, 0, size, id) >= 0;
+	}
+	public int size() {
+		return size;
+	}
+	public int id(int i) {
+		return ids[i];
+	}
+	public float value(int i) {
+		return values[i];
+	}
+	public double norm() {
+		return norm;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("SparseVector [");
+		for (int i = 0; i < size; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(ids[i]).append('=').append(values[i]);
+		}
+		return sb.append(']').toString();
+	}
+}
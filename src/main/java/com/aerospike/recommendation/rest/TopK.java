@@ -0,0 +1,114 @@
+package com.aerospike.recommendation.rest;
+
+/**
+ * Keeps the k highest scored int items seen, in a bounded
+ * min-heap of primitive arrays. The lowest kept score is at
+ * the root, so an item that does not make the cut costs one compare.
+ * @author peter
+ *
+ */
+public class TopK {
+	private final int[] items;
+	private final double[] scores;
+	private int size;
+
+	public TopK(int k) {
+		this.items = new int[Math.max(k, 0)];
+		this.scores = new double[this.items.length];
+	}
+
+	/**
+	 * Offers an item
+	 * @return true if the item is kept
+	 */
+	public boolean offer(int item, double score) {
+		if (size < items.length) {
+			int i = size++;
+			items[i] = item;
+			scores[i] = score;
+			siftUp(i);
+			return true;
+		}
+		if (size == 0 || score <= scores[0])
+			return false;
+		items[0] = item;
+		scores[0] = score;
+		siftDown(0);
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+	/**
+	 * @return the item at a heap position, 0 to size() - 1, in no particular order
+	 */
+	public int item(int i) {
+		return items[i];
+	}
+	public double score(int i) {
+		return scores[i];
+	}
+	/**
+	 * @return the lowest kept score
+	 */
+	public double minScore() {
+		return scores[0];
+	}
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Empties the heap into arrays, highest score first
+	 * @return the number of items written
+	 */
+	public int drainDescending(int[] toItems, double[] toScores) {
+		int count = size;
+		for (int i = count - 1; i >= 0; i--) {
+			toItems[i] = items[0];
+			toScores[i] = scores[0];
+			size--;
+			items[0] = items[size];
+			scores[0] = scores[size];
+			siftDown(0);
+		}
+		return count;
+	}
+
+	private void siftUp(int i) {
+		int item = items[i];
+		double score = scores[i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (scores[parent] <= score)
+				break;
+			items[i] = items[parent];
+			scores[i] = scores[parent];
+			i = parent;
+		}
+		items[i] = item;
+		scores[i] = score;
+	}
+
+	private void siftDown(int i) {
+		if (size == 0)
+			return;
+		int item = items[i];
+		double score = scores[i];
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < size && scores[right] < scores[child])
+				child = right;
+			if (score <= scores[child])
+				break;
+			items[i] = items[child];
+			scores[i] = scores[child];
+			i = child;
+		}
+		items[i] = item;
+		scores[i] = score;
+	}
+}
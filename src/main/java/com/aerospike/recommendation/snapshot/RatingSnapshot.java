@@ -0,0 +1,423 @@
+package com.aerospike.recommendation.snapshot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * RatingSnapshot reads the binary snapshot of the rating data set
+ * written by RatingSnapshotWriter.
+ *
+ * All the offsets below are byte positions in the file, and numbers
+ * are big endian.
+ * <pre>
+ * header (64 bytes)
+ *   int magic "RSNP", int version,
+ *   int movie count, int customer count, long rating count, long created (ms),
+ *   int movie table, int customer dictionary, int movie rows, int customer rows,
+ *   int file length, reserved
+ * movie table
+ *   int[movies] movie IDs, sorted
+ *   short[movies] years of release
+ *   int[movies + 1] title offsets, from the start of the titles
+ *   UTF-8 titles
+ * customer dictionary
+ *   int[customers] customer IDs, sorted
+ * movie rows (the customers that watched each movie) and customer rows (the movies each customer watched)
+ *   int[rows + 1] row offsets, from the end of the row offsets
+ *   for each row:
+ *     varint count
+ *     count varints: the first ordinal, then the differences between sorted ordinals
+ *     (count + 1) / 2 bytes: the ratings, a nibble each, high nibble first
+ *     short[count]: the dates, as days since 1970-01-01
+ * </pre>
+ * Movies and customers are referred to by their position (ordinal) in
+ * the sorted ID dictionaries, the same as in a RatingIndex, so a row
+ * is a sorted list of ordinals.
+ *
+ * The snapshot only reads from its buffer with absolute gets, so it
+ * is safe to share between threads.
+ * @author peter
+ *
+ */
+public class RatingSnapshot {
+	public static final int MAGIC = 0x52534E50;
+	public static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer buffer;
+	private final int version;
+	private final int movieCount;
+	private final int customerCount;
+	private final long ratingCount;
+	private final long created;
+
+	private final int movieIds;
+	private final int years;
+	private final int titleOffsets;
+	private final int titles;
+	private final int customerIds;
+	private final int movieRows;
+	private final int customerRows;
+
+	/**
+	 * @param buffer holding the whole snapshot, from position 0
+	 * @throws IOException if the buffer does not hold a snapshot of a known version
+	 */
+	public RatingSnapshot(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("Not a rating snapshot");
+		this.version = buffer.getInt(4);
+		if (version != VERSION)
+			throw new IOException("Unsupported rating snapshot version: " + version);
+		this.movieCount = buffer.getInt(8);
+		this.customerCount = buffer.getInt(12);
+		this.ratingCount = buffer.getLong(16);
+		this.created = buffer.getLong(24);
+		this.movieIds = buffer.getInt(32);
+		this.years = movieIds + 4 * movieCount;
+		this.titleOffsets = years + 2 * movieCount;
+		this.titles = titleOffsets + 4 * (movieCount + 1);
+		this.customerIds = buffer.getInt(36);
+		this.movieRows = buffer.getInt(40);
+		this.customerRows = buffer.getInt(44);
+		int length = buffer.getInt(48);
+		if (length != buffer.limit())
+			throw new IOException("Truncated rating snapshot: " + buffer.limit() + " of " + length + " bytes");
+	}
+
+	/**
+	 * Reads a snapshot file into memory
+	 */
+	public static RatingSnapshot read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Rating snapshot too large: " + file);
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					throw new IOException("Unexpected end of " + file);
+			}
+			buffer.clear();
+			return new RatingSnapshot(buffer);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Maps a snapshot file into memory, read only. The snapshot is read
+	 * straight from the page cache, which is shared by the processes
+	 * that map the same file, and none of it is copied onto the heap.
+	 */
+	public static RatingSnapshot map(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Rating snapshot too large: " + file);
+			// the mapping stays valid after the channel is closed
+			return new RatingSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return true if the file starts like a rating snapshot
+	 */
+	public static boolean isSnapshot(File file) throws IOException {
+		if (!file.isFile() || file.length() < HEADER_SIZE)
+			return false;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			while (magic.hasRemaining() && in.getChannel().read(magic) > 0);
+			return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	public int version() {
+		return version;
+	}
+	public int movieCount() {
+		return movieCount;
+	}
+	public int customerCount() {
+		return customerCount;
+	}
+	public long ratingCount() {
+		return ratingCount;
+	}
+	/**
+	 * @return the time the snapshot was written, in milliseconds
+	 */
+	public long created() {
+		return created;
+	}
+	/**
+	 * @return the size of the snapshot in bytes
+	 */
+	public int size() {
+		return buffer.limit();
+	}
+
+	/**
+	 * @param movieId the movie ID
+	 * @return the movie ordinal, or a negative value if the movie is not in the snapshot
+	 */
+	public int movieIndex(int movieId) {
+		return binarySearch(movieIds, movieCount, movieId);
+	}
+	/**
+	 * @param customerId the customer ID
+	 * @return the customer ordinal, or a negative value if the customer is not in the snapshot
+	 */
+	public int customerIndex(int customerId) {
+		return binarySearch(customerIds, customerCount, customerId);
+	}
+	public int movieId(int movie) {
+		return buffer.getInt(movieIds + 4 * movie);
+	}
+	public int yearOfRelease(int movie) {
+		return buffer.getShort(years + 2 * movie);
+	}
+	public String title(int movie) {
+		int from = buffer.getInt(titleOffsets + 4 * movie);
+		int to = buffer.getInt(titleOffsets + 4 * (movie + 1));
+		byte[] bytes = new byte[to - from];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(titles + from + i);
+		return new String(bytes, UTF8);
+	}
+	public int customerId(int customer) {
+		return buffer.getInt(customerIds + 4 * customer);
+	}
+
+	/**
+	 * Decodes the customers that watched a movie
+	 * @param movie the movie ordinal
+	 * @param row reused for the result
+	 * @return the row, holding customer ordinals in ascending order
+	 */
+	public Row watchers(int movie, Row row) {
+		return decode(movieRows, movieCount, movie, row);
+	}
+	/**
+	 * Decodes the movies a customer watched
+	 * @param customer the customer ordinal
+	 * @param row reused for the result
+	 * @return the row, holding movie ordinals in ascending order
+	 */
+	public Row history(int customer, Row row) {
+		return decode(customerRows, customerCount, customer, row);
+	}
+
+	@Override
+	public String toString() {
+		return "RatingSnapshot [version=" + version
+				+ ", movies=" + movieCount
+				+ ", customers=" + customerCount
+				+ ", ratings=" + ratingCount
+				+ ", bytes=" + size() + "]";
+	}
+
+	private int binarySearch(int start, int count, int key) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int value = buffer.getInt(start + 4 * mid);
+			if (value < key)
+				low = mid + 1;
+			else if (value > key)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	private Row decode(int section, int rows, int index, Row row) {
+		int data = section + 4 * (rows + 1);
+		int position = data + buffer.getInt(section + 4 * index);
+		/*
+		 * count, then the delta encoded ordinals
+		 */
+		int count = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = buffer.get(position++);
+			count |= (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+		row.resize(count);
+		int ordinal = 0;
+		for (int i = 0; i < count; i++) {
+			int delta = 0;
+			shift = 0;
+			do {
+				b = buffer.get(position++);
+				delta |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			ordinal += delta;
+			row.ordinals[i] = ordinal;
+		}
+		/*
+		 * ratings, two to a byte
+		 */
+		for (int i = 0; i < count; i += 2) {
+			b = buffer.get(position++);
+			row.ratings[i] = (byte) ((b >> 4) & 0x0f);
+			if (i + 1 < count)
+				row.ratings[i + 1] = (byte) (b & 0x0f);
+		}
+		/*
+		 * dates
+		 */
+		for (int i = 0; i < count; i++) {
+			row.days[i] = buffer.getShort(position);
+			position += 2;
+		}
+		return row;
+	}
+
+	/**
+	 * @param date yyyy-MM-dd
+	 * @return the number of days since 1970-01-01
+	 * @throws IllegalArgumentException if the date is not yyyy-MM-dd, or has no such month or day
+	 */
+	public static int epochDay(String date) {
+		if (date == null || date.length() != 10 || date.charAt(4) != '-' || date.charAt(7) != '-')
+			throw new IllegalArgumentException("Unexpected date: " + date);
+		int year = digits(date, 0, 4);
+		int month = digits(date, 5, 7);
+		int day = digits(date, 8, 10);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month))
+			throw new IllegalArgumentException("Unexpected date: " + date);
+		return epochDay(year, month, day);
+	}
+
+	/**
+	 * @return the decimal number of chars from start to end, or -1 if one is not a digit
+	 */
+	private static int digits(String date, int start, int end) {
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			char c = date.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @param month 1-12
+	 * @return the number of days of the month
+	 */
+	private static int daysInMonth(int year, int month) {
+		if (month == 2)
+			return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+		/* 31 days in the odd months to July, then in the even ones */
+		return 30 + ((month + month / 8) & 1);
+	}
+
+	/**
+	 * @param month 1-12
+	 * @param day 1-31
+	 * @return the number of days since 1970-01-01
+	 */
+	public static int epochDay(int year, int month, int day) {
+		/*
+		 * days from the civil date, with the year starting in March
+		 * so the leap day is the last day of the year
+		 */
+		if (month <= 2)
+			year--;
+		int era = (year >= 0 ? year : year - 399) / 400;
+		int yearOfEra = year - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * @param epochDay the number of days since 1970-01-01
+	 * @return yyyy-MM-dd
+	 */
+	public static String date(int epochDay) {
+		int days = epochDay + 719468;
+		int era = (days >= 0 ? days : days - 146096) / 146097;
+		int dayOfEra = days - era * 146097;
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int monthIndex = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+		int month = monthIndex + (monthIndex < 10 ? 3 : -9);
+		int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		char[] chars = new char[10];
+		chars[0] = (char) ('0' + year / 1000);
+		chars[1] = (char) ('0' + year / 100 % 10);
+		chars[2] = (char) ('0' + year / 10 % 10);
+		chars[3] = (char) ('0' + year % 10);
+		chars[4] = '-';
+		chars[5] = (char) ('0' + month / 10);
+		chars[6] = (char) ('0' + month % 10);
+		chars[7] = '-';
+		chars[8] = (char) ('0' + day / 10);
+		chars[9] = (char) ('0' + day % 10);
+		return new String(chars);
+	}
+
+	/**
+	 * A decoded row of a snapshot: ordinals with their ratings and dates.
+	 * A row is reused from one decode to the next, so it is not shared between threads.
+	 */
+	public static class Row {
+		private int size;
+		private int[] ordinals = new int[16];
+		private byte[] ratings = new byte[16];
+		private short[] days = new short[16];
+
+		private void resize(int count) {
+			if (count > ordinals.length) {
+				int capacity = Math.max(count, ordinals.length * 2);
+				ordinals = new int[capacity];
+				ratings = new byte[capacity];
+				days = new short[capacity];
+			}
+			size = count;
+		}
+
+		public int size() {
+			return size;
+		}
+		/**
+		 * @return the customer ordinal of a movie row, or the movie ordinal of a customer row
+		 */
+		public int ordinal(int i) {
+			return ordinals[i];
+		}
+		public int rating(int i) {
+			return ratings[i];
+		}
+		/**
+		 * @return the date of the rating, as the number of days since 1970-01-01
+		 */
+		public int epochDay(int i) {
+			return days[i];
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package com.aerospike.recommendation.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import com.aerospike.recommendation.dataimport.MovieFileReader;
+import com.aerospike.recommendation.dataimport.model.Movie;
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+
+/**
+ * Converts the movie rating files into a binary snapshot,
+ * in the format described in RatingSnapshot.
+ *
+ * The ratings of all the movies are held in memory as primitive
+ * arrays, sorted into movie rows and customer rows, and each
+ * section is encoded before the file is written.
+ * @author peter
+ *
+ */
+public class RatingSnapshotWriter {
+	private static Logger log = Logger.getLogger(RatingSnapshotWriter.class);
+	private static final int BATCH_SIZE = 10000;
+
+	private int movies = 0;
+	private int[] movieIds = new int[1024];
+	private String[] titles = new String[1024];
+	private int[] years = new int[1024];
+
+	private int ratings = 0;
+	private int[] ratingMovie = new int[1 << 16];
+	private int[] ratingCustomer = new int[1 << 16];
+	private byte[] ratingValue = new byte[1 << 16];
+	private short[] ratingDay = new short[1 << 16];
+
+	/**
+	 * Converts the movie_*.json files in a directory
+	 * @param ratingDir the movie file directory
+	 * @param limit the number of movies to convert, 0 means all the movies
+	 * @param snapshotFile the file written
+	 */
+	public static void write(File ratingDir, int limit, File snapshotFile) throws IOException, ParseException {
+		long start = System.currentTimeMillis();
+		File[] ratingFiles = ratingDir.listFiles(new FileFilter() {
+
+			@Override
+			public boolean accept(File file) {
+				return file.getName().startsWith("movie_000") && file.getName().endsWith(".json");
+			}
+		});
+		if (ratingFiles == null)
+			throw new IOException("Not a movie directory: " + ratingDir);
+		Arrays.sort(ratingFiles);
+		if (limit != 0 && limit < ratingFiles.length)
+			ratingFiles = Arrays.copyOf(ratingFiles, limit);
+
+		RatingSnapshotWriter writer = new RatingSnapshotWriter();
+		MovieFileReader reader = new MovieFileReader(BATCH_SIZE);
+		long jsonBytes = 0;
+		for (File ratingFile : ratingFiles){
+			writer.addMovieFile(reader, ratingFile);
+			jsonBytes += ratingFile.length();
+		}
+		log.info("Read " + writer.ratings + " ratings of " + writer.movies + " movies in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		long bytes = writer.write(snapshotFile);
+		log.info("Wrote " + snapshotFile + ", " + bytes + " bytes from " + jsonBytes + " bytes of JSON, in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private void addMovieFile(MovieFileReader reader, File ratingFile) throws IOException, ParseException {
+		final int movie = movies;
+		reader.read(ratingFile, new MovieFileReader.Handler() {
+			@Override
+			public void ratings(RatingBatch batch, int first) {
+				for (int i = 0; i < batch.size(); i++){
+					if (batch.epochDay(i) == RatingBatch.NO_DATE)
+						throw new IllegalArgumentException("No date for rating " + (first + i) + " of movie " + movie);
+					addRating(movie, batch.customerId(i), batch.rating(i), batch.epochDay(i));
+				}
+			}
+
+			@Override
+			public void movie(JSONObject fields) {
+				Number year = (Number) fields.get(Movie.YEAR_OF_RELEASE);
+				addMovie(id((String) fields.get(Movie.MOVIE_ID), "movie"), (String) fields.get(Movie.TITLE),
+						year == null ? 0 : year.intValue());
+			}
+		});
+	}
+
+	/**
+	 * @return the ID as an int, if it can be written back as the same string
+	 */
+	private static int id(String id, String kind) {
+		int value;
+		try {
+			value = Integer.parseInt(id);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Unexpected " + kind + " ID: " + id);
+		}
+		if (value < 0 || !String.valueOf(value).equals(id))
+			throw new IllegalArgumentException("Unexpected " + kind + " ID: " + id);
+		return value;
+	}
+
+	private void addMovie(int movieId, String title, int yearOfRelease) {
+		if (movies == movieIds.length) {
+			int capacity = movies * 2;
+			movieIds = Arrays.copyOf(movieIds, capacity);
+			titles = Arrays.copyOf(titles, capacity);
+			years = Arrays.copyOf(years, capacity);
+		}
+		if (yearOfRelease < Short.MIN_VALUE || yearOfRelease > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Unexpected year of release of movie " + movieId + ": " + yearOfRelease);
+		movieIds[movies] = movieId;
+		titles[movies] = title == null ? "" : title;
+		years[movies] = yearOfRelease;
+		movies++;
+	}
+
+	private void addRating(int movie, int customerId, int rating, int epochDay) {
+		if (ratings == ratingMovie.length) {
+			int capacity = ratings * 2;
+			ratingMovie = Arrays.copyOf(ratingMovie, capacity);
+			ratingCustomer = Arrays.copyOf(ratingCustomer, capacity);
+			ratingValue = Arrays.copyOf(ratingValue, capacity);
+			ratingDay = Arrays.copyOf(ratingDay, capacity);
+		}
+		if (rating < 0 || rating > 15)
+			throw new IllegalArgumentException("Rating does not fit in a nibble: " + rating);
+		if (epochDay < Short.MIN_VALUE || epochDay > Short.MAX_VALUE)
+			throw new IllegalArgumentException("Date does not fit in a short: " + RatingSnapshot.date(epochDay));
+		ratingMovie[ratings] = movie;
+		ratingCustomer[ratings] = customerId;
+		ratingValue[ratings] = (byte) rating;
+		ratingDay[ratings] = (short) epochDay;
+		ratings++;
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	private long write(File snapshotFile) throws IOException {
+		/*
+		 * movie dictionary: sort the movie IDs and map
+		 * the order the movies were added in to ordinals
+		 */
+		int[] sortedMovieIds = Arrays.copyOf(movieIds, movies);
+		Arrays.sort(sortedMovieIds);
+		int[] movieOrdinal = new int[movies];
+		for (int m = 0; m < movies; m++) {
+			if (m > 0 && sortedMovieIds[m] == sortedMovieIds[m - 1])
+				throw new IllegalArgumentException("Duplicate movie: " + sortedMovieIds[m]);
+			movieOrdinal[m] = Arrays.binarySearch(sortedMovieIds, movieIds[m]);
+		}
+		/*
+		 * customer dictionary: distinct sorted customer IDs
+		 */
+		int[] distinct = Arrays.copyOf(ratingCustomer, ratings);
+		Arrays.sort(distinct);
+		int customers = 0;
+		for (int i = 0; i < distinct.length; i++) {
+			if (i == 0 || distinct[i] != distinct[i - 1])
+				distinct[customers++] = distinct[i];
+		}
+		int[] sortedCustomerIds = Arrays.copyOf(distinct, customers);
+		distinct = null;
+
+		int[] rowMovie = new int[ratings];
+		int[] rowCustomer = new int[ratings];
+		for (int r = 0; r < ratings; r++) {
+			rowMovie[r] = movieOrdinal[ratingMovie[r]];
+			rowCustomer[r] = Arrays.binarySearch(sortedCustomerIds, ratingCustomer[r]);
+		}
+		/*
+		 * stable counting sorts: by customer, then by movie, gives
+		 * the movie rows sorted by customer, and sorting those by
+		 * customer gives the customer rows sorted by movie
+		 */
+		int[] identity = new int[ratings];
+		for (int r = 0; r < ratings; r++)
+			identity[r] = r;
+		int[] byCustomer = sort(identity, rowCustomer, customers);
+		identity = null;
+		int[] movieMajor = sort(byCustomer, rowMovie, movies);
+		byCustomer = null;
+		int[] customerMajor = sort(movieMajor, rowCustomer, customers);
+
+		byte[] movieTable = movieTable(sortedMovieIds, movieOrdinal);
+		byte[] customerDictionary = intArray(sortedCustomerIds);
+		byte[] movieRows = rows(movieMajor, rowMovie, rowCustomer, movies);
+		movieMajor = null;
+		byte[] customerRows = rows(customerMajor, rowCustomer, rowMovie, customers);
+
+		long length = (long) RatingSnapshot.HEADER_SIZE + movieTable.length + customerDictionary.length
+				+ movieRows.length + customerRows.length;
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalStateException("Rating snapshot too large: " + length + " bytes");
+		int movieTableOffset = RatingSnapshot.HEADER_SIZE;
+		int customerOffset = movieTableOffset + movieTable.length;
+		int movieRowsOffset = customerOffset + customerDictionary.length;
+		int customerRowsOffset = movieRowsOffset + movieRows.length;
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshotFile)));
+		try {
+			out.writeInt(RatingSnapshot.MAGIC);
+			out.writeInt(RatingSnapshot.VERSION);
+			out.writeInt(movies);
+			out.writeInt(customers);
+			out.writeLong(ratings);
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(movieTableOffset);
+			out.writeInt(customerOffset);
+			out.writeInt(movieRowsOffset);
+			out.writeInt(customerRowsOffset);
+			out.writeInt((int) length);
+			while (out.size() < RatingSnapshot.HEADER_SIZE)
+				out.writeByte(0);
+			out.write(movieTable);
+			out.write(customerDictionary);
+			out.write(movieRows);
+			out.write(customerRows);
+		} finally {
+			out.close();
+		}
+		return length;
+	}
+
+	private byte[] movieTable(int[] sortedMovieIds, int[] movieOrdinal) throws IOException {
+		String[] sortedTitles = new String[movies];
+		int[] sortedYears = new int[movies];
+		for (int m = 0; m < movies; m++) {
+			sortedTitles[movieOrdinal[m]] = titles[m];
+			sortedYears[movieOrdinal[m]] = years[m];
+		}
+		ByteArrayOutputStream titleBytes = new ByteArrayOutputStream();
+		int[] titleOffsets = new int[movies + 1];
+		for (int m = 0; m < movies; m++) {
+			titleBytes.write(sortedTitles[m].getBytes("UTF-8"));
+			titleOffsets[m + 1] = titleBytes.size();
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int m = 0; m < movies; m++)
+			out.writeInt(sortedMovieIds[m]);
+		for (int m = 0; m < movies; m++)
+			out.writeShort(sortedYears[m]);
+		for (int m = 0; m <= movies; m++)
+			out.writeInt(titleOffsets[m]);
+		titleBytes.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] intArray(int[] values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(values.length * 4);
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int value : values)
+			out.writeInt(value);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encodes one of the row sections
+	 * @param order the ratings, sorted by row, then by column
+	 * @param row the row of each rating
+	 * @param column the ordinal stored in the row for each rating
+	 * @param rowCount
+	 */
+	private byte[] rows(int[] order, int[] row, int[] column, int rowCount) throws IOException {
+		int[] rowOffsets = new int[rowCount + 1];
+		ByteArrayOutputStream data = new ByteArrayOutputStream(ratings * 4);
+		int from = 0;
+		for (int r = 0; r < rowCount; r++) {
+			int to = from;
+			while (to < ratings && row[order[to]] == r)
+				to++;
+			int count = to - from;
+			writeVarint(data, count);
+			int previous = 0;
+			for (int i = from; i < to; i++) {
+				writeVarint(data, column[order[i]] - previous);
+				previous = column[order[i]];
+			}
+			for (int i = from; i < to; i += 2) {
+				int b = ratingValue[order[i]] << 4;
+				if (i + 1 < to)
+					b |= ratingValue[order[i + 1]];
+				data.write(b);
+			}
+			for (int i = from; i < to; i++) {
+				short day = ratingDay[order[i]];
+				data.write(day >> 8);
+				data.write(day);
+			}
+			rowOffsets[r + 1] = data.size();
+			from = to;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4 * (rowCount + 1) + data.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int offset : rowOffsets)
+			out.writeInt(offset);
+		data.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Stable counting sort of rating positions by a key
+	 * @param order the rating positions
+	 * @param keys the key of each rating
+	 * @param keyCount
+	 * @return the rating positions, sorted by key
+	 */
+	private int[] sort(int[] order, int[] keys, int keyCount) {
+		int[] offsets = new int[keyCount + 1];
+		for (int r = 0; r < ratings; r++)
+			offsets[keys[r] + 1]++;
+		for (int i = 0; i < keyCount; i++)
+			offsets[i + 1] += offsets[i];
+		int[] sorted = new int[ratings];
+		for (int r : order)
+			sorted[offsets[keys[r]]++] = r;
+		return sorted;
+	}
+}
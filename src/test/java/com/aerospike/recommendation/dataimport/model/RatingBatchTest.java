@@ -0,0 +1,117 @@
+package com.aerospike.recommendation.dataimport.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.aerospike.recommendation.snapshot.RatingSnapshot;
+
+public class RatingBatchTest {
+
+	@Test
+	public void readsRatingsWithoutAValidDateWithNoDate() {
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+		list.add(entry("1", "10", 3, "2005-12-31"));
+		list.add(entry("2", "10", 4, null));
+		list.add(entry("3", "10", 5, "2005-02-30"));
+		list.add(entry("4", "10", 1, "not a date"));
+		Map<String, Object> dayOnly = entry("5", "10", 2, null);
+		dayOnly.put(WatchedRated.DAY, 12000L);
+		list.add(dayOnly);
+
+		RatingBatch batch = RatingBatch.fromMaps(list);
+		assertEquals(5, batch.size());
+		assertEquals(RatingSnapshot.epochDay("2005-12-31"), batch.epochDay(0));
+		assertEquals("2005-12-31", batch.date(0));
+		for (int i = 1; i <= 3; i++) {
+			assertEquals(RatingBatch.NO_DATE, batch.epochDay(i));
+			assertNull(batch.date(i));
+		}
+		assertEquals(12000, batch.epochDay(4));
+		assertEquals(4, batch.rating(1));
+		assertEquals(10, batch.customerId(3));
+	}
+
+	@Test
+	public void leavesOutEntriesThatAreNotRatings() {
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+		list.add(entry(null, "10", 3, "2005-01-01"));
+		list.add(entry("x", "10", 3, "2005-01-01"));
+		Map<String, Object> unrated = entry("2", "10", 3, "2005-01-01");
+		unrated.remove(WatchedRated.RATING);
+		list.add(unrated);
+		list.add(entry("3", null, 2, "2005-01-01"));
+
+		RatingBatch batch = RatingBatch.fromMaps(list);
+		assertEquals(1, batch.size());
+		assertEquals(3, batch.movieId(0));
+		assertEquals(-1, batch.customerId(0));
+		assertNull(RatingBatch.fromMaps(null));
+	}
+
+	@Test
+	public void storesNoDateForRatingsWithoutOne() {
+		RatingBatch batch = new RatingBatch();
+		batch.add(1, 10, 3, RatingBatch.NO_DATE);
+		batch.add(2, 10, 4, RatingSnapshot.epochDay("2004-02-29"));
+
+		Map<String, Object> undated = batch.toMap(0);
+		assertFalse(undated.containsKey(WatchedRated.DATE));
+		assertFalse(undated.containsKey(WatchedRated.DAY));
+		Map<String, Object> dated = batch.toMap(1);
+		assertEquals("2004-02-29", dated.get(WatchedRated.DATE));
+
+		RatingBatch read = RatingBatch.fromMaps(batch.toMaps(0));
+		assertEquals(RatingBatch.NO_DATE, read.epochDay(0));
+		assertEquals(RatingSnapshot.epochDay("2004-02-29"), read.epochDay(1));
+	}
+
+	@Test
+	public void sortsUndatedRatingsFirstAndKeepsTheOrderOfADay() {
+		RatingBatch batch = new RatingBatch(2);
+		batch.add(1, 10, 3, 200);
+		batch.add(2, 10, 3, RatingBatch.NO_DATE);
+		batch.add(3, 10, 3, 100);
+		batch.add(4, 10, 3, 200);
+		batch.add(5, 10, 3, RatingBatch.NO_DATE);
+		batch.sortByDay();
+
+		int[] movies = {2, 5, 3, 1, 4};
+		for (int i = 0; i < movies.length; i++)
+			assertEquals(movies[i], batch.movieId(i));
+		assertEquals(RatingBatch.NO_DATE, batch.epochDay(1));
+		assertEquals(200, batch.epochDay(4));
+	}
+
+	@Test
+	public void rejectsDatesThatDoNotFitAShort() {
+		RatingBatch batch = new RatingBatch();
+		try {
+			batch.add(1, 10, 3, Short.MAX_VALUE + 1);
+			fail("Accepted a date past Short.MAX_VALUE");
+		} catch (IllegalArgumentException e) {
+			assertTrue(batch.isEmpty());
+		}
+	}
+
+	private static Map<String, Object> entry(String movieId, String customerId, long rating, String date) {
+		Map<String, Object> entry = new HashMap<String, Object>();
+		if (movieId != null)
+			entry.put(WatchedRated.MOVIE_ID, movieId);
+		if (customerId != null)
+			entry.put(WatchedRated.CUSTOMER_ID, customerId);
+		entry.put(WatchedRated.RATING, rating);
+		if (date != null)
+			entry.put(WatchedRated.DATE, date);
+		return entry;
+	}
+}
@@ -0,0 +1,165 @@
+package com.aerospike.recommendation.dataimport.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.aerospike.client.Record;
+
+public class TimeIndexTest {
+
+	@Test
+	public void keysOfRatingsAddedOutOfOrderAreInDateOrder() {
+		RatingBatch batch = new RatingBatch();
+		batch.add(1, 10, 3, 13000);
+		batch.add(2, 10, 4, 12000);
+		batch.add(3, 10, 5, RatingBatch.NO_DATE);
+		batch.add(4, 10, 1, 13000);
+		batch.add(5, 10, 2, -5);
+		List<Map<String, Object>> maps = batch.toMaps(7);
+
+		long[] keys = new long[maps.size()];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = (Long) maps.get(i).get(RatingBatch.KEY);
+		Arrays.sort(keys);
+		// undated first, then the dates before 1970, then by date and position
+		assertArrayEquals(new long[] {
+				TimeIndex.key(RatingBatch.NO_DATE, 9),
+				TimeIndex.key(-5, 11),
+				TimeIndex.key(12000, 8),
+				TimeIndex.key(13000, 7),
+				TimeIndex.key(13000, 10)}, keys);
+	}
+
+	@Test
+	public void lastKeyIsAfterEveryPositionOfTheDay() {
+		assertTrue(TimeIndex.lastKey(13000) > TimeIndex.key(13000, Integer.MAX_VALUE));
+		assertTrue(TimeIndex.lastKey(13000) < TimeIndex.key(13001, 0));
+		assertTrue(TimeIndex.lastKey(-1) < TimeIndex.key(0, 0));
+	}
+
+	@Test
+	public void firstKeyCoversTheLatestRatings() {
+		TimeIndex index = new TimeIndex();
+		index.add(100);
+		index.add(102);
+		index.add(102);
+		index.add(101);
+		index.add(105);
+		index.add(RatingBatch.NO_DATE);
+
+		assertEquals(TimeIndex.key(105, 0), index.firstKey(RatingBatch.NO_DATE, Integer.MAX_VALUE, 1));
+		// a day is read whole, so the limit may be passed
+		assertEquals(TimeIndex.key(102, 0), index.firstKey(RatingBatch.NO_DATE, Integer.MAX_VALUE, 2));
+		assertEquals(TimeIndex.key(102, 0), index.firstKey(RatingBatch.NO_DATE, Integer.MAX_VALUE, 3));
+		assertEquals(TimeIndex.key(101, 0), index.firstKey(RatingBatch.NO_DATE, Integer.MAX_VALUE, 4));
+		assertEquals(TimeIndex.key(RatingBatch.NO_DATE, 0),
+				index.firstKey(RatingBatch.NO_DATE, Integer.MAX_VALUE, 100));
+	}
+
+	@Test
+	public void firstKeyOfAWindowOfDays() {
+		TimeIndex index = new TimeIndex();
+		index.add(100);
+		index.add(101);
+		index.add(103);
+		index.add(110);
+
+		assertEquals(TimeIndex.key(101, 0), index.firstKey(101, 105, 100));
+		assertEquals(TimeIndex.key(103, 0), index.firstKey(101, 105, 1));
+		assertEquals(TimeIndex.key(100, 0), index.firstKey(RatingBatch.NO_DATE, 109, 100));
+		assertEquals(TimeIndex.NONE, index.firstKey(104, 109, 100));
+		assertEquals(TimeIndex.NONE, index.firstKey(111, 120, 100));
+	}
+
+	@Test
+	public void firstKeySkipsDaysWhoseRatingsWereTakenBack() {
+		TimeIndex index = new TimeIndex();
+		index.add(100);
+		index.add(105);
+		index.remove(105);
+
+		assertEquals(1, index.size());
+		assertEquals(TimeIndex.key(100, 0), index.firstKey(RatingBatch.NO_DATE, Integer.MAX_VALUE, 1));
+		assertEquals(TimeIndex.NONE, index.firstKey(101, Integer.MAX_VALUE, 1));
+	}
+
+	@Test
+	public void entriesRoundTrip() {
+		TimeIndex index = new TimeIndex();
+		for (int day = -40; day < 40; day++) {
+			for (int i = 0; i <= (day & 3); i++)
+				index.add(day * 400);
+		}
+		index.add(RatingBatch.NO_DATE);
+		index.add(Short.MAX_VALUE);
+
+		byte[] entries = index.entries();
+		assertEquals(82 * 6, entries.length);
+		TimeIndex read = new TimeIndex(entries);
+		assertEquals(index.size(), read.size());
+		assertArrayEquals(entries, read.entries());
+		assertEquals(index.firstKey(-1000, 1000, 5), read.firstKey(-1000, 1000, 5));
+	}
+
+	@Test
+	public void appendedEntriesOfTheSameDayAreAddedUp() {
+		TimeIndex first = new TimeIndex();
+		first.add(200);
+		first.add(201);
+		TimeIndex second = new TimeIndex();
+		second.add(200);
+		second.add(200);
+		TimeIndex undo = new TimeIndex();
+		undo.remove(201);
+
+		byte[] firstEntries = first.entries();
+		byte[] secondEntries = second.entries();
+		byte[] undoEntries = undo.entries();
+		byte[] appended = Arrays.copyOf(firstEntries, firstEntries.length + secondEntries.length + undoEntries.length);
+		System.arraycopy(secondEntries, 0, appended, firstEntries.length, secondEntries.length);
+		System.arraycopy(undoEntries, 0, appended, firstEntries.length + secondEntries.length, undoEntries.length);
+
+		TimeIndex read = new TimeIndex(appended);
+		assertEquals(3, read.size());
+		assertEquals(TimeIndex.NONE, read.firstKey(201, 201, 1));
+		TimeIndex expected = new TimeIndex();
+		expected.add(first);
+		expected.add(second);
+		expected.add(undo);
+		assertArrayEquals(expected.entries(), read.entries());
+	}
+
+	@Test
+	public void listsWithoutAMatchingIndexAreKeyedByPosition() {
+		TimeIndex index = new TimeIndex();
+		index.add(300);
+		index.add(301);
+
+		assertNotNull(TimeIndex.of(record(index.entries()), 2));
+		assertEquals(2, TimeIndex.of(record(index.entries()), 2).size());
+		// a list loaded before the index, with ratings added since
+		assertNull(TimeIndex.of(record(index.entries()), 5));
+		assertNull(TimeIndex.of(record(null), 5));
+		assertNull(TimeIndex.of(null, 5));
+		// a new list
+		assertTrue(TimeIndex.of(record(null), 0).isEmpty());
+		assertTrue(TimeIndex.of(null, 0).isEmpty());
+	}
+
+	private static Record record(byte[] days) {
+		Map<String, Object> bins = new HashMap<String, Object>();
+		if (days != null)
+			bins.put(TimeIndex.DAYS, days);
+		return new Record(bins, 1, 0);
+	}
+}
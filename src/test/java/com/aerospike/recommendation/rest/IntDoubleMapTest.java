@@ -0,0 +1,66 @@
+package com.aerospike.recommendation.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IntDoubleMapTest {
+
+	@Test
+	public void addsToTheValueOfAKey() {
+		IntDoubleMap map = new IntDoubleMap(4);
+		map.add(42, 1.5);
+		map.add(42, 2.0);
+		map.add(-7, 0.5);
+		assertEquals(2, map.size());
+		assertEquals(3.5, map.get(42), 0);
+		assertEquals(0.5, map.get(-7), 0);
+		assertEquals(0, map.get(43), 0);
+		assertTrue(map.containsKey(-7));
+		assertFalse(map.containsKey(43));
+	}
+
+	@Test
+	public void growsAndKeepsEveryEntry() {
+		IntDoubleMap map = new IntDoubleMap(4);
+		int initialCapacity = map.capacity();
+		int count = 1000;
+		for (int key = 0; key < count; key++)
+			map.add(key * 31, key);
+		for (int key = 0; key < count; key++)
+			map.add(key * 31, 0.5);
+
+		assertEquals(count, map.size());
+		assertTrue(map.capacity() > initialCapacity);
+		assertTrue(map.size() * 2 <= map.capacity());
+		for (int key = 0; key < count; key++)
+			assertEquals(key + 0.5, map.get(key * 31), 0);
+
+		int used = 0;
+		double sum = 0;
+		for (int slot = 0; slot < map.capacity(); slot++) {
+			if (map.isUsed(slot)) {
+				used++;
+				sum += map.value(slot) - map.key(slot) / 31;
+			}
+		}
+		assertEquals(count, used);
+		assertEquals(count * 0.5, sum, 1e-9);
+	}
+
+	@Test
+	public void isEmptyAfterClear() {
+		IntDoubleMap map = new IntDoubleMap(4);
+		for (int key = 0; key < 20; key++)
+			map.add(key, 1);
+		int capacity = map.capacity();
+		map.clear();
+		assertEquals(0, map.size());
+		assertEquals(capacity, map.capacity());
+		assertFalse(map.containsKey(3));
+		map.add(3, 2);
+		assertEquals(2, map.get(3), 0);
+	}
+}
@@ -0,0 +1,63 @@
+package com.aerospike.recommendation.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.aerospike.recommendation.dataimport.model.RatingBatch;
+
+public class SparseVectorTest {
+
+	@Test
+	public void sealSortsAndKeepsTheLastValueOfAnId() {
+		SparseVector vector = new SparseVector(2).add(9, 1).add(3, 2).add(9, 4).add(5, 3).seal();
+		assertEquals(3, vector.size());
+		assertEquals(3, vector.id(0));
+		assertEquals(5, vector.id(1));
+		assertEquals(9, vector.id(2));
+		assertEquals(4, vector.value(2), 0);
+		assertEquals(Math.sqrt(4 + 9 + 16), vector.norm(), 1e-9);
+		assertTrue(vector.contains(5));
+		assertFalse(vector.contains(4));
+	}
+
+	@Test
+	public void cosineOfVectorsWithNoCommonIdIsZero() {
+		SparseVector a = new SparseVector().add(1, 5).add(3, 4).seal();
+		SparseVector b = new SparseVector().add(2, 5).add(4, 1).seal();
+		assertEquals(0, CosineSimilarity.dotProduct(a, b), 0);
+		assertEquals(0, CosineSimilarity.cosineSimilarity(a, b), 0);
+	}
+
+	@Test
+	public void cosineOfAnEmptyVectorIsZero() {
+		SparseVector a = new SparseVector().add(1, 5).seal();
+		SparseVector empty = new SparseVector().seal();
+		assertEquals(0, CosineSimilarity.cosineSimilarity(a, empty), 0);
+		assertEquals(0, CosineSimilarity.cosineSimilarity(empty, empty), 0);
+	}
+
+	@Test
+	public void cosineOfOverlappingVectors() {
+		SparseVector a = new SparseVector().add(1, 1).add(2, 2).add(3, 3).seal();
+		SparseVector b = new SparseVector().add(2, 4).add(3, 1).add(7, 2).seal();
+		double expected = (2 * 4 + 3 * 1) / (Math.sqrt(1 + 4 + 9) * Math.sqrt(16 + 1 + 4));
+		assertEquals(expected, CosineSimilarity.cosineSimilarity(a, b), 1e-9);
+		assertEquals(1, CosineSimilarity.cosineSimilarity(a, a), 1e-9);
+	}
+
+	@Test
+	public void fromRatingsKeysByMovie() {
+		RatingBatch ratings = new RatingBatch();
+		ratings.add(30, 1, 4, RatingBatch.NO_DATE);
+		ratings.add(10, 1, 2, RatingBatch.NO_DATE);
+		SparseVector vector = SparseVector.fromRatings(ratings);
+		assertEquals(2, vector.size());
+		assertEquals(10, vector.id(0));
+		assertEquals(2, vector.value(0), 0);
+		assertEquals(30, vector.id(1));
+		assertEquals(4, vector.value(1), 0);
+	}
+}
@@ -0,0 +1,81 @@
+package com.aerospike.recommendation.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TopKTest {
+
+	@Test
+	public void keepsTheHighestScores() {
+		TopK top = new TopK(3);
+		double[] scores = {0.5, 0.1, 0.9, 0.3, 0.7, 0.2};
+		for (int i = 0; i < scores.length; i++)
+			top.offer(i, scores[i]);
+		assertEquals(3, top.size());
+		assertEquals(0.5, top.minScore(), 0);
+
+		int[] items = new int[3];
+		double[] drained = new double[3];
+		assertEquals(3, top.drainDescending(items, drained));
+		assertArrayEquals(new int[] {2, 4, 0}, items);
+		assertArrayEquals(new double[] {0.9, 0.7, 0.5}, drained, 0);
+		assertEquals(0, top.size());
+	}
+
+	@Test
+	public void keepsTheFirstOfTiedScores() {
+		TopK top = new TopK(2);
+		assertTrue(top.offer(1, 0.5));
+		assertTrue(top.offer(2, 0.5));
+		// a tie with the lowest kept score does not make the cut
+		assertFalse(top.offer(3, 0.5));
+		assertTrue(top.offer(4, 0.6));
+
+		int[] items = new int[2];
+		double[] scores = new double[2];
+		top.drainDescending(items, scores);
+		assertEquals(4, items[0]);
+		assertEquals(0.6, scores[0], 0);
+		assertTrue(items[1] == 1 || items[1] == 2);
+		assertEquals(0.5, scores[1], 0);
+	}
+
+	@Test
+	public void keepsEveryItemWhenKIsMoreThanTheItems() {
+		TopK top = new TopK(10);
+		top.offer(7, 0.2);
+		top.offer(8, 0.8);
+		top.offer(9, 0.5);
+		assertEquals(3, top.size());
+
+		int[] items = new int[10];
+		double[] scores = new double[10];
+		assertEquals(3, top.drainDescending(items, scores));
+		assertEquals(8, items[0]);
+		assertEquals(9, items[1]);
+		assertEquals(7, items[2]);
+	}
+
+	@Test
+	public void keepsNothingWhenKIsZero() {
+		TopK top = new TopK(0);
+		assertFalse(top.offer(1, 1.0));
+		assertEquals(0, top.size());
+		assertEquals(0, top.drainDescending(new int[0], new double[0]));
+	}
+
+	@Test
+	public void isEmptyAfterClear() {
+		TopK top = new TopK(2);
+		top.offer(1, 0.1);
+		top.offer(2, 0.2);
+		top.clear();
+		assertEquals(0, top.size());
+		assertTrue(top.offer(3, 0.05));
+		assertEquals(0.05, top.minScore(), 0);
+	}
+}
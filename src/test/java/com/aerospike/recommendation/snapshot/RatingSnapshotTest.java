@@ -0,0 +1,168 @@
+package com.aerospike.recommendation.snapshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RatingSnapshotTest {
+	/*
+	 * month ends, the leap days included
+	 */
+	private static final String[] DATES = {"1999-12-31", "2000-01-31", "2000-02-29", "2004-02-29",
+		"2005-01-31", "2005-02-28", "2005-04-30", "2005-06-30", "2005-07-31", "2005-08-31",
+		"2005-09-30", "2005-11-30", "2005-12-31"};
+	private static final int CUSTOMERS = 450;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void epochDayOfKnownDates() {
+		assertEquals(0, RatingSnapshot.epochDay("1970-01-01"));
+		assertEquals(-1, RatingSnapshot.epochDay("1969-12-31"));
+		assertEquals(11016, RatingSnapshot.epochDay("2000-02-29"));
+		assertEquals(13148, RatingSnapshot.epochDay("2005-12-31"));
+		assertEquals("1970-01-01", RatingSnapshot.date(0));
+		assertEquals("2006-01-01", RatingSnapshot.date(13149));
+	}
+
+	@Test
+	public void epochDayRoundTripsEveryDay() {
+		int first = RatingSnapshot.epochDay(1899, 1, 1);
+		int last = RatingSnapshot.epochDay(2101, 1, 1);
+		for (int day = first; day <= last; day++) {
+			String date = RatingSnapshot.date(day);
+			assertEquals(date, day, RatingSnapshot.epochDay(date));
+			if (day > first)
+				assertTrue(date, date.compareTo(RatingSnapshot.date(day - 1)) > 0);
+		}
+	}
+
+	@Test
+	public void monthEndsAreTheDayBeforeTheFirstOfTheNextMonth() {
+		for (String date : DATES) {
+			int day = RatingSnapshot.epochDay(date);
+			assertEquals(date, RatingSnapshot.date(day));
+			assertTrue(date, RatingSnapshot.date(day + 1).endsWith("-01"));
+		}
+	}
+
+	@Test
+	public void rejectsDaysPastTheEndOfTheMonth() {
+		String[] invalid = {"2005-02-29", "1900-02-29", "2005-04-31", "2005-06-31", "2005-09-31",
+			"2005-11-31", "2005-01-32", "2005-13-01", "2005-00-10", "2005-01-00", "2005-1-01", "20050101", null};
+		for (String date : invalid) {
+			try {
+				RatingSnapshot.epochDay(date);
+				fail("Accepted " + date);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void readsBackTheRatingsWritten() throws Exception {
+		File movieDir = folder.newFolder("movies");
+		/*
+		 * the first movie rated by every customer, so the ordinal gaps of
+		 * the second, of every 200th, need more than one varint byte;
+		 * an odd number of ratings leaves half a byte of nibbles
+		 */
+		StringBuilder first = new StringBuilder();
+		StringBuilder second = new StringBuilder();
+		for (int c = 0; c < CUSTOMERS; c++) {
+			append(first, 1, customerId(c), rating(c), DATES[c % DATES.length]);
+			if (c % 200 == 0)
+				append(second, 2, customerId(c), rating(c + 1), DATES[(c + 1) % DATES.length]);
+		}
+		writeMovie(movieDir, 1, first, "Amélie", 2001);
+		writeMovie(movieDir, 2, second, "Dinosaur Planet", 2003);
+		File snapshotFile = new File(folder.getRoot(), "ratings.snapshot");
+		RatingSnapshotWriter.write(movieDir, 0, snapshotFile);
+
+		for (RatingSnapshot snapshot : new RatingSnapshot[] {
+				RatingSnapshot.read(snapshotFile), RatingSnapshot.map(snapshotFile)}) {
+			assertEquals(2, snapshot.movieCount());
+			assertEquals(CUSTOMERS, snapshot.customerCount());
+			assertEquals(CUSTOMERS + 3, snapshot.ratingCount());
+			int movie1 = snapshot.movieIndex(1);
+			int movie2 = snapshot.movieIndex(2);
+			assertEquals("Amélie", snapshot.title(movie1));
+			assertEquals(2001, snapshot.yearOfRelease(movie1));
+			assertEquals(2003, snapshot.yearOfRelease(movie2));
+			assertTrue(snapshot.movieIndex(3) < 0);
+			assertTrue(snapshot.customerIndex(customerId(CUSTOMERS)) < 0);
+
+			RatingSnapshot.Row row = new RatingSnapshot.Row();
+			snapshot.watchers(movie1, row);
+			assertEquals(CUSTOMERS, row.size());
+			for (int i = 0; i < row.size(); i++) {
+				int c = (snapshot.customerId(row.ordinal(i)) - customerId(0)) / 1009;
+				assertEquals(customerId(c), snapshot.customerId(row.ordinal(i)));
+				assertEquals(rating(c), row.rating(i));
+				assertEquals(DATES[c % DATES.length], RatingSnapshot.date(row.epochDay(i)));
+				if (i > 0)
+					assertTrue(row.ordinal(i) > row.ordinal(i - 1));
+			}
+
+			snapshot.watchers(movie2, row);
+			assertEquals(3, row.size());
+			for (int i = 0; i < row.size(); i++) {
+				int c = i * 200;
+				assertEquals(snapshot.customerIndex(customerId(c)), row.ordinal(i));
+				assertEquals(rating(c + 1), row.rating(i));
+				assertEquals(DATES[(c + 1) % DATES.length], RatingSnapshot.date(row.epochDay(i)));
+			}
+
+			snapshot.history(snapshot.customerIndex(customerId(200)), row);
+			assertEquals(2, row.size());
+			assertEquals(Math.min(movie1, movie2), row.ordinal(0));
+			assertEquals(Math.max(movie1, movie2), row.ordinal(1));
+			snapshot.history(snapshot.customerIndex(customerId(201)), row);
+			assertEquals(1, row.size());
+			assertEquals(movie1, row.ordinal(0));
+			assertEquals(rating(201), row.rating(0));
+			assertEquals(DATES[201 % DATES.length], RatingSnapshot.date(row.epochDay(0)));
+		}
+	}
+
+	private static int customerId(int c) {
+		return 1000003 + c * 1009;
+	}
+
+	private static int rating(int c) {
+		return c % 5 + 1;
+	}
+
+	private static void append(StringBuilder ratings, int movieId, int customerId, int rating, String date) {
+		if (ratings.length() > 0)
+			ratings.append(',');
+		ratings.append("{\"customer-id\":\"").append(customerId)
+			.append("\",\"movie-id\":\"").append(movieId)
+			.append("\",\"rating\":").append(rating)
+			.append(",\"date\":\"").append(date).append("\"}");
+	}
+
+	private static void writeMovie(File movieDir, int movieId, StringBuilder ratings, String title, int year)
+			throws IOException {
+		File file = new File(movieDir, String.format("movie_%010d.json", movieId));
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write("{\"watchedBy\":[" + ratings + "],\"title\":\"" + title
+					+ "\",\"movieId\":\"" + movieId + "\",\"yearOfRelease\":" + year + "}");
+		} finally {
+			writer.close();
+		}
+	}
+}